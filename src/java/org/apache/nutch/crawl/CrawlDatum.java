@@ -35,7 +35,11 @@ public class CrawlDatum implements WritableComparable<CrawlDatum>, Cloneable {
   public static final String FETCH_DIR_NAME = "crawl_fetch";
   public static final String PARSE_DIR_NAME = "crawl_parse";
 
-  private final static byte CUR_VERSION = 7;
+  /**
+   * Version 8 replaces the {@link org.apache.hadoop.io.MapWritable} of the
+   * metadata by a compact encoding, see {@link CrawlDatumMetadata}.
+   */
+  private final static byte CUR_VERSION = 8;
 
   /** Compatibility values for on-the-fly conversion from versions < 5. */
   private static final byte OLD_STATUS_SIGNATURE = 0;
@@ -129,6 +133,11 @@ public class CrawlDatum implements WritableComparable<CrawlDatum>, Cloneable {
   private byte[] signature = null;
   private long modifiedTime;
   private org.apache.hadoop.io.MapWritable metaData;
+  /**
+   * Encoded metadata, decoded into {@link #metaData} only when accessed. Never
+   * modified, so that it can be shared between instances.
+   */
+  private byte[] metaBytes;
 
   public static boolean hasDbStatus(CrawlDatum datum) {
     if (datum.status <= STATUS_DB_MAX)
@@ -238,8 +247,13 @@ public class CrawlDatum implements WritableComparable<CrawlDatum>, Cloneable {
     this.signature = signature;
   }
 
+  /**
+   * Set a copy of the given metadata. The copy is kept encoded until the
+   * metadata is accessed.
+   */
   public void setMetaData(org.apache.hadoop.io.MapWritable mapWritable) {
-    this.metaData = new org.apache.hadoop.io.MapWritable(mapWritable);
+    this.metaBytes = CrawlDatumMetadata.encodeUnchecked(mapWritable);
+    this.metaData = null;
   }
 
   /**
@@ -260,11 +274,30 @@ public class CrawlDatum implements WritableComparable<CrawlDatum>, Cloneable {
    * instantiated).
    */
   public org.apache.hadoop.io.MapWritable getMetaData() {
-    if (this.metaData == null)
-      this.metaData = new org.apache.hadoop.io.MapWritable();
+    if (this.metaData == null) {
+      this.metaData = decodeMetaData();
+      if (this.metaData == null)
+        this.metaData = new org.apache.hadoop.io.MapWritable();
+    }
     return this.metaData;
   }
 
+  /**
+   * @return the metadata, decoded if necessary, or null if there is none
+   */
+  private org.apache.hadoop.io.MapWritable decodeMetaData() {
+    if (metaData == null && metaBytes != null) {
+      try {
+        metaData = CrawlDatumMetadata.decode(metaBytes);
+      } catch (IOException e) {
+        throw new IllegalStateException("Failed to decode metadata", e);
+      }
+      // the map is authoritative from now on, it may be modified
+      metaBytes = null;
+    }
+    return metaData;
+  }
+
   //
   // writable methods
   //
@@ -298,7 +331,15 @@ public class CrawlDatum implements WritableComparable<CrawlDatum>, Cloneable {
         signature = null;
     }
 
-    if (version > 3) {
+    metaBytes = null;
+    if (version > 7) {
+      metaData = null;
+      int length = WritableUtils.readVInt(in);
+      if (length > 0) {
+        metaBytes = new byte[length];
+        in.readFully(metaBytes);
+      }
+    } else if (version > 3) {
       boolean hasMetadata = false;
       if (version < 7) {
         org.apache.hadoop.io.MapWritable oldMetaData = new org.apache.hadoop.io.MapWritable();
@@ -348,11 +389,15 @@ public class CrawlDatum implements WritableComparable<CrawlDatum>, Cloneable {
       out.writeByte(signature.length);
       out.write(signature);
     }
-    if (metaData != null && metaData.size() > 0) {
-      out.writeBoolean(true);
-      metaData.write(out);
+    byte[] bytes = metaBytes;
+    if (metaData != null) {
+      bytes = CrawlDatumMetadata.encode(metaData);
+    }
+    if (bytes == null) {
+      WritableUtils.writeVInt(out, 0);
     } else {
-      out.writeBoolean(false);
+      WritableUtils.writeVInt(out, bytes.length);
+      out.write(bytes);
     }
   }
 
@@ -365,14 +410,13 @@ public class CrawlDatum implements WritableComparable<CrawlDatum>, Cloneable {
     this.score = that.score;
     this.modifiedTime = that.modifiedTime;
     this.signature = that.signature;
+    // make a deep copy, kept encoded until accessed
     if (that.metaData != null) {
-      this.metaData = new org.apache.hadoop.io.MapWritable(that.metaData); // make
-                                                                           // a
-                                                                           // deep
-                                                                           // copy
+      this.metaBytes = CrawlDatumMetadata.encodeUnchecked(that.metaData);
     } else {
-      this.metaData = null;
+      this.metaBytes = that.metaBytes;
     }
+    this.metaData = null;
   }
 
   //
@@ -393,7 +437,7 @@ public class CrawlDatum implements WritableComparable<CrawlDatum>, Cloneable {
       return (that.fetchInterval - this.fetchInterval) > 0 ? 1 : -1;
     if (that.modifiedTime != this.modifiedTime)
       return (that.modifiedTime - this.modifiedTime) > 0 ? 1 : -1;
-    return SignatureComparator._compare(this, that);
+    return SignatureComparator._compare(this.signature, that.signature);
   }
 
   /** A Comparator optimized for CrawlDatum. */
@@ -430,8 +474,8 @@ public class CrawlDatum implements WritableComparable<CrawlDatum>, Cloneable {
         return (modifiedTime2 - modifiedTime1) > 0 ? 1 : -1;
       int sigl1 = b1[s1 + SIG_OFFSET];
       int sigl2 = b2[s2 + SIG_OFFSET];
-      return SignatureComparator._compare(b1, SIG_OFFSET, sigl1, b2,
-          SIG_OFFSET, sigl2);
+      return SignatureComparator._compare(b1, s1 + SIG_OFFSET + 1, sigl1, b2,
+          s2 + SIG_OFFSET + 1, sigl2);
     }
   }
 
@@ -456,7 +500,7 @@ public class CrawlDatum implements WritableComparable<CrawlDatum>, Cloneable {
     buf.append("Score: " + getScore() + "\n");
     buf.append("Signature: " + StringUtil.toHexString(getSignature()) + "\n");
     buf.append("Metadata: \n ");
-    if (metaData != null) {
+    if (decodeMetaData() != null) {
       for (Entry<Writable, Writable> e : metaData.entrySet()) {
         buf.append("\t");
         buf.append(e.getKey());
@@ -468,7 +512,13 @@ public class CrawlDatum implements WritableComparable<CrawlDatum>, Cloneable {
     return buf.toString();
   }
 
-  private boolean metadataEquals(org.apache.hadoop.io.MapWritable otherMetaData) {
+  private boolean metadataEquals(CrawlDatum other) {
+    if (metaData == null && other.metaData == null && metaBytes != null
+        && Arrays.equals(metaBytes, other.metaBytes)) {
+      return true;
+    }
+    org.apache.hadoop.io.MapWritable metaData = decodeMetaData();
+    org.apache.hadoop.io.MapWritable otherMetaData = other.decodeMetaData();
     if (metaData == null || metaData.size() == 0) {
       return otherMetaData == null || otherMetaData.size() == 0;
     }
@@ -496,7 +546,7 @@ public class CrawlDatum implements WritableComparable<CrawlDatum>, Cloneable {
         && (this.score == other.score);
     if (!res)
       return res;
-    return metadataEquals(other.metaData);
+    return metadataEquals(other);
   }
 
   public int hashCode() {
@@ -506,7 +556,7 @@ public class CrawlDatum implements WritableComparable<CrawlDatum>, Cloneable {
         res ^= (signature[i] << 24 + signature[i + 1] << 16 + signature[i + 2] << 8 + signature[i + 3]);
       }
     }
-    if (metaData != null) {
+    if (decodeMetaData() != null) {
       res ^= metaData.entrySet().hashCode();
     }
     return res ^ status ^ ((int) fetchTime) ^ ((int) modifiedTime) ^ retries
@@ -0,0 +1,282 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.crawl;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.io.BooleanWritable;
+import org.apache.hadoop.io.ByteWritable;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.FloatWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.MapWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableFactories;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.nutch.metadata.HttpHeaders;
+import org.apache.nutch.metadata.Nutch;
+import org.apache.nutch.protocol.ProtocolStatus;
+
+/**
+ * Compact serialization of {@link CrawlDatum} metadata, used since version 8
+ * of CrawlDatum. Compared to {@link MapWritable}, no class id table is written,
+ * well-known keys are replaced by small ids and common value types are written
+ * without class names, numbers as variable-length integers.
+ *
+ * <p>
+ * Format: number of entries (vint), followed by the entries. A key is written
+ * as a vint: a positive value is the id of a well-known key, 0 is followed by
+ * a {@link Text} key, -1 by the class name and the serialized key of another
+ * type. A value is written as a type byte followed by the value, for
+ * {@link #T_OTHER} the class name precedes the serialized value.
+ *
+ * <p>
+ * Ids of keys and value types must never change, new ones may be appended.
+ */
+final class CrawlDatumMetadata {
+
+  /** Well-known keys, the id of a key is its index + 1 */
+  private static final String[] KEYS = { Nutch.GENERATE_TIME_KEY,
+      Nutch.PROTO_STATUS_KEY, Nutch.REPR_URL_KEY, Nutch.FIXED_INTERVAL_KEY,
+      Nutch.PROTOCOL_STATUS_CODE_KEY.toString(), "_rs_",
+      HttpHeaders.CONTENT_TYPE, "_depth_", "_maxdepth_",
+      HttpHeaders.LAST_MODIFIED, Nutch.FETCH_DELAY_KEY,
+      Nutch.FETCH_THREADS_KEY };
+
+  private static final byte[][] KEY_BYTES = new byte[KEYS.length][];
+  private static final Map<Text, Integer> KEY_IDS = new HashMap<>();
+  static {
+    for (int i = 0; i < KEYS.length; i++) {
+      Text key = new Text(KEYS[i]);
+      KEY_BYTES[i] = key.copyBytes();
+      KEY_IDS.put(key, i + 1);
+    }
+  }
+
+  private static final byte T_OTHER = 0;
+  private static final byte T_TEXT = 1;
+  private static final byte T_INT = 2;
+  private static final byte T_LONG = 3;
+  private static final byte T_FLOAT = 4;
+  private static final byte T_DOUBLE = 5;
+  private static final byte T_BYTE = 6;
+  private static final byte T_BOOLEAN = 7;
+  private static final byte T_BYTES = 8;
+  private static final byte T_NULL = 9;
+  private static final byte T_PROTOCOL_STATUS = 10;
+
+  private static final ThreadLocal<DataOutputBuffer> BUFFER = new ThreadLocal<DataOutputBuffer>() {
+    @Override
+    protected DataOutputBuffer initialValue() {
+      return new DataOutputBuffer();
+    }
+  };
+
+  private CrawlDatumMetadata() {
+  }
+
+  /**
+   * Encode the metadata.
+   *
+   * @return the encoded metadata, or null if the map is empty
+   */
+  static byte[] encode(MapWritable metaData) throws IOException {
+    if (metaData == null || metaData.isEmpty()) {
+      return null;
+    }
+    DataOutputBuffer out = BUFFER.get();
+    out.reset();
+    WritableUtils.writeVInt(out, metaData.size());
+    for (Map.Entry<Writable, Writable> e : metaData.entrySet()) {
+      writeKey(out, e.getKey());
+      writeValue(out, e.getValue());
+    }
+    byte[] bytes = new byte[out.getLength()];
+    System.arraycopy(out.getData(), 0, bytes, 0, bytes.length);
+    if (out.getData().length > 1024 * 1024) {
+      // do not keep a huge buffer for the lifetime of the thread
+      BUFFER.remove();
+    }
+    return bytes;
+  }
+
+  /**
+   * Encode the metadata, wrapping unexpected serialization errors into
+   * runtime exceptions.
+   */
+  static byte[] encodeUnchecked(MapWritable metaData) {
+    try {
+      return encode(metaData);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Failed to serialize metadata", e);
+    }
+  }
+
+  /** Decode metadata encoded by {@link #encode(MapWritable)}. */
+  static MapWritable decode(byte[] bytes) throws IOException {
+    MapWritable metaData = new MapWritable();
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(bytes, bytes.length);
+    int count = WritableUtils.readVInt(in);
+    for (int i = 0; i < count; i++) {
+      Writable key = readKey(in);
+      metaData.put(key, readValue(in));
+    }
+    return metaData;
+  }
+
+  private static void writeKey(DataOutput out, Writable key)
+      throws IOException {
+    if (key.getClass() == Text.class) {
+      Integer id = KEY_IDS.get(key);
+      if (id != null) {
+        WritableUtils.writeVInt(out, id);
+      } else {
+        WritableUtils.writeVInt(out, 0);
+        key.write(out);
+      }
+    } else {
+      WritableUtils.writeVInt(out, -1);
+      Text.writeString(out, key.getClass().getName());
+      key.write(out);
+    }
+  }
+
+  private static Writable readKey(DataInput in) throws IOException {
+    int id = WritableUtils.readVInt(in);
+    if (id > 0) {
+      if (id > KEY_BYTES.length) {
+        throw new IOException("Unknown metadata key id " + id);
+      }
+      Text key = new Text();
+      key.set(KEY_BYTES[id - 1]);
+      return key;
+    } else if (id == 0) {
+      Text key = new Text();
+      key.readFields(in);
+      return key;
+    }
+    Writable key = newInstance(Text.readString(in));
+    key.readFields(in);
+    return key;
+  }
+
+  private static void writeValue(DataOutput out, Writable value)
+      throws IOException {
+    Class<?> clazz = value.getClass();
+    if (clazz == Text.class) {
+      out.writeByte(T_TEXT);
+      value.write(out);
+    } else if (clazz == IntWritable.class) {
+      out.writeByte(T_INT);
+      WritableUtils.writeVInt(out, ((IntWritable) value).get());
+    } else if (clazz == LongWritable.class) {
+      out.writeByte(T_LONG);
+      WritableUtils.writeVLong(out, ((LongWritable) value).get());
+    } else if (clazz == FloatWritable.class) {
+      out.writeByte(T_FLOAT);
+      value.write(out);
+    } else if (clazz == DoubleWritable.class) {
+      out.writeByte(T_DOUBLE);
+      value.write(out);
+    } else if (clazz == ByteWritable.class) {
+      out.writeByte(T_BYTE);
+      value.write(out);
+    } else if (clazz == BooleanWritable.class) {
+      out.writeByte(T_BOOLEAN);
+      value.write(out);
+    } else if (clazz == BytesWritable.class) {
+      out.writeByte(T_BYTES);
+      value.write(out);
+    } else if (clazz == NullWritable.class) {
+      out.writeByte(T_NULL);
+    } else if (clazz == ProtocolStatus.class) {
+      out.writeByte(T_PROTOCOL_STATUS);
+      value.write(out);
+    } else {
+      out.writeByte(T_OTHER);
+      Text.writeString(out, clazz.getName());
+      value.write(out);
+    }
+  }
+
+  private static Writable readValue(DataInput in) throws IOException {
+    byte type = in.readByte();
+    Writable value;
+    switch (type) {
+    case T_TEXT:
+      value = new Text();
+      break;
+    case T_INT:
+      return new IntWritable(WritableUtils.readVInt(in));
+    case T_LONG:
+      return new LongWritable(WritableUtils.readVLong(in));
+    case T_FLOAT:
+      value = new FloatWritable();
+      break;
+    case T_DOUBLE:
+      value = new DoubleWritable();
+      break;
+    case T_BYTE:
+      value = new ByteWritable();
+      break;
+    case T_BOOLEAN:
+      value = new BooleanWritable();
+      break;
+    case T_BYTES:
+      value = new BytesWritable();
+      break;
+    case T_NULL:
+      return NullWritable.get();
+    case T_PROTOCOL_STATUS:
+      value = new ProtocolStatus();
+      break;
+    case T_OTHER:
+      value = newInstance(Text.readString(in));
+      break;
+    default:
+      throw new IOException("Unknown metadata value type " + type);
+    }
+    value.readFields(in);
+    return value;
+  }
+
+  private static Writable newInstance(String className) throws IOException {
+    ClassLoader loader = Thread.currentThread().getContextClassLoader();
+    if (loader == null) {
+      loader = CrawlDatumMetadata.class.getClassLoader();
+    }
+    try {
+      Class<? extends Writable> clazz = Class.forName(className, true, loader)
+          .asSubclass(Writable.class);
+      return WritableFactories.newInstance(clazz, null);
+    } catch (ClassNotFoundException | ClassCastException e) {
+      throw new IOException("Cannot instantiate metadata class " + className,
+          e);
+    }
+  }
+}
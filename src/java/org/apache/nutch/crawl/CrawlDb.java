@@ -84,6 +84,12 @@ public class CrawlDb extends NutchTool implements Tool {
     job.setBoolean(CrawlDbFilter.URL_NORMALIZING, normalize);
 
     boolean url404Purging = job.getBoolean(CRAWLDB_PURGE_404, false);
+    boolean buildSeenIndex = job.getBoolean(SeenUrlIndex.SEEN_INDEX_BUILD,
+        false);
+    if (buildSeenIndex) {
+      // a new seed for every build, false positives differ between cycles
+      job.setLong(SeenUrlIndex.SEEN_INDEX_SEED, new Random().nextLong());
+    }
 
     if (LOG.isInfoEnabled()) {
       LOG.info("CrawlDb update: starting at " + sdf.format(start));
@@ -93,6 +99,7 @@ public class CrawlDb extends NutchTool implements Tool {
       LOG.info("CrawlDb update: URL normalizing: " + normalize);
       LOG.info("CrawlDb update: URL filtering: " + filter);
       LOG.info("CrawlDb update: 404 purging: " + url404Purging);
+      LOG.info("CrawlDb update: build seen URL index: " + buildSeenIndex);
     }
 
     for (int i = 0; i < segments.length; i++) {
@@ -121,7 +128,12 @@ public class CrawlDb extends NutchTool implements Tool {
       throw e;
     }
 
+    boolean seenIndexPrepared = buildSeenIndex && SeenUrlIndex.prepare(job,
+        FileOutputFormat.getOutputPath(job), crawlDb, job.getNumReduceTasks());
     CrawlDb.install(job, crawlDb);
+    if (seenIndexPrepared) {
+      SeenUrlIndex.install(job, crawlDb);
+    }
     long end = System.currentTimeMillis();
     LOG.info("CrawlDb update: finished at " + sdf.format(end) + ", elapsed: "
         + TimingUtil.elapsedTime(start, end));
@@ -29,6 +29,7 @@ import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.nutch.net.URLFilters;
 import org.apache.nutch.net.URLNormalizers;
+import org.apache.nutch.util.TaskCounters;
 
 /**
  * This class provides a way to separate the URL normalization and filtering
@@ -56,6 +57,8 @@ public class CrawlDbFilter implements
 
   private String scope;
 
+  private Reporter reporter;
+
   private static final Logger LOG = LoggerFactory
       .getLogger(MethodHandles.lookup().lookupClass());
 
@@ -74,6 +77,10 @@ public class CrawlDbFilter implements
   }
 
   public void close() {
+    // counters of the URL normalizer and filter cache
+    if (reporter != null) {
+      TaskCounters.report(reporter);
+    }
   }
 
   private Text newKey = new Text();
@@ -81,6 +88,7 @@ public class CrawlDbFilter implements
   public void map(Text key, CrawlDatum value,
       OutputCollector<Text, CrawlDatum> output, Reporter reporter)
       throws IOException {
+    this.reporter = reporter;
 
     String url = key.toString();
 
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.crawl;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.text.SimpleDateFormat;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapFileOutputFormat;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.lib.IdentityMapper;
+import org.apache.hadoop.mapred.lib.IdentityReducer;
+import org.apache.hadoop.util.StringUtils;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.nutch.util.LockUtil;
+import org.apache.nutch.util.NutchConfiguration;
+import org.apache.nutch.util.NutchJob;
+import org.apache.nutch.util.TimingUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Rewrites a CrawlDb in the current {@link CrawlDatum} format. Older formats
+ * are read transparently by all tools, and every tool writing a CrawlDb (e.g.
+ * updatedb) converts it as well, but a migration run makes all records benefit
+ * from the compact metadata encoding at once. Sizes of the CrawlDb before and
+ * after the migration are logged.
+ */
+public class CrawlDbMigrator extends Configured implements Tool {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  public CrawlDbMigrator() {
+  }
+
+  public CrawlDbMigrator(Configuration conf) {
+    setConf(conf);
+  }
+
+  public void migrate(Path crawlDb, boolean force) throws IOException {
+    SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    long start = System.currentTimeMillis();
+    LOG.info("CrawlDb migration: starting at " + sdf.format(start));
+
+    FileSystem fs = crawlDb.getFileSystem(getConf());
+    Path current = new Path(crawlDb, CrawlDb.CURRENT_NAME);
+    if (!fs.exists(current)) {
+      throw new IOException("CrawlDb " + crawlDb + " does not exist");
+    }
+    long sizeBefore = fs.getContentSummary(current).getLength();
+
+    Path lock = CrawlDb.lock(getConf(), crawlDb, force);
+    Path newCrawlDb = new Path(crawlDb,
+        Integer.toString(new Random().nextInt(Integer.MAX_VALUE)));
+
+    JobConf job = new NutchJob(getConf());
+    job.setJobName("crawldb migrate " + crawlDb);
+    FileInputFormat.addInputPath(job, current);
+    job.setInputFormat(SequenceFileInputFormat.class);
+    job.setMapperClass(IdentityMapper.class);
+    job.setReducerClass(IdentityReducer.class);
+    FileOutputFormat.setOutputPath(job, newCrawlDb);
+    job.setOutputFormat(MapFileOutputFormat.class);
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(CrawlDatum.class);
+
+    try {
+      JobClient.runJob(job);
+      CrawlDb.install(job, crawlDb);
+    } catch (IOException e) {
+      LockUtil.removeLockFile(getConf(), lock);
+      if (fs.exists(newCrawlDb))
+        fs.delete(newCrawlDb, true);
+      throw e;
+    }
+
+    long sizeAfter = fs.getContentSummary(current).getLength();
+    long end = System.currentTimeMillis();
+    LOG.info("CrawlDb migration: size before: " + sizeBefore + " bytes, after: "
+        + sizeAfter + " bytes");
+    LOG.info("CrawlDb migration: finished at " + sdf.format(end)
+        + ", elapsed: " + TimingUtil.elapsedTime(start, end));
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(NutchConfiguration.create(),
+        new CrawlDbMigrator(), args);
+    System.exit(res);
+  }
+
+  public int run(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: CrawlDbMigrator <crawldb> [-force]");
+      System.err.println("\tcrawldb\tCrawlDb to rewrite in the current format");
+      System.err
+          .println("\t-force\tforce migration even if CrawlDb appears to be locked (CAUTION advised)");
+      return -1;
+    }
+    boolean force = false;
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("-force")) {
+        force = true;
+      }
+    }
+    try {
+      migrate(new Path(args[0]), force);
+      return 0;
+    } catch (Exception e) {
+      LOG.error("CrawlDb migration: " + StringUtils.stringifyException(e));
+      return -1;
+    }
+  }
+}
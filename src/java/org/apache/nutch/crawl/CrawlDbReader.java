@@ -867,23 +867,28 @@ public class CrawlDbReader extends Configured implements Closeable, Tool {
     if(type.equalsIgnoreCase("url")){
       String url = args.get("url");
       CrawlDatum res = get(crawlDb, url, new NutchJob(conf));
-      results.put("status", res.getStatus());
-      results.put("fetchTime", new Date(res.getFetchTime()));
-      results.put("modifiedTime", new Date(res.getModifiedTime()));
-      results.put("retriesSinceFetch", res.getRetriesSinceFetch());
-      results.put("retryInterval", res.getFetchInterval());
-      results.put("score", res.getScore());
-      results.put("signature", StringUtil.toHexString(res.getSignature()));
-      Map<String, String> metadata = new HashMap<>();
-      if(res.getMetaData()!=null){
-        for (Entry<Writable, Writable> e : res.getMetaData().entrySet()) {
-          metadata.put(String.valueOf(e.getKey()), String.valueOf(e.getValue()));
-        }
-      }
-      results.put("metadata", metadata);
+      return toMap(res);
+    }
+    return results;
+  }
 
-      return results;
+  /** Convert a CrawlDatum to the map returned by the REST service. */
+  public static Map<String, Object> toMap(CrawlDatum res) {
+    Map<String, Object> results = new HashMap<>();
+    results.put("status", res.getStatus());
+    results.put("fetchTime", new Date(res.getFetchTime()));
+    results.put("modifiedTime", new Date(res.getModifiedTime()));
+    results.put("retriesSinceFetch", res.getRetriesSinceFetch());
+    results.put("retryInterval", res.getFetchInterval());
+    results.put("score", res.getScore());
+    results.put("signature", StringUtil.toHexString(res.getSignature()));
+    Map<String, String> metadata = new HashMap<>();
+    if(res.getMetaData()!=null){
+      for (Entry<Writable, Writable> e : res.getMetaData().entrySet()) {
+        metadata.put(String.valueOf(e.getKey()), String.valueOf(e.getValue()));
+      }
     }
+    results.put("metadata", metadata);
     return results;
   }
 }
\ No newline at end of file
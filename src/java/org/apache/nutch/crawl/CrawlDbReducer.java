@@ -28,6 +28,7 @@ import java.io.IOException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.*;
 import org.apache.hadoop.mapred.*;
 import org.apache.hadoop.util.PriorityQueue;
@@ -48,8 +49,11 @@ public class CrawlDbReducer implements
   private boolean additionsAllowed;
   private int maxInterval;
   private FetchSchedule schedule;
+  private JobConf job;
+  private SeenUrlIndex.Builder seenUrls;
 
   public void configure(JobConf job) {
+    this.job = job;
     retryMax = job.getInt("db.fetch.retry.max", 3);
     scfilters = new ScoringFilters(job);
     additionsAllowed = job.getBoolean(CrawlDb.CRAWLDB_ADDITIONS_ALLOWED, true);
@@ -57,9 +61,30 @@ public class CrawlDbReducer implements
     schedule = FetchScheduleFactory.getFetchSchedule(job);
     int maxLinks = job.getInt("db.update.max.inlinks", 10000);
     linked = new InlinkPriorityQueue(maxLinks);
+    if (job.getBoolean(SeenUrlIndex.SEEN_INDEX_BUILD, false)) {
+      try {
+        seenUrls = new SeenUrlIndex.Builder(job.getLong(
+            SeenUrlIndex.SEEN_INDEX_SEED, 0));
+      } catch (IOException e) {
+        LOG.warn("Cannot build seen URL index: " + e.getMessage());
+      }
+    }
   }
 
-  public void close() {
+  public void close() throws IOException {
+    if (seenUrls != null) {
+      // written as side file of the task, committed with the output
+      Path out = new Path(FileOutputFormat.getWorkOutputPath(job),
+          String.format("%s%05d", SeenUrlIndex.TEMP_PREFIX,
+              job.getInt("mapreduce.task.partition", 0)));
+      try {
+        seenUrls.write(out.getFileSystem(job), out,
+            job.getFloat(SeenUrlIndex.SEEN_INDEX_FPP, 0.01f));
+      } catch (IOException e) {
+        seenUrls.abort();
+        throw e;
+      }
+    }
   }
 
   public void reduce(Text key, Iterator<CrawlDatum> values,
@@ -157,6 +182,8 @@ public class CrawlDbReducer implements
     if (!fetchSet) {
       if (oldSet) {// at this point at least "old" should be present
         output.collect(key, old);
+        if (seenUrls != null)
+          seenUrls.add(key);
         reporter.getCounter("CrawlDB status",
             CrawlDatum.getStatusName(old.getStatus())).increment(1);
       } else {
@@ -318,6 +345,8 @@ public class CrawlDbReducer implements
     // remove generation time, if any
     result.getMetaData().remove(Nutch.WRITABLE_GENERATE_TIME_KEY);
     output.collect(key, result);
+    if (seenUrls != null)
+      seenUrls.add(key);
     reporter.getCounter("CrawlDB status",
         CrawlDatum.getStatusName(result.getStatus())).increment(1);
   }
@@ -71,7 +71,7 @@ public class DeduplicationJob extends NutchTool implements Tool {
   private static final Logger LOG = LoggerFactory
       .getLogger(MethodHandles.lookup().lookupClass());
 
-  private final static Text urlKey = new Text("_URLTEMPKEY_");
+  final static Text urlKey = new Text("_URLTEMPKEY_");
   private final static String DEDUPLICATION_GROUP_MODE = "deduplication.group.mode";
   private final static String DEDUPLICATION_COMPARE_ORDER = "deduplication.compare.order";
 
@@ -130,6 +130,58 @@ public class DeduplicationJob extends NutchTool implements Tool {
     }
   }
 
+  /**
+   * Compare two duplicates by the criteria in the given order: the one with
+   * the higher score, the later fetch time or the shorter (decoded) URL is
+   * kept. The URLs are taken from the temporary metadata added by
+   * {@link DBFilter}.
+   *
+   * @return a positive number if the first document is kept and the second
+   *         is a duplicate, a negative number if the first is a duplicate,
+   *         and 0 if they are equal by all criteria
+   */
+  static int compare(CrawlDatum existingDoc, CrawlDatum newDoc,
+      String[] compareOrder) throws IOException {
+    for (int i = 0; i < compareOrder.length; i++) {
+      switch (compareOrder[i]) {
+        case "score":
+          // compare based on score
+          if (existingDoc.getScore() < newDoc.getScore()) {
+            return -1;
+          } else if (existingDoc.getScore() > newDoc.getScore()) {
+            return 1;
+          }
+          break;
+        case "fetchTime":
+          // same score? delete the one which is oldest
+          if (existingDoc.getFetchTime() > newDoc.getFetchTime()) {
+            return 1;
+          } else if (existingDoc.getFetchTime() < newDoc.getFetchTime()) {
+            return -1;
+          }
+          break;
+        case "urlLength":
+          // same time? keep the one which has the shortest URL
+          String urlExisting;
+          String urlnewDoc;
+          try {
+            urlExisting = URLDecoder.decode(existingDoc.getMetaData().get(urlKey).toString(), "UTF8");
+            urlnewDoc = URLDecoder.decode(newDoc.getMetaData().get(urlKey).toString(), "UTF8");
+          } catch (UnsupportedEncodingException e) {
+            LOG.error("Error decoding: " + urlKey);
+            throw new IOException("UnsupportedEncodingException for " + urlKey);
+          }
+          if (urlExisting.length() < urlnewDoc.length()) {
+            return 1;
+          } else if (urlExisting.length() > urlnewDoc.length()) {
+            return -1;
+          }
+          break;
+      }
+    }
+    return 0;
+  }
+
   public static class DedupReducer implements
       Reducer<BytesWritable, CrawlDatum, Text, CrawlDatum> {
 
@@ -156,7 +208,6 @@ public class DeduplicationJob extends NutchTool implements Tool {
         throws IOException {
       CrawlDatum existingDoc = null;
 
-      outerloop:
       while (values.hasNext()) {
         if (existingDoc == null) {
           existingDoc = new CrawlDatum();
@@ -164,62 +215,16 @@ public class DeduplicationJob extends NutchTool implements Tool {
           continue;
         }
         CrawlDatum newDoc = values.next();
-
-        for (int i = 0; i < compareOrder.length; i++) {
-          switch (compareOrder[i]) {
-            case "score":
-              // compare based on score
-              if (existingDoc.getScore() < newDoc.getScore()) {
-                writeOutAsDuplicate(existingDoc, output, reporter);
-                existingDoc = new CrawlDatum();
-                existingDoc.set(newDoc);
-                continue outerloop;
-              } else if (existingDoc.getScore() > newDoc.getScore()) {
-                // mark new one as duplicate
-                writeOutAsDuplicate(newDoc, output, reporter);
-                continue outerloop;
-              }
-              break;
-            case "fetchTime":
-              // same score? delete the one which is oldest
-              if (existingDoc.getFetchTime() > newDoc.getFetchTime()) {
-                // mark new one as duplicate
-                writeOutAsDuplicate(newDoc, output, reporter);
-                continue outerloop;
-              } else if (existingDoc.getFetchTime() < newDoc.getFetchTime()) {
-                // mark existing one as duplicate
-                writeOutAsDuplicate(existingDoc, output, reporter);
-                existingDoc = new CrawlDatum();
-                existingDoc.set(newDoc);
-                continue outerloop;
-              }
-              break;
-            case "urlLength":
-              // same time? keep the one which has the shortest URL
-              String urlExisting;
-              String urlnewDoc;
-              try {
-                urlExisting = URLDecoder.decode(existingDoc.getMetaData().get(urlKey).toString(), "UTF8");
-                urlnewDoc = URLDecoder.decode(newDoc.getMetaData().get(urlKey).toString(), "UTF8");
-              } catch (UnsupportedEncodingException e) {
-                LOG.error("Error decoding: " + urlKey);
-                throw new IOException("UnsupportedEncodingException for " + urlKey);
-              }
-              if (urlExisting.length() < urlnewDoc.length()) {
-                // mark new one as duplicate
-                writeOutAsDuplicate(newDoc, output, reporter);
-                continue outerloop;
-              } else if (urlExisting.length() > urlnewDoc.length()) {
-                // mark existing one as duplicate
-                writeOutAsDuplicate(existingDoc, output, reporter);
-                existingDoc = new CrawlDatum();
-                existingDoc.set(newDoc);
-                continue outerloop;
-              }
-              break;
-          }
+        int cmp = compare(existingDoc, newDoc, compareOrder);
+        if (cmp > 0) {
+          // mark new one as duplicate
+          writeOutAsDuplicate(newDoc, output, reporter);
+        } else if (cmp < 0) {
+          // mark existing one as duplicate
+          writeOutAsDuplicate(existingDoc, output, reporter);
+          existingDoc = new CrawlDatum();
+          existingDoc.set(newDoc);
         }
-
       }
     }
 
@@ -284,9 +289,7 @@ public class DeduplicationJob extends NutchTool implements Tool {
       if (args[i].equals("-compareOrder")) {
         compareOrder = args[++i];
 
-        if (compareOrder.indexOf("score") == -1 ||
-            compareOrder.indexOf("fetchTime") == -1 ||
-            compareOrder.indexOf("urlLength") == -1) {
+        if (!isValidCompareOrder(compareOrder)) {
           System.err.println("DeduplicationJob: compareOrder must contain score, fetchTime and urlLength.");
           return 1;
         }
@@ -297,28 +300,12 @@ public class DeduplicationJob extends NutchTool implements Tool {
     long start = System.currentTimeMillis();
     LOG.info("DeduplicationJob: starting at " + sdf.format(start));
 
-    Path tempDir = new Path(getConf().get("mapred.temp.dir", ".")
-        + "/dedup-temp-"
-        + Integer.toString(new Random().nextInt(Integer.MAX_VALUE)));
-
-    JobConf job = new NutchJob(getConf());
+    Path tempDir = getTempDir("dedup-temp-");
 
-    job.setJobName("Deduplication on " + crawldb);
+    JobConf job = createJob("Deduplication", crawldb, tempDir);
     job.set(DEDUPLICATION_GROUP_MODE, group);
     job.set(DEDUPLICATION_COMPARE_ORDER, compareOrder);
 
-    FileInputFormat.addInputPath(job, new Path(crawldb, CrawlDb.CURRENT_NAME));
-    job.setInputFormat(SequenceFileInputFormat.class);
-
-    FileOutputFormat.setOutputPath(job, tempDir);
-    job.setOutputFormat(SequenceFileOutputFormat.class);
-
-    job.setMapOutputKeyClass(BytesWritable.class);
-    job.setMapOutputValueClass(CrawlDatum.class);
-
-    job.setOutputKeyClass(Text.class);
-    job.setOutputValueClass(CrawlDatum.class);
-
     job.setMapperClass(DBFilter.class);
     job.setReducerClass(DedupReducer.class);
 
@@ -335,9 +322,66 @@ public class DeduplicationJob extends NutchTool implements Tool {
       return -1;
     }
 
+    if (updateCrawlDb("Deduplication", crawldb, tempDir) != 0) {
+      return -1;
+    }
+
+    long end = System.currentTimeMillis();
+    LOG.info("Deduplication finished at " + sdf.format(end) + ", elapsed: "
+        + TimingUtil.elapsedTime(start, end));
+
+    return 0;
+  }
+
+  /** @return true if the compare order contains all criteria */
+  static boolean isValidCompareOrder(String compareOrder) {
+    return compareOrder.indexOf("score") != -1
+        && compareOrder.indexOf("fetchTime") != -1
+        && compareOrder.indexOf("urlLength") != -1;
+  }
+
+  /** @return a new random temporary directory with the given prefix */
+  protected Path getTempDir(String prefix) {
+    return new Path(getConf().get("mapred.temp.dir", ".") + "/" + prefix
+        + Integer.toString(new Random().nextInt(Integer.MAX_VALUE)));
+  }
+
+  /**
+   * Create the job which reads the crawldb and writes the URLs marked as
+   * duplicate to the temporary directory. Mapper and reducer are set by the
+   * caller.
+   */
+  protected JobConf createJob(String name, String crawldb, Path tempDir) {
+    JobConf job = new NutchJob(getConf());
+
+    job.setJobName(name + " on " + crawldb);
+
+    FileInputFormat.addInputPath(job, new Path(crawldb, CrawlDb.CURRENT_NAME));
+    job.setInputFormat(SequenceFileInputFormat.class);
+
+    FileOutputFormat.setOutputPath(job, tempDir);
+    job.setOutputFormat(SequenceFileOutputFormat.class);
+
+    job.setMapOutputKeyClass(BytesWritable.class);
+    job.setMapOutputValueClass(CrawlDatum.class);
+
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(CrawlDatum.class);
+
+    return job;
+  }
+
+  /**
+   * Merge the duplicates in the temporary directory into the crawldb and
+   * delete the temporary directory.
+   * 
+   * @return 0 on success, -1 if the merge job failed
+   */
+  protected int updateCrawlDb(String name, String crawldb, Path tempDir)
+      throws IOException {
     // merge with existing crawl db
     if (LOG.isInfoEnabled()) {
-      LOG.info("Deduplication: Updating status of duplicate urls into crawl db.");
+      LOG.info(name + ": Updating status of duplicate urls into crawl db.");
     }
 
     Path dbPath = new Path(crawldb);
@@ -348,7 +392,7 @@ public class DeduplicationJob extends NutchTool implements Tool {
     try {
       JobClient.runJob(mergeJob);
     } catch (final Exception e) {
-      LOG.error("DeduplicationMergeJob: " + StringUtils.stringifyException(e));
+      LOG.error(name + "MergeJob: " + StringUtils.stringifyException(e));
       return -1;
     }
 
@@ -358,10 +402,6 @@ public class DeduplicationJob extends NutchTool implements Tool {
     FileSystem fs = tempDir.getFileSystem(getConf());
     fs.delete(tempDir, true);
 
-    long end = System.currentTimeMillis();
-    LOG.info("Deduplication finished at " + sdf.format(end) + ", elapsed: "
-        + TimingUtil.elapsedTime(start, end));
-
     return 0;
   }
 
@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.crawl;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.FloatWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+import org.apache.nutch.hostdb.HostDatum;
+import org.apache.nutch.metadata.Nutch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Estimates the time needed to fetch a URL of a host, used by the
+ * {@link Generator} to limit the number of URLs per host so that no host
+ * takes longer to fetch than <code>generate.max.fetch.time</code>.
+ *
+ * <p>
+ * The time per URL is the average response time plus the crawl delay,
+ * divided by the number of threads fetching from the host in parallel. The
+ * values are taken from the HostDb: the mean response time (the digest of
+ * <code>_rs_</code>, or <code>avg._rs_</code> of older HostDbs, requires
+ * <code>_rs_</code> in
+ * <code>hostdb.numeric.fields</code> and
+ * <code>http.store.responsetime</code>) and the crawl delay and threads
+ * adapted by the fetcher (see <code>fetcher.adaptive</code>). Missing values
+ * default to the fetcher configuration and, for the response time, to the
+ * average over all hosts read.
+ *
+ * <p>
+ * The adapted crawl delay and threads are also passed to the fetcher in the
+ * metadata of the fetch list entries, see {@link #setFetchRate(String,
+ * CrawlDatum)}, so that the fetcher does not need to read the HostDb.
+ */
+public class FetchTimeEstimator {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  public static final Text AVG_RESPONSE_TIME_KEY = new Text("avg._rs_");
+  public static final String RESPONSE_TIME_FIELD = "_rs_";
+
+  /**
+   * Crawl delay, average response time (NaN if unknown) and threads, by
+   * host
+   */
+  private final Map<String, float[]> hosts = new HashMap<>();
+  /** Crawl delay and threads adapted by the fetcher, by host */
+  private final Map<String, int[]> rates = new HashMap<>();
+  private final long defaultDelay;
+  private final int defaultThreads;
+  private float defaultResponseTime = 0;
+
+  public FetchTimeEstimator(Configuration conf) {
+    defaultThreads = Math.max(1, conf.getInt("fetcher.threads.per.queue", 1));
+    if (defaultThreads > 1) {
+      defaultDelay = (long) (conf.getFloat("fetcher.server.min.delay", 0.0f) * 1000);
+    } else {
+      defaultDelay = (long) (conf.getFloat("fetcher.server.delay", 1.0f) * 1000);
+    }
+  }
+
+  /**
+   * Read the statistics of hosts from a HostDb.
+   *
+   * @param accept
+   *          hosts to keep, e.g. those of a partition
+   */
+  public void readHostDb(Configuration conf, Path hostDb,
+      Predicate<String> accept) throws IOException {
+    SequenceFile.Reader[] readers = SequenceFileOutputFormat.getReaders(conf,
+        new Path(hostDb, "current"));
+    double responseTimeSum = 0;
+    int responseTimeCount = 0;
+    Text host = new Text();
+    HostDatum datum = new HostDatum();
+    for (SequenceFile.Reader reader : readers) {
+      try {
+        while (reader.next(host, datum)) {
+          float responseTime = (float) datum.getMean(RESPONSE_TIME_FIELD);
+          if (Float.isNaN(responseTime)) {
+            Writable value = datum.getMetaData().get(AVG_RESPONSE_TIME_KEY);
+            if (value instanceof FloatWritable) {
+              responseTime = ((FloatWritable) value).get();
+            }
+          }
+          if (!Float.isNaN(responseTime)) {
+            responseTimeSum += responseTime;
+            responseTimeCount++;
+          }
+          String name = host.toString();
+          if (!accept.test(name)) {
+            continue;
+          }
+          float delay = defaultDelay;
+          float threads = defaultThreads;
+          if (datum.getFetchDelay() != -1) {
+            delay = datum.getFetchDelay();
+          }
+          if (datum.getFetchThreads() != -1) {
+            threads = Math.max(1, datum.getFetchThreads());
+          }
+          if (datum.getFetchDelay() != -1 && datum.getFetchThreads() != -1) {
+            rates.put(name, new int[] { datum.getFetchDelay(),
+                datum.getFetchThreads() });
+          }
+          hosts.put(name, new float[] { delay, responseTime, threads });
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    if (responseTimeCount > 0) {
+      defaultResponseTime = (float) (responseTimeSum / responseTimeCount);
+    }
+    LOG.info("Fetch time estimates of {} hosts read from {},"
+        + " average response time = {} ms", hosts.size(), hostDb,
+        defaultResponseTime);
+  }
+
+  /** @return estimated time in milliseconds to fetch a URL of a host */
+  public float getTimePerUrl(String host) {
+    float[] stats = hosts.get(host);
+    if (stats == null) {
+      return (defaultResponseTime + defaultDelay) / defaultThreads;
+    }
+    float responseTime = Float.isNaN(stats[1]) ? defaultResponseTime
+        : stats[1];
+    return (responseTime + stats[0]) / stats[2];
+  }
+
+  /**
+   * Put the crawl delay and threads adapted by the fetcher for a host into
+   * the metadata of a fetch list entry, or remove them if the HostDb has none.
+   * The fetcher starts the queue of the host with these values, see
+   * <code>fetcher.adaptive</code>.
+   */
+  public void setFetchRate(String host, CrawlDatum datum) {
+    int[] rate = rates.get(host);
+    if (rate == null) {
+      datum.getMetaData().remove(Nutch.WRITABLE_FETCH_DELAY_KEY);
+      datum.getMetaData().remove(Nutch.WRITABLE_FETCH_THREADS_KEY);
+    } else {
+      datum.getMetaData().put(Nutch.WRITABLE_FETCH_DELAY_KEY,
+          new IntWritable(rate[0]));
+      datum.getMetaData().put(Nutch.WRITABLE_FETCH_THREADS_KEY,
+          new IntWritable(rate[1]));
+    }
+  }
+
+  /**
+   * @param maxTime
+   *          time in milliseconds available to fetch the URLs of the host
+   * @return the number of URLs of a host which can be fetched in the given
+   *         time, at least one
+   */
+  public int getMaxCount(String host, long maxTime) {
+    float time = getTimePerUrl(host);
+    if (time <= 0) {
+      return Integer.MAX_VALUE;
+    }
+    return (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxTime / time));
+  }
+}
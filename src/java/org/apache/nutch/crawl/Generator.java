@@ -21,6 +21,7 @@ import java.io.*;
 import java.lang.invoke.MethodHandles;
 import java.net.*;
 import java.util.*;
+import java.util.function.Predicate;
 import java.text.*;
 
 // rLogging imports
@@ -46,6 +47,7 @@ import org.apache.nutch.util.LockUtil;
 import org.apache.nutch.util.NutchConfiguration;
 import org.apache.nutch.util.NutchJob;
 import org.apache.nutch.util.NutchTool;
+import org.apache.nutch.util.TaskCounters;
 import org.apache.nutch.util.TimingUtil;
 import org.apache.nutch.util.URLUtil;
 
@@ -78,6 +80,8 @@ public class Generator extends NutchTool implements Tool {
   public static final String GENERATOR_DELAY = "crawl.gen.delay";
   public static final String GENERATOR_MAX_NUM_SEGMENTS = "generate.max.num.segments";
   public static final String GENERATOR_EXPR = "generate.expr";
+  public static final String GENERATOR_HOSTDB = "generate.hostdb";
+  public static final String GENERATOR_MAX_FETCH_TIME = "generate.max.fetch.time";
 
   public static class SelectorEntry implements Writable {
     public Text url;
@@ -137,6 +141,10 @@ public class Generator extends NutchTool implements Tool {
     private int maxNumSegments = 1;
     private Expression expr = null;
     private int currentsegmentnum = 1;
+    private Reporter reporter;
+    private JobConf job;
+    private long maxFetchTime = -1;
+    private FetchTimeEstimator estimator;
 
     public void configure(JobConf job) {
       curTime = job.getLong(GENERATOR_CUR_TIME, System.currentTimeMillis());
@@ -167,15 +175,50 @@ public class Generator extends NutchTool implements Tool {
       expr = JexlUtil.parseExpression(job.get(GENERATOR_EXPR, null));
       maxNumSegments = job.getInt(GENERATOR_MAX_NUM_SEGMENTS, 1);
       segCounts = new int[maxNumSegments];
+      maxFetchTime = job.getLong(GENERATOR_MAX_FETCH_TIME, -1) * 60 * 1000;
+      this.job = job;
+    }
+
+    /**
+     * Create the estimator of fetch times and rates, reading the HostDb
+     * entries of the hosts in the partition of this reducer.
+     */
+    private FetchTimeEstimator createEstimator() {
+      FetchTimeEstimator estimator = new FetchTimeEstimator(job);
+      String hostDb = job.get(GENERATOR_HOSTDB);
+      if (hostDb == null || hostDb.isEmpty()) {
+        return estimator;
+      }
+      final int partition = job.getInt("mapreduce.task.partition", -1);
+      final int numReduceTasks = job.getNumReduceTasks();
+      Predicate<String> accept = host -> true;
+      if (partition != -1 && !URLPartitioner.PARTITION_MODE_IP.equals(
+          job.get(URLPartitioner.PARTITION_MODE_KEY))) {
+        accept = host -> partitioner.getPartition(new Text("http://" + host
+            + "/"), null, numReduceTasks) == partition;
+      }
+      try {
+        estimator.readHostDb(job, new Path(hostDb), accept);
+      } catch (IOException e) {
+        LOG.warn("Failed to read fetch time estimates from HostDb " + hostDb
+            + ": " + StringUtils.stringifyException(e));
+      }
+      return estimator;
     }
 
     public void close() {
+      // counters of the DNS cache used by the partitioner and of the URL
+      // normalizer and filter cache
+      if (reporter != null) {
+        TaskCounters.report(reporter);
+      }
     }
 
     /** Select and invert subset due for fetch. */
     public void map(Text key, CrawlDatum value,
         OutputCollector<FloatWritable, SelectorEntry> output, Reporter reporter)
         throws IOException {
+      this.reporter = reporter;
       Text url = key;
       if (filter) {
         // If filtering is on don't generate URLs that don't pass
@@ -258,6 +301,10 @@ public class Generator extends NutchTool implements Tool {
         OutputCollector<FloatWritable, SelectorEntry> output, Reporter reporter)
         throws IOException {
 
+      if (estimator == null) {
+        estimator = createEstimator();
+      }
+
       while (values.hasNext()) {
 
         if (count == limit) {
@@ -297,10 +344,15 @@ public class Generator extends NutchTool implements Tool {
         hostordomain = hostordomain.toLowerCase();
 
         // only filter if we are counting hosts or domains
-        if (maxCount > 0) {
+        if (maxCount > 0 || maxFetchTime > 0) {
           int[] hostCount = hostCounts.get(hostordomain);
           if (hostCount == null) {
-            hostCount = new int[] { 1, 0 };
+            // segment, count, and URLs which can be fetched in time
+            hostCount = new int[] { 1, 0, Integer.MAX_VALUE };
+            if (maxFetchTime > 0) {
+              hostCount[2] = estimator.getMaxCount(hostordomain,
+                  maxFetchTime);
+            }
             hostCounts.put(hostordomain, hostCount);
           }
 
@@ -316,12 +368,23 @@ public class Generator extends NutchTool implements Tool {
 
           // reached the limit of allowed URLs per host / domain
           // see if we can put it in the next segment?
-          if (hostCount[1] >= maxCount) {
+          boolean overTime = hostCount[1] > hostCount[2];
+          if ((maxCount > 0 && hostCount[1] >= maxCount) || overTime) {
             if (hostCount[0] < maxNumSegments) {
               hostCount[0]++;
               hostCount[1] = 0;
             } else {
-              if (hostCount[1] == maxCount + 1 && LOG.isInfoEnabled()) {
+              if (overTime) {
+                if (hostCount[1] == hostCount[2] + 1 && LOG.isInfoEnabled()) {
+                  LOG.info("Host or domain " + hostordomain + " has more than "
+                      + hostCount[2] + " URLs which can be fetched within "
+                      + (maxFetchTime / 60000) + " minutes for all "
+                      + maxNumSegments + " segments. Additional URLs won't"
+                      + " be included in the fetchlist.");
+                }
+                reporter.getCounter("Generator", "HOST_FETCH_TIME_EXCEEDED")
+                    .increment(1);
+              } else if (hostCount[1] == maxCount + 1 && LOG.isInfoEnabled()) {
                 LOG.info("Host or domain "
                     + hostordomain
                     + " has more than "
@@ -341,6 +404,9 @@ public class Generator extends NutchTool implements Tool {
           segCounts[currentsegmentnum - 1]++;
         }
 
+        // the fetcher starts the queue of the host with this rate
+        estimator.setFetchRate(u.getHost().toLowerCase(), entry.datum);
+
         output.collect(key, entry);
 
         // Count is incremented only when we keep the URL
@@ -414,8 +480,12 @@ public class Generator extends NutchTool implements Tool {
     }
 
     public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
-      int hash1 = hash(b1, s1, l1);
-      int hash2 = hash(b2, s2, l2);
+      // skip the length of the serialized Text, so that the hash is the same
+      // as in compare(WritableComparable, WritableComparable)
+      int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+      int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+      int hash1 = hash(b1, s1 + n1, l1 - n1);
+      int hash2 = hash(b2, s2 + n2, l2 - n2);
       return (hash1 < hash2 ? -1 : (hash1 == hash2 ? 0 : 1));
     }
 
@@ -548,6 +618,12 @@ public class Generator extends NutchTool implements Tool {
     if (expr != null) {
       LOG.info("Generator: expr: " + expr);
     }
+    if (getConf().getLong(GENERATOR_MAX_FETCH_TIME, -1) > 0) {
+      LOG.info("Generator: max. fetch time per host: "
+          + getConf().getLong(GENERATOR_MAX_FETCH_TIME, -1) + " minutes"
+          + (getConf().get(GENERATOR_HOSTDB) != null ? ", HostDb: "
+              + getConf().get(GENERATOR_HOSTDB) : ""));
+    }
     
     // map to inverted subset due for fetch, sort by score
     JobConf job = new NutchJob(getConf());
@@ -722,7 +798,7 @@ public class Generator extends NutchTool implements Tool {
   public int run(String[] args) throws Exception {
     if (args.length < 2) {
       System.out
-          .println("Usage: Generator <crawldb> <segments_dir> [-force] [-topN N] [-numFetchers numFetchers] [-expr <expr>] [-adddays <numDays>] [-noFilter] [-noNorm] [-maxNumSegments <num>]");
+          .println("Usage: Generator <crawldb> <segments_dir> [-force] [-topN N] [-numFetchers numFetchers] [-expr <expr>] [-adddays <numDays>] [-noFilter] [-noNorm] [-maxNumSegments <num>] [-hostdb <hostdb>] [-maxFetchTime <minutes>]");
       return -1;
     }
 
@@ -757,6 +833,10 @@ public class Generator extends NutchTool implements Tool {
         maxNumSegments = Integer.parseInt(args[i + 1]);
       } else if ("-expr".equals(args[i])) {
         expr = args[i + 1];
+      } else if ("-hostdb".equals(args[i])) {
+        getConf().set(GENERATOR_HOSTDB, args[++i]);
+      } else if ("-maxFetchTime".equals(args[i])) {
+        getConf().setLong(GENERATOR_MAX_FETCH_TIME, Long.parseLong(args[++i]));
       }
 
     }
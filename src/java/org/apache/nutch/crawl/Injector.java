@@ -44,6 +44,7 @@ import org.apache.nutch.util.LockUtil;
 import org.apache.nutch.service.NutchServer;
 import org.apache.nutch.util.NutchConfiguration;
 import org.apache.nutch.util.NutchTool;
+import org.apache.nutch.util.TaskCounters;
 import org.apache.nutch.util.TimingUtil;
 
 import org.slf4j.Logger;
@@ -115,8 +116,9 @@ public class Injector extends NutchTool implements Tool {
     private boolean url404Purging;
     private String scope;
     private boolean filterNormalizeAll = false;
+    private SeenUrlIndex seenUrls;
 
-    public void setup(Context context) {
+    public void setup(Context context) throws IOException {
       Configuration conf = context.getConfiguration();
       boolean normalize = conf.getBoolean(CrawlDbFilter.URL_NORMALIZING, true);
       boolean filter = conf.getBoolean(CrawlDbFilter.URL_FILTERING, true);
@@ -134,6 +136,19 @@ public class Injector extends NutchTool implements Tool {
       curTime = conf.getLong("injector.current.time",
           System.currentTimeMillis());
       url404Purging = conf.getBoolean(CrawlDb.CRAWLDB_PURGE_404, false);
+      // URLs already in the CrawlDb are kept unchanged unless overwritten or
+      // updated, no need to inject them again
+      String seenIndex = conf.get(SeenUrlIndex.SEEN_INDEX, "");
+      if (!seenIndex.isEmpty()
+          && !conf.getBoolean("db.injector.overwrite", false)
+          && !conf.getBoolean("db.injector.update", false)) {
+        seenUrls = SeenUrlIndex.get(conf, new Path(seenIndex));
+      }
+    }
+
+    public void cleanup(Context context) {
+      // counters of the URL normalizer and filter cache
+      TaskCounters.report(context);
     }
 
     /* Filter and normalize the input url */
@@ -206,6 +221,8 @@ public class Injector extends NutchTool implements Tool {
         url = filterNormalize(url);
         if (url == null) {
           context.getCounter("injector", "urls_filtered").increment(1);
+        } else if (seenUrls != null && seenUrls.mightContain(new Text(url))) {
+          context.getCounter("injector", "urls_skipped_known").increment(1);
         } else {
           CrawlDatum datum = new CrawlDatum();
           datum.setStatus(CrawlDatum.STATUS_INJECTED);
@@ -411,7 +428,13 @@ public class Injector extends NutchTool implements Tool {
             .findCounter("injector", "urls_filtered").getValue();
         long urlsMerged = job.getCounters()
             .findCounter("injector", "urls_merged").getValue();
+        long urlsSkipped = job.getCounters()
+            .findCounter("injector", "urls_skipped_known").getValue();
         LOG.info("Injector: Total urls rejected by filters: " + urlsFiltered);
+        if (urlsSkipped > 0) {
+          LOG.info("Injector: Total urls skipped as found in seen URL index: "
+              + urlsSkipped);
+        }
         LOG.info(
             "Injector: Total urls injected after normalization and filtering: "
                 + urlsInjected);
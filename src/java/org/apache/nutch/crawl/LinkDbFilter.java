@@ -30,6 +30,7 @@ import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.nutch.net.URLFilters;
 import org.apache.nutch.net.URLNormalizers;
+import org.apache.nutch.util.TaskCounters;
 
 /**
  * This class provides a way to separate the URL normalization and filtering
@@ -54,6 +55,8 @@ public class LinkDbFilter implements Mapper<Text, Inlinks, Text, Inlinks> {
 
   private String scope;
 
+  private Reporter reporter;
+
   private static final Logger LOG = LoggerFactory
       .getLogger(MethodHandles.lookup().lookupClass());
 
@@ -72,11 +75,16 @@ public class LinkDbFilter implements Mapper<Text, Inlinks, Text, Inlinks> {
   }
 
   public void close() {
+    // counters of the URL normalizer and filter cache
+    if (reporter != null) {
+      TaskCounters.report(reporter);
+    }
   }
 
   public void map(Text key, Inlinks value,
       OutputCollector<Text, Inlinks> output, Reporter reporter)
       throws IOException {
+    this.reporter = reporter;
     String url = key.toString();
     Inlinks result = new Inlinks();
     if (normalize) {
@@ -17,6 +17,8 @@
 
 package org.apache.nutch.crawl;
 
+import java.security.MessageDigest;
+
 import org.apache.hadoop.io.MD5Hash;
 import org.apache.nutch.parse.Parse;
 import org.apache.nutch.protocol.Content;
@@ -34,6 +36,9 @@ public class MD5Signature extends Signature {
     byte[] data = content.getContent();
     if (data == null)
       data = content.getUrl().getBytes();
-    return MD5Hash.digest(data).getDigest();
+    // hash in place with the thread's digester, no copy or MD5Hash instance
+    MessageDigest digester = MD5Hash.getDigester();
+    digester.update(data);
+    return digester.digest();
   }
 }
@@ -0,0 +1,311 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.crawl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Counters.Group;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.util.StringUtils;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.nutch.util.NutchConfiguration;
+import org.apache.nutch.util.TimingUtil;
+import org.apache.nutch.util.URLUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deduplicator for near-duplicates, i.e. pages which differ only in small
+ * parts such as session IDs, advertisements or time stamps. Requires that
+ * the signatures in the crawldb are calculated by {@link SimHashSignature}
+ * (<code>db.signature.class</code>), other signatures are ignored.
+ *
+ * <p>
+ * Two fetched URLs are near-duplicates if their signatures differ in at most
+ * <code>-distance</code> bits (default 3). The 64 bits of the signatures are
+ * split into <code>distance + 1</code> bands, near-duplicates are equal in at
+ * least one band. Every URL is emitted once per band keyed by the band value
+ * (locality sensitive hashing), so that all candidate pairs meet in a single
+ * reduce. The URLs of a bucket are ordered by the same rules as by the
+ * {@link DeduplicationJob}: the highest score, the latest timestamp, or the
+ * shortest URL first. In this order, a URL is marked as duplicate if it is a
+ * near-duplicate of a better URL which is kept, otherwise it is kept. Being
+ * near is not transitive: a URL near a duplicate, but not near any kept URL,
+ * is kept. Duplicates can be deleted with the command CleaningJob.
+ *
+ * <p>
+ * The number of URLs compared in one band bucket is limited by
+ * <code>dedup.near.max.bucket.size</code>, buckets of URLs sharing a band are
+ * only compared up to that size.
+ */
+public class NearDeduplicationJob extends DeduplicationJob {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  private final static String NEAR_DEDUPLICATION_GROUP_MODE = "deduplication.near.group.mode";
+  private final static String NEAR_DEDUPLICATION_COMPARE_ORDER = "deduplication.near.compare.order";
+  private final static String NEAR_DEDUPLICATION_DISTANCE = "deduplication.near.distance";
+  private final static String COUNTER_GROUP = "NearDeduplicationJobStatus";
+
+  /** @return the bit offsets of the bands, followed by 64 */
+  static int[] getBands(int distance) {
+    int bands = Math.max(1, Math.min(distance + 1, 64));
+    int[] offsets = new int[bands + 1];
+    for (int i = 0; i <= bands; i++) {
+      offsets[i] = i * 64 / bands;
+    }
+    return offsets;
+  }
+
+  public static class NearDBFilter implements
+      Mapper<Text, CrawlDatum, BytesWritable, CrawlDatum> {
+
+    private String groupMode;
+    private int[] bands;
+    private BytesWritable bucket = new BytesWritable();
+
+    @Override
+    public void configure(JobConf job) {
+      groupMode = job.get(NEAR_DEDUPLICATION_GROUP_MODE, "none");
+      bands = getBands(job.getInt(NEAR_DEDUPLICATION_DISTANCE, 3));
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    @Override
+    public void map(Text key, CrawlDatum value,
+        OutputCollector<BytesWritable, CrawlDatum> output, Reporter reporter)
+        throws IOException {
+
+      if (value.getStatus() != CrawlDatum.STATUS_DB_FETCHED
+          && value.getStatus() != CrawlDatum.STATUS_DB_NOTMODIFIED) {
+        return;
+      }
+      byte[] signature = value.getSignature();
+      if (!SimHashSignature.isSimHash(signature)) {
+        reporter.incrCounter(COUNTER_GROUP, "Documents without SimHash", 1);
+        return;
+      }
+      long simHash = SimHashSignature.toLong(signature);
+      String url = key.toString();
+      byte[] group = null;
+      switch (groupMode) {
+        case "host":
+          group = URLUtil.getHost(url).getBytes();
+          break;
+        case "domain":
+          group = URLUtil.getDomainName(url).getBytes();
+          break;
+      }
+      // add the URL as a temporary MD
+      value.getMetaData().put(DeduplicationJob.urlKey, key);
+
+      // band number, band value, and optionally host or domain
+      byte[] data = new byte[1 + SimHashSignature.SIGNATURE_LENGTH
+          + (group == null ? 0 : group.length)];
+      if (group != null) {
+        System.arraycopy(group, 0, data, 1 + SimHashSignature.SIGNATURE_LENGTH,
+            group.length);
+      }
+      for (int b = 0; b < bands.length - 1; b++) {
+        int width = bands[b + 1] - bands[b];
+        long band = simHash >>> bands[b];
+        if (width < 64) {
+          band &= (1L << width) - 1;
+        }
+        data[0] = (byte) b;
+        System.arraycopy(SimHashSignature.toBytes(band), 0, data, 1,
+            SimHashSignature.SIGNATURE_LENGTH);
+        bucket.set(data, 0, data.length);
+        output.collect(bucket, value);
+      }
+    }
+  }
+
+  public static class NearDedupReducer implements
+      Reducer<BytesWritable, CrawlDatum, Text, CrawlDatum> {
+
+    private String[] compareOrder;
+    private int distance;
+    private int maxBucketSize;
+    private final List<CrawlDatum> docs = new ArrayList<>();
+    private final List<CrawlDatum> kept = new ArrayList<>();
+
+    @Override
+    public void configure(JobConf job) {
+      compareOrder = job.get(NEAR_DEDUPLICATION_COMPARE_ORDER,
+          "score,fetchTime,urlLength").split(",");
+      distance = job.getInt(NEAR_DEDUPLICATION_DISTANCE, 3);
+      maxBucketSize = job.getInt("dedup.near.max.bucket.size", 1000);
+    }
+
+    @Override
+    public void reduce(BytesWritable key, Iterator<CrawlDatum> values,
+        OutputCollector<Text, CrawlDatum> output, Reporter reporter)
+        throws IOException {
+      docs.clear();
+      while (values.hasNext()) {
+        CrawlDatum value = values.next();
+        if (docs.size() >= maxBucketSize) {
+          reporter.incrCounter(COUNTER_GROUP,
+              "Documents not compared (bucket size exceeded)", 1);
+          continue;
+        }
+        CrawlDatum doc = new CrawlDatum();
+        doc.set(value);
+        docs.add(doc);
+      }
+
+      // walk the documents from the best to the worst, a document is a
+      // duplicate only if it is near a better document which is kept
+      try {
+        docs.sort(this::order);
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      kept.clear();
+      for (CrawlDatum doc : docs) {
+        if (!isNearKept(doc)) {
+          kept.add(doc);
+          continue;
+        }
+        doc.setStatus(CrawlDatum.STATUS_DB_DUPLICATE);
+        Text url = (Text) doc.getMetaData().remove(DeduplicationJob.urlKey);
+        reporter.incrCounter(COUNTER_GROUP, "Documents marked as duplicate", 1);
+        output.collect(url, doc);
+      }
+    }
+
+    /** Sort order of the documents, the document to be kept first */
+    private int order(CrawlDatum a, CrawlDatum b) {
+      try {
+        return DeduplicationJob.compare(b, a, compareOrder);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    private boolean isNearKept(CrawlDatum doc) throws IOException {
+      for (CrawlDatum other : kept) {
+        if (SimHashSignature.distance(doc.getSignature(),
+            other.getSignature()) <= distance
+            && DeduplicationJob.compare(other, doc, compareOrder) > 0) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+  }
+
+  public int run(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: NearDeduplicationJob <crawldb> [-group <none|host|domain>] [-compareOrder <score>,<fetchTime>,<urlLength>] [-distance <bits>]");
+      return 1;
+    }
+
+    String group = "none";
+    String crawldb = args[0];
+    String compareOrder = "score,fetchTime,urlLength";
+    int distance = 3;
+
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("-group"))
+        group = args[++i];
+      if (args[i].equals("-distance"))
+        distance = Integer.parseInt(args[++i]);
+      if (args[i].equals("-compareOrder")) {
+        compareOrder = args[++i];
+
+        if (!isValidCompareOrder(compareOrder)) {
+          System.err.println("NearDeduplicationJob: compareOrder must contain score, fetchTime and urlLength.");
+          return 1;
+        }
+      }
+    }
+
+    SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    long start = System.currentTimeMillis();
+    LOG.info("NearDeduplicationJob: starting at " + sdf.format(start)
+        + ", distance = " + distance + " bits");
+
+    Path tempDir = getTempDir("neardedup-temp-");
+
+    JobConf job = createJob("NearDeduplication", crawldb, tempDir);
+    job.set(NEAR_DEDUPLICATION_GROUP_MODE, group);
+    job.set(NEAR_DEDUPLICATION_COMPARE_ORDER, compareOrder);
+    job.setInt(NEAR_DEDUPLICATION_DISTANCE, distance);
+
+    job.setMapperClass(NearDBFilter.class);
+    job.setReducerClass(NearDedupReducer.class);
+
+    try {
+      RunningJob rj = JobClient.runJob(job);
+      Group g = rj.getCounters().getGroup(COUNTER_GROUP);
+      if (g != null) {
+        long dups = g.getCounter("Documents marked as duplicate");
+        LOG.info("NearDeduplication: " + (int) dups
+            + " marks as duplicate (a document may be marked in multiple bands)");
+        long skipped = g.getCounter("Documents without SimHash");
+        if (skipped > 0) {
+          LOG.warn("NearDeduplication: " + skipped
+              + " documents without SimHash signature skipped");
+        }
+      }
+    } catch (final Exception e) {
+      LOG.error("NearDeduplicationJob: " + StringUtils.stringifyException(e));
+      return -1;
+    }
+
+    if (updateCrawlDb("NearDeduplication", crawldb, tempDir) != 0) {
+      return -1;
+    }
+
+    long end = System.currentTimeMillis();
+    LOG.info("NearDeduplication finished at " + sdf.format(end)
+        + ", elapsed: " + TimingUtil.elapsedTime(start, end));
+
+    return 0;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int result = ToolRunner.run(NutchConfiguration.create(),
+        new NearDeduplicationJob(), args);
+    System.exit(result);
+  }
+}
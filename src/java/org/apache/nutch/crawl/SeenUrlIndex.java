@@ -0,0 +1,479 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.crawl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.StringUtils;
+import org.apache.nutch.util.NutchConfiguration;
+import org.apache.nutch.util.ObjectCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compact index of the URLs in the CrawlDb: a Bloom filter over URL hashes,
+ * answering whether a URL is probably known or definitely not known. The
+ * index is built by the reducers of the CrawlDb update job if
+ * <code>db.seen.index.build</code> is true, one filter per partition of the
+ * CrawlDb, and stored in <code>crawldb/seen/</code>. The size of the filters
+ * is chosen so that the rate of false positives (unknown URLs reported as
+ * known) is <code>db.seen.index.fpp</code>.
+ *
+ * <p>
+ * Filters are memory-mapped read-only, the bits are held off-heap and are
+ * shared by all tasks of a node reading the same local file. Filters on a
+ * distributed file system are copied to a local temporary file first.
+ *
+ * <p>
+ * The index is used by {@link org.apache.nutch.parse.ParseOutputFormat} and
+ * the {@link Injector} if <code>db.seen.index</code> points to it: outlinks and
+ * injected URLs already in the CrawlDb are then skipped, which shrinks the
+ * input of the CrawlDb update. Note that a small fraction of new URLs are
+ * skipped as false positives. Every build uses a different hash seed so that
+ * the same URLs are unlikely to be skipped again in the next cycle.
+ */
+public class SeenUrlIndex {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  public static final String SEEN_INDEX = "db.seen.index";
+  public static final String SEEN_INDEX_BUILD = "db.seen.index.build";
+  public static final String SEEN_INDEX_FPP = "db.seen.index.fpp";
+  static final String SEEN_INDEX_SEED = "db.seen.index.seed";
+
+  /** Name of the index in the CrawlDb directory */
+  public static final String SEEN_NAME = "seen";
+
+  /** Prefix of the filters written to the output of the update job */
+  static final String TEMP_PREFIX = "_seen-";
+
+  private static final byte VERSION = 1;
+
+  /** Version, seed, number of hashes, number of bits, number of URLs */
+  private static final int HEADER_SIZE = 32;
+
+  /** A filter must fit into a single mapped buffer */
+  private static final long MAX_BITS = (Integer.MAX_VALUE - HEADER_SIZE) / 8
+      * 64L;
+
+  private final ByteBuffer[] filters;
+  private final long[] seeds;
+  private final int[] numHashes;
+  private final long[] numBits;
+  private final long[] counts;
+
+  private SeenUrlIndex(ByteBuffer[] filters) {
+    this.filters = filters;
+    seeds = new long[filters.length];
+    numHashes = new int[filters.length];
+    numBits = new long[filters.length];
+    counts = new long[filters.length];
+    for (int i = 0; i < filters.length; i++) {
+      ByteBuffer filter = filters[i];
+      if (filter.get(0) != VERSION) {
+        throw new IllegalArgumentException(
+            "Unknown version of seen URL index: " + filter.get(0));
+      }
+      seeds[i] = filter.getLong(4);
+      numHashes[i] = filter.getInt(12);
+      numBits[i] = filter.getLong(16);
+      counts[i] = filter.getLong(24);
+    }
+  }
+
+  /**
+   * @return true if the URL is probably in the CrawlDb, false if it is
+   *         definitely not
+   */
+  public boolean mightContain(Text url) {
+    // same partition as assigned by the HashPartitioner of the update job
+    int part = (url.hashCode() & Integer.MAX_VALUE) % filters.length;
+    long hash = hash(url.getBytes(), url.getLength(), seeds[part]);
+    return mightContain(filters[part], hash, numHashes[part], numBits[part]);
+  }
+
+  /** @return the number of URLs in the index */
+  public long getCount() {
+    long count = 0;
+    for (long c : counts) {
+      count += c;
+    }
+    return count;
+  }
+
+  /** @return the size of all filters in bytes */
+  public long getSize() {
+    long size = 0;
+    for (long bits : numBits) {
+      size += HEADER_SIZE + bits / 8;
+    }
+    return size;
+  }
+
+  /** @return the expected rate of false positives */
+  public double getExpectedFpp() {
+    double fpp = 0;
+    long count = getCount();
+    if (count == 0) {
+      return 0;
+    }
+    for (int i = 0; i < filters.length; i++) {
+      fpp += expectedFpp(counts[i], numBits[i], numHashes[i]) * counts[i];
+    }
+    return fpp / count;
+  }
+
+  @Override
+  public String toString() {
+    return filters.length + " filters, " + getCount() + " URLs, "
+        + StringUtils.byteDesc(getSize()) + ", expected false positive rate "
+        + String.format("%.6f", getExpectedFpp());
+  }
+
+  /** 64-bit FNV-1a hash, with murmur3's finalizer for better avalanche */
+  static long hash(byte[] bytes, int length, long seed) {
+    long h = 0xcbf29ce484222325L ^ seed;
+    for (int i = 0; i < length; i++) {
+      h ^= bytes[i] & 0xff;
+      h *= 0x100000001b3L;
+    }
+    return fmix64(h);
+  }
+
+  private static long fmix64(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /** Bit positions are derived from two hashes (Kirsch-Mitzenmacher) */
+  private static boolean mightContain(ByteBuffer filter, long hash,
+      int numHashes, long numBits) {
+    long h2 = fmix64(hash ^ 0x9e3779b97f4a7c15L) | 1;
+    long h = hash;
+    for (int i = 0; i < numHashes; i++) {
+      long bit = Long.remainderUnsigned(h, numBits);
+      int pos = HEADER_SIZE + (int) (bit >>> 6) * 8;
+      if ((filter.getLong(pos) & (1L << bit)) == 0) {
+        return false;
+      }
+      h += h2;
+    }
+    return true;
+  }
+
+  private static void put(ByteBuffer filter, long hash, int numHashes,
+      long numBits) {
+    long h2 = fmix64(hash ^ 0x9e3779b97f4a7c15L) | 1;
+    long h = hash;
+    for (int i = 0; i < numHashes; i++) {
+      long bit = Long.remainderUnsigned(h, numBits);
+      int pos = HEADER_SIZE + (int) (bit >>> 6) * 8;
+      filter.putLong(pos, filter.getLong(pos) | (1L << bit));
+      h += h2;
+    }
+  }
+
+  /**
+   * @return the number of bits of a filter holding the given number of URLs
+   *         at the given false positive rate, a multiple of 64
+   */
+  public static long optimalNumBits(long count, double fpp) {
+    double bits = -Math.max(1, count) * Math.log(fpp)
+        / (Math.log(2) * Math.log(2));
+    long words = (long) Math.ceil(bits / 64);
+    return Math.min(MAX_BITS, Math.max(1, words) * 64);
+  }
+
+  /** @return the optimal number of hash functions */
+  public static int optimalNumHashes(long count, long numBits) {
+    long k = Math.round((double) numBits / Math.max(1, count) * Math.log(2));
+    return (int) Math.max(1, Math.min(30, k));
+  }
+
+  /** @return the expected false positive rate of a filter */
+  public static double expectedFpp(long count, long numBits, int numHashes) {
+    return Math.pow(1 - Math.exp(-(double) numHashes * count / numBits),
+        numHashes);
+  }
+
+  /**
+   * Collects the hashes of the URLs of a partition in a local temporary file,
+   * the filter is sized and written once all URLs are known.
+   */
+  static class Builder {
+    private final long seed;
+    private final File hashFile;
+    private final DataOutputStream hashes;
+    private long count = 0;
+
+    Builder(long seed) throws IOException {
+      this.seed = seed;
+      hashFile = File.createTempFile("seen-hashes-", ".tmp");
+      hashFile.deleteOnExit();
+      hashes = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(hashFile), 65536));
+    }
+
+    void add(Text url) throws IOException {
+      hashes.writeLong(hash(url.getBytes(), url.getLength(), seed));
+      count++;
+    }
+
+    /** Write the filter and remove the temporary files. */
+    void write(FileSystem fs, Path out, double fpp) throws IOException {
+      hashes.close();
+      long numBits = optimalNumBits(count, fpp);
+      int numHashes = optimalNumHashes(count, numBits);
+      File filterFile = File.createTempFile("seen-filter-", ".tmp");
+      try {
+        try (RandomAccessFile raf = new RandomAccessFile(filterFile, "rw");
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(hashFile), 65536))) {
+          MappedByteBuffer filter = raf.getChannel().map(
+              FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + numBits / 8);
+          filter.put(0, VERSION);
+          filter.putLong(4, seed);
+          filter.putInt(12, numHashes);
+          filter.putLong(16, numBits);
+          filter.putLong(24, count);
+          for (long i = 0; i < count; i++) {
+            put(filter, in.readLong(), numHashes, numBits);
+          }
+          filter.force();
+        }
+        fs.copyFromLocalFile(true, true, new Path(filterFile.getAbsolutePath()),
+            out);
+      } finally {
+        hashFile.delete();
+        filterFile.delete();
+      }
+      LOG.info("Seen URL index {}: {} URLs, {}, {} hashes,"
+          + " expected false positive rate {}", out.getName(), count,
+          StringUtils.byteDesc(HEADER_SIZE + numBits / 8), numHashes,
+          String.format("%.6f", expectedFpp(count, numBits, numHashes)));
+    }
+
+    /** Discard the collected hashes. */
+    void abort() {
+      try {
+        hashes.close();
+      } catch (IOException e) {
+        // ignore
+      }
+      hashFile.delete();
+    }
+  }
+
+  /**
+   * Move the filters written by the reducers of the update job from the
+   * temporary output to <code>crawldb/seen.tmp</code>, to be installed by
+   * {@link #install(Configuration, Path)} once the CrawlDb is installed.
+   *
+   * @return false if the filters are incomplete
+   */
+  static boolean prepare(Configuration conf, Path tempCrawlDb, Path crawlDb,
+      int numPartitions) throws IOException {
+    FileSystem fs = tempCrawlDb.getFileSystem(conf);
+    FileStatus[] files = fs.listStatus(tempCrawlDb, new PathFilter() {
+      @Override
+      public boolean accept(Path path) {
+        return path.getName().startsWith(TEMP_PREFIX);
+      }
+    });
+    Path tmp = new Path(crawlDb, SEEN_NAME + ".tmp");
+    fs.delete(tmp, true);
+    if (files.length != numPartitions) {
+      LOG.warn("Seen URL index: expected {} filters, found {}, not installed",
+          numPartitions, files.length);
+      for (FileStatus file : files) {
+        fs.delete(file.getPath(), false);
+      }
+      return false;
+    }
+    fs.mkdirs(tmp);
+    for (FileStatus file : files) {
+      String name = "part-" + file.getPath().getName().substring(
+          TEMP_PREFIX.length());
+      fs.rename(file.getPath(), new Path(tmp, name));
+    }
+    return true;
+  }
+
+  /** Replace the index of the CrawlDb by the prepared one. */
+  static void install(Configuration conf, Path crawlDb) throws IOException {
+    FileSystem fs = crawlDb.getFileSystem(conf);
+    Path seen = new Path(crawlDb, SEEN_NAME);
+    Path tmp = new Path(crawlDb, SEEN_NAME + ".tmp");
+    if (fs.exists(seen)) {
+      fs.delete(seen, true);
+    }
+    fs.rename(tmp, seen);
+  }
+
+  /**
+   * Open an index, memory-mapping the filters. Indexes are cached per
+   * configuration.
+   *
+   * @return the index or null if it does not exist (yet)
+   */
+  public static SeenUrlIndex get(Configuration conf, Path dir)
+      throws IOException {
+    ObjectCache cache = ObjectCache.get(conf);
+    String key = SeenUrlIndex.class.getName() + ":" + dir;
+    synchronized (cache) {
+      SeenUrlIndex index = (SeenUrlIndex) cache.getObject(key);
+      if (index == null) {
+        if (!dir.getFileSystem(conf).exists(dir)) {
+          LOG.warn("Seen URL index {} does not exist, not used", dir);
+          return null;
+        }
+        index = open(conf, dir);
+        cache.setObject(key, index);
+      }
+      return index;
+    }
+  }
+
+  /** Open an index, memory-mapping the filters. */
+  public static SeenUrlIndex open(Configuration conf, Path dir)
+      throws IOException {
+    FileSystem fs = dir.getFileSystem(conf);
+    FileStatus[] files = fs.listStatus(dir, new PathFilter() {
+      @Override
+      public boolean accept(Path path) {
+        return path.getName().startsWith("part-");
+      }
+    });
+    if (files.length == 0) {
+      throw new IOException("No seen URL index found in " + dir);
+    }
+    Arrays.sort(files);
+    ByteBuffer[] filters = new ByteBuffer[files.length];
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < files.length; i++) {
+      filters[i] = map(fs, files[i].getPath());
+    }
+    SeenUrlIndex index = new SeenUrlIndex(filters);
+    LOG.info("Seen URL index {} opened in {} ms: {}", dir,
+        System.currentTimeMillis() - start, index);
+    return index;
+  }
+
+  private static ByteBuffer map(FileSystem fs, Path path) throws IOException {
+    File file;
+    boolean copy = !(fs instanceof LocalFileSystem);
+    if (copy) {
+      file = File.createTempFile("seen-", ".tmp");
+      fs.copyToLocalFile(false, path, new Path(file.getAbsolutePath()), true);
+    } else {
+      file = ((LocalFileSystem) fs).pathToFile(path);
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      // the mapping stays valid after the file is closed and deleted
+      return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+          raf.length());
+    } finally {
+      if (copy) {
+        file.delete();
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println(
+          "Usage: SeenUrlIndex (<seen_index_dir> [-test <n>] | -size <urls> <fpp>)");
+      System.err.println(
+          "\tseen_index_dir\tindex to report, e.g. crawldb/seen");
+      System.err.println(
+          "\t-test <n>\tmeasure the false positive rate by looking up n random URLs not in the CrawlDb");
+      System.err.println(
+          "\t-size <urls> <fpp>\tprint the memory required for a number of URLs and false positive rate");
+      System.exit(-1);
+    }
+    Configuration conf = NutchConfiguration.create();
+    if (args[0].equals("-size")) {
+      long count = Long.parseLong(args[1]);
+      double fpp = Double.parseDouble(args[2]);
+      long numBits = optimalNumBits(count, fpp);
+      int numHashes = optimalNumHashes(count, numBits);
+      System.out.println("URLs:\t" + count);
+      System.out.println("bits per URL:\t"
+          + String.format("%.2f", (double) numBits / Math.max(1, count)));
+      System.out.println("hashes:\t" + numHashes);
+      System.out.println("memory:\t"
+          + StringUtils.byteDesc(HEADER_SIZE + numBits / 8)
+          + " (per partition, divide by number of partitions)");
+      System.out.println("expected false positive rate:\t"
+          + String.format("%.6f", expectedFpp(count, numBits, numHashes)));
+      return;
+    }
+
+    SeenUrlIndex index = open(conf, new Path(args[0]));
+    for (int i = 0; i < index.filters.length; i++) {
+      System.out.println("part-" + i + ":\t" + index.counts[i] + " URLs\t"
+          + StringUtils.byteDesc(HEADER_SIZE + index.numBits[i] / 8) + "\t"
+          + index.numHashes[i] + " hashes\texpected false positive rate "
+          + String.format("%.6f", expectedFpp(index.counts[i],
+              index.numBits[i], index.numHashes[i])));
+    }
+    System.out.println("total:\t" + index);
+    if (args.length > 2 && args[1].equals("-test")) {
+      long n = Long.parseLong(args[2]);
+      Random random = new Random();
+      Text url = new Text();
+      long positives = 0;
+      for (long i = 0; i < n; i++) {
+        // the reserved TLD .invalid guarantees unknown URLs
+        url.set("http://" + Long.toHexString(random.nextLong())
+            + ".invalid/" + i);
+        if (index.mightContain(url)) {
+          positives++;
+        }
+      }
+      System.out.println("measured false positive rate:\t"
+          + String.format("%.6f", (double) positives / n) + " (" + positives
+          + " of " + n + ")");
+    }
+  }
+}
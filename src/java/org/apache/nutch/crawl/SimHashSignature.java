@@ -0,0 +1,164 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.crawl;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.parse.Parse;
+import org.apache.nutch.protocol.Content;
+
+/**
+ * <p>
+ * A page signature for near-duplicate detection. It calculates a 64 bit
+ * SimHash of the plain text of a page: the text is split into tokens as by
+ * {@link TextProfileSignature} (letters and digits, lower case, longer than
+ * <code>db.signature.simhash.min_token_len</code>), every sequence of
+ * <code>db.signature.simhash.shingle.size</code> consecutive tokens (shingle)
+ * is hashed to 64 bits, and every bit of the signature is set if the bit is
+ * set in the hashes of the majority of shingles. Texts which share most of
+ * their shingles get signatures which differ in a few bits only, see
+ * {@link #distance(byte[], byte[])} and {@link NearDeduplicationJob}.
+ * </p>
+ * <p>
+ * The text is processed in a single pass without copies. In case there is no
+ * text, a (16 byte) hash is calculated using the {@link MD5Signature}.
+ * </p>
+ */
+public class SimHashSignature extends Signature {
+
+  public static final int SIGNATURE_LENGTH = 8;
+
+  Signature fallback = new MD5Signature();
+
+  private int minTokenLen = 2;
+  private int shingleSize = 3;
+
+  @Override
+  public void setConf(Configuration conf) {
+    super.setConf(conf);
+    minTokenLen = conf.getInt("db.signature.simhash.min_token_len", 2);
+    shingleSize = Math.max(1,
+        conf.getInt("db.signature.simhash.shingle.size", 3));
+  }
+
+  public byte[] calculate(Content content, Parse parse) {
+    String text = null;
+    if (parse != null)
+      text = parse.getText();
+    if (text == null || text.length() == 0)
+      return fallback.calculate(content, parse);
+    // number of shingle hashes with a bit set minus those with the bit unset
+    int[] weights = new int[64];
+    // hashes of the last tokens, to hash the shingles
+    long[] shingle = new long[shingleSize];
+    int tokens = 0;
+    long hash = FNV_OFFSET_BASIS;
+    int tokenLength = 0;
+    int length = text.length();
+    for (int i = 0; i <= length; i++) {
+      char c = i < length ? text.charAt(i) : ' ';
+      if (Character.isLetterOrDigit(c)) {
+        c = Character.toLowerCase(c);
+        hash = (hash ^ c) * FNV_PRIME;
+        tokenLength++;
+      } else if (tokenLength > 0) {
+        if (tokenLength > minTokenLen) {
+          shingle[tokens++ % shingleSize] = mix(hash);
+          if (tokens >= shingleSize) {
+            addShingle(weights, shingle, tokens);
+          }
+        }
+        hash = FNV_OFFSET_BASIS;
+        tokenLength = 0;
+      }
+    }
+    if (tokens == 0)
+      return fallback.calculate(content, parse);
+    if (tokens < shingleSize) {
+      // a short text is a single shingle
+      addShingle(weights, shingle, tokens);
+    }
+    long simHash = 0;
+    for (int b = 0; b < 64; b++) {
+      if (weights[b] > 0) {
+        simHash |= 1L << b;
+      }
+    }
+    return toBytes(simHash);
+  }
+
+  /** Add the hash of the last tokens, of which <code>tokens</code> are seen */
+  private void addShingle(int[] weights, long[] shingle, int tokens) {
+    long h = 0;
+    int n = Math.min(tokens, shingleSize);
+    for (int k = n; k > 0; k--) {
+      h = mix(h * 31 + shingle[(tokens - k) % shingleSize]);
+    }
+    for (int b = 0; b < 64; b++) {
+      weights[b] += (int) ((h >>> b) & 1) * 2 - 1;
+    }
+  }
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  /** Finalization of MurmurHash3, every input bit affects all output bits */
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  public static byte[] toBytes(long simHash) {
+    byte[] bytes = new byte[SIGNATURE_LENGTH];
+    for (int i = SIGNATURE_LENGTH - 1; i >= 0; i--) {
+      bytes[i] = (byte) simHash;
+      simHash >>>= 8;
+    }
+    return bytes;
+  }
+
+  /**
+   * @return the SimHash of a signature, or 0 if the signature is not a
+   *         SimHash (see {@link #isSimHash(byte[])})
+   */
+  public static long toLong(byte[] signature) {
+    if (!isSimHash(signature)) {
+      return 0;
+    }
+    long simHash = 0;
+    for (int i = 0; i < SIGNATURE_LENGTH; i++) {
+      simHash = (simHash << 8) | (signature[i] & 0xff);
+    }
+    return simHash;
+  }
+
+  /**
+   * @return true if the signature has been calculated as SimHash, false if
+   *         it is missing or calculated by the fallback signature
+   */
+  public static boolean isSimHash(byte[] signature) {
+    return signature != null && signature.length == SIGNATURE_LENGTH;
+  }
+
+  /** @return the number of bits in which two SimHash signatures differ */
+  public static int distance(byte[] signature1, byte[] signature2) {
+    return Long.bitCount(toLong(signature1) ^ toLong(signature2));
+  }
+}
@@ -21,12 +21,15 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStreamReader;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.MD5Hash;
 import org.apache.nutch.parse.Parse;
 import org.apache.nutch.parse.ParseImpl;
@@ -60,25 +63,317 @@ import org.apache.nutch.util.NutchConfiguration;
  * <li>create a list of tokens and their quantized frequency, separated by
  * spaces, in the order of decreasing frequency.</li>
  * </ul>
- * This list is then submitted to an MD5 hash calculation.
+ * This list is then submitted to an MD5 hash calculation. The list is not
+ * built as a string: the tokens are counted in primitive arrays reused by the
+ * calling thread, only the tokens kept in the profile are sorted, and the
+ * list is hashed as it is written.
  * 
  * @author Andrzej Bialecki &lt;ab@getopt.org&gt;
  */
 public class TextProfileSignature extends Signature {
 
+  /** Bucket count threshold above which a {@link HashMap} bin is a tree */
+  private static final int TREEIFY_THRESHOLD = 8;
+  private static final int MIN_TREEIFY_CAPACITY = 64;
+  /** Thread-local buffers above this size are released after use */
+  private static final int MAX_RETAINED_CHARS = 1 << 20;
+
+  private static final ThreadLocal<Profile> PROFILES = new ThreadLocal<>();
+
   Signature fallback = new MD5Signature();
 
+  private int minTokenLen = 2;
+  private float quantRate = 0.01f;
+
+  @Override
+  public void setConf(Configuration conf) {
+    super.setConf(conf);
+    minTokenLen = conf.getInt("db.signature.text_profile.min_token_len", 2);
+    quantRate = conf.getFloat("db.signature.text_profile.quant_rate", 0.01f);
+  }
+
   public byte[] calculate(Content content, Parse parse) {
-    int MIN_TOKEN_LEN = getConf().getInt(
-        "db.signature.text_profile.min_token_len", 2);
-    float QUANT_RATE = getConf().getFloat(
-        "db.signature.text_profile.quant_rate", 0.01f);
-    HashMap<String, Token> tokens = new HashMap<>();
     String text = null;
     if (parse != null)
       text = parse.getText();
     if (text == null || text.length() == 0)
       return fallback.calculate(content, parse);
+    Profile profile = PROFILES.get();
+    if (profile == null) {
+      profile = new Profile();
+      PROFILES.set(profile);
+    }
+    try {
+      byte[] signature = profile.calculate(text, minTokenLen, quantRate);
+      if (signature == null) {
+        // token order depends on a tree bin of the HashMap
+        signature = calculateLegacy(text, minTokenLen, quantRate);
+      }
+      return signature;
+    } finally {
+      if (profile.chars.length > MAX_RETAINED_CHARS) {
+        PROFILES.remove();
+      } else {
+        profile.reset();
+      }
+    }
+  }
+
+  /**
+   * Tokens of a text and their frequencies, kept in primitive arrays reused
+   * across documents. The profile is hashed without building a string: tokens
+   * of equal frequency are ordered as the iteration order of the
+   * {@link HashMap} used by {@link TextProfileSignature#calculateLegacy},
+   * which is derived from the string hash codes of the tokens and the order
+   * they were first seen.
+   */
+  private static class Profile {
+    /** Characters of the distinct tokens, in the order first seen */
+    char[] chars = new char[1024];
+    int charsLength;
+    /** Offset, length, string hash code and frequency of the tokens */
+    int[] offsets = new int[256];
+    int[] lengths = new int[256];
+    int[] hashes = new int[256];
+    int[] counts = new int[256];
+    int size;
+    /** Open addressing table of token indexes + 1 */
+    int[] slots = new int[512];
+    int[] bins = new int[16];
+    int[] order = new int[256];
+    long[] keys = new long[256];
+    byte[] buffer = new byte[4096];
+    int bufferLength;
+
+    void reset() {
+      // clear the used slots only, the table is sized for the largest text
+      int mask = slots.length - 1;
+      for (int t = 0; t < size; t++) {
+        int slot = spread(hashes[t] * 0x9E3779B9) & mask;
+        while (slots[slot] != t + 1) {
+          slot = (slot + 1) & mask;
+        }
+        order[t] = slot;
+      }
+      for (int t = 0; t < size; t++) {
+        slots[order[t]] = 0;
+      }
+      charsLength = 0;
+      size = 0;
+      bufferLength = 0;
+    }
+
+    byte[] calculate(String text, int minTokenLen, float quantRate) {
+      int maxFreq = 0;
+      int tokenLength = 0;
+      int hash = 0;
+      int length = text.length();
+      for (int i = 0; i <= length; i++) {
+        char c = i < length ? text.charAt(i) : ' ';
+        if (Character.isLetterOrDigit(c)) {
+          c = Character.toLowerCase(c);
+          if (charsLength == chars.length) {
+            chars = Arrays.copyOf(chars, 2 * chars.length);
+          }
+          chars[charsLength++] = c;
+          hash = 31 * hash + c;
+          tokenLength++;
+        } else if (tokenLength > 0) {
+          if (tokenLength > minTokenLen) {
+            int count = add(charsLength - tokenLength, tokenLength, hash);
+            if (count > maxFreq)
+              maxFreq = count;
+          } else {
+            charsLength -= tokenLength;
+          }
+          tokenLength = 0;
+          hash = 0;
+        }
+      }
+
+      // calculate the QUANT value
+      int quant = Math.round(maxFreq * quantRate);
+      if (quant < 2) {
+        if (maxFreq > 1)
+          quant = 2;
+        else
+          quant = 1;
+      }
+
+      // select the tokens with a frequency of at least QUANT, in HashMap order
+      int capacity = hashMapCapacity();
+      if (capacity < 0) {
+        return null;
+      }
+      int selected = 0;
+      for (int t = 0; t < size; t++) {
+        if (counts[t] >= quant) {
+          long bucket = spread(hashes[t]) & (capacity - 1);
+          keys[selected++] = (bucket << 32) | t;
+        }
+      }
+      Arrays.sort(keys, 0, selected);
+      // order by decreasing quantized frequency, stable as Collections.sort
+      for (int r = 0; r < selected; r++) {
+        int t = (int) keys[r];
+        order[r] = t;
+        long quantized = (counts[t] / quant) * quant;
+        keys[r] = ((Integer.MAX_VALUE - quantized) << 32) | r;
+      }
+      Arrays.sort(keys, 0, selected);
+
+      MessageDigest digester = MD5Hash.getDigester();
+      for (int r = 0; r < selected; r++) {
+        int t = order[(int) keys[r]];
+        if (r > 0)
+          write(digester, '\n');
+        int offset = offsets[t];
+        for (int i = offset; i < offset + lengths[t]; i++) {
+          write(digester, chars[i]);
+        }
+        write(digester, ' ');
+        writeNumber(digester, (counts[t] / quant) * quant);
+      }
+      digester.update(buffer, 0, bufferLength);
+      bufferLength = 0;
+      return digester.digest();
+    }
+
+    /** Count a token, already appended to the characters if new. */
+    private int add(int offset, int length, int hash) {
+      int mask = slots.length - 1;
+      int slot = spread(hash * 0x9E3779B9) & mask;
+      while (slots[slot] != 0) {
+        int t = slots[slot] - 1;
+        if (hashes[t] == hash && lengths[t] == length
+            && regionMatches(offsets[t], offset, length)) {
+          // already known, drop the copy
+          charsLength = offset;
+          return ++counts[t];
+        }
+        slot = (slot + 1) & mask;
+      }
+      if (size == offsets.length) {
+        int capacity = 2 * size;
+        offsets = Arrays.copyOf(offsets, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        order = new int[capacity];
+        keys = new long[capacity];
+      }
+      offsets[size] = offset;
+      lengths[size] = length;
+      hashes[size] = hash;
+      counts[size] = 1;
+      slots[slot] = ++size;
+      if (2 * size > slots.length) {
+        rehash();
+      }
+      return 1;
+    }
+
+    private boolean regionMatches(int offset1, int offset2, int length) {
+      for (int i = 0; i < length; i++) {
+        if (chars[offset1 + i] != chars[offset2 + i])
+          return false;
+      }
+      return true;
+    }
+
+    private void rehash() {
+      slots = new int[2 * slots.length];
+      int mask = slots.length - 1;
+      for (int t = 0; t < size; t++) {
+        int slot = spread(hashes[t] * 0x9E3779B9) & mask;
+        while (slots[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        slots[slot] = t + 1;
+      }
+    }
+
+    /**
+     * Replay the insertion of the tokens into a {@link HashMap} with default
+     * capacity and load factor.
+     *
+     * @return the final table capacity, or -1 if a bin was converted into a
+     *         tree, which changes the iteration order of the bin
+     */
+    private int hashMapCapacity() {
+      int capacity = 16;
+      countBins(capacity, 0);
+      for (int t = 0; t < size; t++) {
+        int bin = spread(hashes[t]) & (capacity - 1);
+        boolean resize = false;
+        if (++bins[bin] > TREEIFY_THRESHOLD) {
+          if (capacity >= MIN_TREEIFY_CAPACITY) {
+            return -1;
+          }
+          // the table is resized instead of converting the bin
+          capacity *= 2;
+          resize = true;
+        }
+        if (t + 1 > capacity / 4 * 3) {
+          capacity *= 2;
+          resize = true;
+        }
+        if (resize) {
+          countBins(capacity, t + 1);
+        }
+      }
+      return capacity;
+    }
+
+    private void countBins(int capacity, int tokens) {
+      if (bins.length < capacity) {
+        bins = new int[capacity];
+      } else {
+        Arrays.fill(bins, 0, capacity, 0);
+      }
+      for (int t = 0; t < tokens; t++) {
+        bins[spread(hashes[t]) & (capacity - 1)]++;
+      }
+    }
+
+    /** Append a character, encoded as {@link MD5Hash#digest(String)} does. */
+    private void write(MessageDigest digester, char c) {
+      if (bufferLength + 3 > buffer.length) {
+        digester.update(buffer, 0, bufferLength);
+        bufferLength = 0;
+      }
+      if (c <= 0x7F) {
+        buffer[bufferLength++] = (byte) c;
+      } else if (c <= 0x07FF) {
+        buffer[bufferLength++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+        buffer[bufferLength++] = (byte) (0x80 | (c & 0x3F));
+      } else {
+        buffer[bufferLength++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+        buffer[bufferLength++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        buffer[bufferLength++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+
+    private void writeNumber(MessageDigest digester, int n) {
+      if (n >= 10) {
+        writeNumber(digester, n / 10);
+      }
+      write(digester, (char) ('0' + n % 10));
+    }
+  }
+
+  /** The hash spreading of {@link HashMap} */
+  private static int spread(int h) {
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Calculate the signature by building the profile as a string, the former
+   * implementation kept to verify and benchmark the current one.
+   */
+  static byte[] calculateLegacy(String text, int MIN_TOKEN_LEN,
+      float QUANT_RATE) {
+    HashMap<String, Token> tokens = new HashMap<>();
     StringBuffer curToken = new StringBuffer();
     int maxFreq = 0;
     for (int i = 0; i < text.length(); i++) {
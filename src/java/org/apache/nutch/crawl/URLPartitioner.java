@@ -18,21 +18,24 @@
 package org.apache.nutch.crawl;
 
 import java.lang.invoke.MethodHandles;
-import java.net.InetAddress;
 import java.net.URL;
 import java.net.MalformedURLException;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.hadoop.io.*;
 import org.apache.hadoop.mapred.*;
+import org.apache.nutch.net.DnsCache;
 import org.apache.nutch.net.URLNormalizers;
 import org.apache.nutch.util.URLUtil;
 
 /**
  * Partition urls by host, domain name or IP depending on the value of the
- * parameter 'partition.url.mode' which can be 'byHost', 'byDomain' or 'byIP'
+ * parameter 'partition.url.mode' which can be 'byHost', 'byDomain' or 'byIP'.
+ * The host name is located directly in the serialized URL if possible, see
+ * {@link URLUtil#findHost(byte[], int, int, int[])}.
  */
 public class URLPartitioner implements Partitioner<Text, Writable> {
   private static final Logger LOG = LoggerFactory
@@ -47,6 +50,8 @@ public class URLPartitioner implements Partitioner<Text, Writable> {
   private int seed;
   private URLNormalizers normalizers;
   private String mode = PARTITION_MODE_HOST;
+  private DnsCache dnsCache;
+  private int[] hostStart = new int[1];
 
   public void configure(JobConf job) {
     seed = job.getInt("partition.url.seed", 0);
@@ -58,6 +63,9 @@ public class URLPartitioner implements Partitioner<Text, Writable> {
       mode = PARTITION_MODE_HOST;
     }
     normalizers = new URLNormalizers(job, URLNormalizers.SCOPE_PARTITION);
+    if (mode.equals(PARTITION_MODE_IP)) {
+      dnsCache = DnsCache.get(job);
+    }
   }
 
   public void close() {
@@ -65,33 +73,84 @@ public class URLPartitioner implements Partitioner<Text, Writable> {
 
   /** Hash by domain name. */
   public int getPartition(Text key, Writable value, int numReduceTasks) {
-    String urlString = key.toString();
-    URL url = null;
-    int hashCode = urlString.hashCode();
+    int hashCode = hashCode(key);
+
+    // make hosts wind up in different partitions on different runs
+    hashCode ^= seed;
+
+    return (hashCode & Integer.MAX_VALUE) % numReduceTasks;
+  }
+
+  private int hashCode(Text key) {
+    String urlString = null;
+    if (!normalizers.isEmpty()) {
+      urlString = key.toString();
+      String normalized;
+      try {
+        normalized = normalizers.normalize(urlString,
+            URLNormalizers.SCOPE_PARTITION);
+      } catch (MalformedURLException e) {
+        LOG.warn("Malformed URL: '" + urlString + "'");
+        return urlString.hashCode();
+      }
+      if (!urlString.equals(normalized)) {
+        return hashCode(normalized, urlString);
+      }
+    }
+
+    // locate the host in the UTF-8 bytes, avoiding to parse the URL
+    byte[] bytes = key.getBytes();
+    int hostEnd = URLUtil.findHost(bytes, 0, key.getLength(), hostStart);
+    if (hostEnd == -1) {
+      if (urlString == null) {
+        urlString = key.toString();
+      }
+      return hashCode(urlString, urlString);
+    }
+    if (mode.equals(PARTITION_MODE_HOST)) {
+      // same as String.hashCode() of the host, which is ASCII
+      int hashCode = 0;
+      for (int i = hostStart[0]; i < hostEnd; i++) {
+        hashCode = 31 * hashCode + bytes[i];
+      }
+      return hashCode;
+    }
+    return hostHashCode(new String(bytes, hostStart[0],
+        hostEnd - hostStart[0], StandardCharsets.US_ASCII));
+  }
+
+  /**
+   * Hash code of a URL which needs to be parsed by {@link URL}.
+   * 
+   * @param urlString
+   *          normalized URL
+   * @param original
+   *          URL before normalization, its hash code is used if the URL is
+   *          malformed
+   */
+  private int hashCode(String urlString, String original) {
     try {
-      urlString = normalizers.normalize(urlString,
-          URLNormalizers.SCOPE_PARTITION);
-      url = new URL(urlString);
-      hashCode = url.getHost().hashCode();
+      if (urlString != null) {
+        return hostHashCode(new URL(urlString).getHost());
+      }
     } catch (MalformedURLException e) {
-      LOG.warn("Malformed URL: '" + urlString + "'");
+      // handled below
     }
+    LOG.warn("Malformed URL: '" + urlString + "'");
+    return original.hashCode();
+  }
 
-    if (mode.equals(PARTITION_MODE_DOMAIN) && url != null)
-      hashCode = URLUtil.getDomainName(url).hashCode();
-    else if (mode.equals(PARTITION_MODE_IP)) {
+  private int hostHashCode(String host) {
+    if (mode.equals(PARTITION_MODE_DOMAIN)) {
+      return URLUtil.getDomainNameOfHost(host).hashCode();
+    } else if (mode.equals(PARTITION_MODE_IP)) {
       try {
-        InetAddress address = InetAddress.getByName(url.getHost());
-        hashCode = address.getHostAddress().hashCode();
+        return dnsCache.resolve(host).getHostAddress().hashCode();
       } catch (UnknownHostException e) {
-        Generator.LOG.info("Couldn't find IP for host: " + url.getHost());
+        Generator.LOG.info("Couldn't find IP for host: " + host);
       }
     }
-
-    // make hosts wind up in different partitions on different runs
-    hashCode ^= seed;
-
-    return (hashCode & Integer.MAX_VALUE) % numReduceTasks;
+    return host.hashCode();
   }
 
 }
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.fetcher;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link FetchItemQueue} backed by a concurrent deque, used by
+ * {@link ConcurrentFetchItemQueues}. The number of queued items is tracked
+ * separately so that size checks stay O(1). Structural changes which affect
+ * the eligibility of the queue (taking, adding and finishing items) are made
+ * while holding the monitor of this queue, never a global lock.
+ */
+public class ConcurrentFetchItemQueue extends FetchItemQueue {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  Deque<FetchItem> items = new ConcurrentLinkedDeque<>();
+  AtomicInteger size = new AtomicInteger();
+
+  /**
+   * Whether this queue currently has an entry in the ready structure of
+   * {@link ConcurrentFetchItemQueues}. Guarded by the monitor of this queue.
+   */
+  boolean scheduled = false;
+
+  public ConcurrentFetchItemQueue(Configuration conf, int maxThreads,
+      long crawlDelay, long minCrawlDelay) {
+    super(conf, maxThreads, crawlDelay, minCrawlDelay);
+  }
+
+  @Override
+  public synchronized int emptyQueue() {
+    int deleted = 0;
+    while (items.pollFirst() != null) {
+      deleted++;
+    }
+    size.addAndGet(-deleted);
+    return deleted;
+  }
+
+  @Override
+  public int getQueueSize() {
+    return size.get();
+  }
+
+  @Override
+  public synchronized void addFetchItem(FetchItem it) {
+    if (it == null)
+      return;
+    items.addLast(it);
+    size.incrementAndGet();
+  }
+
+  @Override
+  public synchronized FetchItem getFetchItem() {
+    if (inProgress.get() >= maxThreads)
+      return null;
+    if (nextFetchTime.get() > System.currentTimeMillis())
+      return null;
+    FetchItem it = items.pollFirst();
+    if (it != null) {
+      size.decrementAndGet();
+      inProgress.incrementAndGet();
+    }
+    return it;
+  }
+
+  @Override
+  public synchronized void finishFetchItem(FetchItem it, boolean asap) {
+    super.finishFetchItem(it, asap);
+  }
+
+  /** True if there are items waiting and a thread slot is free. */
+  boolean isEligible() {
+    return size.get() > 0 && inProgress.get() < maxThreads;
+  }
+
+  /** True if the queue holds no items and none are in progress. */
+  boolean isIdle() {
+    return size.get() == 0 && inProgress.get() == 0;
+  }
+
+  long getNextFetchTime() {
+    return nextFetchTime.get();
+  }
+
+  @Override
+  public synchronized void dump() {
+    LOG.info("  maxThreads    = " + maxThreads);
+    LOG.info("  inProgress    = " + inProgress.get());
+    LOG.info("  crawlDelay    = " + crawlDelay);
+    LOG.info("  minCrawlDelay = " + minCrawlDelay);
+    LOG.info("  nextFetchTime = " + nextFetchTime.get());
+    LOG.info("  now           = " + System.currentTimeMillis());
+    int i = 0;
+    for (FetchItem it : items) {
+      LOG.info("  " + i++ + ". " + it.url);
+    }
+  }
+}
@@ -0,0 +1,292 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.fetcher;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.crawl.CrawlDatum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link FetchItemQueues} implementation which does not serialize fetcher
+ * threads on a single monitor.
+ *
+ * <p>
+ * Queues are kept in a {@link ConcurrentHashMap}, and every queue which holds
+ * items and has a free thread slot is registered in a ready structure: a
+ * {@link DelayQueue} ordered by the time the host may be fetched next. The
+ * ready structure is split into shards (by queue ID) so that threads asking
+ * for work start at different shards and rarely meet on the same heap.
+ * Selecting the next eligible queue is therefore O(log n) instead of a walk
+ * over all queues.
+ *
+ * <p>
+ * Politeness semantics are those of {@link FetchItemQueue}: a queue is only
+ * handed out when fewer than <code>fetcher.threads.per.queue</code> items are
+ * in progress and its crawl delay has elapsed. A queue is (re-)registered
+ * whenever taking, adding or finishing an item may have made it eligible;
+ * these decisions are made under the monitor of the queue itself.
+ *
+ * <p>
+ * Enable it by setting <code>fetcher.queues.class</code> to
+ * <code>org.apache.nutch.fetcher.ConcurrentFetchItemQueues</code>.
+ */
+public class ConcurrentFetchItemQueues extends FetchItemQueues {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  /**
+   * Entry of the ready structure: a queue together with the time it becomes
+   * eligible for fetching.
+   */
+  static class ReadyQueue implements Delayed {
+    final ConcurrentFetchItemQueue queue;
+    final long readyTime;
+
+    ReadyQueue(ConcurrentFetchItemQueue queue, long readyTime) {
+      this.queue = queue;
+      this.readyTime = readyTime;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(readyTime - System.currentTimeMillis(),
+          TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+      return Long.compare(readyTime, ((ReadyQueue) o).readyTime);
+    }
+  }
+
+  private final ConcurrentMap<String, FetchItemQueue> concurrentQueues = new ConcurrentHashMap<>();
+  private final DelayQueue<ReadyQueue>[] readyQueues;
+
+  @SuppressWarnings("unchecked")
+  public ConcurrentFetchItemQueues(Configuration conf) {
+    super(conf);
+    this.queues = concurrentQueues;
+    int shards = conf.getInt("fetcher.queues.concurrent.shards", -1);
+    if (shards <= 0) {
+      shards = Runtime.getRuntime().availableProcessors();
+    }
+    readyQueues = new DelayQueue[shards];
+    for (int i = 0; i < shards; i++) {
+      readyQueues[i] = new DelayQueue<>();
+    }
+    LOG.info("Using concurrent fetch queues with {} shards", shards);
+  }
+
+  private DelayQueue<ReadyQueue> getShard(String id) {
+    return readyQueues[(id.hashCode() & Integer.MAX_VALUE)
+        % readyQueues.length];
+  }
+
+  /**
+   * Register the queue in the ready structure if it has items waiting, a free
+   * thread slot and is not registered yet. Must be called while holding the
+   * monitor of the queue.
+   */
+  private void schedule(String id, ConcurrentFetchItemQueue fiq) {
+    if (!fiq.scheduled && fiq.isEligible()) {
+      fiq.scheduled = true;
+      getShard(id).add(new ReadyQueue(fiq, fiq.getNextFetchTime()));
+    }
+  }
+
+  @Override
+  public void addFetchItem(FetchItem it) {
+    concurrentQueues.compute(it.queueID, (id, fiq) -> {
+      if (fiq == null) {
+        fiq = createQueue(id, it.datum);
+      }
+      ConcurrentFetchItemQueue cfiq = (ConcurrentFetchItemQueue) fiq;
+      synchronized (cfiq) {
+        cfiq.addFetchItem(it);
+        schedule(id, cfiq);
+      }
+      return fiq;
+    });
+    totalSize.incrementAndGet();
+    signalAvailable();
+  }
+
+  @Override
+  public void addInProgressFetchItem(FetchItem it) {
+    concurrentQueues.compute(it.queueID, (id, fiq) -> {
+      if (fiq == null) {
+        fiq = createQueue(id, it.datum);
+      }
+      fiq.addInProgressFetchItem(it);
+      return fiq;
+    });
+  }
+
+  @Override
+  public void finishFetchItem(FetchItem it, boolean asap) {
+    ConcurrentFetchItemQueue fiq = (ConcurrentFetchItemQueue) concurrentQueues
+        .get(it.queueID);
+    if (fiq == null) {
+      LOG.warn("Attempting to finish item from unknown queue: " + it);
+      return;
+    }
+    synchronized (fiq) {
+      fiq.finishFetchItem(it, asap);
+      schedule(it.queueID, fiq);
+    }
+    signalAvailable();
+    // reap the queue if it has become idle, atomically with respect to adding
+    concurrentQueues.computeIfPresent(it.queueID,
+        (id, q) -> ((ConcurrentFetchItemQueue) q).isIdle() ? null : q);
+  }
+
+  @Override
+  public FetchItemQueue getFetchItemQueue(String id) {
+    return concurrentQueues.computeIfAbsent(id, k -> createQueue(k, null));
+  }
+
+  private FetchItemQueue createQueue(String id, CrawlDatum datum) {
+    FetchItemQueue fiq = new ConcurrentFetchItemQueue(conf, maxThreads,
+        crawlDelay, minCrawlDelay);
+    initQueue(id, fiq, datum);
+    return fiq;
+  }
+
+  @Override
+  public FetchItem getFetchItem() {
+    int start = ThreadLocalRandom.current().nextInt(readyQueues.length);
+    for (int i = 0; i < readyQueues.length; i++) {
+      DelayQueue<ReadyQueue> shard = readyQueues[(start + i)
+          % readyQueues.length];
+      ReadyQueue ready;
+      while ((ready = shard.poll()) != null) {
+        ConcurrentFetchItemQueue fiq = ready.queue;
+        FetchItem it;
+        synchronized (fiq) {
+          fiq.scheduled = false;
+          it = fiq.getFetchItem();
+          // re-register if still eligible, e.g. more threads per queue are
+          // allowed or the crawl delay was raised after registration
+          if (fiq.isEligible()) {
+            fiq.scheduled = true;
+            shard.add(new ReadyQueue(fiq, fiq.getNextFetchTime()));
+          }
+        }
+        if (it != null) {
+          totalSize.decrementAndGet();
+          return it;
+        }
+      }
+    }
+    return null;
+  }
+
+  @Override
+  protected Collection<FetchItemQueue> getQueues() {
+    // weakly consistent iteration, no copy needed
+    return concurrentQueues.values();
+  }
+
+  @Override
+  public long getNextReadyTime() {
+    long next = Long.MAX_VALUE;
+    for (DelayQueue<ReadyQueue> shard : readyQueues) {
+      ReadyQueue head = shard.peek();
+      if (head != null) {
+        next = Math.min(next, head.readyTime);
+      }
+    }
+    return next;
+  }
+
+  @Override
+  public int checkTimelimit() {
+    int count = 0;
+
+    if (System.currentTimeMillis() >= timelimit && timelimit != -1) {
+      // emptying the queues
+      count = emptyQueues();
+
+      // there might also be a case where totalsize !=0 but number of queues
+      // == 0 in which case we simply force it to 0 to avoid blocking
+      if (totalSize.get() != 0 && concurrentQueues.size() == 0)
+        totalSize.set(0);
+    }
+    return count;
+  }
+
+  @Override
+  public int emptyQueues() {
+    int count = 0;
+
+    for (Map.Entry<String, FetchItemQueue> e : concurrentQueues.entrySet()) {
+      FetchItemQueue fiq = e.getValue();
+      if (fiq.getQueueSize() == 0)
+        continue;
+      LOG.info("* queue: " + e.getKey() + " >> dropping! ");
+      int deleted = fiq.emptyQueue();
+      totalSize.addAndGet(-deleted);
+      count += deleted;
+    }
+
+    return count;
+  }
+
+  @Override
+  public int checkExceptionThreshold(String queueid) {
+    FetchItemQueue fiq = concurrentQueues.get(queueid);
+    if (fiq == null) {
+      return 0;
+    }
+    if (fiq.getQueueSize() == 0) {
+      return 0;
+    }
+    int excCount = fiq.incrementExceptionCounter();
+    if (maxExceptionsPerQueue != -1 && excCount >= maxExceptionsPerQueue) {
+      // too many exceptions for items in this queue - purge it
+      int deleted = fiq.emptyQueue();
+      LOG.info("* queue: " + queueid + " >> removed " + deleted
+          + " URLs from queue because " + excCount + " exceptions occurred");
+      totalSize.addAndGet(-deleted);
+      return deleted;
+    }
+    return 0;
+  }
+
+  @Override
+  public void dump() {
+    for (Map.Entry<String, FetchItemQueue> e : concurrentQueues.entrySet()) {
+      FetchItemQueue fiq = e.getValue();
+      if (fiq.getQueueSize() == 0)
+        continue;
+      LOG.info("* queue: " + e.getKey());
+      fiq.dump();
+    }
+  }
+}
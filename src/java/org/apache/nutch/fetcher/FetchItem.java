@@ -17,12 +17,12 @@
 package org.apache.nutch.fetcher;
 
 import java.lang.invoke.MethodHandles;
-import java.net.InetAddress;
 import java.net.URL;
 import java.net.UnknownHostException;
 
 import org.apache.hadoop.io.Text;
 import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.net.DnsCache;
 import org.apache.nutch.util.URLUtil;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
@@ -36,6 +36,8 @@ public class FetchItem {
       .getLogger(MethodHandles.lookup().lookupClass());
 
   int outlinkDepth = 0;
+  /** Number of redirects followed to reach this item */
+  int redirectCount = 0;
   String queueID;
   Text url;
   URL u;
@@ -77,8 +79,7 @@ public class FetchItem {
     String key;
     if (FetchItemQueues.QUEUE_MODE_IP.equalsIgnoreCase(queueMode)) {
       try {
-        final InetAddress addr = InetAddress.getByName(u.getHost());
-        key = addr.getHostAddress();
+        key = DnsCache.get().resolve(u.getHost()).getHostAddress();
       } catch (final UnknownHostException e) {
         // unable to resolve it, so don't fall back to host name
         LOG.warn("Unable to resolve: " + u.getHost() + ", skipping.");
@@ -42,9 +42,11 @@ public class FetchItemQueue {
   AtomicInteger inProgress = new AtomicInteger();
   AtomicLong nextFetchTime = new AtomicLong();
   AtomicInteger exceptionCounter = new AtomicInteger();
-  long crawlDelay;
-  long minCrawlDelay;
-  int maxThreads;
+  volatile long crawlDelay;
+  volatile long minCrawlDelay;
+  volatile int maxThreads;
+  /** Moving average of the time spent fetching an item, -1 if unknown */
+  volatile long responseTime = -1;
   Configuration conf;
 
   public FetchItemQueue(Configuration conf, int maxThreads, long crawlDelay,
@@ -114,6 +116,31 @@ public class FetchItemQueue {
     return it;
   }
 
+  /** Update the average response time with the time of a fetch. */
+  void addResponseTime(long time) {
+    long average = responseTime;
+    responseTime = average < 0 ? time : (7 * average + 3 * time) / 10;
+  }
+
+  /**
+   * Estimate the time needed to fetch the queued items and those in
+   * progress, waiting for the crawl delay between items.
+   * 
+   * @param defaultResponseTime
+   *          response time used if none has been observed for this queue
+   * @return time in milliseconds
+   */
+  public long getRemainingTime(long defaultResponseTime) {
+    long items = getQueueSize() + getInProgressSize();
+    if (items == 0) {
+      return 0;
+    }
+    long time = responseTime >= 0 ? responseTime : defaultResponseTime;
+    int threads = Math.max(1, maxThreads);
+    long delay = threads > 1 ? minCrawlDelay : crawlDelay;
+    return items * (time + delay) / threads;
+  }
+
   public synchronized void dump() {
     LOG.info("  maxThreads    = " + maxThreads);
     LOG.info("  inProgress    = " + inProgress.get());
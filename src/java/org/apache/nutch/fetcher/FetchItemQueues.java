@@ -17,14 +17,22 @@
 package org.apache.nutch.fetcher;
 
 import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.Text;
 import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.net.DnsCache;
+import org.apache.nutch.protocol.ProtocolOutput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,6 +54,8 @@ public class FetchItemQueues {
   long timelimit = -1;
   int maxExceptionsPerQueue = -1;
   Configuration conf;
+  /** Controller adapting the rate of the queues, null if disabled */
+  FetchRateController rateController;
 
   public static final String QUEUE_MODE_HOST = "byHost";
   public static final String QUEUE_MODE_DOMAIN = "byDomain";
@@ -53,6 +63,20 @@ public class FetchItemQueues {
 
   String queueMode;
 
+  /**
+   * Lock and condition fetcher threads wait on until a queue may have become
+   * ready. A {@link ReentrantLock} is used instead of an object monitor so
+   * that waiting does not pin the carrier of a virtual thread.
+   */
+  private final ReentrantLock availableLock = new ReentrantLock();
+  private final Condition available = availableLock.newCondition();
+  private final AtomicInteger waiting = new AtomicInteger(0);
+  private final AtomicLong signals = new AtomicLong(0);
+
+  /** Sum and number of response times, see {@link #reportFetch} */
+  private final AtomicLong responseTimeSum = new AtomicLong(0);
+  private final AtomicLong responseTimeCount = new AtomicLong(0);
+
   public FetchItemQueues(Configuration conf) {
     this.conf = conf;
     this.maxThreads = conf.getInt("fetcher.threads.per.queue", 1);
@@ -66,6 +90,10 @@ public class FetchItemQueues {
       queueMode = QUEUE_MODE_HOST;
     }
     LOG.info("Using queue mode : " + queueMode);
+    if (queueMode.equals(QUEUE_MODE_IP)) {
+      // hosts are resolved through the JVM-wide cache, see FetchItem.create()
+      DnsCache.get(conf);
+    }
 
     this.crawlDelay = (long) (conf.getFloat("fetcher.server.delay", 1.0f) * 1000);
     this.minCrawlDelay = (long) (conf.getFloat("fetcher.server.min.delay",
@@ -73,6 +101,26 @@ public class FetchItemQueues {
     this.timelimit = conf.getLong("fetcher.timelimit", -1);
     this.maxExceptionsPerQueue = conf.getInt(
         "fetcher.max.exceptions.per.queue", -1);
+    if (conf.getBoolean("fetcher.adaptive", false)) {
+      rateController = new FetchRateController(conf);
+    }
+  }
+
+  /**
+   * Create the queue engine configured by the property
+   * <code>fetcher.queues.class</code>, defaulting to this class. Alternative
+   * implementations must provide a constructor taking a
+   * {@link Configuration}.
+   */
+  public static FetchItemQueues create(Configuration conf) {
+    Class<? extends FetchItemQueues> clazz = conf.getClass(
+        "fetcher.queues.class", FetchItemQueues.class, FetchItemQueues.class);
+    LOG.info("Using fetch queues implementation: " + clazz.getName());
+    try {
+      return clazz.getConstructor(Configuration.class).newInstance(conf);
+    } catch (Exception e) {
+      throw new RuntimeException("Couldn't create " + clazz.getName(), e);
+    }
   }
 
   public int getTotalSize() {
@@ -89,10 +137,21 @@ public class FetchItemQueues {
       addFetchItem(it);
   }
 
-  public synchronized void addFetchItem(FetchItem it) {
-    FetchItemQueue fiq = getFetchItemQueue(it.queueID);
-    fiq.addFetchItem(it);
-    totalSize.incrementAndGet();
+  public void addFetchItem(FetchItem it) {
+    synchronized (this) {
+      FetchItemQueue fiq = getFetchItemQueue(it.queueID, it.datum);
+      fiq.addFetchItem(it);
+      totalSize.incrementAndGet();
+    }
+    signalAvailable();
+  }
+
+  /**
+   * Register an item which is fetched right away without being queued, e.g.
+   * the target of a redirect.
+   */
+  public void addInProgressFetchItem(FetchItem it) {
+    getFetchItemQueue(it.queueID, it.datum).addInProgressFetchItem(it);
   }
 
   public void finishFetchItem(FetchItem it) {
@@ -106,18 +165,111 @@ public class FetchItemQueues {
       return;
     }
     fiq.finishFetchItem(it, asap);
+    signalAvailable();
+  }
+
+  public FetchItemQueue getFetchItemQueue(String id) {
+    return getFetchItemQueue(id, null);
   }
 
-  public synchronized FetchItemQueue getFetchItemQueue(String id) {
+  private synchronized FetchItemQueue getFetchItemQueue(String id,
+      CrawlDatum datum) {
     FetchItemQueue fiq = queues.get(id);
     if (fiq == null) {
       // initialize queue
       fiq = new FetchItemQueue(conf, maxThreads, crawlDelay, minCrawlDelay);
+      initQueue(id, fiq, datum);
       queues.put(id, fiq);
     }
     return fiq;
   }
 
+  /**
+   * Apply the adapted rate, if any, to a newly created queue.
+   * 
+   * @param datum
+   *          fetch list entry of the item the queue is created for, may carry
+   *          the rate of the host, or null
+   */
+  protected void initQueue(String id, FetchItemQueue fiq, CrawlDatum datum) {
+    if (rateController != null) {
+      rateController.init(id, fiq, datum);
+    }
+  }
+
+  /**
+   * Set the crawl delay of a queue as requested by robots.txt.
+   * 
+   * @param crawlDelay
+   *          delay in milliseconds
+   */
+  public void setRobotsCrawlDelay(String id, long crawlDelay) {
+    FetchItemQueue fiq = getFetchItemQueue(id);
+    if (rateController != null) {
+      rateController.setRobotsCrawlDelay(id, fiq, crawlDelay);
+    } else {
+      fiq.crawlDelay = crawlDelay;
+    }
+  }
+
+  /**
+   * Report the result of a fetch, must be called before the item is
+   * finished. The response time is used to project the time to completion,
+   * see {@link #getRemainingTime(int)}. If <code>fetcher.adaptive</code> is
+   * true, the crawl delay and number of threads of the queue are adapted,
+   * see {@link FetchRateController}.
+   * 
+   * @param responseTime
+   *          time in milliseconds spent fetching
+   */
+  public void reportFetch(FetchItem it, ProtocolOutput output,
+      long responseTime) {
+    responseTimeSum.addAndGet(responseTime);
+    responseTimeCount.incrementAndGet();
+    FetchItemQueue fiq = queues.get(it.queueID);
+    if (fiq == null) {
+      return;
+    }
+    fiq.addResponseTime(responseTime);
+    if (rateController != null) {
+      rateController.update(it.queueID, fiq, it, output, responseTime);
+    }
+  }
+
+  /**
+   * Project the time needed to fetch all queued items. This is the time
+   * needed by the slowest queue, which is fetched sequentially with its crawl
+   * delay, or the total time spent fetching divided by the number of fetcher
+   * threads if that takes longer. Items not yet read by the feeder are not
+   * included. The queues are walked without holding the lock used by
+   * {@link #getFetchItem()}, see {@link #getQueues()}.
+   * 
+   * @param threads
+   *          number of fetcher threads
+   * @return time in milliseconds
+   */
+  public long getRemainingTime(int threads) {
+    long count = responseTimeCount.get();
+    long defaultResponseTime = count == 0 ? 0 : responseTimeSum.get() / count;
+    long slowest = 0;
+    long total = 0;
+    for (FetchItemQueue fiq : getQueues()) {
+      slowest = Math.max(slowest, fiq.getRemainingTime(defaultResponseTime));
+      long time = fiq.responseTime >= 0 ? fiq.responseTime
+          : defaultResponseTime;
+      total += (fiq.getQueueSize() + fiq.getInProgressSize()) * time;
+    }
+    return Math.max(slowest, total / Math.max(1, threads));
+  }
+
+  /**
+   * @return the current queues, a copy taken under the lock so that the
+   *         caller can iterate them without holding it
+   */
+  protected synchronized Collection<FetchItemQueue> getQueues() {
+    return new ArrayList<>(queues.values());
+  }
+
   public synchronized FetchItem getFetchItem() {
     Iterator<Map.Entry<String, FetchItemQueue>> it = queues.entrySet()
         .iterator();
@@ -137,6 +289,81 @@ public class FetchItemQueues {
     return null;
   }
 
+  /**
+   * Get an item eligible for fetching, waiting up to <code>maxWait</code>
+   * milliseconds for one to become available. Instead of polling, waiting
+   * threads are woken up when an item is added or a fetch finishes, and no
+   * later than the time the crawl delay of the next ready queue expires.
+   * 
+   * @param maxWait
+   *          maximum time to wait in milliseconds
+   * @return an item or null if none became available in time
+   */
+  public FetchItem getFetchItem(long maxWait) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + maxWait;
+    while (true) {
+      long signal = signals.get();
+      FetchItem it = getFetchItem();
+      if (it != null) {
+        return it;
+      }
+      long now = System.currentTimeMillis();
+      if (now >= deadline) {
+        return null;
+      }
+      long wait = Math.min(deadline, getNextReadyTime()) - now;
+      if (wait <= 0) {
+        // a queue got ready in the meantime
+        continue;
+      }
+      availableLock.lock();
+      waiting.incrementAndGet();
+      try {
+        // do not sleep if a signal was sent after we looked at the queues
+        if (signal == signals.get()) {
+          available.await(wait, TimeUnit.MILLISECONDS);
+        }
+      } finally {
+        waiting.decrementAndGet();
+        availableLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Wake up one thread waiting in {@link #getFetchItem(long)}, called
+   * whenever a queue may have become ready.
+   */
+  protected void signalAvailable() {
+    signals.incrementAndGet();
+    if (waiting.get() > 0) {
+      availableLock.lock();
+      try {
+        available.signal();
+      } finally {
+        availableLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Get the earliest time at which a queue holding items and having a free
+   * thread slot may be fetched from.
+   * 
+   * @return time in milliseconds or {@link Long#MAX_VALUE} if no queue is
+   *         waiting for its crawl delay
+   */
+  public synchronized long getNextReadyTime() {
+    long next = Long.MAX_VALUE;
+    for (FetchItemQueue fiq : queues.values()) {
+      if (fiq.getQueueSize() > 0
+          && fiq.getInProgressSize() < fiq.maxThreads) {
+        next = Math.min(next, fiq.nextFetchTime.get());
+      }
+    }
+    return next;
+  }
+
   // called only once the feeder has stopped
   public synchronized int checkTimelimit() {
     int count = 0;
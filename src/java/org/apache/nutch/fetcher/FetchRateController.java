@@ -0,0 +1,346 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.fetcher;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.MapWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.metadata.HttpHeaders;
+import org.apache.nutch.metadata.Nutch;
+import org.apache.nutch.net.protocols.HttpDateFormat;
+import org.apache.nutch.protocol.Content;
+import org.apache.nutch.protocol.ProtocolOutput;
+import org.apache.nutch.protocol.ProtocolStatus;
+import org.apache.nutch.util.TaskCounters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adapts the crawl delay and the number of threads of fetch queues to the
+ * observed behavior of the servers, used if <code>fetcher.adaptive</code> is
+ * true.
+ *
+ * <p>
+ * The rate of a queue is controlled in the spirit of AIMD (additive increase,
+ * multiplicative decrease):
+ * <ul>
+ * <li>a throttled response (HTTP 429, 503 or 504, a <code>Retry-After</code>
+ * header, or a failed connection) multiplies the delay by
+ * <code>fetcher.adaptive.backoff.factor</code>, at least up to the time
+ * requested by <code>Retry-After</code>, and halves the number of
+ * threads,</li>
+ * <li>a slow response (the average response time exceeds the fastest average
+ * seen by <code>fetcher.adaptive.slow.factor</code>) adds
+ * <code>fetcher.adaptive.delay.step</code> to the delay and removes a
+ * thread,</li>
+ * <li>any other response subtracts the step from the delay, and once the
+ * delay has reached its minimum, a thread is added after every
+ * {@link #THREAD_INCREASE_RESPONSES} such responses, up to
+ * <code>fetcher.adaptive.max.threads</code>.</li>
+ * </ul>
+ * The delay is kept between <code>fetcher.adaptive.min.delay</code> and
+ * <code>fetcher.adaptive.max.delay</code>. A Crawl-Delay given in robots.txt
+ * is never undercut and limits the queue to one thread.
+ *
+ * <p>
+ * The adapted delay and number of threads are added to the metadata of
+ * fetched CrawlDatums and aggregated per host by {@link
+ * org.apache.nutch.hostdb.UpdateHostDb}. If the Generator is given the HostDb
+ * (<code>generate.hostdb</code>), it passes them on in the metadata of the
+ * fetch list entries, and a queue (in queue mode <code>byHost</code>) starts
+ * with the rate found in the entry it is created for. Throttled and slow
+ * responses and changes of the number of threads are counted in the group
+ * <code>FetchRateController</code> of {@link TaskCounters}.
+ *
+ * <p>
+ * The state of a queue is dropped once it has not been used for
+ * {@link #STATE_EXPIRY} (or ten times the maximum delay, if longer); a queue
+ * created again afterwards starts over from the rate in its fetch list entry.
+ */
+public class FetchRateController {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  public static final String COUNTER_GROUP = "FetchRateController";
+
+  /** Responses at minimum delay required before a thread is added */
+  public static final int THREAD_INCREASE_RESPONSES = 20;
+
+  /** Weight of the latest response time in the average */
+  private static final double RESPONSE_TIME_WEIGHT = 0.3;
+
+  /** Time in milliseconds after which the state of an unused queue is dropped */
+  public static final long STATE_EXPIRY = 10 * 60 * 1000L;
+
+  /** Minimum time in milliseconds between two passes over the states */
+  private static final long PRUNE_INTERVAL = 60 * 1000L;
+
+  /** State of a queue, kept when the queue itself is reaped while idle. */
+  static class State {
+    long delay;
+    int threads;
+    long robotsDelay = -1;
+    /** Moving average of the response time, -1 if none observed */
+    double responseTime = -1;
+    /** Lowest moving average of the response time */
+    double minResponseTime = -1;
+    /** Responses at minimum delay since the last change of threads */
+    int healthy = 0;
+    /** Time the state was last used */
+    volatile long lastUsed;
+
+    State(long delay, int threads) {
+      this.delay = delay;
+      this.threads = threads;
+    }
+  }
+
+  private final Map<String, State> states = new ConcurrentHashMap<>();
+  private volatile long lastPruned = System.currentTimeMillis();
+
+  private final long initialDelay;
+  private final int initialThreads;
+  private final long minDelay;
+  private final long maxDelay;
+  private final int maxThreads;
+  private final long delayStep;
+  private final float backoffFactor;
+  private final float slowFactor;
+  private final boolean byHost;
+  private final long stateExpiry;
+
+  public FetchRateController(Configuration conf) {
+    initialDelay = (long) (conf.getFloat("fetcher.server.delay", 1.0f) * 1000);
+    initialThreads = conf.getInt("fetcher.threads.per.queue", 1);
+    minDelay = (long) (conf.getFloat("fetcher.adaptive.min.delay", 0.5f) * 1000);
+    maxDelay = (long) (conf.getFloat("fetcher.adaptive.max.delay", 60.0f) * 1000);
+    maxThreads = Math.max(initialThreads,
+        conf.getInt("fetcher.adaptive.max.threads", 4));
+    delayStep = (long) (conf.getFloat("fetcher.adaptive.delay.step", 0.1f) * 1000);
+    backoffFactor = conf.getFloat("fetcher.adaptive.backoff.factor", 2.0f);
+    slowFactor = conf.getFloat("fetcher.adaptive.slow.factor", 3.0f);
+    byHost = FetchItemQueues.QUEUE_MODE_HOST.equals(conf.get(
+        "fetcher.queue.mode", FetchItemQueues.QUEUE_MODE_HOST));
+    stateExpiry = Math.max(STATE_EXPIRY, 10 * maxDelay);
+    LOG.info("Adaptive fetch rate: delay = {} - {} ms, threads = 1 - {}",
+        minDelay, maxDelay, maxThreads);
+  }
+
+  private static long clamp(long value, long min, long max) {
+    return Math.max(min, Math.min(max, value));
+  }
+
+  private State getState(String id) {
+    return getState(id, null);
+  }
+
+  private State getState(String id, CrawlDatum datum) {
+    long now = System.currentTimeMillis();
+    prune(now);
+    State state = states.computeIfAbsent(id, k -> newState(datum));
+    state.lastUsed = now;
+    return state;
+  }
+
+  /**
+   * Create the state of a queue, starting with the rate passed in the
+   * metadata of a fetch list entry, if any.
+   */
+  private State newState(CrawlDatum datum) {
+    if (byHost && datum != null) {
+      Writable delay = datum.getMetaData().get(Nutch.WRITABLE_FETCH_DELAY_KEY);
+      Writable threads = datum.getMetaData().get(
+          Nutch.WRITABLE_FETCH_THREADS_KEY);
+      if (delay instanceof IntWritable && threads instanceof IntWritable) {
+        return new State(
+            clamp(((IntWritable) delay).get(), minDelay, maxDelay),
+            (int) clamp(((IntWritable) threads).get(), 1, maxThreads));
+      }
+    }
+    return new State(clamp(initialDelay, minDelay, maxDelay), initialThreads);
+  }
+
+  /** Drop the states of queues not used for a while. */
+  private void prune(long now) {
+    if (now - lastPruned < PRUNE_INTERVAL) {
+      return;
+    }
+    synchronized (this) {
+      if (now - lastPruned < PRUNE_INTERVAL) {
+        return;
+      }
+      lastPruned = now;
+    }
+    long expired = now - stateExpiry;
+    states.values().removeIf(state -> state.lastUsed < expired);
+  }
+
+  /**
+   * Apply the current rate of a queue, called when it is created.
+   * 
+   * @param datum
+   *          fetch list entry of the item the queue is created for, or null
+   */
+  public void init(String id, FetchItemQueue fiq, CrawlDatum datum) {
+    State state = getState(id, datum);
+    synchronized (state) {
+      apply(state, fiq);
+    }
+  }
+
+  /** Set the crawl delay requested by robots.txt. */
+  public void setRobotsCrawlDelay(String id, FetchItemQueue fiq,
+      long crawlDelay) {
+    State state = getState(id);
+    synchronized (state) {
+      if (state.robotsDelay == crawlDelay) {
+        return;
+      }
+      state.robotsDelay = crawlDelay;
+      state.delay = Math.max(state.delay, crawlDelay);
+      state.threads = 1;
+      apply(state, fiq);
+    }
+  }
+
+  /**
+   * Adapt the rate of a queue to the result of a fetch, and record the
+   * adapted rate in the metadata of the fetched item.
+   *
+   * @param responseTime
+   *          time in milliseconds spent fetching
+   */
+  public void update(String id, FetchItemQueue fiq, FetchItem it,
+      ProtocolOutput output, long responseTime) {
+    Content content = output.getContent();
+    int code = getResponseCode(it.datum, content);
+    long retryAfter = getRetryAfter(content);
+    boolean throttled = code == 429 || code == 503 || code == 504
+        || retryAfter > 0 || (content == null
+            && output.getStatus().getCode() == ProtocolStatus.EXCEPTION);
+
+    State state = getState(id);
+    synchronized (state) {
+      long floor = Math.max(minDelay, state.robotsDelay);
+      int ceiling = state.robotsDelay > 0 ? 1 : maxThreads;
+      int threads = state.threads;
+      if (throttled) {
+        state.delay = clamp(
+            Math.max((long) (state.delay * backoffFactor), retryAfter), floor,
+            Math.max(floor, maxDelay));
+        state.threads = Math.max(1, state.threads / 2);
+        state.healthy = 0;
+        TaskCounters.increment(COUNTER_GROUP, "throttled");
+      } else {
+        if (content != null) {
+          state.responseTime = state.responseTime < 0 ? responseTime
+              : (1 - RESPONSE_TIME_WEIGHT) * state.responseTime
+                  + RESPONSE_TIME_WEIGHT * responseTime;
+          if (state.minResponseTime < 0
+              || state.responseTime < state.minResponseTime) {
+            state.minResponseTime = state.responseTime;
+          }
+        }
+        if (state.responseTime > slowFactor * state.minResponseTime
+            && state.minResponseTime > 0) {
+          state.delay = clamp(state.delay + delayStep, floor,
+              Math.max(floor, maxDelay));
+          state.threads = Math.max(1, state.threads - 1);
+          state.healthy = 0;
+          TaskCounters.increment(COUNTER_GROUP, "slow");
+        } else {
+          state.delay = Math.max(floor, state.delay - delayStep);
+          if (state.delay == floor && state.threads < ceiling
+              && ++state.healthy >= THREAD_INCREASE_RESPONSES) {
+            state.threads++;
+            state.healthy = 0;
+          }
+        }
+      }
+      if (state.threads > threads) {
+        TaskCounters.increment(COUNTER_GROUP, "threads_increased");
+      } else if (state.threads < threads) {
+        TaskCounters.increment(COUNTER_GROUP, "threads_decreased");
+      }
+      apply(state, fiq);
+
+      MapWritable metaData = it.datum.getMetaData();
+      metaData.put(Nutch.WRITABLE_FETCH_DELAY_KEY, new IntWritable(
+          (int) state.delay));
+      metaData.put(Nutch.WRITABLE_FETCH_THREADS_KEY, new IntWritable(
+          state.threads));
+    }
+  }
+
+  private static void apply(State state, FetchItemQueue fiq) {
+    fiq.crawlDelay = state.delay;
+    fiq.minCrawlDelay = state.delay;
+    fiq.maxThreads = state.threads;
+  }
+
+  /**
+   * @return the HTTP status code of a response, or -1 if unknown or no
+   *         response was received
+   */
+  private static int getResponseCode(CrawlDatum datum, Content content) {
+    if (content == null) {
+      // the code in the metadata may be left over from a previous fetch
+      return -1;
+    }
+    Writable code = datum.getMetaData().get(Nutch.PROTOCOL_STATUS_CODE_KEY);
+    if (code == null) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(code.toString());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * @return the delay in milliseconds requested by the Retry-After header,
+   *         given either in seconds or as date, or 0 if none
+   */
+  static long getRetryAfter(Content content) {
+    if (content == null) {
+      return 0;
+    }
+    String value = content.getMetadata().get(HttpHeaders.RETRY_AFTER);
+    if (value == null || (value = value.trim()).isEmpty()) {
+      return 0;
+    }
+    try {
+      return Math.max(0, Long.parseLong(value) * 1000);
+    } catch (NumberFormatException e) {
+      // not a number of seconds, try a date
+    }
+    try {
+      return Math.max(0,
+          HttpDateFormat.toLong(value) - System.currentTimeMillis());
+    } catch (Exception e) {
+      return 0;
+    }
+  }
+}
@@ -19,6 +19,7 @@ package org.apache.nutch.fetcher;
 import java.io.File;
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -37,6 +38,7 @@ import org.apache.hadoop.util.ToolRunner;
 import org.apache.nutch.crawl.CrawlDatum;
 import org.apache.nutch.crawl.NutchWritable;
 import org.apache.nutch.metadata.Nutch;
+import org.apache.nutch.parse.ParseExecutor;
 import org.apache.nutch.protocol.*;
 import org.apache.nutch.util.*;
 
@@ -72,9 +74,15 @@ import org.apache.nutch.util.*;
  * 
  * <p>
  * If there are still unfetched items in the queues, but none of the items are
- * ready, FetcherThread-s will spin-wait until either some items become
- * available, or a timeout is reached (at which point the Fetcher will abort,
- * assuming the task is hung).
+ * ready, FetcherThread-s will wait until either some items become available
+ * (they are woken up by the queues, no polling), or a timeout is reached (at
+ * which point the Fetcher will abort, assuming the task is hung).
+ * 
+ * <p>
+ * On Java 21 or later FetcherThread-s may run on virtual threads (see
+ * <code>fetcher.threads.virtual</code>): every in-flight fetch is then a cheap
+ * task instead of an OS thread, and a single task may run many thousands of
+ * them.
  * 
  * @author Andrzej Bialecki
  */
@@ -122,11 +130,21 @@ MapRunnable<Text, CrawlDatum, Text, NutchWritable> {
 
   private boolean storingContent;
   private boolean parsing;
+  /** snapshot of the robots.txt rules cache, null if not used */
+  private Path robotsCacheSnapshot;
+
+  /** parse and output stages, null if not used */
+  private FetcherPipeline pipeline;
+
   FetchItemQueues fetchQueues;
   QueueFeeder feeder;
 
   LinkedList<FetcherThread> fetcherThreads = new LinkedList<>();
 
+  /** Thread.Builder for virtual threads, null if not used or not supported */
+  private Object virtualThreadBuilder;
+  private Method virtualThreadUnstarted;
+
   public Fetcher() {
     super(null);
   }
@@ -135,8 +153,8 @@ MapRunnable<Text, CrawlDatum, Text, NutchWritable> {
     super(conf);
   }
 
-  private void reportStatus(int pagesLastSec, int bytesLastSec)
-      throws IOException {
+  private void reportStatus(int pagesLastSec, int bytesLastSec,
+      long remainingTime) throws IOException {
     StringBuilder status = new StringBuilder();
     Long elapsed = new Long((System.currentTimeMillis() - start) / 1000);
 
@@ -151,7 +169,8 @@ MapRunnable<Text, CrawlDatum, Text, NutchWritable> {
     status.append(String.format("%.2f", avgPagesSec)).append(" pages/s (");
     status.append(pagesLastSec).append(" last sec), ");
     status.append(avgBytesSec).append(" kbits/s (")
-    .append((bytesLastSec / 128)).append(" last sec)");
+    .append((bytesLastSec / 128)).append(" last sec), ");
+    status.append(remainingTime / 1000).append(" s projected to completion");
 
     reporter.setStatus(status.toString());
   }
@@ -162,6 +181,11 @@ MapRunnable<Text, CrawlDatum, Text, NutchWritable> {
     this.segmentName = job.get(Nutch.SEGMENT_NAME_KEY);
     this.storingContent = isStoringContent(job);
     this.parsing = isParsing(job);
+    if (job.getBoolean("fetcher.robots.cache.snapshot", false)) {
+      // next to the segments, to be read in the next cycle
+      robotsCacheSnapshot = new Path(FileOutputFormat.getOutputPath(job)
+          .getParent(), "robots.cache");
+    }
 
     // if (job.getBoolean("fetcher.verbose", false)) {
     // LOG.setLevel(Level.FINE);
@@ -185,7 +209,15 @@ MapRunnable<Text, CrawlDatum, Text, NutchWritable> {
 
     this.output = output;
     this.reporter = reporter;
-    this.fetchQueues = new FetchItemQueues(getConf());
+    this.fetchQueues = FetchItemQueues.create(getConf());
+
+    if (robotsCacheSnapshot != null) {
+      try {
+        RobotRulesParser.getCache().load(getConf(), robotsCacheSnapshot);
+      } catch (IOException e) {
+        LOG.warn("Failed to load robots.txt rules: {}", e.toString());
+      }
+    }
 
     int threadCount = getConf().getInt("fetcher.threads.fetch", 10);
     if (LOG.isInfoEnabled()) {
@@ -211,12 +243,19 @@ MapRunnable<Text, CrawlDatum, Text, NutchWritable> {
       feeder.setTimeLimit(timelimit);
     feeder.start();
 
+    if (getConf().getBoolean("fetcher.threads.virtual", false)) {
+      initVirtualThreads();
+    }
+
+    if (getConf().getBoolean("fetcher.pipeline", false)) {
+      pipeline = new FetcherPipeline(getConf(), parsing, output, reporter);
+    }
+
     for (int i = 0; i < threadCount; i++) { // spawn threads
       FetcherThread t = new FetcherThread(getConf(), getActiveThreads(), fetchQueues, 
           feeder, spinWaiting, lastRequestStart, reporter, errors, segmentName,
-          parsing, output, storingContent, pages, bytes);
-      fetcherThreads.add(t);
-      t.start();
+          parsing, output, storingContent, pages, bytes, pipeline);
+      startFetcherThread(t);
     }
 
     // select a timeout that avoids a task timeout
@@ -260,6 +299,11 @@ MapRunnable<Text, CrawlDatum, Text, NutchWritable> {
 
     int maxThreadsPerQueue = getConf().getInt("fetcher.threads.per.queue", 1);
 
+    ParseExecutor parseExecutor = null;
+    if (parsing && getConf().getInt("parser.timeout", 30) != -1) {
+      parseExecutor = ParseExecutor.get(getConf());
+    }
+
     int bandwidthTargetCheckCounter = 0;
     long bytesAtLastBWTCheck = 0l;
 
@@ -276,13 +320,26 @@ MapRunnable<Text, CrawlDatum, Text, NutchWritable> {
       bytesLastSec = (int) bytes.get() - bytesLastSec;
 
       reporter.incrCounter("FetcherStatus", "bytes_downloaded", bytesLastSec);
+      // counters of plugins and shared components
+      TaskCounters.report(reporter);
 
-      reportStatus(pagesLastSec, bytesLastSec);
+      long remainingTime = fetchQueues.getRemainingTime(activeThreads.get());
+      reportStatus(pagesLastSec, bytesLastSec, remainingTime);
 
       LOG.info("-activeThreads=" + activeThreads + ", spinWaiting="
           + spinWaiting.get() + ", fetchQueues.totalSize="
           + fetchQueues.getTotalSize() + ", fetchQueues.getQueueCount="
           + fetchQueues.getQueueCount());
+      LOG.info("-projectedTimeToCompletion=" + (remainingTime / 1000) + "s"
+          + (feeder.isAlive() ? " (queued URLs only, feeder running)" : ""));
+      if (parseExecutor != null) {
+        LOG.info("-parsing=" + parseExecutor.getActiveCount()
+            + ", parseQueue=" + parseExecutor.getQueueLength());
+      }
+      if (pipeline != null) {
+        LOG.info("-pipeline.parsePending=" + pipeline.getParsePending()
+            + ", pipeline.outputPending=" + pipeline.getOutputPending());
+      }
 
       if (!feeder.isAlive() && fetchQueues.getTotalSize() < 5) {
         fetchQueues.dump();
@@ -354,9 +411,8 @@ MapRunnable<Text, CrawlDatum, Text, NutchWritable> {
               for (int i = 0; i < additionalThreads; i++) {
                 FetcherThread thread = new FetcherThread(getConf(), getActiveThreads(), fetchQueues, 
                     feeder, spinWaiting, lastRequestStart, reporter, errors, segmentName, parsing,
-                    output, storingContent, pages, bytes);
-                fetcherThreads.add(thread);
-                thread.start();
+                    output, storingContent, pages, bytes, pipeline);
+                startFetcherThread(thread);
               }
             }
           } else if (bpsSinceLastCheck > targetBandwidth
@@ -393,10 +449,10 @@ MapRunnable<Text, CrawlDatum, Text, NutchWritable> {
           LOG.warn("Aborting with {} hung threads.", activeThreads);
           for (int i = 0; i < fetcherThreads.size(); i++) {
             FetcherThread thread = fetcherThreads.get(i);
-            if (thread.isAlive()) {
+            if (thread.getRunner().isAlive()) {
               LOG.warn("Thread #{} hung while processing {}", i, thread.getReprUrl());
               if (LOG.isDebugEnabled()) {
-                StackTraceElement[] stack = thread.getStackTrace();
+                StackTraceElement[] stack = thread.getRunner().getStackTrace();
                 StringBuilder sb = new StringBuilder();
                 sb.append("Stack of thread #").append(i).append(":\n");
                 for (StackTraceElement s : stack) {
@@ -407,14 +463,106 @@ MapRunnable<Text, CrawlDatum, Text, NutchWritable> {
             }
           }
         }
-        return;
+        break;
       }
 
     } while (activeThreads.get() > 0);
+    try {
+      closePipeline(timeout);
+    } finally {
+      TaskCounters.report(reporter);
+      saveRobotsCache();
+    }
     LOG.info("-activeThreads={}", activeThreads);
 
   }
 
+  /**
+   * Parse and write all pages still queued in the pipeline, if any.
+   *
+   * @param timeout
+   *          time in milliseconds to wait for the pipeline
+   */
+  private void closePipeline(long timeout) throws IOException {
+    if (pipeline != null) {
+      LOG.info("Fetcher: waiting for pipeline ({} pages to parse, {} records"
+          + " to write)", pipeline.getParsePending(),
+          pipeline.getOutputPending());
+      try {
+        pipeline.close(timeout);
+      } finally {
+        pipeline = null;
+      }
+    }
+  }
+
+  /**
+   * Save the robots.txt rules cache into one file per segment and task in the
+   * snapshot directory, and delete the files of previous cycles whose rules
+   * are all expired.
+   */
+  private void saveRobotsCache() {
+    if (robotsCacheSnapshot == null) {
+      return;
+    }
+    int partition = getConf().getInt("mapreduce.task.partition", 0);
+    Path file = new Path(robotsCacheSnapshot, String.format("%s-part-%05d",
+        segmentName, partition));
+    try {
+      RobotRulesCache cache = RobotRulesParser.getCache();
+      cache.save(getConf(), file);
+      cache.deleteExpired(getConf(), robotsCacheSnapshot);
+    } catch (IOException e) {
+      LOG.warn("Failed to save robots.txt rules: {}", e.toString());
+    }
+  }
+
+  /**
+   * Look up the virtual thread builder of the JVM (Java 21 or later) by
+   * reflection, so that Nutch can still be compiled for older Java versions.
+   * If virtual threads are not supported platform threads are used.
+   */
+  private void initVirtualThreads() {
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderClass.getMethod("name", String.class, long.class)
+          .invoke(builder, "FetcherThread-", 0L);
+      virtualThreadUnstarted = builderClass.getMethod("unstarted",
+          Runnable.class);
+      virtualThreadBuilder = builder;
+      LOG.info("Fetcher: running fetcher threads as virtual threads");
+    } catch (Exception e) {
+      LOG.warn("Fetcher: virtual threads not supported by this JVM ({}),"
+          + " using platform threads", e.toString());
+      virtualThreadBuilder = null;
+    }
+  }
+
+  /**
+   * Start a fetcher thread, either as platform thread or, if
+   * <code>fetcher.threads.virtual</code> is enabled and supported, by running
+   * it on a virtual thread. Virtual threads are cheap to create and block
+   * without holding an OS thread, so that a single task can keep many
+   * thousands of fetches in flight.
+   */
+  private void startFetcherThread(FetcherThread t) {
+    fetcherThreads.add(t);
+    if (virtualThreadBuilder != null) {
+      try {
+        Thread vt = (Thread) virtualThreadUnstarted.invoke(
+            virtualThreadBuilder, t);
+        vt.start();
+        return;
+      } catch (Exception e) {
+        LOG.warn("Fetcher: failed to start virtual thread, using platform"
+            + " threads: {}", e.toString());
+        virtualThreadBuilder = null;
+      }
+    }
+    t.start();
+  }
+
   public void fetch(Path segment, int threads) throws IOException {
 
     checkConfiguration();
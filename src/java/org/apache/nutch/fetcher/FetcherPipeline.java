@@ -0,0 +1,366 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.fetcher;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.StringUtils;
+import org.apache.nutch.crawl.NutchWritable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parse and output stages of the fetcher, used if
+ * <code>fetcher.pipeline</code> is true. Fetcher threads then only fetch:
+ * fetched pages are handed over to the parse stage, and all records are
+ * written to the map output by the output stage. A slow parse or a blocked
+ * output does not hold a fetcher thread, and the number of threads fetching
+ * (<code>fetcher.threads.fetch</code>) and parsing
+ * (<code>fetcher.pipeline.parse.threads</code>) can be sized independently.
+ *
+ * <p>
+ * Stages are connected by bounded queues, a full queue blocks the threads
+ * feeding it. For every stage, the number of processed items, the time spent
+ * processing them, the time items spent queued and the time producers were
+ * blocked by a full queue are counted in the group
+ * <code>FetcherPipeline</code>.
+ *
+ * <p>
+ * As in the fetcher threads, a record which cannot be written or a page which
+ * fails to parse is logged and skipped. Any other error stops the stage and is
+ * rethrown by {@link #collect(Text, NutchWritable)} and {@link #close(long)}.
+ */
+public class FetcherPipeline {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  public static final String COUNTER_GROUP = "FetcherPipeline";
+
+  /** A record of the map output. */
+  private static class Record {
+    final Text key;
+    final NutchWritable value;
+
+    Record(Text key, NutchWritable value) {
+      this.key = key;
+      this.value = value;
+    }
+  }
+
+  /** An item with the time it was queued. */
+  private static class Queued<T> {
+    final T item;
+    final long time = System.nanoTime();
+
+    Queued(T item) {
+      this.item = item;
+    }
+  }
+
+  /** A stage, processing queued items in batches by a number of threads. */
+  private abstract class Stage<T> {
+    private final String name;
+    private final BlockingQueue<Queued<T>> queue;
+    private final int batchSize;
+    private final List<Thread> threads = new ArrayList<>();
+    /** Items queued or being processed */
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile boolean closed = false;
+    /** First error which stopped a thread of the stage */
+    private volatile Throwable error = null;
+
+    Stage(String name, int threads, int queueSize, int batchSize) {
+      this.name = name;
+      this.queue = new ArrayBlockingQueue<>(queueSize);
+      this.batchSize = batchSize;
+      for (int i = 0; i < threads; i++) {
+        Thread thread = new Thread(this::work, "Fetcher" + name + "-" + i);
+        thread.setDaemon(true);
+        this.threads.add(thread);
+      }
+      LOG.info("Fetcher pipeline: {} stage: threads = {}, queue size = {}",
+          name, threads, queueSize);
+    }
+
+    abstract void process(List<T> items) throws Exception;
+
+    void start() {
+      for (Thread thread : threads) {
+        thread.start();
+      }
+    }
+
+    /**
+     * Queue an item, blocking while the queue is full.
+     *
+     * @return false if the item was not queued because the stage failed
+     */
+    boolean put(T item) throws InterruptedException {
+      Queued<T> queued = new Queued<>(item);
+      pending.incrementAndGet();
+      if (!queue.offer(queued)) {
+        long start = System.nanoTime();
+        try {
+          while (!queue.offer(queued, 100, TimeUnit.MILLISECONDS)) {
+            if (error != null) {
+              pending.decrementAndGet();
+              return false;
+            }
+          }
+        } catch (InterruptedException e) {
+          pending.decrementAndGet();
+          throw e;
+        }
+        reporter.incrCounter(COUNTER_GROUP, name + "_blocked_ms",
+            (System.nanoTime() - start) / 1000000);
+      }
+      return true;
+    }
+
+    private void work() {
+      List<Queued<T>> batch = new ArrayList<>(batchSize);
+      List<T> items = new ArrayList<>(batchSize);
+      while (true) {
+        Queued<T> first;
+        try {
+          first = queue.poll(100, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          return;
+        }
+        if (first == null) {
+          if (closed) {
+            return;
+          }
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, batchSize - 1);
+        long start = System.nanoTime();
+        long queuedTime = 0;
+        for (Queued<T> queued : batch) {
+          queuedTime += start - queued.time;
+          items.add(queued.item);
+        }
+        try {
+          process(items);
+        } catch (Throwable t) {
+          LOG.error("Fetcher {} stage failed: {}", name,
+              StringUtils.stringifyException(t));
+          synchronized (this) {
+            if (error == null) {
+              error = t;
+            }
+          }
+          pending.addAndGet(-batch.size());
+          return;
+        }
+        reporter.incrCounter(COUNTER_GROUP, name + "_items", batch.size());
+        reporter.incrCounter(COUNTER_GROUP, name + "_busy_ms",
+            (System.nanoTime() - start) / 1000000);
+        reporter.incrCounter(COUNTER_GROUP, name + "_queued_ms",
+            queuedTime / 1000000);
+        pending.addAndGet(-batch.size());
+        batch.clear();
+        items.clear();
+      }
+    }
+
+    /** Throw the error which stopped the stage, if any. */
+    void checkError() throws IOException {
+      if (error != null) {
+        throw new IOException("Fetcher " + name + " stage failed", error);
+      }
+    }
+
+    /**
+     * Wait until all queued items are processed and stop the threads. Threads
+     * still busy after the timeout are interrupted.
+     *
+     * @return true if all threads have stopped in time
+     */
+    boolean close(long deadline) throws InterruptedException {
+      closed = true;
+      boolean stopped = true;
+      for (Thread thread : threads) {
+        thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+        if (thread.isAlive()) {
+          thread.interrupt();
+          stopped = false;
+        }
+      }
+      return stopped;
+    }
+  }
+
+  private final Reporter reporter;
+  private final Stage<Runnable> parseStage;
+  private final Stage<Record> outputStage;
+
+  public FetcherPipeline(Configuration conf, boolean parsing,
+      final OutputCollector<Text, NutchWritable> output, Reporter reporter) {
+    this.reporter = reporter;
+
+    if (parsing) {
+      int parseThreads = conf.getInt("fetcher.pipeline.parse.threads", -1);
+      if (parseThreads <= 0) {
+        parseThreads = conf.getInt("parser.threads", -1);
+      }
+      if (parseThreads <= 0) {
+        parseThreads = Runtime.getRuntime().availableProcessors();
+      }
+      int parseQueueSize = conf.getInt("fetcher.pipeline.parse.queue.size",
+          -1);
+      if (parseQueueSize <= 0) {
+        parseQueueSize = 2 * parseThreads;
+      }
+      parseStage = new Stage<Runnable>("Parse", parseThreads, parseQueueSize,
+          1) {
+        @Override
+        void process(List<Runnable> tasks) {
+          for (Runnable task : tasks) {
+            try {
+              task.run();
+            } catch (Exception e) {
+              LOG.error("Fetcher Parse stage caught: {}",
+                  StringUtils.stringifyException(e));
+            }
+          }
+        }
+      };
+    } else {
+      parseStage = null;
+    }
+
+    outputStage = new Stage<Record>("Output",
+        conf.getInt("fetcher.pipeline.output.threads", 1),
+        conf.getInt("fetcher.pipeline.output.queue.size", 1000),
+        conf.getInt("fetcher.pipeline.output.batch.size", 100)) {
+      @Override
+      void process(List<Record> records) {
+        for (Record record : records) {
+          try {
+            output.collect(record.key, record.value);
+          } catch (IOException e) {
+            LOG.error("Fetcher Output stage caught: {} writing {}",
+                e.toString(), record.key);
+            reporter.incrCounter(COUNTER_GROUP, "Output_failed", 1);
+          }
+        }
+      }
+    };
+
+    if (parseStage != null) {
+      parseStage.start();
+    }
+    outputStage.start();
+  }
+
+  /**
+   * Hand over the parsing of a fetched page to the parse stage, blocking while
+   * the parse queue is full. If interrupted while waiting or if the parse
+   * stage failed, the page is parsed by the calling thread.
+   */
+  public void parse(Runnable task) {
+    try {
+      if (parseStage.put(task)) {
+        return;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    task.run();
+  }
+
+  /** Queue a record of the map output, blocking while the queue is full. */
+  public void collect(Text key, NutchWritable value) throws IOException {
+    outputStage.checkError();
+    try {
+      if (!outputStage.put(new Record(key, value))) {
+        outputStage.checkError();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while queuing " + key);
+    }
+  }
+
+  /**
+   * @return true if fetched pages are queued or being parsed, i.e. redirects
+   *         or outlinks may still be added to the fetch queues
+   */
+  public boolean isParsing() {
+    return parseStage != null && parseStage.pending.get() > 0
+        && parseStage.error == null;
+  }
+
+  /** @return the number of pages queued or being parsed */
+  public int getParsePending() {
+    return parseStage == null ? 0 : parseStage.pending.get();
+  }
+
+  /** @return the number of records queued or being written */
+  public int getOutputPending() {
+    return outputStage.pending.get();
+  }
+
+  /**
+   * Process all queued pages and records and stop the stages. Must be called
+   * after the fetcher threads have finished.
+   *
+   * @param timeout
+   *          time in milliseconds to wait for the stages, after which the
+   *          pages and records still queued are dropped
+   * @throws IOException
+   *           if a stage failed
+   */
+  public void close(long timeout) throws IOException {
+    long deadline = System.currentTimeMillis() + timeout;
+    try {
+      boolean stopped = true;
+      if (parseStage != null) {
+        stopped = parseStage.close(deadline);
+      }
+      stopped &= outputStage.close(deadline);
+      if (!stopped) {
+        LOG.warn("Fetcher pipeline not finished after {} ms, {} pages and {}"
+            + " records dropped", timeout, getParsePending(),
+            getOutputPending());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOG.warn("Interrupted while closing fetcher pipeline, {} pages and {}"
+          + " records dropped", getParsePending(), getOutputPending());
+    }
+    if (parseStage != null) {
+      parseStage.checkError();
+    }
+    outputStage.checkError();
+  }
+}
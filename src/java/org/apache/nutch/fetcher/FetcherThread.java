@@ -107,6 +107,15 @@ public class FetcherThread extends Thread {
 
   private boolean halted = false;
 
+  /** Maximum time in ms to wait for a queue to become ready. */
+  private long maxWaitTime;
+
+  /**
+   * The thread actually running this fetcher: either this thread itself or a
+   * virtual thread, see {@link Fetcher}.
+   */
+  private volatile Thread runner;
+
   private AtomicInteger activeThreads;
 
   private Object fetchQueues;
@@ -127,6 +136,9 @@ public class FetcherThread extends Thread {
 
   private OutputCollector<Text, NutchWritable> output;
 
+  /** Parse and output stages, null if parsing and output are done inline */
+  private FetcherPipeline pipeline;
+
   private boolean storingContent;
 
   private AtomicInteger pages;
@@ -147,6 +159,16 @@ public class FetcherThread extends Thread {
       QueueFeeder feeder, AtomicInteger spinWaiting, AtomicLong lastRequestStart, Reporter reporter,
       AtomicInteger errors, String segmentName, boolean parsing, OutputCollector<Text, NutchWritable> output,
       boolean storingContent, AtomicInteger pages, AtomicLong bytes) {
+    this(conf, activeThreads, fetchQueues, feeder, spinWaiting,
+        lastRequestStart, reporter, errors, segmentName, parsing, output,
+        storingContent, pages, bytes, null);
+  }
+
+  public FetcherThread(Configuration conf, AtomicInteger activeThreads, FetchItemQueues fetchQueues, 
+      QueueFeeder feeder, AtomicInteger spinWaiting, AtomicLong lastRequestStart, Reporter reporter,
+      AtomicInteger errors, String segmentName, boolean parsing, OutputCollector<Text, NutchWritable> output,
+      boolean storingContent, AtomicInteger pages, AtomicLong bytes,
+      FetcherPipeline pipeline) {
     this.setDaemon(true); // don't hang JVM on exit
     this.setName("FetcherThread"); // use an informative name
     this.conf = conf;
@@ -168,6 +190,7 @@ public class FetcherThread extends Thread {
     this.segmentName = segmentName;
     this.parsing = parsing;
     this.output = output;
+    this.pipeline = pipeline;
     this.storingContent = storingContent;
     this.pages = pages;
     this.bytes = bytes;
@@ -187,6 +210,7 @@ public class FetcherThread extends Thread {
     }
     LOG.info("Using queue mode : " + queueMode);
     this.maxRedirect = conf.getInt("http.redirect.max", 3);
+    this.maxWaitTime = conf.getLong("fetcher.threads.wait.max", 1000);
 
     maxOutlinksPerPage = conf.getInt("db.max.outlinks.per.page", 100);
     maxOutlinks = (maxOutlinksPerPage < 0) ? Integer.MAX_VALUE
@@ -213,6 +237,7 @@ public class FetcherThread extends Thread {
 
   @SuppressWarnings("fallthrough")
   public void run() {
+    runner = Thread.currentThread();
     activeThreads.incrementAndGet(); // count threads
 
     FetchItem fit = null;
@@ -237,16 +262,22 @@ public class FetcherThread extends Thread {
 
         fit = ((FetchItemQueues) fetchQueues).getFetchItem();
         if (fit == null) {
-          if (feeder.isAlive() || ((FetchItemQueues) fetchQueues).getTotalSize() > 0) {
-            LOG.debug(getName() + " spin-waiting ...");
-            // spin-wait.
+          // pages being parsed may add redirects or outlinks to the queues,
+          // check before the queue size
+          if ((pipeline != null && pipeline.isParsing()) || feeder.isAlive()
+              || ((FetchItemQueues) fetchQueues).getTotalSize() > 0) {
+            LOG.debug(getName() + " waiting for a queue to become ready ...");
+            // wait until woken up by the queues, a queue's crawl delay
+            // expires, or at most maxWaitTime to check whether we are done
             ((AtomicInteger) spinWaiting).incrementAndGet();
             try {
-              Thread.sleep(500);
-            } catch (Exception e) {
+              fit = ((FetchItemQueues) fetchQueues).getFetchItem(maxWaitTime);
+            } catch (InterruptedException e) {
             }
             ((AtomicInteger) spinWaiting).decrementAndGet();
-            continue;
+            if (fit == null) {
+              continue;
+            }
           } else {
             // all done, finish this thread
             LOG.info("Thread " + getName() + " has no more work available");
@@ -264,7 +295,7 @@ public class FetcherThread extends Thread {
         try {
           // fetch the page
           redirecting = false;
-          redirectCount = 0;
+          redirectCount = fit.redirectCount;
           
           //Publisher event
           if(activatePublisher) {
@@ -314,21 +345,24 @@ public class FetcherThread extends Thread {
                     "robots_denied_maxcrawldelay", 1);
                 continue;
               } else {
-                FetchItemQueue fiq = ((FetchItemQueues) fetchQueues)
-                    .getFetchItemQueue(fit.queueID);
-                fiq.crawlDelay = rules.getCrawlDelay();
+                ((FetchItemQueues) fetchQueues).setRobotsCrawlDelay(
+                    fit.queueID, rules.getCrawlDelay());
                 if (LOG.isDebugEnabled()) {
                   LOG.debug("Crawl delay for queue: " + fit.queueID
-                      + " is set to " + fiq.crawlDelay
+                      + " is set to " + rules.getCrawlDelay()
                       + " as per robots.txt. url: " + fit.url);
                 }
               }
             }
+            long fetchStart = System.currentTimeMillis();
             ProtocolOutput output = protocol.getProtocolOutput(fit.url,
                 fit.datum);
             ProtocolStatus status = output.getStatus();
             Content content = output.getContent();
             ParseStatus pstatus = null;
+            // adapt the rate of the queue before it is unblocked
+            ((FetchItemQueues) fetchQueues).reportFetch(fit, output,
+                System.currentTimeMillis() - fetchStart);
             // unblock queue
             ((FetchItemQueues) fetchQueues).finishFetchItem(fit);
 
@@ -468,6 +502,99 @@ public class FetcherThread extends Thread {
   private Text handleRedirect(Text url, CrawlDatum datum, String urlString,
       String newUrl, boolean temp, String redirType)
       throws MalformedURLException, URLFilterException {
+    newUrl = filterRedirect(urlString, newUrl, redirType);
+    
+    if (newUrl != null && !newUrl.equals(urlString)) {
+      reprUrl = URLUtil.chooseRepr(reprUrl, newUrl, temp);
+      url = new Text(newUrl);
+      if (maxRedirect > 0) {
+        redirecting = true;
+        redirectCount++;
+        if (LOG.isDebugEnabled()) {
+          LOG.debug(" - " + redirType + " redirect to " + url
+              + " (fetching now)");
+        }
+        return url;
+      } else {
+        outputLinkedRedirect(url, datum, reprUrl);
+        if (LOG.isDebugEnabled()) {
+          LOG.debug(" - " + redirType + " redirect to " + url
+              + " (fetching later)");
+        }
+        return null;
+      }
+    } else {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(" - " + redirType + " redirect skipped: "
+            + (newUrl != null ? "to same url" : "filtered"));
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Handle a content redirect found by the parse stage of the pipeline. The
+   * fetcher thread has already moved on, so the redirect target is added to
+   * the fetch queues instead of being fetched now.
+   */
+  private void handleQueuedRedirect(FetchItem fit, String reprUrl,
+      String newUrl, boolean temp) {
+    String urlString = fit.url.toString();
+    try {
+      newUrl = filterRedirect(urlString, newUrl, Fetcher.CONTENT_REDIR);
+    } catch (MalformedURLException | URLFilterException e) {
+      LOG.warn("Skipping redirect from " + urlString + " to " + newUrl + ": "
+          + e);
+      return;
+    }
+    if (newUrl == null || newUrl.equals(urlString)) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(" - " + Fetcher.CONTENT_REDIR + " redirect skipped: "
+            + (newUrl != null ? "to same url" : "filtered"));
+      }
+      return;
+    }
+    reprUrl = URLUtil.chooseRepr(reprUrl, newUrl, temp);
+    Text url = new Text(newUrl);
+    if (maxRedirect <= 0) {
+      outputLinkedRedirect(url, fit.datum, reprUrl);
+      return;
+    }
+    try {
+      CrawlDatum newDatum = createRedirectDatum(url, fit.datum, reprUrl);
+      if (fit.redirectCount + 1 > maxRedirect) {
+        if (LOG.isInfoEnabled()) {
+          LOG.info(" - redirect count exceeded " + url);
+        }
+        output(url, newDatum, null, ProtocolStatus.STATUS_REDIR_EXCEEDED,
+            CrawlDatum.STATUS_FETCH_GONE);
+        return;
+      }
+      FetchItem redirect = FetchItem.create(url, newDatum, queueMode,
+          fit.outlinkDepth);
+      if (redirect == null) {
+        reporter.incrCounter("FetcherStatus", "FetchItem.notCreated.redirect",
+            1);
+        return;
+      }
+      redirect.redirectCount = fit.redirectCount + 1;
+      ((FetchItemQueues) fetchQueues).addFetchItem(redirect);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(" - " + Fetcher.CONTENT_REDIR + " redirect to " + url
+            + " (queued)");
+      }
+    } catch (ScoringFilterException e) {
+      LOG.warn("Skipping redirect to " + url + ": " + e);
+    }
+  }
+
+  /**
+   * Normalize and filter the target of a redirect.
+   * 
+   * @return the normalized target, or null if filtered or ignored
+   */
+  private String filterRedirect(String urlString, String newUrl,
+      String redirType) throws MalformedURLException, URLFilterException {
     newUrl = normalizers.normalize(newUrl, URLNormalizers.SCOPE_FETCHER);
     newUrl = urlFilters.filter(newUrl);
 
@@ -496,63 +623,49 @@ public class FetcherThread extends Thread {
         }
       }
     } catch (MalformedURLException e) { }
-    
-    if (newUrl != null && !newUrl.equals(urlString)) {
-      reprUrl = URLUtil.chooseRepr(reprUrl, newUrl, temp);
-      url = new Text(newUrl);
-      if (maxRedirect > 0) {
-        redirecting = true;
-        redirectCount++;
-        if (LOG.isDebugEnabled()) {
-          LOG.debug(" - " + redirType + " redirect to " + url
-              + " (fetching now)");
-        }
-        return url;
-      } else {
-        CrawlDatum newDatum = new CrawlDatum(CrawlDatum.STATUS_LINKED,
-            datum.getFetchInterval(), datum.getScore());
-        // transfer existing metadata
-        newDatum.getMetaData().putAll(datum.getMetaData());
-        try {
-          scfilters.initialScore(url, newDatum);
-        } catch (ScoringFilterException e) {
-          e.printStackTrace();
-        }
-        if (reprUrl != null) {
-          newDatum.getMetaData().put(Nutch.WRITABLE_REPR_URL_KEY,
-              new Text(reprUrl));
-        }
-        output(url, newDatum, null, null, CrawlDatum.STATUS_LINKED);
-        if (LOG.isDebugEnabled()) {
-          LOG.debug(" - " + redirType + " redirect to " + url
-              + " (fetching later)");
-        }
-        return null;
-      }
-    } else {
-      if (LOG.isDebugEnabled()) {
-        LOG.debug(" - " + redirType + " redirect skipped: "
-            + (newUrl != null ? "to same url" : "filtered"));
-      }
-      return null;
+
+    return newUrl;
+  }
+
+  /** Record a redirect target to be fetched in a later cycle. */
+  private void outputLinkedRedirect(Text url, CrawlDatum datum,
+      String reprUrl) {
+    CrawlDatum newDatum = new CrawlDatum(CrawlDatum.STATUS_LINKED,
+        datum.getFetchInterval(), datum.getScore());
+    // transfer existing metadata
+    newDatum.getMetaData().putAll(datum.getMetaData());
+    try {
+      scfilters.initialScore(url, newDatum);
+    } catch (ScoringFilterException e) {
+      e.printStackTrace();
     }
+    if (reprUrl != null) {
+      newDatum.getMetaData().put(Nutch.WRITABLE_REPR_URL_KEY,
+          new Text(reprUrl));
+    }
+    output(url, newDatum, null, null, CrawlDatum.STATUS_LINKED);
   }
 
-  private FetchItem queueRedirect(Text redirUrl, FetchItem fit)
-      throws ScoringFilterException {
+  private CrawlDatum createRedirectDatum(Text redirUrl, CrawlDatum datum,
+      String reprUrl) throws ScoringFilterException {
     CrawlDatum newDatum = new CrawlDatum(CrawlDatum.STATUS_DB_UNFETCHED,
-        fit.datum.getFetchInterval(), fit.datum.getScore());
+        datum.getFetchInterval(), datum.getScore());
     // transfer all existing metadata to the redirect
-    newDatum.getMetaData().putAll(fit.datum.getMetaData());
+    newDatum.getMetaData().putAll(datum.getMetaData());
     scfilters.initialScore(redirUrl, newDatum);
     if (reprUrl != null) {
       newDatum.getMetaData().put(Nutch.WRITABLE_REPR_URL_KEY,
           new Text(reprUrl));
     }
+    return newDatum;
+  }
+
+  private FetchItem queueRedirect(Text redirUrl, FetchItem fit)
+      throws ScoringFilterException {
+    CrawlDatum newDatum = createRedirectDatum(redirUrl, fit.datum, reprUrl);
     fit = FetchItem.create(redirUrl, newDatum, queueMode);
     if (fit != null) {
-      FetchItemQueue fiq = ((FetchItemQueues) fetchQueues).getFetchItemQueue(fit.queueID);
-      fiq.addInProgressFetchItem(fit);
+      ((FetchItemQueues) fetchQueues).addInProgressFetchItem(fit);
     } else {
       // stop redirecting
       redirecting = false;
@@ -583,7 +696,6 @@ public class FetcherThread extends Thread {
     if (pstatus != null)
       datum.getMetaData().put(Nutch.WRITABLE_PROTO_STATUS_KEY, pstatus);
 
-    ParseResult parseResult = null;
     if (content != null) {
       Metadata metadata = content.getMetadata();
 
@@ -602,6 +714,43 @@ public class FetcherThread extends Thread {
           LOG.warn("Couldn't pass score, url " + key + " (" + e + ")");
         }
       }
+
+      if (pipeline != null && parsing
+          && status == CrawlDatum.STATUS_FETCH_SUCCESS) {
+        // parse in the parse stage, content redirects are queued
+        final FetchItem fit = new FetchItem(key, null, datum, null,
+            outlinkDepth);
+        fit.redirectCount = redirectCount;
+        final FetchNode fetchNode = this.fetchNode;
+        final String reprUrl = this.reprUrl;
+        pipeline.parse(() -> {
+          ParseStatus parseStatus = parseAndOutput(key, datum, content,
+              status, outlinkDepth, fetchNode);
+          if (parseStatus != null && parseStatus.isSuccess()
+              && parseStatus.getMinorCode() == ParseStatus.SUCCESS_REDIRECT) {
+            int refreshTime = Integer.valueOf(parseStatus.getArgs()[1]);
+            handleQueuedRedirect(fit, reprUrl, parseStatus.getMessage(),
+                refreshTime < Fetcher.PERM_REFRESH_TIME);
+          }
+        });
+        return null;
+      }
+    }
+
+    return parseAndOutput(key, datum, content, status, outlinkDepth,
+        fetchNode);
+  }
+
+  /**
+   * Parse the content if required and collect datum, content and parse.
+   * 
+   * @return the parse status of the page, or null if not parsed
+   */
+  private ParseStatus parseAndOutput(Text key, CrawlDatum datum,
+      Content content, int status, int outlinkDepth, FetchNode fetchNode) {
+
+    ParseResult parseResult = null;
+    if (content != null) {
       /*
        * Note: Fetcher will only follow meta-redirects coming from the
        * original URL.
@@ -633,9 +782,9 @@ public class FetcherThread extends Thread {
     }
 
     try {
-      output.collect(key, new NutchWritable(datum));
+      collect(key, new NutchWritable(datum));
       if (content != null && storingContent)
-        output.collect(key, new NutchWritable(content));
+        collect(key, new NutchWritable(content));
       if (parseResult != null) {
         for (Entry<Text, Parse> entry : parseResult) {
           Text url = entry.getKey();
@@ -770,7 +919,7 @@ public class FetcherThread extends Thread {
           parseData.setOutlinks(outlinkList.toArray(new Outlink[outlinkList
               .size()]));
 
-          output.collect(url, new NutchWritable(new ParseImpl(new ParseText(
+          collect(url, new NutchWritable(new ParseImpl(new ParseText(
               parse.getText()), parseData, parse.isCanonical())));
         }
       }
@@ -797,14 +946,21 @@ public class FetcherThread extends Thread {
       LOG.debug("fetched and stored robots.txt {}",
           robotsTxt.getUrl());
       try {
-        output.collect(new Text(robotsTxt.getUrl()),
-            new NutchWritable(robotsTxt));
+        collect(new Text(robotsTxt.getUrl()), new NutchWritable(robotsTxt));
       } catch (IOException e) {
         LOG.error("fetcher caught: {}", e.toString());
       }
     }
   }
 
+  private void collect(Text key, NutchWritable value) throws IOException {
+    if (pipeline != null) {
+      pipeline.collect(key, value);
+    } else {
+      output.collect(key, value);
+    }
+  }
+
   private void updateStatus(int bytesInPage) throws IOException {
     pages.incrementAndGet();
     bytes.addAndGet(bytesInPage);
@@ -818,6 +974,15 @@ public class FetcherThread extends Thread {
     return halted;
   }
 
+  /**
+   * @return the thread running this fetcher, which is not this thread if the
+   *         fetcher runs on a virtual thread
+   */
+  public Thread getRunner() {
+    Thread t = runner;
+    return t != null ? t : this;
+  }
+
   public String getReprUrl() {
     return reprUrl;
   }
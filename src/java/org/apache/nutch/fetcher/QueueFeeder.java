@@ -18,10 +18,15 @@ package org.apache.nutch.fetcher;
 
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.RecordReader;
 import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.net.DnsCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,6 +43,10 @@ public class QueueFeeder extends Thread {
   private FetchItemQueues queues;
   private int size;
   private long timelimit = -1;
+  // hosts of a batch are resolved in the background if queued by IP
+  private DnsCache dnsCache = null;
+  private List<Text> batchUrls = new ArrayList<>();
+  private List<CrawlDatum> batchData = new ArrayList<>();
 
   public QueueFeeder(RecordReader<Text, CrawlDatum> reader,
       FetchItemQueues queues, int size) {
@@ -46,6 +55,9 @@ public class QueueFeeder extends Thread {
     this.size = size;
     this.setDaemon(true);
     this.setName("QueueFeeder");
+    if (FetchItemQueues.QUEUE_MODE_IP.equals(queues.queueMode)) {
+      dnsCache = DnsCache.get(queues.conf);
+    }
   }
 
   public void setTimeLimit(long tl) {
@@ -88,18 +100,44 @@ public class QueueFeeder extends Thread {
             CrawlDatum datum = new CrawlDatum();
             hasMore = reader.next(url, datum);
             if (hasMore) {
-              queues.addFetchItem(url, datum);
+              if (dnsCache != null) {
+                prefetch(url);
+                batchUrls.add(url);
+                batchData.add(datum);
+              } else {
+                queues.addFetchItem(url, datum);
+              }
               cnt++;
               feed--;
             }
           } catch (IOException e) {
             LOG.error("QueueFeeder error reading input, record " + cnt, e);
+            addBatch();
             return;
           }
         }
+        addBatch();
       }
     }
     LOG.info("QueueFeeder finished: total " + cnt
         + " records + hit by time limit :" + timelimitcount);
   }
+
+  /** Start resolving the host of the URL in the background. */
+  private void prefetch(Text url) {
+    try {
+      dnsCache.prefetch(new URL(url.toString()).getHost());
+    } catch (MalformedURLException e) {
+      // skipped when the item is created
+    }
+  }
+
+  /** Add the items of the current batch, waiting for their hosts' lookup. */
+  private void addBatch() {
+    for (int i = 0; i < batchUrls.size(); i++) {
+      queues.addFetchItem(batchUrls.get(i), batchData.get(i));
+    }
+    batchUrls.clear();
+    batchData.clear();
+  }
 }
@@ -0,0 +1,549 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.hostdb;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.net.IDN;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-blocking resolver sending DNS queries over UDP to the recursive name
+ * servers <code>hostdb.resolver.nameservers</code>, by default those of
+ * <code>/etc/resolv.conf</code>. A single thread sends the queries and
+ * receives the answers, so that thousands of queries can be in flight.
+ *
+ * <p>
+ * Queries are sent at a rate of at most <code>hostdb.resolver.rate</code>
+ * per second. A query not answered within <code>hostdb.resolver.timeout</code>
+ * milliseconds is sent again to the next name server, up to
+ * <code>hostdb.resolver.retries</code> times. Hosts without an IPv4 address
+ * are queried for an IPv6 address. Retries and IPv6 queries count against the
+ * rate as well, they are sent before new queries.
+ */
+public class AsyncDnsResolver implements HostResolver {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  public static final String NAMESERVERS = "hostdb.resolver.nameservers";
+  public static final String TIMEOUT = "hostdb.resolver.timeout";
+  public static final String RETRIES = "hostdb.resolver.retries";
+  public static final String RATE = "hostdb.resolver.rate";
+
+  static final int TYPE_A = 1;
+  static final int TYPE_AAAA = 28;
+  static final int CLASS_IN = 1;
+  static final int RCODE_NXDOMAIN = 3;
+
+  private static final int MAX_PACKET = 4096;
+  /** Transaction ids are 16 bit */
+  private static final int MAX_INFLIGHT = 60000;
+
+  private static final Pattern IPV4 = Pattern
+      .compile("\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}");
+
+  /** A pending lookup, modified by the I/O thread only. */
+  private static class Query {
+    final String host;
+    final Lookup result = new Lookup();
+    int type = TYPE_A;
+    int id;
+    int attempt = 0;
+    /** waiting in the queue of queries to be sent again */
+    boolean resend = false;
+
+    Query(String host) {
+      this.host = host;
+    }
+  }
+
+  /** Timeout of an attempt of a query. */
+  private static class Attempt {
+    final Query query;
+    final int type;
+    final int attempt;
+    final long deadline;
+
+    Attempt(Query query, long deadline) {
+      this.query = query;
+      this.type = query.type;
+      this.attempt = query.attempt;
+      this.deadline = deadline;
+    }
+  }
+
+  private Configuration conf;
+  private InetSocketAddress[] nameservers;
+  private long timeout;
+  private int retries;
+  private double rate;
+
+  private DatagramChannel channel;
+  private Selector selector;
+  private Thread thread;
+  private volatile boolean closed = false;
+  private final Queue<Query> submitted = new ConcurrentLinkedQueue<>();
+
+  // state of the I/O thread
+  private final Map<Integer, Query> inflight = new HashMap<>();
+  private final ArrayDeque<Attempt> attempts = new ArrayDeque<>();
+  private final ArrayDeque<Query> resends = new ArrayDeque<>();
+  private final Random random = new Random();
+  private final ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET);
+
+  @Override
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+    timeout = conf.getLong(TIMEOUT, 2000);
+    retries = conf.getInt(RETRIES, 2);
+    rate = conf.getFloat(RATE, 500);
+    String[] servers = conf.getTrimmedStrings(NAMESERVERS);
+    if (servers.length == 0) {
+      servers = readResolvConf();
+    }
+    if (servers.length == 0) {
+      throw new IllegalArgumentException("No name servers configured in "
+          + NAMESERVERS + " or /etc/resolv.conf");
+    }
+    nameservers = new InetSocketAddress[servers.length];
+    for (int i = 0; i < servers.length; i++) {
+      nameservers[i] = parseAddress(servers[i]);
+    }
+    LOG.info("DNS resolver: name servers = {}, timeout = {} ms, retries = {},"
+        + " rate = {}/s", Arrays.toString(nameservers), timeout, retries, rate);
+  }
+
+  @Override
+  public Configuration getConf() {
+    return conf;
+  }
+
+  private static String[] readResolvConf() {
+    List<String> servers = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(new FileReader(
+        "/etc/resolv.conf"))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.trim().split("\\s+");
+        if (fields.length >= 2 && fields[0].equals("nameserver")) {
+          String server = fields[1];
+          servers.add(server.indexOf(':') >= 0 ? "[" + server + "]" : server);
+        }
+      }
+    } catch (IOException e) {
+      LOG.warn("Cannot read /etc/resolv.conf: {}", e.getMessage());
+    }
+    return servers.toArray(new String[servers.size()]);
+  }
+
+  /** Parse host[:port], IPv6 addresses in brackets. */
+  static InetSocketAddress parseAddress(String server) {
+    String host = server;
+    int port = 53;
+    int colon = server.lastIndexOf(':');
+    if (server.startsWith("[")) {
+      int end = server.indexOf(']');
+      host = server.substring(1, end);
+      if (colon > end) {
+        port = Integer.parseInt(server.substring(colon + 1));
+      }
+    } else if (colon >= 0) {
+      host = server.substring(0, colon);
+      port = Integer.parseInt(server.substring(colon + 1));
+    }
+    return new InetSocketAddress(host, port);
+  }
+
+  private synchronized void start() throws IOException {
+    if (thread != null) {
+      return;
+    }
+    selector = Selector.open();
+    channel = DatagramChannel.open();
+    channel.configureBlocking(false);
+    channel.bind(null);
+    channel.register(selector, SelectionKey.OP_READ);
+    thread = new Thread(this::run, "hostdb-dns-resolver");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @Override
+  public Lookup resolve(String host) {
+    String name = host.toLowerCase(Locale.ROOT);
+    if (name.endsWith(".")) {
+      name = name.substring(0, name.length() - 1);
+    }
+    Query query = new Query(name);
+    if (closed) {
+      query.result.completeExceptionally(new IOException("Resolver closed"));
+      return query.result;
+    }
+
+    // IP addresses need no lookup
+    if (IPV4.matcher(name).matches() || name.indexOf(':') >= 0) {
+      query.result.start();
+      try {
+        query.result.complete(InetAddress.getByName(name));
+      } catch (UnknownHostException e) {
+        query.result.completeExceptionally(e);
+      }
+      return query.result;
+    }
+
+    try {
+      start();
+    } catch (IOException e) {
+      query.result.completeExceptionally(e);
+      return query.result;
+    }
+    submitted.add(query);
+    if (closed && submitted.remove(query)) {
+      query.result.completeExceptionally(new IOException("Resolver closed"));
+    }
+    selector.wakeup();
+    return query.result;
+  }
+
+  private void run() {
+    double tokens = Math.max(1, rate);
+    long lastRefill = System.nanoTime();
+    try {
+      while (!closed) {
+        long now = System.nanoTime();
+        long wait = 1000;
+        if (!attempts.isEmpty()) {
+          wait = TimeUnit.NANOSECONDS
+              .toMillis(attempts.peek().deadline - now) + 1;
+        }
+        if ((!submitted.isEmpty() || !resends.isEmpty()) && rate > 0
+            && tokens < 1) {
+          wait = Math.min(wait, (long) ((1 - tokens) * 1000 / rate) + 1);
+        }
+        selector.select(Math.max(1, wait));
+        selector.selectedKeys().clear();
+
+        receive();
+
+        now = System.nanoTime();
+        expire(now);
+
+        // send queries, limited by the rate: retries and IPv6 queries of
+        // queries in flight first, then new ones
+        if (rate > 0) {
+          tokens = Math.min(Math.max(1, rate),
+              tokens + (now - lastRefill) * rate / 1e9);
+          lastRefill = now;
+        }
+        Query query;
+        while ((rate <= 0 || tokens >= 1)
+            && (query = resends.poll()) != null) {
+          query.resend = false;
+          if (query.result.isDone()) {
+            continue;
+          }
+          send(query, now);
+          tokens--;
+        }
+        while ((rate <= 0 || tokens >= 1) && inflight.size() < MAX_INFLIGHT
+            && (query = submitted.poll()) != null) {
+          query.id = nextId();
+          inflight.put(query.id, query);
+          query.result.start();
+          send(query, now);
+          tokens--;
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      LOG.error("DNS resolver failed", e);
+    } finally {
+      IOException e = new IOException("Resolver closed");
+      for (Query query : inflight.values()) {
+        query.result.completeExceptionally(e);
+      }
+      inflight.clear();
+      resends.clear();
+      Query query;
+      while ((query = submitted.poll()) != null) {
+        query.result.completeExceptionally(e);
+      }
+      closed = true;
+    }
+  }
+
+  private int nextId() {
+    int id;
+    do {
+      id = random.nextInt(0x10000);
+    } while (inflight.containsKey(id));
+    return id;
+  }
+
+  private void send(Query query, long now) {
+    query.attempt++;
+    InetSocketAddress server = nameservers[(query.attempt - 1)
+        % nameservers.length];
+    try {
+      buffer.clear();
+      encodeQuery(buffer, query.id, query.host, query.type);
+      buffer.flip();
+      // a datagram not sent is handled as lost by the timeout
+      channel.send(buffer, server);
+    } catch (IllegalArgumentException e) {
+      // not a valid DNS name
+      finish(query, null, new UnknownHostException(query.host));
+      return;
+    } catch (IOException e) {
+      LOG.debug("Failed to send query for {} to {}: {}", query.host, server,
+          e.getMessage());
+    }
+    attempts.add(new Attempt(query, now
+        + TimeUnit.MILLISECONDS.toNanos(timeout)));
+  }
+
+  private void expire(long now) {
+    while (!attempts.isEmpty() && attempts.peek().deadline <= now) {
+      Attempt attempt = attempts.poll();
+      Query query = attempt.query;
+      if (query.result.isDone() || query.type != attempt.type
+          || query.attempt != attempt.attempt) {
+        continue;
+      }
+      if (query.attempt <= retries) {
+        resend(query);
+      } else {
+        finish(query, null, new TimeoutException("DNS query for "
+            + query.host + " timed out"));
+      }
+    }
+  }
+
+  /** Queue a query in flight to be sent again when the rate allows. */
+  private void resend(Query query) {
+    if (!query.resend) {
+      query.resend = true;
+      resends.add(query);
+    }
+  }
+
+  private void finish(Query query, InetAddress address, Throwable error) {
+    inflight.remove(query.id);
+    if (error != null) {
+      query.result.completeExceptionally(error);
+    } else {
+      query.result.complete(address);
+    }
+  }
+
+  private void receive() throws IOException {
+    while (true) {
+      buffer.clear();
+      SocketAddress from = channel.receive(buffer);
+      if (from == null) {
+        return;
+      }
+      buffer.flip();
+      if (!Arrays.asList(nameservers).contains(from)) {
+        continue;
+      }
+      try {
+        handleResponse(buffer);
+      } catch (RuntimeException e) {
+        // malformed response, the query times out
+        LOG.debug("Malformed DNS response from {}: {}", from, e.toString());
+      }
+    }
+  }
+
+  private void handleResponse(ByteBuffer response) {
+    int id = response.getShort() & 0xffff;
+    int flags = response.getShort() & 0xffff;
+    Query query = inflight.get(id);
+    if (query == null || (flags & 0x8000) == 0) {
+      return;
+    }
+    int numQuestions = response.getShort() & 0xffff;
+    int numAnswers = response.getShort() & 0xffff;
+    response.getShort();
+    response.getShort();
+
+    // the question must be the one of the query
+    if (numQuestions != 1 || !readName(response).equalsIgnoreCase(query.host)
+        || (response.getShort() & 0xffff) != query.type) {
+      return;
+    }
+    response.getShort();
+
+    int rcode = flags & 0xf;
+    if (rcode == RCODE_NXDOMAIN) {
+      finish(query, null, new UnknownHostException(query.host));
+      return;
+    } else if (rcode != 0) {
+      // server failure or refused, ask the next name server
+      if (query.attempt <= retries) {
+        resend(query);
+      } else {
+        finish(query, null, new UnknownHostException(query.host
+            + ": DNS error " + rcode));
+      }
+      return;
+    }
+
+    for (int i = 0; i < numAnswers; i++) {
+      readName(response);
+      int type = response.getShort() & 0xffff;
+      int clazz = response.getShort() & 0xffff;
+      response.getInt();
+      int length = response.getShort() & 0xffff;
+      if (type == query.type && clazz == CLASS_IN
+          && length == (type == TYPE_A ? 4 : 16)) {
+        byte[] address = new byte[length];
+        response.get(address);
+        try {
+          finish(query, InetAddress.getByAddress(query.host, address), null);
+        } catch (UnknownHostException e) {
+          finish(query, null, e);
+        }
+        return;
+      }
+      response.position(response.position() + length);
+    }
+
+    // no address, look for an IPv6 address if none for IPv4
+    if (query.type == TYPE_A) {
+      inflight.remove(query.id);
+      query.type = TYPE_AAAA;
+      query.attempt = 0;
+      query.id = nextId();
+      inflight.put(query.id, query);
+      resend(query);
+    } else {
+      finish(query, null, new UnknownHostException(query.host));
+    }
+  }
+
+  /**
+   * Write a recursive query for a host name.
+   *
+   * @throws IllegalArgumentException
+   *           if the host name is not a valid DNS name
+   */
+  static void encodeQuery(ByteBuffer out, int id, String host, int type) {
+    out.putShort((short) id);
+    out.putShort((short) 0x0100); // recursion desired
+    out.putShort((short) 1);
+    out.putShort((short) 0);
+    out.putShort((short) 0);
+    out.putShort((short) 0);
+    String ascii = IDN.toASCII(host);
+    if (ascii.isEmpty() || ascii.length() > 253) {
+      throw new IllegalArgumentException("Invalid host name: " + host);
+    }
+    for (String label : ascii.split("\\.", -1)) {
+      byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+      if (bytes.length == 0 || bytes.length > 63) {
+        throw new IllegalArgumentException("Invalid host name: " + host);
+      }
+      out.put((byte) bytes.length);
+      out.put(bytes);
+    }
+    out.put((byte) 0);
+    out.putShort((short) type);
+    out.putShort((short) CLASS_IN);
+  }
+
+  /** Read a possibly compressed name, positioned after the name. */
+  static String readName(ByteBuffer in) {
+    StringBuilder name = new StringBuilder();
+    int position = in.position();
+    int end = -1;
+    int jumps = 0;
+    while (true) {
+      int length = in.get(position) & 0xff;
+      if ((length & 0xc0) == 0xc0) {
+        if (end < 0) {
+          end = position + 2;
+        }
+        if (++jumps > 16) {
+          throw new IllegalArgumentException("Compression loop");
+        }
+        position = ((length & 0x3f) << 8) | (in.get(position + 1) & 0xff);
+      } else if (length == 0) {
+        position++;
+        break;
+      } else {
+        if (name.length() > 0) {
+          name.append('.');
+        }
+        for (int i = 1; i <= length; i++) {
+          name.append((char) (in.get(position + i) & 0xff));
+        }
+        position += length + 1;
+      }
+    }
+    in.position(end < 0 ? position : end);
+    return name.toString();
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    Thread t;
+    synchronized (this) {
+      t = thread;
+    }
+    if (t == null) {
+      return;
+    }
+    selector.wakeup();
+    try {
+      t.join(timeout + 1000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    channel.close();
+    selector.close();
+  }
+}
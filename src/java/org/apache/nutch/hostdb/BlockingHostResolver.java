@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.hostdb;
+
+import java.net.InetAddress;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.net.DnsCache;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Resolves hosts by the system resolver, see
+ * {@link InetAddress#getByName(String)}, on a pool of
+ * <code>hostdb.num.resolvers.threads</code> threads. Lookups are cached in
+ * the JVM-wide {@link DnsCache}. Timeouts are those of the system resolver.
+ */
+public class BlockingHostResolver implements HostResolver {
+
+  private Configuration conf;
+  private ThreadPoolExecutor executor;
+
+  @Override
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+    int threads = conf.getInt(UpdateHostDb.HOSTDB_NUM_RESOLVER_THREADS, 10);
+    executor = new ThreadPoolExecutor(threads, threads, 5, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactoryBuilder().setNameFormat("hostdb-resolver-%d")
+            .setDaemon(true).build());
+    DnsCache.get(conf);
+  }
+
+  @Override
+  public Configuration getConf() {
+    return conf;
+  }
+
+  @Override
+  public Lookup resolve(final String host) {
+    final Lookup result = new Lookup();
+    try {
+      executor.execute(() -> {
+        result.start();
+        try {
+          result.complete(DnsCache.get().resolve(host));
+        } catch (Exception e) {
+          result.completeExceptionally(e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      result.completeExceptionally(e);
+    }
+    return result;
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+}
@@ -19,19 +19,53 @@ package org.apache.nutch.hostdb;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeMap;
 import java.text.SimpleDateFormat;
 
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.MapWritable;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
+import org.apache.nutch.metadata.Nutch;
+import org.apache.nutch.util.HyperLogLog;
+
+import com.tdunning.math.stats.AVLTreeDigest;
+import com.tdunning.math.stats.Centroid;
+import com.tdunning.math.stats.TDigest;
 
 /**
+ * Statistics of a host. Besides the counts of the CrawlDb status, a HostDatum
+ * keeps mergeable sketches: a {@link TDigest} per numeric field (see
+ * <code>hostdb.numeric.fields</code>) and a {@link HyperLogLog} of the URL
+ * paths. The sketches include the observations up to {@link #getStatsTime()},
+ * so an update of the HostDb only adds the newer ones.
+ *
+ * <p>
+ * The fetch rate and the sketches are serialized as entries of the metadata
+ * under reserved keys, so that HostDbs written before and after their
+ * introduction can be read by either version. The entries are moved out of
+ * the metadata when read.
  */
 public class HostDatum implements Writable, Cloneable {
+
+  /** Compression of the digests of numeric fields */
+  public static final int DIGEST_COMPRESSION = 100;
+
+  /** Reserved metadata keys of the serialized statistics */
+  private static final Text STATS_TIME_KEY = new Text("_hds_time_");
+  private static final Text PATHS_KEY = new Text("_hds_paths_");
+  private static final String DIGEST_KEY_PREFIX = "_hds_digest_";
+
   protected int failures = 0;
   protected float score = 0;
   protected Date lastCheck = new Date(0);
@@ -52,6 +86,15 @@ public class HostDatum implements Writable, Cloneable {
   protected int redirPerm = 0;
   protected int gone = 0;
 
+  // Fetch rate adapted by the fetcher, -1 if unknown
+  protected int fetchDelay = -1;
+  protected int fetchThreads = -1;
+
+  // Fetch time of the newest observation in the sketches
+  protected long statsTime = 0;
+  protected Map<String,TDigest> digests = new TreeMap<>();
+  protected HyperLogLog paths = null;
+
   public HostDatum() {
   }
 
@@ -190,6 +233,107 @@ public class HostDatum implements Writable, Cloneable {
     return gone;
   }
 
+  /**
+   * @return the delay between requests in milliseconds adapted by the
+   *         fetcher, -1 if unknown
+   */
+  public int getFetchDelay() {
+    if (fetchDelay < 0) {
+      // set by older versions as metadata
+      Writable value = getMetaData().get(Nutch.WRITABLE_FETCH_DELAY_KEY);
+      return value instanceof IntWritable ? ((IntWritable) value).get() : -1;
+    }
+    return fetchDelay;
+  }
+
+  /**
+   * @return the number of fetcher threads for the host adapted by the
+   *         fetcher, -1 if unknown
+   */
+  public int getFetchThreads() {
+    if (fetchThreads < 0) {
+      Writable value = getMetaData().get(Nutch.WRITABLE_FETCH_THREADS_KEY);
+      return value instanceof IntWritable ? ((IntWritable) value).get() : -1;
+    }
+    return fetchThreads;
+  }
+
+  public void setFetchRate(int delay, int threads) {
+    fetchDelay = delay;
+    fetchThreads = threads;
+    getMetaData().remove(Nutch.WRITABLE_FETCH_DELAY_KEY);
+    getMetaData().remove(Nutch.WRITABLE_FETCH_THREADS_KEY);
+  }
+
+  /**
+   * @return the fetch time of the newest observation in the sketches, 0 if
+   *         there is none
+   */
+  public long getStatsTime() {
+    return statsTime;
+  }
+
+  public void setStatsTime(long statsTime) {
+    this.statsTime = statsTime;
+  }
+
+  /**
+   * @return the digest of the values of a numeric field, null if no value was
+   *         observed
+   */
+  public TDigest getDigest(String field) {
+    return digests.get(field);
+  }
+
+  /** @return the digests by field name */
+  public Map<String,TDigest> getDigests() {
+    return digests;
+  }
+
+  public void setDigest(String field, TDigest digest) {
+    digests.put(field, digest);
+  }
+
+  /**
+   * @return the estimated quantile (0 - 1) of the values of a numeric field,
+   *         NaN if no value was observed
+   */
+  public double getQuantile(String field, double quantile) {
+    TDigest digest = digests.get(field);
+    return digest == null || digest.size() == 0 ? Double.NaN
+        : digest.quantile(quantile);
+  }
+
+  /**
+   * @return the mean of the values of a numeric field, NaN if no value was
+   *         observed
+   */
+  public double getMean(String field) {
+    TDigest digest = digests.get(field);
+    if (digest == null || digest.size() == 0) {
+      return Double.NaN;
+    }
+    double sum = 0;
+    for (Centroid centroid : digest.centroids()) {
+      sum += centroid.mean() * centroid.count();
+    }
+    return sum / digest.size();
+  }
+
+  /** @return the sketch of the distinct URL paths, null if none */
+  public HyperLogLog getPaths() {
+    return paths;
+  }
+
+  public void setPaths(HyperLogLog paths) {
+    this.paths = paths;
+  }
+
+  /** @return the estimated number of distinct URL paths */
+  public long getDistinctPaths() {
+    return paths == null ? 0 : paths.cardinality();
+  }
+
   public void resetStatistics() {
     setUnfetched(0);
     setFetched(0);
@@ -240,6 +384,18 @@ public class HostDatum implements Writable, Cloneable {
     result.redirPerm = redirPerm;
     result.gone = gone;
 
+    result.fetchDelay = fetchDelay;
+    result.fetchThreads = fetchThreads;
+    result.statsTime = statsTime;
+    result.digests = new TreeMap<>();
+    for (Entry<String,TDigest> e : digests.entrySet()) {
+      result.digests.put(e.getKey(), fromBytes(toBytes(e.getValue())));
+    }
+    if (paths != null) {
+      result.paths = new HyperLogLog(paths.getPrecision());
+      result.paths.merge(paths);
+    }
+
     result.metaData = metaData;
 
     return result;
@@ -263,6 +419,49 @@ public class HostDatum implements Writable, Cloneable {
 
     metaData = new org.apache.hadoop.io.MapWritable();
     metaData.readFields(in);
+
+    fetchDelay = -1;
+    fetchThreads = -1;
+    statsTime = 0;
+    digests = new TreeMap<>();
+    paths = null;
+    readStatistics();
+  }
+
+  /** Move the statistics out of the reserved metadata entries. */
+  private void readStatistics() throws IOException {
+    Iterator<Entry<Writable, Writable>> it = metaData.entrySet().iterator();
+    while (it.hasNext()) {
+      Entry<Writable, Writable> e = it.next();
+      String key = e.getKey().toString();
+      Writable value = e.getValue();
+      if (e.getKey().equals(Nutch.WRITABLE_FETCH_DELAY_KEY)
+          && value instanceof IntWritable) {
+        fetchDelay = ((IntWritable) value).get();
+      } else if (e.getKey().equals(Nutch.WRITABLE_FETCH_THREADS_KEY)
+          && value instanceof IntWritable) {
+        fetchThreads = ((IntWritable) value).get();
+      } else if (e.getKey().equals(STATS_TIME_KEY)) {
+        statsTime = ((LongWritable) value).get();
+      } else if (e.getKey().equals(PATHS_KEY)) {
+        BytesWritable bytes = (BytesWritable) value;
+        DataInputBuffer buffer = new DataInputBuffer();
+        buffer.reset(bytes.getBytes(), bytes.getLength());
+        paths = new HyperLogLog();
+        paths.readFields(buffer);
+      } else if (key.startsWith(DIGEST_KEY_PREFIX)) {
+        BytesWritable bytes = (BytesWritable) value;
+        digests.put(key.substring(DIGEST_KEY_PREFIX.length()),
+            fromBytes(Arrays.copyOf(bytes.getBytes(), bytes.getLength())));
+      } else {
+        continue;
+      }
+      it.remove();
+    }
+    if (fetchDelay < 0 || fetchThreads < 0) {
+      fetchDelay = -1;
+      fetchThreads = -1;
+    }
   }
 
   @Override
@@ -281,7 +480,42 @@ public class HostDatum implements Writable, Cloneable {
     out.writeInt(redirPerm);
     out.writeInt(gone);
 
-    metaData.write(out);
+    writeStatistics().write(out);
+  }
+
+  /** @return a copy of the metadata with the statistics added */
+  private MapWritable writeStatistics() throws IOException {
+    MapWritable result = new MapWritable();
+    result.putAll(getMetaData());
+    if (fetchDelay >= 0 && fetchThreads >= 0) {
+      result.put(Nutch.WRITABLE_FETCH_DELAY_KEY, new IntWritable(fetchDelay));
+      result.put(Nutch.WRITABLE_FETCH_THREADS_KEY,
+          new IntWritable(fetchThreads));
+    }
+    if (statsTime != 0) {
+      result.put(STATS_TIME_KEY, new LongWritable(statsTime));
+    }
+    for (Entry<String,TDigest> e : digests.entrySet()) {
+      result.put(new Text(DIGEST_KEY_PREFIX + e.getKey()),
+          new BytesWritable(toBytes(e.getValue())));
+    }
+    if (paths != null) {
+      DataOutputBuffer buffer = new DataOutputBuffer();
+      paths.write(buffer);
+      result.put(PATHS_KEY, new BytesWritable(
+          Arrays.copyOf(buffer.getData(), buffer.getLength())));
+    }
+    return result;
+  }
+
+  private static byte[] toBytes(TDigest digest) {
+    ByteBuffer bytes = ByteBuffer.allocate(digest.smallByteSize());
+    digest.asSmallBytes(bytes);
+    return Arrays.copyOf(bytes.array(), bytes.position());
+  }
+
+  private static TDigest fromBytes(byte[] bytes) {
+    return AVLTreeDigest.fromBytes(ByteBuffer.wrap(bytes));
   }
 
   @Override
@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.hostdb;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.hadoop.conf.Configurable;
+
+/**
+ * Resolves host names for the {@link UpdateHostDbReducer} without blocking
+ * the reducer. The implementation is chosen by
+ * <code>hostdb.resolver.class</code>.
+ */
+public interface HostResolver extends Configurable, Closeable {
+
+  /**
+   * Pending lookup of a host, completed with its address. The resolver marks
+   * when the lookup actually starts, which may be later than the call of
+   * {@link HostResolver#resolve(String)} if the lookup waits for a thread or
+   * for the rate limit, so that the latency of the lookup itself can be
+   * measured.
+   */
+  public static class Lookup extends CompletableFuture<InetAddress> {
+
+    private volatile long startTime = -1;
+
+    /** Mark the lookup as started, only the first call counts. */
+    public void start() {
+      if (startTime < 0) {
+        startTime = System.nanoTime();
+      }
+    }
+
+    /**
+     * @return the time the lookup started, see {@link System#nanoTime()}, or
+     *         -1 if it has not been started
+     */
+    public long getStartTime() {
+      return startTime;
+    }
+  }
+
+  /**
+   * Resolve a host name.
+   *
+   * @return the address of the host. The future is completed exceptionally
+   *         with an {@link java.net.UnknownHostException} if the host does not
+   *         exist, or with a {@link java.util.concurrent.TimeoutException} if
+   *         no answer arrived in time.
+   */
+  public Lookup resolve(String host);
+}
@@ -106,6 +106,9 @@ public class ReadHostDb extends Configured implements Tool {
         jcontext.set("numRecords", datum.numRecords());
         jcontext.set("dnsFailures", datum.getDnsFailures());
         jcontext.set("connectionFailures", datum.getConnectionFailures());
+        jcontext.set("distinctPaths", datum.getDistinctPaths());
+        jcontext.set("fetchDelay", datum.getFetchDelay());
+        jcontext.set("fetchThreads", datum.getFetchThreads());
         
         // Set metadata variables
         for (Map.Entry<Writable, Writable> entry : datum.getMetaData().entrySet()) {
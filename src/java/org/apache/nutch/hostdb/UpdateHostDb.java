@@ -28,6 +28,8 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
 import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.SequenceFileInputFormat;
@@ -39,7 +41,10 @@ import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Partitioner;
 import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.Counters;
 import org.apache.hadoop.mapred.lib.MultipleInputs;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.Tool;
@@ -68,6 +73,8 @@ public class UpdateHostDb extends Configured implements Tool {
 
   public static final String HOSTDB_PURGE_FAILED_HOSTS_THRESHOLD = "hostdb.purge.failed.hosts.threshold";
   public static final String HOSTDB_NUM_RESOLVER_THREADS = "hostdb.num.resolvers.threads";
+  public static final String HOSTDB_RESOLVER_CLASS = "hostdb.resolver.class";
+  public static final String HOSTDB_RESOLVER_MAX_INFLIGHT = "hostdb.resolver.max.inflight";
   public static final String HOSTDB_RECHECK_INTERVAL = "hostdb.recheck.interval";
   public static final String HOSTDB_CHECK_FAILED = "hostdb.check.failed";
   public static final String HOSTDB_CHECK_NEW = "hostdb.check.new";
@@ -78,6 +85,67 @@ public class UpdateHostDb extends Configured implements Tool {
   public static final String HOSTDB_NUMERIC_FIELDS = "hostdb.numeric.fields";
   public static final String HOSTDB_STRING_FIELDS = "hostdb.string.fields";
   public static final String HOSTDB_PERCENTILES = "hostdb.percentiles";
+  public static final String HOSTDB_COUNT_PATHS = "hostdb.count.paths";
+
+  /**
+   * Separates the host from the sort tag in the map output keys, sorts before
+   * any character of a host name
+   */
+  static final char KEY_SEPARATOR = '\t';
+
+  /**
+   * Set a map output key: the host followed by a tag which sorts the record
+   * of the host in the HostDb before the records from the CrawlDb, so that
+   * the reducer knows the statistics time before it reads the CrawlDb values.
+   */
+  static void setKey(Text key, String host, boolean fromHostDb) {
+    key.set(host + KEY_SEPARATOR + (fromHostDb ? '0' : '1'));
+  }
+
+  /** @return the host of a map output key */
+  static String getHost(Text key) {
+    String str = key.toString();
+    int pos = str.lastIndexOf(KEY_SEPARATOR);
+    return pos == -1 ? str : str.substring(0, pos);
+  }
+
+  /** @return the length in bytes of the host in a map output key */
+  private static int getHostLength(Text key) {
+    for (int i = key.getLength() - 1; i >= 0; i--) {
+      if (key.getBytes()[i] == KEY_SEPARATOR) {
+        return i;
+      }
+    }
+    return key.getLength();
+  }
+
+  /** Partitions the map output by host, ignoring the tag. */
+  public static class HostPartitioner implements Partitioner<Text, Writable> {
+
+    public void configure(JobConf job) {
+    }
+
+    public int getPartition(Text key, Writable value, int numReduceTasks) {
+      return (WritableComparator.hashBytes(key.getBytes(), getHostLength(key))
+          & Integer.MAX_VALUE) % numReduceTasks;
+    }
+  }
+
+  /** Groups the map output by host, ignoring the tag. */
+  public static class HostGroupingComparator extends WritableComparator {
+
+    public HostGroupingComparator() {
+      super(Text.class, true);
+    }
+
+    @SuppressWarnings("rawtypes")
+    public int compare(WritableComparable a, WritableComparable b) {
+      Text ta = (Text) a;
+      Text tb = (Text) b;
+      return compareBytes(ta.getBytes(), 0, getHostLength(ta), tb.getBytes(),
+          0, getHostLength(tb));
+    }
+  }
   
   private void updateHostDb(Path hostDb, Path crawlDb, Path topHosts,
     boolean checkFailed, boolean checkNew, boolean checkKnown,
@@ -136,6 +204,8 @@ public class UpdateHostDb extends Configured implements Tool {
     job.setOutputKeyClass(Text.class);
     job.setOutputValueClass(HostDatum.class);
     job.setMapperClass(UpdateHostDbMapper.class);
+    job.setPartitionerClass(HostPartitioner.class);
+    job.setOutputValueGroupingComparator(HostGroupingComparator.class);
     job.setReducerClass(UpdateHostDbReducer.class);
 
     job.setBoolean("mapreduce.fileoutputcommitter.marksuccessfuljobs", false);
@@ -149,7 +219,8 @@ public class UpdateHostDb extends Configured implements Tool {
     job.setClassLoader(Thread.currentThread().getContextClassLoader());
     
     try {
-      JobClient.runJob(job);
+      RunningJob running = JobClient.runJob(job);
+      logResolveLatency(running.getCounters().getGroup("UpdateHostDb"));
 
       FSUtils.replace(fs, old, current, true);
       FSUtils.replace(fs, current, tempHostDb, true);
@@ -169,6 +240,36 @@ public class UpdateHostDb extends Configured implements Tool {
       ", elapsed: " + TimingUtil.elapsedTime(start, end));
   }
 
+  /**
+   * Logs the percentiles of the DNS lookup latency, estimated by the upper
+   * bounds of the latency buckets counted by the reducers.
+   */
+  private static void logResolveLatency(Counters.Group counters) {
+    long[] buckets = UpdateHostDbReducer.LATENCY_BUCKETS;
+    long[] counts = new long[buckets.length + 1];
+    long total = 0;
+    for (int i = 0; i < counts.length; i++) {
+      long latency = i < buckets.length ? buckets[i] : Long.MAX_VALUE;
+      counts[i] = counters.getCounter(UpdateHostDbReducer.getLatencyCounter(latency));
+      total += counts[i];
+    }
+    if (total == 0) {
+      return;
+    }
+
+    StringBuilder percentiles = new StringBuilder();
+    for (double p : new double[] { 0.5, 0.9, 0.99 }) {
+      long seen = 0;
+      int i = 0;
+      while (i < buckets.length && (seen += counts[i]) < p * total) {
+        i++;
+      }
+      percentiles.append(" p").append(Math.round(p * 100)).append(i < buckets.length
+        ? "<=" + buckets[i] : ">" + buckets[buckets.length - 1]).append("ms");
+    }
+    LOG.info("UpdateHostDb: DNS lookup latency of " + total + " hosts:" + percentiles);
+  }
+
   public static void main(String args[]) throws Exception {
     int res = ToolRunner.run(NutchConfiguration.create(), new UpdateHostDb(), args);
     System.exit(res);
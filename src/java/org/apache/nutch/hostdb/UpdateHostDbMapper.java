@@ -18,9 +18,11 @@ package org.apache.nutch.hostdb;
 
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
-
+import java.net.MalformedURLException;
+import java.net.URL;
 
 import org.apache.hadoop.io.FloatWritable;
+import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.JobConf;
@@ -35,6 +37,7 @@ import org.apache.nutch.metadata.Nutch;
 import org.apache.nutch.net.URLFilters;
 import org.apache.nutch.net.URLNormalizers;
 import org.apache.nutch.protocol.ProtocolStatus;
+import org.apache.nutch.util.HyperLogLog;
 import org.apache.nutch.util.URLUtil;
 
 import org.slf4j.Logger;
@@ -50,6 +53,10 @@ public class UpdateHostDbMapper
 
   private static final Logger LOG = LoggerFactory
       .getLogger(MethodHandles.lookup().lookupClass());
+
+  /** CrawlDatum metadata passing the hash of the URL path to the reducer */
+  public static final Text PATH_HASH_KEY = new Text("_phash_");
+
   protected Text host = new Text();
   protected HostDatum hostDatum = null;
   protected CrawlDatum crawlDatum = null;
@@ -59,6 +66,7 @@ public class UpdateHostDbMapper
   protected boolean filter = false;
   protected boolean normalize = false;
   protected boolean readingCrawlDb = false;
+  protected boolean countPaths = true;
   protected URLFilters filters = null;
   protected URLNormalizers normalizers = null;
 
@@ -71,6 +79,7 @@ public class UpdateHostDbMapper
     readingCrawlDb = job.getBoolean("hostdb.reading.crawldb", false);
     filter = job.getBoolean(UpdateHostDb.HOSTDB_URL_FILTERING, false);
     normalize = job.getBoolean(UpdateHostDb.HOSTDB_URL_NORMALIZING, false);
+    countPaths = job.getBoolean(UpdateHostDb.HOSTDB_COUNT_PATHS, true);
 
     if (filter)
       filters = new URLFilters(job);
@@ -134,7 +143,7 @@ public class UpdateHostDbMapper
       }
 
       // Set the host of this URL
-      host.set(buffer);
+      UpdateHostDb.setKey(host, buffer, false);
       crawlDatum = (CrawlDatum)value;
       hostDatum = new HostDatum();
 
@@ -191,6 +200,16 @@ public class UpdateHostDbMapper
         }
       }
 
+      // Pass the path to count the distinct paths of the host
+      if (countPaths) {
+        try {
+          crawlDatum.getMetaData().put(PATH_HASH_KEY,
+            new LongWritable(HyperLogLog.hash(new URL(keyStr).getPath())));
+        } catch (MalformedURLException e) {
+          // not counted
+        }
+      }
+
       // Always emit crawl datum
       output.collect(host, new NutchWritable(crawlDatum));
     }
@@ -208,7 +227,7 @@ public class UpdateHostDbMapper
 
       // Get a HostDatum
       hostDatum = (HostDatum)value;
-      key.set(buffer);
+      UpdateHostDb.setKey(key, buffer, true);
 
       // If we're also reading CrawlDb entries, reset db_* statistics because
       // we're aggregating them from CrawlDB anyway
@@ -230,7 +249,7 @@ public class UpdateHostDbMapper
         return;
       }
 
-      key.set(buffer);
+      UpdateHostDb.setKey(key, buffer, false);
 
       output.collect(key,
         new NutchWritable(new FloatWritable(Float.parseFloat(value.toString()))));
@@ -17,28 +17,37 @@
 package org.apache.nutch.hostdb;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.invoke.MethodHandles;
+import java.net.UnknownHostException;
 import java.util.Date;
 import java.util.Iterator;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.Queue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.HashMap;
 import java.util.Map;
 
 import org.apache.hadoop.io.FloatWritable;
 import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.hadoop.util.StringUtils;
 
 import org.apache.nutch.crawl.CrawlDatum;
 import org.apache.nutch.crawl.NutchWritable;
+import org.apache.nutch.metadata.Nutch;
+import org.apache.nutch.util.HyperLogLog;
+import org.apache.nutch.util.TaskCounters;
 
 import com.tdunning.math.stats.TDigest;
 
@@ -46,16 +55,42 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- *
- *
+ * Aggregates the CrawlDb records of a host and checks the DNS entries of the
+ * hosts. Values of numeric fields of pages fetched after the statistics time
+ * of the HostDatum are merged into its digests, see
+ * {@link HostDatum#getStatsTime()}; the map output is sorted so that the
+ * HostDatum from the HostDb comes first, see
+ * {@link UpdateHostDb#setKey(Text, String, boolean)}. Hosts are resolved
+ * asynchronously by a
+ * {@link HostResolver}, at most <code>hostdb.resolver.max.inflight</code> at
+ * a time. Resolved hosts are
+ * written by the reducer thread in batches, the latency of the lookups is
+ * counted in buckets, see {@link #LATENCY_BUCKETS}.
  */
 public class UpdateHostDbReducer
   implements Reducer<Text, NutchWritable, Text, HostDatum> {
 
   private static final Logger LOG = LoggerFactory
       .getLogger(MethodHandles.lookup().lookupClass());
-  protected ResolverThread resolverThread = null;
-  protected Integer numResolverThreads = 10;
+  /** Upper bounds in milliseconds of the lookup latency counters */
+  public static final long[] LATENCY_BUCKETS = { 1, 2, 5, 10, 20, 50, 100,
+      200, 500, 1000, 2000, 5000, 10000 };
+
+  /** A host resolved, to be written by the reducer thread. */
+  protected static class ResolvedHost {
+    final String host;
+    final HostDatum datum;
+    final Throwable error;
+    final long latency;
+
+    ResolvedHost(String host, HostDatum datum, Throwable error, long latency) {
+      this.host = host;
+      this.datum = datum;
+      this.error = error;
+      this.latency = latency;
+    }
+  }
+
   protected static Integer purgeFailedHostsThreshold = -1;
   protected static Integer recheckInterval = 86400000;
   protected static boolean checkFailed = false;
@@ -69,17 +104,20 @@ public class UpdateHostDbReducer
   protected static Text[] numericFieldWritables;
   protected static Text[] stringFieldWritables;
   
-  protected BlockingQueue<Runnable> queue = new SynchronousQueue<>();
-  protected ThreadPoolExecutor executor = null;
+  protected HostResolver resolver = null;
+  protected int maxInflight = 1000;
+  protected Semaphore inflight = null;
+  protected Queue<ResolvedHost> resolved = new ConcurrentLinkedQueue<>();
+  protected OutputCollector<Text,HostDatum> output = null;
+  protected Reporter reporter = null;
 
   /**
-    * Configures the thread pool and prestarts all resolver threads.
+    * Configures the resolver.
     *
     * @param job
     */
   public void configure(JobConf job) {
     purgeFailedHostsThreshold = job.getInt(UpdateHostDb.HOSTDB_PURGE_FAILED_HOSTS_THRESHOLD, -1);
-    numResolverThreads = job.getInt(UpdateHostDb.HOSTDB_NUM_RESOLVER_THREADS, 10);
     recheckInterval = job.getInt(UpdateHostDb.HOSTDB_RECHECK_INTERVAL, 86400) * 1000;
     checkFailed = job.getBoolean(UpdateHostDb.HOSTDB_CHECK_FAILED, false);
     checkNew = job.getBoolean(UpdateHostDb.HOSTDB_CHECK_NEW, false);
@@ -104,12 +142,11 @@ public class UpdateHostDbReducer
       }
     }
 
-    // Initialize the thread pool with our queue
-    executor = new ThreadPoolExecutor(numResolverThreads, numResolverThreads,
-      5, TimeUnit.SECONDS, queue);
-
-    // Run all threads in the pool
-    executor.prestartAllCoreThreads();
+    resolver = ReflectionUtils.newInstance(job.getClass(
+      UpdateHostDb.HOSTDB_RESOLVER_CLASS, BlockingHostResolver.class,
+      HostResolver.class), job);
+    maxInflight = Math.max(1, job.getInt(UpdateHostDb.HOSTDB_RESOLVER_MAX_INFLIGHT, 1000));
+    inflight = new Semaphore(maxInflight);
   }
 
   /**
@@ -118,15 +155,31 @@ public class UpdateHostDbReducer
   public void reduce(Text key, Iterator<NutchWritable> values,
     OutputCollector<Text,HostDatum> output, Reporter reporter) throws IOException {
 
+    // the key object is updated while iterating over the values of the host
+    Text host = new Text(UpdateHostDb.getHost(key));
+
     Map<String,Map<String,Integer>> stringCounts = new HashMap<>();
     Map<String,Float> maximums = new HashMap<>();
     Map<String,Float> sums = new HashMap<>(); // used to calc averages
     Map<String,Integer> counts = new HashMap<>(); // used to calc averages
     Map<String,Float> minimums = new HashMap<>();
+    // digests of the values observed after the statistics time
     Map<String,TDigest> tdigests = new HashMap<String,TDigest>();
+    // all values are new if the host has no statistics in the HostDb
+    long statsTime = Long.MIN_VALUE;
+    long newStatsTime = 0;
+    Map<String,TDigest> oldDigests = null;
+    HyperLogLog paths = null;
+    HyperLogLog oldPaths = null;
     
     HostDatum hostDatum = new HostDatum();
     float score = 0;
+    // fetch rate adapted by the fetcher, see FetchRateController
+    int fetchDelay = -1;
+    int fetchThreads = -1;
+    int oldFetchDelay = -1;
+    int oldFetchThreads = -1;
+    long fetchRateTime = Long.MIN_VALUE;
     
     if (stringFields != null) {
       for (int i = 0; i < stringFields.length; i++) {
@@ -174,6 +227,29 @@ public class UpdateHostDbReducer
         if (buffer.getRetriesSinceFetch() != 0) {
           hostDatum.incConnectionFailures();
         }
+
+        // Count the distinct paths
+        Writable pathHash = buffer.getMetaData().get(UpdateHostDbMapper.PATH_HASH_KEY);
+        if (pathHash instanceof LongWritable) {
+          if (paths == null) {
+            paths = new HyperLogLog();
+          }
+          paths.add(((LongWritable) pathHash).get());
+        }
+
+        // Keep the fetch rate of the most recent fetch, estimated as the
+        // next fetch time minus the fetch interval
+        long fetchTime = buffer.getFetchTime()
+            - buffer.getFetchInterval() * 1000L;
+        Writable delay = buffer.getMetaData().get(Nutch.WRITABLE_FETCH_DELAY_KEY);
+        Writable threads = buffer.getMetaData().get(Nutch.WRITABLE_FETCH_THREADS_KEY);
+        if (delay instanceof IntWritable && threads instanceof IntWritable) {
+          if (fetchTime > fetchRateTime) {
+            fetchRateTime = fetchTime;
+            fetchDelay = ((IntWritable) delay).get();
+            fetchThreads = ((IntWritable) threads).get();
+          }
+        }
         
         // Only gather metadata statistics for proper fetched pages
         if (buffer.getStatus() == CrawlDatum.STATUS_DB_FETCHED || buffer.getStatus() == CrawlDatum.STATUS_DB_NOTMODIFIED) {            
@@ -211,14 +287,10 @@ public class UpdateHostDbReducer
                   // Get it!
                   Float metadataValue = Float.parseFloat(buffer.getMetaData().get(numericFieldWritables[i]).toString());
                   
-                  // Does the median value exist?
-                  if (tdigests.containsKey(numericFields[i])) {
-                    tdigests.get(numericFields[i]).add(metadataValue);
-                  } else {
-                    // Create it!
-                    TDigest tdigest = TDigest.createDigest(100);
-                    tdigest.add((double)metadataValue);
-                    tdigests.put(numericFields[i], tdigest);
+                  // Only values fetched after the statistics time are new
+                  newStatsTime = Math.max(newStatsTime, fetchTime);
+                  if (fetchTime > statsTime) {
+                    addValue(tdigests, numericFields[i], metadataValue);
                   }
                 
                   // Does the minimum value exist?
@@ -254,7 +326,7 @@ public class UpdateHostDbReducer
                     counts.put(numericFields[i], 1);
                   }
                 } catch (Exception e) {
-                  LOG.error(e.getMessage() + " when processing values for " + key.toString());
+                  LOG.error(e.getMessage() + " when processing values for " + host);
                 }
               }
             }
@@ -295,6 +367,21 @@ public class UpdateHostDbReducer
         if (buffer.getScore() > 0) {
           hostDatum.setScore(buffer.getScore());
         }
+
+        // Keep the fetch rate if none is found in the CrawlDb
+        if (buffer.getFetchDelay() != -1) {
+          oldFetchDelay = buffer.getFetchDelay();
+          oldFetchThreads = buffer.getFetchThreads();
+        }
+
+        // Keep the sketches, values up to their statistics time are included
+        if (buffer.getStatsTime() > 0) {
+          statsTime = buffer.getStatsTime();
+          oldDigests = buffer.getDigests();
+        }
+        if (buffer.getPaths() != null) {
+          oldPaths = buffer.getPaths();
+        }
       }
 
       // Check for the score
@@ -308,6 +395,25 @@ public class UpdateHostDbReducer
     if (score > 0) {
       hostDatum.setScore(score);
     }
+
+    // Merge the new values into the sketches
+    if (oldDigests != null) {
+      for (Map.Entry<String, TDigest> entry : oldDigests.entrySet()) {
+        TDigest tdigest = tdigests.get(entry.getKey());
+        if (tdigest != null) {
+          entry.getValue().add(tdigest);
+        }
+        tdigests.put(entry.getKey(), entry.getValue());
+      }
+    }
+    for (Map.Entry<String, TDigest> entry : tdigests.entrySet()) {
+      hostDatum.setDigest(entry.getKey(), entry.getValue());
+    }
+    hostDatum.setStatsTime(Math.max(statsTime, newStatsTime));
+    if (oldPaths != null && paths != null) {
+      oldPaths.merge(paths);
+    }
+    hostDatum.setPaths(oldPaths != null ? oldPaths : paths);
     
     // Set metadata
     for (Map.Entry<String, Map<String,Integer>> entry : stringCounts.entrySet()) {
@@ -324,36 +430,179 @@ public class UpdateHostDbReducer
     for (Map.Entry<String, TDigest> entry : tdigests.entrySet()) {
       // Emit all percentiles
       for (int i = 0; i < percentiles.length; i++) {
-        hostDatum.getMetaData().put(new Text("pct" + Integer.toString(percentiles[i]) + "." + entry.getKey()), new FloatWritable((float)entry.getValue().quantile(0.5)));
+        hostDatum.getMetaData().put(new Text("pct" + Integer.toString(percentiles[i]) + "." + entry.getKey()), new FloatWritable((float)entry.getValue().quantile(percentiles[i] / 100.0)));
       }
     }      
     for (Map.Entry<String, Float> entry : minimums.entrySet()) {
       hostDatum.getMetaData().put(new Text("min." + entry.getKey()), new FloatWritable(entry.getValue()));
     }
+    if (fetchDelay != -1) {
+      hostDatum.setFetchRate(fetchDelay, fetchThreads);
+    } else if (oldFetchDelay != -1) {
+      hostDatum.setFetchRate(oldFetchDelay, oldFetchThreads);
+    }
     
     reporter.incrCounter("UpdateHostDb", "total_hosts", 1);
 
     // See if this record is to be checked
     if (shouldCheck(hostDatum)) {
-      // Make an entry
-      resolverThread = new ResolverThread(key.toString(), hostDatum, output, reporter, purgeFailedHostsThreshold);
-
-      // Add the entry to the queue (blocking)
-      try {
-        queue.put(resolverThread);
-      } catch (InterruptedException e) {
-        LOG.error("UpdateHostDb: " + StringUtils.stringifyException(e));
-      }
+      this.output = output;
+      this.reporter = reporter;
 
-      // Do not progress, the datum will be written in the resolver thread
-      return;
+      // The datum will be written once resolved
+      resolve(host.toString(), hostDatum);
     } else {
       reporter.incrCounter("UpdateHostDb", "skipped_not_eligible", 1);
-      LOG.info("UpdateHostDb: " + key.toString() + ": skipped_not_eligible");
+      LOG.info("UpdateHostDb: " + host + ": skipped_not_eligible");
+
+      // Write the host datum if it isn't resolved
+      output.collect(host, hostDatum);
     }
 
-    // Write the host datum if it wasn't written by the resolver thread
-    output.collect(key, hostDatum);
+    // Write the hosts resolved meanwhile
+    writeResolved();
+  }
+
+  /**
+    * Adds a value of a numeric field to its digest.
+    */
+  private static void addValue(Map<String,TDigest> tdigests, String field,
+    float value) {
+    TDigest tdigest = tdigests.get(field);
+    if (tdigest == null) {
+      tdigest = TDigest.createAVLTreeDigest(HostDatum.DIGEST_COMPRESSION);
+      tdigests.put(field, tdigest);
+    }
+    tdigest.add(value);
+  }
+
+  /**
+    * Starts the lookup of a host, waits while too many lookups are in flight.
+    */
+  protected void resolve(final String host, final HostDatum datum)
+    throws IOException {
+    try {
+      while (!inflight.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+        writeResolved();
+        reporter.progress();
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted resolving " + host);
+    }
+
+    HostResolver.Lookup lookup;
+    try {
+      lookup = resolver.resolve(host);
+    } catch (RuntimeException e) {
+      lookup = new HostResolver.Lookup();
+      lookup.completeExceptionally(e);
+    }
+    // the latency is measured from the start of the lookup by the resolver,
+    // not including the time waiting for a thread or the rate limit
+    final HostResolver.Lookup started = lookup;
+    lookup.whenComplete((address, error) -> {
+      if (error instanceof CompletionException && error.getCause() != null) {
+        error = error.getCause();
+      }
+      long start = started.getStartTime();
+      long latency = start < 0 ? 0
+          : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      resolved.add(new ResolvedHost(host, datum, error, latency));
+      inflight.release();
+    });
+  }
+
+  /**
+    * Writes the hosts resolved since the last call.
+    */
+  protected void writeResolved() throws IOException {
+    ResolvedHost host;
+    while ((host = resolved.poll()) != null) {
+      write(host);
+    }
+  }
+
+  /**
+    * Updates and writes the datum of a resolved host.
+    */
+  protected void write(ResolvedHost resolvedHost) throws IOException {
+    String host = resolvedHost.host;
+    HostDatum datum = resolvedHost.datum;
+    Text hostText = new Text(host);
+    Throwable error = resolvedHost.error;
+    reporter.incrCounter("UpdateHostDb", getLatencyCounter(resolvedHost.latency), 1);
+
+    if (error == null) {
+      if (datum.isEmpty()) {
+        reporter.incrCounter("UpdateHostDb", "new_known_host" ,1);
+        datum.setLastCheck();
+        LOG.info(host + ": new_known_host " + datum);
+      } else if (datum.getDnsFailures() > 0) {
+        reporter.incrCounter("UpdateHostDb", "rediscovered_host" ,1);
+        datum.setLastCheck();
+        datum.setDnsFailures(0);
+        LOG.info(host + ": rediscovered_host " + datum);
+      } else {
+        reporter.incrCounter("UpdateHostDb", "existing_known_host", 1);
+        datum.setLastCheck();
+        LOG.info(host + ": existing_known_host " + datum);
+      }
+
+      // Write the host datum
+      output.collect(hostText, datum);
+    } else if (error instanceof UnknownHostException) {
+      // If the counter is empty we'll initialize with date = today and 1 failure
+      if (datum.isEmpty()) {
+        datum.setLastCheck();
+        datum.setDnsFailures(1);
+        output.collect(hostText, datum);
+        reporter.incrCounter("UpdateHostDb", "new_unknown_host", 1);
+        LOG.info(host + ": new_unknown_host " + datum);
+      } else {
+        datum.setLastCheck();
+        datum.incDnsFailures();
+
+        // Check if this host should be forgotten
+        if (purgeFailedHostsThreshold == -1 ||
+          purgeFailedHostsThreshold < datum.getDnsFailures()) {
+
+          output.collect(hostText, datum);
+          reporter.incrCounter("UpdateHostDb", "existing_unknown_host" ,1);
+          LOG.info(host + ": existing_unknown_host " + datum);
+        } else {
+          reporter.incrCounter("UpdateHostDb", "purged_unknown_host" ,1);
+          LOG.info(host + ": purged_unknown_host " + datum);
+        }
+      }
+
+      reporter.incrCounter("UpdateHostDb",
+        Integer.toString(datum.numFailures()) + "_times_failed", 1);
+    } else {
+      // Not answered in time or failed, keep the host to check it again
+      if (error instanceof TimeoutException) {
+        reporter.incrCounter("UpdateHostDb", "resolve_timeout", 1);
+        LOG.info(host + ": resolve_timeout " + datum);
+      } else {
+        reporter.incrCounter("UpdateHostDb", "resolve_error", 1);
+        LOG.warn(host + ": " + StringUtils.stringifyException(error));
+      }
+      output.collect(hostText, datum);
+    }
+
+    reporter.incrCounter("UpdateHostDb", "checked_hosts", 1);
+  }
+
+  /**
+    * Returns the name of the latency counter of a lookup.
+    */
+  public static String getLatencyCounter(long latency) {
+    for (long bucket : LATENCY_BUCKETS) {
+      if (latency <= bucket) {
+        return "resolve_latency_le_" + bucket + "ms";
+      }
+    }
+    return "resolve_latency_gt_"
+      + LATENCY_BUCKETS[LATENCY_BUCKETS.length - 1] + "ms";
   }
 
   /**
@@ -399,31 +648,29 @@ public class UpdateHostDbReducer
   }
 
   /**
-    * Shut down all running threads and wait for completion.
+    * Waits for all lookups in flight, writes the resolved hosts and shuts
+    * down the resolver.
     */
-  public void close() {
+  public void close() throws IOException {
     LOG.info("UpdateHostDb: feeder finished, waiting for shutdown");
 
-    // If we're here all keys have been fed and we can issue a shut down
-    executor.shutdown();
-
-    boolean finished = false;
-
-    // Wait until all resolvers have finished
-    while (!finished) {
-      try {
-        // Wait for the executor to shut down completely
-        if (!executor.isTerminated()) {
-          LOG.info("UpdateHostDb: resolver threads waiting: " + Integer.toString(executor.getPoolSize()));
-          Thread.sleep(1000);
-        } else {
-          // All is well, get out
-          finished = true;
-        }
-      } catch (InterruptedException e) {
-        // Huh?
-        LOG.warn(StringUtils.stringifyException(e));
+    // Wait until all lookups have finished, write their results meanwhile
+    try {
+      while (!inflight.tryAcquire(maxInflight, 1, TimeUnit.SECONDS)) {
+        LOG.info("UpdateHostDb: lookups in flight: " + (maxInflight - inflight.availablePermits()));
+        writeResolved();
+        reporter.progress();
       }
+      writeResolved();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted waiting for lookups");
+    } finally {
+      resolver.close();
+    }
+
+    // Report the counters of the DNS cache
+    if (reporter != null) {
+      TaskCounters.report(reporter);
     }
   }
 }
\ No newline at end of file
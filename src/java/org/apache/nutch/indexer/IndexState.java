@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.indexer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.nutch.crawl.CrawlDatum;
+
+/**
+ * The state of a URL in the index, as of the last indexing job: whether the
+ * document was added or deleted, and the signature and modified time of the
+ * document added. Kept in an index state db, see
+ * <code>IndexingJob -incremental</code>, to skip documents which did not
+ * change since they were indexed.
+ */
+public class IndexState implements Writable {
+
+  public static final String CURRENT_NAME = "current";
+
+  private static final byte CUR_VERSION = 1;
+
+  public static final byte STATUS_INDEXED = 1;
+  public static final byte STATUS_DELETED = 2;
+
+  private byte status;
+  private byte[] signature;
+  private long modifiedTime;
+  private long indexTime;
+
+  public IndexState() {
+  }
+
+  public IndexState(byte status, byte[] signature, long modifiedTime,
+      long indexTime) {
+    this.status = status;
+    this.signature = signature;
+    this.modifiedTime = modifiedTime;
+    this.indexTime = indexTime;
+  }
+
+  public byte getStatus() {
+    return status;
+  }
+
+  public byte[] getSignature() {
+    return signature;
+  }
+
+  public long getModifiedTime() {
+    return modifiedTime;
+  }
+
+  /** @return the time the document was last added or deleted */
+  public long getIndexTime() {
+    return indexTime;
+  }
+
+  /**
+   * @return true if the document was added with the same signature and
+   *         modified time as those of the CrawlDb entry
+   */
+  public boolean isIndexed(CrawlDatum dbDatum) {
+    return status == STATUS_INDEXED && signature != null
+        && Arrays.equals(signature, dbDatum.getSignature())
+        && modifiedTime == dbDatum.getModifiedTime();
+  }
+
+  public boolean isDeleted() {
+    return status == STATUS_DELETED;
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    byte version = in.readByte();
+    if (version > CUR_VERSION) {
+      throw new IOException("Unknown IndexState version " + version);
+    }
+    status = in.readByte();
+    int length = in.readByte() & 0xff;
+    if (length > 0) {
+      signature = new byte[length];
+      in.readFully(signature);
+    } else {
+      signature = null;
+    }
+    modifiedTime = in.readLong();
+    indexTime = in.readLong();
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeByte(CUR_VERSION);
+    out.writeByte(status);
+    if (signature == null) {
+      out.writeByte(0);
+    } else {
+      out.writeByte(signature.length);
+      out.write(signature);
+    }
+    out.writeLong(modifiedTime);
+    out.writeLong(indexTime);
+  }
+
+  public String toString() {
+    return (status == STATUS_INDEXED ? "indexed" : "deleted")
+        + ", modifiedTime=" + modifiedTime + ", indexTime=" + indexTime;
+  }
+}
@@ -17,8 +17,13 @@
 package org.apache.nutch.indexer;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.invoke.MethodHandles;
 import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.mapred.JobConf;
@@ -31,13 +36,183 @@ import org.apache.nutch.util.ObjectCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-/** Creates and caches {@link IndexWriter} implementing plugins. */
+/**
+ * Creates and caches {@link IndexWriter} implementing plugins.
+ *
+ * <p>
+ * If <code>indexer.writers.async</code> is true, documents and deletions are
+ * passed to every writer by a thread of its own through a bounded queue
+ * (<code>indexer.writers.queue.size</code>): writers work concurrently and the
+ * caller only blocks while the queue of a writer is full. Errors of a writer
+ * are thrown by the next call. {@link #commit()} and {@link #close()} wait
+ * until all queued operations are done. After an error the operations of the
+ * writer are skipped, except that it is still closed.
+ */
 public class IndexWriters {
 
   private static final Logger LOG = LoggerFactory
       .getLogger(MethodHandles.lookup().lookupClass());
 
   private IndexWriter[] indexWriters;
+  private AsyncWriter[] asyncWriters;
+
+  /** An operation of a writer, queued to be done asynchronously */
+  private interface Operation {
+    void apply(IndexWriter writer) throws IOException;
+  }
+
+  /** Closes a writer, done even after an error of the writer */
+  private static final Operation CLOSE = writer -> writer.close();
+
+  /** Applies the queued operations to a writer, in order, in a thread. */
+  private static class AsyncWriter implements Runnable {
+    private final IndexWriter writer;
+    private final BlockingQueue<Operation> queue;
+    private final Thread thread;
+    private volatile IOException error;
+    private long blockedTime = 0;
+
+    AsyncWriter(IndexWriter writer, int queueSize) {
+      this.writer = writer;
+      this.queue = new ArrayBlockingQueue<>(queueSize);
+      this.thread = new Thread(this, "IndexWriter-"
+          + writer.getClass().getSimpleName());
+      this.thread.setDaemon(true);
+      this.thread.start();
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        Operation operation;
+        try {
+          operation = queue.take();
+        } catch (InterruptedException e) {
+          return;
+        }
+        if (operation instanceof Barrier) {
+          ((Barrier) operation).latch.countDown();
+          if (((Barrier) operation).close) {
+            return;
+          }
+          continue;
+        }
+        if (error != null && operation != CLOSE) {
+          // skip all operations after a failure
+          continue;
+        }
+        try {
+          operation.apply(writer);
+        } catch (Throwable t) {
+          // also errors of plugins, e.g. NoClassDefFoundError
+          if (error == null) {
+            error = t instanceof IOException ? (IOException) t
+                : new IOException(t);
+          }
+        }
+      }
+    }
+
+    /** Queue an operation, blocking while the queue is full. */
+    void put(Operation operation) throws IOException {
+      checkError();
+      offer(operation);
+    }
+
+    /** Queue an operation, fail if the thread has stopped. */
+    private void offer(Operation operation) throws IOException {
+      if (queue.offer(operation)) {
+        return;
+      }
+      long start = System.nanoTime();
+      try {
+        while (!queue.offer(operation, 100, TimeUnit.MILLISECONDS)) {
+          checkAlive();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while queuing for "
+            + writer.getClass().getName());
+      }
+      blockedTime += System.nanoTime() - start;
+    }
+
+    /**
+     * Queue a barrier, to wait for the operations queued before.
+     *
+     * @param close
+     *          stop the thread after the barrier
+     */
+    Barrier barrier(boolean close) throws IOException {
+      Barrier barrier = new Barrier(close);
+      offer(barrier);
+      return barrier;
+    }
+
+    /** Wait until the operations queued before the barrier are done. */
+    void await(Barrier barrier) throws IOException {
+      try {
+        while (!barrier.latch.await(100, TimeUnit.MILLISECONDS)) {
+          if (barrier.latch.getCount() > 0) {
+            checkAlive();
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for "
+            + writer.getClass().getName());
+      }
+    }
+
+    /**
+     * Close the writer, also after an error, and stop the thread.
+     *
+     * @return the barrier to wait for the close, null if the writer was closed
+     *         by the calling thread
+     */
+    Barrier close() throws IOException {
+      if (!thread.isAlive()) {
+        writer.close();
+        return null;
+      }
+      offer(CLOSE);
+      return barrier(true);
+    }
+
+    /** Fail if the thread has stopped, e.g. if it was interrupted. */
+    private void checkAlive() throws IOException {
+      if (!thread.isAlive()) {
+        checkError();
+        throw new IOException("Thread writing to "
+            + writer.getClass().getName() + " has stopped");
+      }
+    }
+
+    void checkError() throws IOException {
+      if (error != null) {
+        throw new IOException("Failed to write to "
+            + writer.getClass().getName(), error);
+      }
+    }
+  }
+
+  private static class Barrier implements Operation {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final boolean close;
+
+    Barrier(boolean close) {
+      this.close = close;
+    }
+
+    @Override
+    public void apply(IndexWriter writer) {
+    }
+  }
+
+  // package protected for tests
+  IndexWriters(IndexWriter[] indexWriters) {
+    this.indexWriters = indexWriters;
+  }
 
   public IndexWriters(Configuration conf) {
     ObjectCache objectCache = ObjectCache.get(conf);
@@ -79,9 +254,43 @@ public class IndexWriters {
         throw ioe;
       }
     }
+    if (job.getBoolean("indexer.writers.async", false)) {
+      int queueSize = job.getInt("indexer.writers.queue.size", 1000);
+      asyncWriters = new AsyncWriter[this.indexWriters.length];
+      for (int i = 0; i < this.indexWriters.length; i++) {
+        asyncWriters[i] = new AsyncWriter(this.indexWriters[i], queueSize);
+      }
+      LOG.info("Writing asynchronously to {} IndexWriters, queue size = {}",
+          this.indexWriters.length, queueSize);
+    }
+  }
+
+  /** Queue an operation for all writers. */
+  private void queue(Operation operation) throws IOException {
+    for (int i = 0; i < asyncWriters.length; i++) {
+      asyncWriters[i].put(operation);
+    }
+  }
+
+  /** Wait until all writers have done the queued operations. */
+  private void await(boolean close) throws IOException {
+    Barrier[] barriers = new Barrier[asyncWriters.length];
+    for (int i = 0; i < asyncWriters.length; i++) {
+      barriers[i] = asyncWriters[i].barrier(close);
+    }
+    for (int i = 0; i < barriers.length; i++) {
+      asyncWriters[i].await(barriers[i]);
+    }
+    for (int i = 0; i < asyncWriters.length; i++) {
+      asyncWriters[i].checkError();
+    }
   }
 
   public void write(NutchDocument doc) throws IOException {
+    if (asyncWriters != null) {
+      queue(writer -> writer.write(doc));
+      return;
+    }
     for (int i = 0; i < this.indexWriters.length; i++) {
       try {
         this.indexWriters[i].write(doc);
@@ -92,6 +301,10 @@ public class IndexWriters {
   }
 
   public void update(NutchDocument doc) throws IOException {
+    if (asyncWriters != null) {
+      queue(writer -> writer.update(doc));
+      return;
+    }
     for (int i = 0; i < this.indexWriters.length; i++) {
       try {
         this.indexWriters[i].update(doc);
@@ -102,6 +315,10 @@ public class IndexWriters {
   }
 
   public void delete(String key) throws IOException {
+    if (asyncWriters != null) {
+      queue(writer -> writer.delete(key));
+      return;
+    }
     for (int i = 0; i < this.indexWriters.length; i++) {
       try {
         this.indexWriters[i].delete(key);
@@ -112,6 +329,41 @@ public class IndexWriters {
   }
 
   public void close() throws IOException {
+    if (asyncWriters != null) {
+      // close all writers, even those which failed, report the first error
+      IOException error = null;
+      Barrier[] barriers = new Barrier[asyncWriters.length];
+      try {
+        for (int i = 0; i < asyncWriters.length; i++) {
+          try {
+            barriers[i] = asyncWriters[i].close();
+          } catch (IOException e) {
+            error = error == null ? e : error;
+          }
+        }
+        for (int i = 0; i < asyncWriters.length; i++) {
+          try {
+            if (barriers[i] != null) {
+              asyncWriters[i].await(barriers[i]);
+            }
+            asyncWriters[i].checkError();
+          } catch (IOException e) {
+            error = error == null ? e : error;
+          }
+        }
+      } finally {
+        for (int i = 0; i < asyncWriters.length; i++) {
+          LOG.info("{} blocked on a full queue for {} ms",
+              asyncWriters[i].writer.getClass().getName(),
+              asyncWriters[i].blockedTime / 1000000);
+        }
+        asyncWriters = null;
+      }
+      if (error != null) {
+        throw error;
+      }
+      return;
+    }
     for (int i = 0; i < this.indexWriters.length; i++) {
       try {
         this.indexWriters[i].close();
@@ -122,6 +374,11 @@ public class IndexWriters {
   }
 
   public void commit() throws IOException {
+    if (asyncWriters != null) {
+      queue(writer -> writer.commit());
+      await(false);
+      return;
+    }
     for (int i = 0; i < this.indexWriters.length; i++) {
       try {
         this.indexWriters[i].commit();
@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.lang.invoke.MethodHandles;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.Random;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,13 +31,17 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+import org.apache.hadoop.mapred.lib.MultipleOutputs;
 import org.apache.nutch.crawl.CrawlDatum;
 import org.apache.nutch.crawl.CrawlDb;
 import org.apache.nutch.crawl.Inlinks;
@@ -53,6 +58,7 @@ import org.apache.nutch.parse.ParseText;
 import org.apache.nutch.protocol.Content;
 import org.apache.nutch.scoring.ScoringFilterException;
 import org.apache.nutch.scoring.ScoringFilters;
+import org.apache.nutch.util.FSUtils;
 
 public class IndexerMapReduce extends Configured implements
     Mapper<Text, Writable, Text, NutchWritable>,
@@ -69,6 +75,11 @@ public class IndexerMapReduce extends Configured implements
   public static final String URL_FILTERING = "indexer.url.filters";
   public static final String URL_NORMALIZING = "indexer.url.normalizers";
   public static final String INDEXER_BINARY_AS_BASE64 = "indexer.binary.base64";
+  public static final String INDEXER_STATE_DB = "indexer.state.db";
+  public static final String INDEXER_INCREMENTAL_MAX_AGE = "indexer.incremental.max.age";
+
+  /** Name of the output holding the new index state */
+  public static final String INDEX_STATE_OUTPUT = "indexstate";
 
   private boolean skip = false;
   private boolean delete = false;
@@ -78,6 +89,10 @@ public class IndexerMapReduce extends Configured implements
   private IndexingFilters filters;
   private ScoringFilters scfilters;
 
+  // incremental indexing: previous and new index state of URLs
+  private MultipleOutputs indexStateOutputs;
+  private long maxIndexAge = -1;
+
   // using normalizers and/or filters
   private boolean normalize = false;
   private boolean filter = false;
@@ -101,6 +116,10 @@ public class IndexerMapReduce extends Configured implements
         false);
     this.skip = job.getBoolean(INDEXER_SKIP_NOTMODIFIED, false);
     this.base64 = job.getBoolean(INDEXER_BINARY_AS_BASE64, false);
+    if (job.get(INDEXER_STATE_DB) != null) {
+      indexStateOutputs = new MultipleOutputs(job);
+      maxIndexAge = job.getLong(INDEXER_INCREMENTAL_MAX_AGE, -1) * 1000;
+    }
 
     normalize = job.getBoolean(URL_NORMALIZING, false);
     filter = job.getBoolean(URL_FILTERING, false);
@@ -181,9 +200,80 @@ public class IndexerMapReduce extends Configured implements
     output.collect(key, new NutchWritable(value));
   }
 
+  /**
+   * Passes the index actions on and derives the new index state of a URL from
+   * the previous state and the action taken. Deletions of documents already
+   * deleted are dropped.
+   */
+  private class IndexStateTracker implements
+      OutputCollector<Text, NutchIndexAction> {
+    private final OutputCollector<Text, NutchIndexAction> output;
+    private final Reporter reporter;
+    IndexState previous;
+    CrawlDatum dbDatum;
+    private IndexState state;
+
+    IndexStateTracker(OutputCollector<Text, NutchIndexAction> output,
+        Reporter reporter) {
+      this.output = output;
+      this.reporter = reporter;
+    }
+
+    public void collect(Text key, NutchIndexAction action)
+        throws IOException {
+      long now = System.currentTimeMillis();
+      if (action.action == NutchIndexAction.DELETE) {
+        if (previous != null && previous.isDeleted()) {
+          reporter.incrCounter("IndexerStatus", "skipped (already deleted)", 1);
+          state = previous;
+          return;
+        }
+        state = new IndexState(IndexState.STATUS_DELETED, null, 0, now);
+      } else {
+        state = new IndexState(IndexState.STATUS_INDEXED,
+            dbDatum.getSignature(), dbDatum.getModifiedTime(), now);
+      }
+      output.collect(key, action);
+    }
+
+    /** @return true if the document is indexed as is in the CrawlDb */
+    boolean isUnchanged() {
+      return previous != null && previous.isIndexed(dbDatum)
+          && (maxIndexAge < 0
+              || System.currentTimeMillis() - previous.getIndexTime() < maxIndexAge);
+    }
+
+    /** @return the new state, the previous one if no action was taken */
+    IndexState getState() {
+      return state != null ? state : previous;
+    }
+  }
+
   public void reduce(Text key, Iterator<NutchWritable> values,
       OutputCollector<Text, NutchIndexAction> output, Reporter reporter)
           throws IOException {
+    if (indexStateOutputs == null) {
+      reduce(key, values, output, reporter, null);
+      return;
+    }
+    IndexStateTracker tracker = new IndexStateTracker(output, reporter);
+    reduce(key, values, tracker, reporter, tracker);
+    IndexState state = tracker.getState();
+    if (state != null) {
+      getIndexStateCollector(reporter).collect(key, state);
+    }
+  }
+
+  /** @return the collector of the new index state */
+  @SuppressWarnings("unchecked")
+  protected OutputCollector<Text, IndexState> getIndexStateCollector(
+      Reporter reporter) throws IOException {
+    return indexStateOutputs.getCollector(INDEX_STATE_OUTPUT, reporter);
+  }
+
+  private void reduce(Text key, Iterator<NutchWritable> values,
+      OutputCollector<Text, NutchIndexAction> output, Reporter reporter,
+      IndexStateTracker tracker) throws IOException {
     Inlinks inlinks = null;
     CrawlDatum dbDatum = null;
     CrawlDatum fetchDatum = null;
@@ -232,6 +322,10 @@ public class IndexerMapReduce extends Configured implements
         parseText = (ParseText) value;
       } else if (value instanceof Content) {
         content = (Content)value;
+      } else if (value instanceof IndexState) {
+        if (tracker != null) {
+          tracker.previous = (IndexState) value;
+        }
       } else if (LOG.isWarnEnabled()) {
         LOG.warn("Unrecognized type: " + value.getClass());
       }
@@ -279,6 +373,15 @@ public class IndexerMapReduce extends Configured implements
       return;
     }
 
+    // Whether to skip documents indexed with the same signature
+    if (tracker != null) {
+      tracker.dbDatum = dbDatum;
+      if (tracker.isUnchanged()) {
+        reporter.incrCounter("IndexerStatus", "skipped (unchanged)", 1);
+        return;
+      }
+    }
+
     NutchDocument doc = new NutchDocument();
     doc.add("id", key.toString());
 
@@ -369,6 +472,9 @@ public class IndexerMapReduce extends Configured implements
   }
 
   public void close() throws IOException {
+    if (indexStateOutputs != null) {
+      indexStateOutputs.close();
+    }
   }
 
   public static void initMRJob(Path crawlDb, Path linkDb,
@@ -420,4 +526,47 @@ public class IndexerMapReduce extends Configured implements
     job.setMapOutputValueClass(NutchWritable.class);
     job.setOutputValueClass(NutchWritable.class);
   }
+
+  /**
+   * Index incrementally: documents indexed before with the same signature
+   * and modified time are skipped, and documents are not deleted twice. The
+   * previous index state of all URLs is read from the index state db, the new
+   * state is written to the output {@link #INDEX_STATE_OUTPUT} and has to be
+   * installed after the job succeeded, see
+   * {@link #installIndexState(JobConf, Path)}.
+   */
+  public static void initIndexState(JobConf job, Path indexStateDb)
+      throws IOException {
+    LOG.info("IndexerMapReduce: index state db: {}", indexStateDb);
+    job.set(INDEXER_STATE_DB, indexStateDb.toString());
+    Path current = new Path(indexStateDb, IndexState.CURRENT_NAME);
+    if (current.getFileSystem(job).exists(current)) {
+      FileInputFormat.addInputPath(job, current);
+    } else {
+      LOG.info("IndexerMapReduce: no index state found, indexing all documents");
+    }
+    MultipleOutputs.addNamedOutput(job, INDEX_STATE_OUTPUT,
+        SequenceFileOutputFormat.class, Text.class, IndexState.class);
+  }
+
+  /**
+   * Replace the index state db by the state written by a job.
+   */
+  public static void installIndexState(JobConf job, Path indexStateDb)
+      throws IOException {
+    Path output = FileOutputFormat.getOutputPath(job);
+    FileSystem fs = output.getFileSystem(job);
+    Path newState = new Path(indexStateDb,
+        Integer.toString(new Random().nextInt(Integer.MAX_VALUE)));
+    fs.mkdirs(newState);
+    FileStatus[] files = fs.listStatus(output,
+        path -> path.getName().startsWith(INDEX_STATE_OUTPUT + "-"));
+    for (FileStatus file : files) {
+      fs.rename(file.getPath(), new Path(newState, file.getPath().getName()));
+    }
+    FSUtils.replace(fs, new Path(indexStateDb, IndexState.CURRENT_NAME),
+        newState, true);
+    LOG.info("IndexerMapReduce: index state of {} parts installed in {}",
+        files.length, indexStateDb);
+  }
 }
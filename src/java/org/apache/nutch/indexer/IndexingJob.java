@@ -101,6 +101,20 @@ public class IndexingJob extends NutchTool implements Tool {
       boolean noCommit, boolean deleteGone, String params,
       boolean filter, boolean normalize, boolean addBinaryContent,
       boolean base64) throws IOException {
+    index(crawlDb, linkDb, segments, noCommit, deleteGone, params, filter,
+        normalize, addBinaryContent, base64, null);
+  }
+
+  /**
+   * @param indexStateDb
+   *          if not null, index incrementally: skip documents which did not
+   *          change since they were indexed, as recorded in the index state
+   *          db, and update the index state db
+   */
+  public void index(Path crawlDb, Path linkDb, List<Path> segments,
+      boolean noCommit, boolean deleteGone, String params,
+      boolean filter, boolean normalize, boolean addBinaryContent,
+      boolean base64, Path indexStateDb) throws IOException {
 
 
     SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
@@ -124,6 +138,9 @@ public class IndexingJob extends NutchTool implements Tool {
     LOG.info(writers.describe());
 
     IndexerMapReduce.initMRJob(crawlDb, linkDb, segments, job, addBinaryContent);
+    if (indexStateDb != null) {
+      IndexerMapReduce.initIndexState(job, indexStateDb);
+    }
 
     // NOW PASSED ON THE COMMAND LINE AS A HADOOP PARAM
     // job.set(SolrConstants.SERVER_URL, solrUrl);
@@ -145,6 +162,9 @@ public class IndexingJob extends NutchTool implements Tool {
     FileOutputFormat.setOutputPath(job, tmp);
     try {
       RunningJob indexJob = JobClient.runJob(job);
+      if (indexStateDb != null) {
+        IndexerMapReduce.installIndexState(job, indexStateDb);
+      }
       // do the commits once and for all the reducers in one go
       if (!noCommit) {
         writers.open(job, "commit");
@@ -168,7 +188,7 @@ public class IndexingJob extends NutchTool implements Tool {
     if (args.length < 2) {
       System.err
       //.println("Usage: Indexer <crawldb> [-linkdb <linkdb>] [-params k1=v1&k2=v2...] (<segment> ... | -dir <segments>) [-noCommit] [-deleteGone] [-filter] [-normalize]");
-      .println("Usage: Indexer <crawldb> [-linkdb <linkdb>] [-params k1=v1&k2=v2...] (<segment> ... | -dir <segments>) [-noCommit] [-deleteGone] [-filter] [-normalize] [-addBinaryContent] [-base64]");
+      .println("Usage: Indexer <crawldb> [-linkdb <linkdb>] [-params k1=v1&k2=v2...] (<segment> ... | -dir <segments>) [-noCommit] [-deleteGone] [-filter] [-normalize] [-addBinaryContent] [-base64] [-incremental <indexstatedb>]");
       IndexWriters writers = new IndexWriters(getConf());
       System.err.println(writers.describe());
       return -1;
@@ -186,6 +206,7 @@ public class IndexingJob extends NutchTool implements Tool {
     boolean normalize = false;
     boolean addBinaryContent = false;
     boolean base64 = false;
+    Path indexStateDb = null;
 
     for (int i = 1; i < args.length; i++) {
       FileSystem fs = null;
@@ -215,6 +236,8 @@ public class IndexingJob extends NutchTool implements Tool {
         addBinaryContent = true;
       } else if (args[i].equals("-base64")) {
         base64 = true;
+      } else if (args[i].equals("-incremental")) {
+        indexStateDb = new Path(args[++i]);
       } else if (args[i].equals("-params")) {
         params = args[++i];
       } else {
@@ -227,7 +250,7 @@ public class IndexingJob extends NutchTool implements Tool {
     }
 
     try {
-      index(crawlDb, linkDb, segments, noCommit, deleteGone, params, filter, normalize, addBinaryContent, base64);
+      index(crawlDb, linkDb, segments, noCommit, deleteGone, params, filter, normalize, addBinaryContent, base64, indexStateDb);
       return 0;
     } catch (final Exception e) {
       LOG.error("Indexer: {}", StringUtils.stringifyException(e));
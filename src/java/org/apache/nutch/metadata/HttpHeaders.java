@@ -48,4 +48,6 @@ public interface HttpHeaders {
 
   public final static String LOCATION = "Location";
 
+  public final static String RETRY_AFTER = "Retry-After";
+
 }
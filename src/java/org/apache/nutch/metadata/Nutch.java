@@ -52,6 +52,18 @@ public interface Nutch {
 
 	public static final String FETCH_STATUS_KEY = "_fst_";
 
+	/** Crawl delay of the host adapted by the fetcher, in milliseconds */
+	public static final String FETCH_DELAY_KEY = "_fdelay_";
+
+	public static final Text WRITABLE_FETCH_DELAY_KEY = new Text(
+			FETCH_DELAY_KEY);
+
+	/** Number of threads per queue adapted by the fetcher */
+	public static final String FETCH_THREADS_KEY = "_fthreads_";
+
+	public static final Text WRITABLE_FETCH_THREADS_KEY = new Text(
+			FETCH_THREADS_KEY);
+
 	/**
 	 * Sites may request that search engines don't provide access to cached
 	 * documents.
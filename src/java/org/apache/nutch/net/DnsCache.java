@@ -0,0 +1,230 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.net;
+
+import java.lang.invoke.MethodHandles;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.util.NutchConfiguration;
+import org.apache.nutch.util.TaskCounters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * JVM-wide cache of DNS lookups, shared by the {@link
+ * org.apache.nutch.crawl.URLPartitioner}, the fetcher queues and the HostDb
+ * resolver threads.
+ *
+ * <p>
+ * Successful lookups are kept for <code>dns.cache.ttl</code> seconds, failed
+ * ones for <code>dns.cache.negative.ttl</code> seconds. At most
+ * <code>dns.cache.size</code> hosts are cached, the least recently used ones
+ * are evicted first. Concurrent lookups of the same host are merged into a
+ * single query. Hosts can be resolved ahead of time in the background by
+ * {@link #prefetch(String)}.
+ *
+ * <p>
+ * Hits, misses, failed lookups and the latency of lookups are counted in the
+ * group <code>DnsCache</code> of {@link TaskCounters}.
+ */
+public class DnsCache {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  public static final String COUNTER_GROUP = "DnsCache";
+
+  private static DnsCache instance;
+
+  /** A cached lookup, pending until the address future is completed. */
+  private static class Entry {
+    final CompletableFuture<InetAddress> address = new CompletableFuture<>();
+    volatile long expires = Long.MAX_VALUE;
+  }
+
+  private final Map<String, Entry> cache;
+  private final int maxSize;
+  private final long ttl;
+  private final long negativeTtl;
+  private final ThreadPoolExecutor prefetcher;
+
+  public DnsCache(Configuration conf) {
+    maxSize = conf.getInt("dns.cache.size", 100000);
+    ttl = conf.getLong("dns.cache.ttl", 3600) * 1000;
+    negativeTtl = conf.getLong("dns.cache.negative.ttl", 300) * 1000;
+    cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxSize;
+      }
+    };
+    int threads = conf.getInt("dns.cache.prefetch.threads", 10);
+    if (threads > 0 && maxSize > 0) {
+      prefetcher = new ThreadPoolExecutor(threads, threads, 60,
+          TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(maxSize),
+          new ThreadFactoryBuilder().setNameFormat("dns-prefetch-%d")
+              .setDaemon(true).build());
+      prefetcher.allowCoreThreadTimeOut(true);
+    } else {
+      prefetcher = null;
+    }
+    LOG.info("DNS cache: size = {}, ttl = {} ms, negative ttl = {} ms,"
+        + " prefetch threads = {}", maxSize, ttl, negativeTtl, threads);
+  }
+
+  /**
+   * Get the cache of this JVM, it is created from the given configuration
+   * when called for the first time.
+   */
+  public static synchronized DnsCache get(Configuration conf) {
+    if (instance == null) {
+      instance = new DnsCache(conf);
+    }
+    return instance;
+  }
+
+  /**
+   * Get the cache of this JVM, it is created from the default configuration
+   * if it does not exist yet.
+   */
+  public static synchronized DnsCache get() {
+    if (instance == null) {
+      instance = new DnsCache(NutchConfiguration.create());
+    }
+    return instance;
+  }
+
+  /**
+   * Resolve a host name, see {@link InetAddress#getByName(String)}.
+   *
+   * @throws UnknownHostException
+   *           if the host could not be resolved, now or recently
+   */
+  public InetAddress resolve(String host) throws UnknownHostException {
+    if (host == null || host.isEmpty() || maxSize <= 0) {
+      return InetAddress.getByName(host);
+    }
+    String key = host.toLowerCase(Locale.ROOT);
+    Entry entry;
+    boolean lookup = false;
+    synchronized (cache) {
+      entry = cache.get(key);
+      if (entry == null || entry.expires <= System.currentTimeMillis()) {
+        entry = new Entry();
+        cache.put(key, entry);
+        lookup = true;
+      }
+    }
+    if (lookup) {
+      TaskCounters.increment(COUNTER_GROUP, "miss");
+      lookup(key, entry);
+    } else {
+      TaskCounters.increment(COUNTER_GROUP, "hit");
+    }
+    try {
+      return entry.address.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof UnknownHostException) {
+        throw (UnknownHostException) e.getCause();
+      } else if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Resolve a host in the background unless a valid lookup is cached. This is
+   * best effort: if too many lookups are queued, the host is skipped.
+   */
+  public void prefetch(String host) {
+    if (prefetcher == null || host == null || host.isEmpty()) {
+      return;
+    }
+    final String key = host.toLowerCase(Locale.ROOT);
+    synchronized (cache) {
+      Entry entry = cache.get(key);
+      if (entry != null && entry.expires > System.currentTimeMillis()) {
+        return;
+      }
+    }
+    try {
+      prefetcher.execute(() -> {
+        try {
+          resolve(key);
+        } catch (UnknownHostException e) {
+          // cached as failed lookup
+        }
+      });
+      TaskCounters.increment(COUNTER_GROUP, "prefetch");
+    } catch (RejectedExecutionException e) {
+      TaskCounters.increment(COUNTER_GROUP, "prefetch_rejected");
+    }
+  }
+
+  private void lookup(String host, Entry entry) {
+    long start = System.nanoTime();
+    try {
+      InetAddress address = InetAddress.getByName(host);
+      entry.expires = System.currentTimeMillis() + ttl;
+      entry.address.complete(address);
+    } catch (UnknownHostException e) {
+      TaskCounters.increment(COUNTER_GROUP, "failed");
+      entry.expires = System.currentTimeMillis() + negativeTtl;
+      entry.address.completeExceptionally(e);
+    } catch (RuntimeException e) {
+      // do not cache unexpected errors
+      entry.expires = 0;
+      entry.address.completeExceptionally(e);
+    } finally {
+      long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      TaskCounters.increment(COUNTER_GROUP, "lookup_time_ms", elapsed);
+      TaskCounters.increment(COUNTER_GROUP, getLatencyBucket(elapsed));
+    }
+  }
+
+  private static String getLatencyBucket(long elapsed) {
+    if (elapsed < 10) {
+      return "lookup_lt_10ms";
+    } else if (elapsed < 100) {
+      return "lookup_lt_100ms";
+    } else if (elapsed < 1000) {
+      return "lookup_lt_1s";
+    }
+    return "lookup_ge_1s";
+  }
+
+  /** @return the number of cached hosts, including pending lookups */
+  public int size() {
+    synchronized (cache) {
+      return cache.size();
+    }
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.net;
+
+import java.lang.invoke.MethodHandles;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.util.ObjectCache;
+import org.apache.nutch.util.TaskCounters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded cache of the results of {@link URLNormalizers} and
+ * {@link URLFilters}, shared by all instances created from the same
+ * configuration, i.e. within a task. The same URLs, e.g. navigation links
+ * present on every page of a site, are then normalized and filtered only once.
+ *
+ * <p>
+ * The cache is enabled by setting <code>url.cache.size</code> to the maximum
+ * number of entries. Entries are keyed by a 128-bit hash of the namespace
+ * (normalizer scope or filters) and the URL, the URL itself is not kept. If
+ * the result equals the URL, or the URL is rejected, no string is stored
+ * either. The cache is a set-associative table without locks: a colliding
+ * insertion replaces an older entry.
+ *
+ * <p>
+ * Hits and misses are counted per namespace in the group <code>URLCache</code>
+ * of {@link TaskCounters}.
+ */
+public class URLCache {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  public static final String URL_CACHE_SIZE = "url.cache.size";
+
+  public static final String COUNTER_GROUP = "URLCache";
+
+  /** Cached result for URLs which have been rejected */
+  static final String REJECTED = new String("REJECTED");
+
+  /** Cached result for URLs which have not been changed */
+  private static final String UNCHANGED = new String("UNCHANGED");
+
+  /** Number of slots which may hold an entry */
+  private static final int WAYS = 4;
+
+  private static class Entry {
+    final long hash1;
+    final long hash2;
+    final String result;
+
+    Entry(long hash1, long hash2, String result) {
+      this.hash1 = hash1;
+      this.hash2 = hash2;
+      this.result = result;
+    }
+  }
+
+  /**
+   * Entries are immutable, so that the table can be read and written without
+   * synchronization.
+   */
+  private final Entry[] table;
+  private final int mask;
+
+  URLCache(int size) {
+    int capacity = Integer.highestOneBit(Math.max(WAYS, size - 1)) << 1;
+    table = new Entry[capacity];
+    mask = capacity - 1;
+  }
+
+  /**
+   * Get the cache shared by all users of the configuration.
+   *
+   * @return the cache, or null if disabled by <code>url.cache.size</code>
+   */
+  public static URLCache get(Configuration conf) {
+    int size = conf.getInt(URL_CACHE_SIZE, 0);
+    if (size <= 0) {
+      return null;
+    }
+    ObjectCache objectCache = ObjectCache.get(conf);
+    synchronized (objectCache) {
+      URLCache cache = (URLCache) objectCache.getObject(URLCache.class
+          .getName());
+      if (cache == null) {
+        cache = new URLCache(size);
+        objectCache.setObject(URLCache.class.getName(), cache);
+        LOG.info("URL normalizer and filter cache: size = {}", cache.table.length);
+      }
+      return cache;
+    }
+  }
+
+  /**
+   * A namespace of the cache, results of different namespaces do not collide.
+   */
+  public Namespace namespace(String name) {
+    return new Namespace(name);
+  }
+
+  public class Namespace {
+
+    private final long seed1;
+    private final long seed2;
+    private final String hitCounter;
+    private final String missCounter;
+
+    private Namespace(String name) {
+      seed1 = hash1(0x9E3779B97F4A7C15L, name);
+      seed2 = hash2(0xCBF29CE484222325L, name);
+      hitCounter = name + "_hit";
+      missCounter = name + "_miss";
+    }
+
+    /**
+     * @return the cached result for the URL, {@link URLCache#REJECTED} if
+     *         the URL has been rejected, or null if the URL is not cached
+     */
+    String get(String url) {
+      long h1 = hash1(seed1, url);
+      long h2 = hash2(seed2, url);
+      int index = (int) h1 & mask & ~(WAYS - 1);
+      for (int i = index; i < index + WAYS; i++) {
+        Entry entry = table[i];
+        if (entry != null && entry.hash1 == h1 && entry.hash2 == h2) {
+          TaskCounters.increment(COUNTER_GROUP, hitCounter);
+          return entry.result == UNCHANGED ? url : entry.result;
+        }
+      }
+      TaskCounters.increment(COUNTER_GROUP, missCounter);
+      return null;
+    }
+
+    /**
+     * Cache the result for the URL.
+     *
+     * @param result
+     *          the normalized or filtered URL, null if the URL was rejected
+     */
+    void put(String url, String result) {
+      long h1 = hash1(seed1, url);
+      long h2 = hash2(seed2, url);
+      if (result == null) {
+        result = REJECTED;
+      } else if (result.equals(url)) {
+        result = UNCHANGED;
+      }
+      int index = (int) h1 & mask & ~(WAYS - 1);
+      int slot = index + (int) (h2 >>> 62);
+      for (int i = index; i < index + WAYS; i++) {
+        if (table[i] == null) {
+          slot = i;
+          break;
+        }
+      }
+      table[slot] = new Entry(h1, h2, result);
+    }
+  }
+
+  /** @return the number of cached entries */
+  public int size() {
+    int size = 0;
+    for (Entry entry : table) {
+      if (entry != null) {
+        size++;
+      }
+    }
+    return size;
+  }
+
+  private static long hash1(long h, String s) {
+    for (int i = 0; i < s.length(); i++) {
+      h = (h + s.charAt(i)) * 0x9E3779B97F4A7C15L;
+    }
+    return mix(h ^ s.length());
+  }
+
+  private static long hash2(long h, String s) {
+    for (int i = 0; i < s.length(); i++) {
+      h = (h ^ s.charAt(i)) * 0x100000001B3L;
+    }
+    return mix(h + s.length());
+  }
+
+  /** Finalization step of MurmurHash3 */
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
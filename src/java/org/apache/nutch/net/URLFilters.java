@@ -26,13 +26,37 @@ public class URLFilters {
   public static final String URLFILTER_ORDER = "urlfilter.order";
   private URLFilter[] filters;
 
+  /** Cached results, null if caching is disabled */
+  private URLCache.Namespace cache;
+
   public URLFilters(Configuration conf) {
     this.filters = (URLFilter[]) PluginRepository.get(conf).getOrderedPlugins(
         URLFilter.class, URLFilter.X_POINT_ID, URLFILTER_ORDER);
+    URLCache urlCache = URLCache.get(conf);
+    if (urlCache != null) {
+      cache = urlCache.namespace("filter");
+    }
   }
 
-  /** Run all defined filters. Assume logical AND. */
+  /**
+   * Run all defined filters. Assume logical AND. Results are cached if
+   * <code>url.cache.size</code> is set, see {@link URLCache}.
+   */
   public String filter(String urlString) throws URLFilterException {
+    if (cache != null && urlString != null) {
+      String result = cache.get(urlString);
+      if (result == null) {
+        result = filterUncached(urlString);
+        cache.put(urlString, result);
+      } else if (result == URLCache.REJECTED) {
+        result = null;
+      }
+      return result;
+    }
+    return filterUncached(urlString);
+  }
+
+  private String filterUncached(String urlString) throws URLFilterException {
     for (int i = 0; i < this.filters.length; i++) {
       if (urlString == null)
         return null;
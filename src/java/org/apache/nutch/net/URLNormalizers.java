@@ -85,6 +85,10 @@ import org.apache.nutch.util.ObjectCache;
  * count can be configured through <tt>urlnormalizer.loop.count</tt> property.
  * As soon as the url is unchanged the loop will stop and return the result.
  * </p>
+ * <p>
+ * If <tt>url.cache.size</tt> is set, the results are cached, see
+ * {@link URLCache}.
+ * </p>
  * 
  * @author Andrzej Bialecki
  */
@@ -135,6 +139,11 @@ public final class URLNormalizers {
 
   private int loopCount;
 
+  /** Cached results of this scope, null if caching is disabled */
+  private URLCache.Namespace cache;
+
+  private String cachedScope;
+
   public URLNormalizers(Configuration conf, String scope) {
     this.conf = conf;
     this.extensionPoint = PluginRepository.get(conf).getExtensionPoint(
@@ -160,6 +169,19 @@ public final class URLNormalizers {
     }
 
     loopCount = conf.getInt("urlnormalizer.loop.count", 1);
+
+    URLCache urlCache = URLCache.get(conf);
+    if (urlCache != null && scope != null) {
+      cache = urlCache.namespace("normalize_" + scope);
+      cachedScope = scope;
+    }
+  }
+
+  /**
+   * @return true if no normalizers are active, i.e. URLs are never modified
+   */
+  public boolean isEmpty() {
+    return normalizers.length == 0;
   }
 
   /**
@@ -309,6 +331,21 @@ public final class URLNormalizers {
    */
   public String normalize(String urlString, String scope)
       throws MalformedURLException {
+    if (cache != null && urlString != null && cachedScope.equals(scope)) {
+      String result = cache.get(urlString);
+      if (result == null) {
+        result = normalizeUncached(urlString, scope);
+        cache.put(urlString, result);
+      } else if (result == URLCache.REJECTED) {
+        result = null;
+      }
+      return result;
+    }
+    return normalizeUncached(urlString, scope);
+  }
+
+  private String normalizeUncached(String urlString, String scope)
+      throws MalformedURLException {
     // optionally loop several times, and break if no further changes
     String initialString = urlString;
     for (int k = 0; k < loopCount; k++) {
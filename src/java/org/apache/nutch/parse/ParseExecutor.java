@@ -0,0 +1,361 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.parse;
+
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.protocol.Content;
+import org.apache.nutch.util.TaskCounters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * JVM-wide executor running parsers with a timeout, shared by all
+ * {@link ParseUtil} instances of a task, e.g. those of the fetcher threads.
+ *
+ * <p>
+ * At most <code>parser.threads</code> documents are parsed concurrently
+ * (default: the number of available processors) and at most
+ * <code>parser.queue.size</code> further documents wait for a parser thread.
+ * If the queue is full, callers block until a document is done, so that
+ * fetcher threads are slowed down when parsing falls behind.
+ *
+ * <p>
+ * The timeout (<code>parser.timeout</code>) counts from the start of the
+ * parse, time spent in the queue is not included. Cancellation is
+ * cooperative: parsers poll {@link #isTimedOut()} at convenient points, e.g.
+ * per SAX event or per archive entry, and give up once the deadline has
+ * passed. At the deadline the parser thread is also interrupted, and the
+ * parser is given {@link #STOP_TIMEOUT} milliseconds to return. Only a parser
+ * which reacts to neither keeps its thread busy after that, the thread is then
+ * replaced by an additional one until the parser returns.
+ *
+ * <p>
+ * Documents parsed by a parser running on a parser thread, e.g. the entries
+ * of an archive, are parsed inline on that thread. Queuing them would let the
+ * parser wait for a thread it occupies itself. They are bound by the deadline
+ * of the enclosing document: once it has passed, nested documents are
+ * skipped.
+ *
+ * <p>
+ * Parsed documents, timeouts, parsers which had to be abandoned after a
+ * timeout, failures, the time spent waiting for a free
+ * slot, in the queue and parsing, and the sum of the queue lengths seen by
+ * submitted documents are counted in the group <code>ParseExecutor</code> of
+ * {@link TaskCounters}.
+ */
+public class ParseExecutor {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  public static final String COUNTER_GROUP = "ParseExecutor";
+
+  /**
+   * Time in milliseconds a parser is given to stop after its deadline before
+   * its thread is replaced
+   */
+  public static final long STOP_TIMEOUT = 1000;
+
+  private static ParseExecutor instance;
+
+  /** The parse run by a parser thread */
+  private static final ThreadLocal<ParseTask> PARSING = new ThreadLocal<>();
+
+  private final ThreadPoolExecutor executor;
+  private final Semaphore slots;
+  private final int threads;
+  /** Number of timed out parses whose thread is still busy */
+  private int stuck = 0;
+
+  /** A parse, releases its slot when done or abandoned by the caller. */
+  private class ParseTask extends FutureTask<ParseResult> {
+    private static final int RUNNING = 0;
+    private static final int DONE = 1;
+    private static final int ABANDONED = 2;
+
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final AtomicInteger state = new AtomicInteger(RUNNING);
+    private final long timeout;
+    private volatile long deadline;
+    private volatile boolean stopped = false;
+    /** Whether the parser returned after its deadline */
+    private volatile boolean late = false;
+    /** Thread running the parse, guarded by this */
+    private Thread runner;
+
+    /**
+     * @param timeout
+     *          time in nanoseconds to parse the document
+     */
+    ParseTask(Parser parser, Content content, long timeout) {
+      super(new ParseCallable(parser, content));
+      this.timeout = timeout;
+    }
+
+    @Override
+    public void run() {
+      synchronized (this) {
+        runner = Thread.currentThread();
+      }
+      deadline = System.nanoTime() + timeout;
+      started.countDown();
+      PARSING.set(this);
+      try {
+        super.run();
+      } finally {
+        PARSING.remove();
+        synchronized (this) {
+          runner = null;
+          // do not pass an interrupt by stop() on to the next parse
+          Thread.interrupted();
+        }
+        if (state.compareAndSet(RUNNING, DONE)) {
+          slots.release();
+        } else {
+          // abandoned by the caller, the replacement thread is not needed
+          // anymore
+          resize(-1);
+        }
+      }
+    }
+
+    boolean isTimedOut() {
+      return stopped || System.nanoTime() - deadline > 0;
+    }
+
+    @Override
+    protected void set(ParseResult result) {
+      late = isTimedOut();
+      super.set(result);
+    }
+
+    @Override
+    protected void setException(Throwable t) {
+      late = isTimedOut();
+      super.setException(t);
+    }
+
+    /** Ask the parser to give up: flag its deadline and interrupt it. */
+    synchronized void stop() {
+      stopped = true;
+      if (runner != null) {
+        runner.interrupt();
+      }
+    }
+
+    /** Cancel the parse, its thread is replaced if it keeps running. */
+    void abandon() {
+      cancel(true);
+      if (state.compareAndSet(RUNNING, ABANDONED)) {
+        resize(1);
+        slots.release();
+      }
+    }
+  }
+
+  public ParseExecutor(Configuration conf) {
+    int threads = conf.getInt("parser.threads", -1);
+    if (threads <= 0) {
+      threads = Runtime.getRuntime().availableProcessors();
+    }
+    this.threads = threads;
+    int queueSize = conf.getInt("parser.queue.size", -1);
+    if (queueSize < 0) {
+      queueSize = 2 * threads;
+    }
+    slots = new Semaphore(threads + queueSize, true);
+    // the queue is bounded by the slots
+    executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+            .setNameFormat("parse-%d").setDaemon(true).build());
+    executor.allowCoreThreadTimeOut(true);
+    LOG.info("Parse executor: threads = {}, queue size = {}", threads,
+        queueSize);
+  }
+
+  /**
+   * Get the executor of this JVM, it is created from the given configuration
+   * when called for the first time.
+   */
+  public static synchronized ParseExecutor get(Configuration conf) {
+    if (instance == null) {
+      instance = new ParseExecutor(conf);
+    }
+    return instance;
+  }
+
+  /**
+   * @return true if the current thread runs a parse whose deadline has passed.
+   *         Parsers should check this regularly and give up if true.
+   */
+  public static boolean isTimedOut() {
+    ParseTask task = PARSING.get();
+    return task != null && task.isTimedOut();
+  }
+
+  /**
+   * Parse a document, blocking while all parser threads are busy and the
+   * queue is full.
+   *
+   * @param timeout
+   *          maximum time in seconds to parse the document
+   * @return the parse result, or null if the parse failed or timed out
+   */
+  public ParseResult parse(Parser parser, Content content, int timeout) {
+    if (PARSING.get() != null) {
+      return parseInline(parser, content);
+    }
+
+    long start = System.nanoTime();
+    try {
+      slots.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    long acquired = System.nanoTime();
+    TaskCounters.increment(COUNTER_GROUP, "slot_wait_ms",
+        (acquired - start) / 1000000);
+    TaskCounters.increment(COUNTER_GROUP, "queue_length_sum",
+        executor.getQueue().size());
+
+    ParseTask task = new ParseTask(parser, content,
+        TimeUnit.SECONDS.toNanos(timeout));
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      slots.release();
+      LOG.warn("Error parsing " + content.getUrl() + " with " + parser, e);
+      TaskCounters.increment(COUNTER_GROUP, "failures");
+      return null;
+    }
+
+    long started = acquired;
+    try {
+      task.started.await();
+      started = System.nanoTime();
+      TaskCounters.increment(COUNTER_GROUP, "queue_wait_ms",
+          (started - acquired) / 1000000);
+      ParseResult result = task.get(task.deadline - System.nanoTime(),
+          TimeUnit.NANOSECONDS);
+      if (!task.late) {
+        TaskCounters.increment(COUNTER_GROUP, "documents");
+        return result;
+      }
+      // the parser gave up at its deadline
+      logTimeout(parser, content, timeout);
+    } catch (TimeoutException e) {
+      logTimeout(parser, content, timeout);
+      stop(task);
+    } catch (ExecutionException e) {
+      if (task.late) {
+        logTimeout(parser, content, timeout);
+      } else {
+        LOG.warn("Error parsing " + content.getUrl() + " with " + parser,
+            e.getCause());
+        TaskCounters.increment(COUNTER_GROUP, "failures");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      task.abandon();
+    } finally {
+      TaskCounters.increment(COUNTER_GROUP, "parse_ms",
+          (System.nanoTime() - started) / 1000000);
+    }
+    return null;
+  }
+
+  private static void logTimeout(Parser parser, Content content,
+      int timeout) {
+    LOG.warn("Timeout parsing " + content.getUrl() + " with " + parser
+        + " after " + timeout + " seconds");
+    TaskCounters.increment(COUNTER_GROUP, "timeouts");
+  }
+
+  /**
+   * Stop a timed out parse, and abandon it if the parser does not return in
+   * time.
+   */
+  private void stop(ParseTask task) {
+    task.stop();
+    try {
+      // the result of a parse given up is discarded
+      task.get(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      TaskCounters.increment(COUNTER_GROUP, "abandoned");
+      task.abandon();
+    } catch (ExecutionException e) {
+      // failed when giving up
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      task.abandon();
+    }
+  }
+
+  /** Parse a document nested in a document parsed by the current thread. */
+  private ParseResult parseInline(Parser parser, Content content) {
+    if (isTimedOut()) {
+      TaskCounters.increment(COUNTER_GROUP, "nested_timeouts");
+      return null;
+    }
+    TaskCounters.increment(COUNTER_GROUP, "nested_documents");
+    try {
+      return parser.getParse(content);
+    } catch (Exception e) {
+      LOG.warn("Error parsing " + content.getUrl() + " with " + parser, e);
+      TaskCounters.increment(COUNTER_GROUP, "failures");
+      return null;
+    }
+  }
+
+  /** @return the number of documents waiting for a parser thread */
+  public int getQueueLength() {
+    return executor.getQueue().size();
+  }
+
+  /** @return the number of documents being parsed */
+  public int getActiveCount() {
+    return executor.getActiveCount();
+  }
+
+  /** Add or remove a replacement for a thread busy with a timed out parse. */
+  private synchronized void resize(int delta) {
+    stuck += delta;
+    int size = threads + stuck;
+    if (delta > 0) {
+      executor.setMaximumPoolSize(size);
+      executor.setCorePoolSize(size);
+    } else {
+      executor.setCorePoolSize(size);
+      executor.setMaximumPoolSize(size);
+    }
+  }
+}
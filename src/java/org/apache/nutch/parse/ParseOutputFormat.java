@@ -28,6 +28,7 @@ import org.apache.hadoop.io.compress.DefaultCodec;
 import org.apache.hadoop.fs.*;
 import org.apache.hadoop.mapred.*;
 import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.crawl.SeenUrlIndex;
 import org.apache.nutch.fetcher.Fetcher;
 import org.apache.nutch.scoring.ScoringFilterException;
 import org.apache.nutch.scoring.ScoringFilters;
@@ -126,6 +127,14 @@ public class ParseOutputFormat implements OutputFormat<Text, Parse> {
     final String[] parseMDtoCrawlDB = job.get("db.parsemeta.to.crawldb", "")
         .split(" *, *");
 
+    // skip outlinks already in the CrawlDb
+    SeenUrlIndex index = null;
+    String seenIndex = job.get(SeenUrlIndex.SEEN_INDEX, "");
+    if (!seenIndex.isEmpty()) {
+      index = SeenUrlIndex.get(job, new Path(seenIndex));
+    }
+    final SeenUrlIndex seenUrls = index;
+
     // textOut Options
     Option tKeyClassOpt = (Option) MapFile.Writer.keyClass(Text.class);
     org.apache.hadoop.io.SequenceFile.Writer.Option tValClassOpt = SequenceFile.Writer.valueClass(ParseText.class);
@@ -156,6 +165,9 @@ public class ParseOutputFormat implements OutputFormat<Text, Parse> {
 
     return new RecordWriter<Text, Parse>() {
 
+      private long outlinksKnown = 0;
+      private long outlinksTotal = 0;
+
       public void write(Text key, Parse parse) throws IOException {
 
         String fromUrl = key.toString();
@@ -284,6 +296,12 @@ public class ParseOutputFormat implements OutputFormat<Text, Parse> {
               + e.getMessage());
         }
         for (Entry<Text, CrawlDatum> target : targets) {
+          outlinksTotal++;
+          if (seenUrls != null && seenUrls.mightContain(target.getKey())) {
+            // scores are distributed over all outlinks, known or not
+            outlinksKnown++;
+            continue;
+          }
           crawlOut.append(target.getKey(), target.getValue());
         }
         if (adjust != null)
@@ -310,6 +328,14 @@ public class ParseOutputFormat implements OutputFormat<Text, Parse> {
       }
 
       public void close(Reporter reporter) throws IOException {
+        if (seenUrls != null) {
+          LOG.info("Skipped {} of {} outlinks found in the seen URL index",
+              outlinksKnown, outlinksTotal);
+          if (reporter != null) {
+            reporter.incrCounter("ParserStatus", "outlinks_skipped_known",
+                outlinksKnown);
+          }
+        }
         textOut.close();
         dataOut.close();
         crawlOut.close();
@@ -73,13 +73,22 @@ public class ParseSegment extends NutchTool implements Tool,
   }
 
   public void close() {
+    // counters of the parse executor, URL normalizer and filter cache
+    if (reporter != null) {
+      TaskCounters.report(reporter);
+    }
   }
 
   private Text newKey = new Text();
 
+  private Reporter reporter;
+
   public void map(WritableComparable<?> key, Content content,
       OutputCollector<Text, ParseImpl> output, Reporter reporter)
       throws IOException {
+    // counters of the parse executor are reported on close
+    this.reporter = reporter;
+
     // convert on the fly from old UTF8 keys
     if (key instanceof Text) {
       newKey.set(key.toString());
@@ -199,6 +208,9 @@ public class ParseSegment extends NutchTool implements Tool,
   public void reduce(Text key, Iterator<Writable> values,
       OutputCollector<Text, Writable> output, Reporter reporter)
       throws IOException {
+    // outlinks are normalized and filtered when the parse is written, the
+    // counters are reported on close
+    this.reporter = reporter;
     output.collect(key, values.next()); // collect first value
   }
 
@@ -19,18 +19,12 @@ package org.apache.nutch.parse;
 // Commons Logging imports
 
 import java.lang.invoke.MethodHandles;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.nutch.protocol.Content;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
-
 /**
  * A Utility class containing methods to simply perform parsing utilities such
  * as iterating through a preferred list of {@link Parser}s to obtain
@@ -48,7 +42,8 @@ public class ParseUtil {
   private ParserFactory parserFactory;
   /** Parser timeout set to 30 sec by default. Set -1 to deactivate **/
   private int maxParseTime = 30;
-  private ExecutorService executorService;
+  /** Executor shared by all instances, used if the timeout is active */
+  private ParseExecutor executor;
 
   /**
    * 
@@ -57,8 +52,9 @@ public class ParseUtil {
   public ParseUtil(Configuration conf) {
     this.parserFactory = new ParserFactory(conf);
     maxParseTime = conf.getInt("parser.timeout", 30);
-    executorService = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
-        .setNameFormat("parse-%d").setDaemon(true).build());
+    if (maxParseTime != -1) {
+      executor = ParseExecutor.get(conf);
+    }
   }
 
   /**
@@ -166,18 +162,7 @@ public class ParseUtil {
   }
 
   private ParseResult runParser(Parser p, Content content) {
-    ParseCallable pc = new ParseCallable(p, content);
-    Future<ParseResult> task = executorService.submit(pc);
-    ParseResult res = null;
-    try {
-      res = task.get(maxParseTime, TimeUnit.SECONDS);
-    } catch (Exception e) {
-      LOG.warn("Error parsing " + content.getUrl() + " with " + p, e);
-      task.cancel(true);
-    } finally {
-      pc = null;
-    }
-    return res;
+    return executor.parse(p, content, maxParseTime);
   }
 
 }
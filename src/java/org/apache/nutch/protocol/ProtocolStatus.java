@@ -278,6 +278,16 @@ public class ProtocolStatus implements Writable {
     return true;
   }
 
+  public int hashCode() {
+    int res = code ^ (int) (lastModified ^ (lastModified >>> 32));
+    if (args != null) {
+      for (String arg : args) {
+        res = 31 * res + (arg == null ? 0 : arg.hashCode());
+      }
+    }
+    return res;
+  }
+
   public String toString() {
     StringBuffer res = new StringBuffer();
     res.append(codeToName.get(new Integer(code)) + "(" + code
@@ -0,0 +1,472 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutch.protocol;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.nutch.util.TaskCounters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import crawlercommons.robots.BaseRobotRules;
+import crawlercommons.robots.SimpleRobotRulesParser;
+
+/**
+ * Cache of robots.txt rules shared by all {@link RobotRulesParser} instances
+ * of a JVM, see {@link RobotRulesParser#CACHE}.
+ *
+ * <p>
+ * Rules are kept for the lifetime announced by the server (Cache-Control
+ * max-age), bounded by <code>robots.cache.ttl.min</code> and
+ * <code>robots.cache.ttl</code>. The latter is also used if no lifetime is
+ * announced. If more than <code>robots.cache.size</code> hosts are cached,
+ * expired and then least recently used rules are evicted. If rules are
+ * missing, only one thread fetches the robots.txt of a host, other threads
+ * asking for the same host wait for the result.
+ *
+ * <p>
+ * The cache can be saved to and loaded from SequenceFiles, so that the
+ * following fetch cycle does not need to fetch all robots.txt files again.
+ * The parsed rules of crawler-commons cannot be written field by field, so
+ * the robots.txt content is kept with the rules if snapshots are enabled
+ * (<code>fetcher.robots.cache.snapshot</code>), and the rules are parsed again
+ * when the snapshot is loaded.
+ * Hits, misses and waits for a concurrent fetch are counted in the group
+ * <code>RobotRulesCache</code> of {@link TaskCounters}.
+ */
+public class RobotRulesCache {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  public static final String COUNTER_GROUP = "RobotRulesCache";
+
+  private static class Entry {
+    final BaseRobotRules rules;
+    final long expires;
+    /** robots.txt the rules are parsed from, null if not kept */
+    final RobotsTxt source;
+    volatile long lastAccess;
+
+    Entry(BaseRobotRules rules, long expires, RobotsTxt source) {
+      this.rules = rules;
+      this.expires = expires;
+      this.source = source;
+      this.lastAccess = System.currentTimeMillis();
+    }
+  }
+
+  /** Result of loading rules, shared with the threads waiting for it */
+  private static class Loaded {
+    final BaseRobotRules rules;
+    final List<Content> robotsTxtContent;
+
+    Loaded(BaseRobotRules rules, List<Content> robotsTxtContent) {
+      this.rules = rules;
+      this.robotsTxtContent = robotsTxtContent;
+    }
+  }
+
+  /**
+   * Rules of a host as written to a snapshot: the expiration time and either
+   * the robots.txt the rules are parsed from, or whether all or no URLs are
+   * allowed.
+   */
+  public static class RobotsTxt implements Writable {
+
+    public static final byte ALLOW_ALL = 0;
+    public static final byte ALLOW_NONE = 1;
+    public static final byte PARSE = 2;
+
+    private long expires;
+    private byte mode = PARSE;
+    private String url;
+    private byte[] content;
+    private String contentType;
+
+    public RobotsTxt() {
+    }
+
+    public RobotsTxt(String url, byte[] content, String contentType) {
+      this.url = url;
+      this.content = content == null ? new byte[0] : content;
+      this.contentType = contentType;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+      out.writeLong(expires);
+      out.writeByte(mode);
+      if (mode == PARSE) {
+        Text.writeString(out, url);
+        WritableUtils.writeVInt(out, content.length);
+        out.write(content);
+        out.writeBoolean(contentType != null);
+        if (contentType != null) {
+          Text.writeString(out, contentType);
+        }
+      }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+      expires = in.readLong();
+      mode = in.readByte();
+      if (mode == PARSE) {
+        url = Text.readString(in);
+        content = new byte[WritableUtils.readVInt(in)];
+        in.readFully(content);
+        contentType = in.readBoolean() ? Text.readString(in) : null;
+      } else {
+        url = null;
+        content = null;
+        contentType = null;
+      }
+    }
+  }
+
+  private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+  private final Map<String, CompletableFuture<Loaded>> loading = new ConcurrentHashMap<>();
+  private final ReentrantLock evictLock = new ReentrantLock();
+
+  private volatile int maxSize = 50000;
+  private volatile long ttl = 86400 * 1000L;
+  private volatile long minTtl = 3600 * 1000L;
+  private volatile boolean keepRobotsTxt = false;
+
+  public void setConf(Configuration conf) {
+    maxSize = conf.getInt("robots.cache.size", 50000);
+    ttl = conf.getLong("robots.cache.ttl", 86400) * 1000;
+    minTtl = Math.min(ttl, conf.getLong("robots.cache.ttl.min", 3600) * 1000);
+    keepRobotsTxt = conf.getBoolean("fetcher.robots.cache.snapshot", false);
+  }
+
+  /**
+   * @return the cached rules for the key, or null if there are none or they
+   *         are expired
+   */
+  public BaseRobotRules get(String key) {
+    Entry entry = cache.get(key);
+    if (entry == null) {
+      return null;
+    }
+    long now = System.currentTimeMillis();
+    if (entry.expires <= now) {
+      cache.remove(key, entry);
+      return null;
+    }
+    entry.lastAccess = now;
+    return entry.rules;
+  }
+
+  /**
+   * Get the cached rules for the key, or load them. Concurrent calls for the
+   * same key while the rules are loaded wait for the loading thread and
+   * receive the same rules. The loader is responsible for storing the rules
+   * by {@link #put(String, BaseRobotRules, long)}, e.g., it should not do so
+   * if fetching the robots.txt failed temporarily.
+   *
+   * @param robotsTxtContent
+   *          list the responses fetched by the loader are appended to, also
+   *          if this thread waited for another one loading the rules. If null
+   *          the responses are not passed.
+   * @param loader
+   *          loads the rules and appends the fetched responses to the given
+   *          list
+   */
+  public BaseRobotRules get(String key, List<Content> robotsTxtContent,
+      Function<List<Content>, BaseRobotRules> loader) {
+    BaseRobotRules rules = get(key);
+    if (rules != null) {
+      TaskCounters.increment(COUNTER_GROUP, "hit");
+      return rules;
+    }
+    CompletableFuture<Loaded> future = new CompletableFuture<>();
+    CompletableFuture<Loaded> inFlight = loading.putIfAbsent(key, future);
+    if (inFlight != null) {
+      TaskCounters.increment(COUNTER_GROUP, "wait");
+      Loaded loaded = inFlight.join();
+      if (robotsTxtContent != null) {
+        robotsTxtContent.addAll(loaded.robotsTxtContent);
+      }
+      return loaded.rules;
+    }
+    try {
+      // waiting threads may ask for the responses, always collect them
+      List<Content> content = new ArrayList<>();
+      // check again, the rules may have been loaded in the meantime
+      rules = get(key);
+      if (rules == null) {
+        TaskCounters.increment(COUNTER_GROUP, "miss");
+        rules = loader.apply(content);
+      }
+      future.complete(new Loaded(rules,
+          Collections.unmodifiableList(content)));
+      if (robotsTxtContent != null) {
+        robotsTxtContent.addAll(content);
+      }
+      return rules;
+    } catch (RuntimeException | Error e) {
+      future.completeExceptionally(e);
+      throw e;
+    } finally {
+      loading.remove(key, future);
+    }
+  }
+
+  /** Cache rules for the default lifetime. */
+  public void put(String key, BaseRobotRules rules) {
+    put(key, rules, -1);
+  }
+
+  /**
+   * Cache rules.
+   *
+   * @param lifetime
+   *          lifetime in ms announced by the server, -1 if unknown
+   */
+  public void put(String key, BaseRobotRules rules, long lifetime) {
+    put(key, rules, lifetime, null);
+  }
+
+  /**
+   * Cache rules parsed from a robots.txt. The robots.txt is kept to save the
+   * rules if snapshots are enabled, rules cached without it are only saved
+   * if they allow all or no URLs.
+   *
+   * @param lifetime
+   *          lifetime in ms announced by the server, -1 if unknown
+   * @param source
+   *          the robots.txt the rules are parsed from, may be null
+   */
+  public void put(String key, BaseRobotRules rules, long lifetime,
+      RobotsTxt source) {
+    if (lifetime < 0) {
+      lifetime = ttl;
+    }
+    lifetime = Math.max(minTtl, Math.min(ttl, lifetime));
+    put(key, new Entry(rules, System.currentTimeMillis() + lifetime,
+        keepRobotsTxt ? source : null));
+  }
+
+  private void put(String key, Entry entry) {
+    cache.put(key, entry);
+    if (cache.size() > maxSize && evictLock.tryLock()) {
+      try {
+        evict();
+      } finally {
+        evictLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Remove expired entries and, if still above the size limit, the least
+   * recently used tenth of the entries, so that eviction is not required on
+   * every insertion.
+   */
+  private void evict() {
+    long now = System.currentTimeMillis();
+    cache.entrySet().removeIf(e -> e.getValue().expires <= now);
+    int size = cache.size();
+    if (size <= maxSize) {
+      return;
+    }
+    int remove = size - maxSize + maxSize / 10;
+    // sort by a snapshot of the access times which change concurrently
+    List<Map.Entry<Long, String>> entries = new ArrayList<>(size);
+    for (Map.Entry<String, Entry> e : cache.entrySet()) {
+      entries.add(new AbstractMap.SimpleImmutableEntry<>(
+          e.getValue().lastAccess, e.getKey()));
+    }
+    entries.sort(Map.Entry.comparingByKey());
+    for (int i = 0; i < remove && i < entries.size(); i++) {
+      cache.remove(entries.get(i).getValue());
+    }
+    TaskCounters.increment(COUNTER_GROUP, "evicted", remove);
+  }
+
+  /** @return the number of cached entries, including expired ones */
+  public int size() {
+    return cache.size();
+  }
+
+  public void clear() {
+    cache.clear();
+  }
+
+  /**
+   * Write all unexpired rules into a SequenceFile (host key &rarr;
+   * {@link RobotsTxt}). The file is written under a hidden name and renamed
+   * when complete, so that tasks loading the snapshot concurrently never read
+   * a partial file. An existing file of the same name is replaced.
+   */
+  public void save(Configuration conf, Path file) throws IOException {
+    FileSystem fs = file.getFileSystem(conf);
+    Path tmp = new Path(file.getParent(), "." + file.getName() + "."
+        + conf.get("mapreduce.task.attempt.id", "tmp"));
+    long now = System.currentTimeMillis();
+    int count = 0;
+    try (SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+        SequenceFile.Writer.file(fs.makeQualified(tmp)),
+        SequenceFile.Writer.keyClass(Text.class),
+        SequenceFile.Writer.valueClass(RobotsTxt.class))) {
+      Text key = new Text();
+      RobotsTxt value = new RobotsTxt();
+      for (Map.Entry<String, Entry> e : cache.entrySet()) {
+        Entry entry = e.getValue();
+        if (entry.expires <= now) {
+          continue;
+        }
+        if (entry.source != null) {
+          value.mode = RobotsTxt.PARSE;
+          value.url = entry.source.url;
+          value.content = entry.source.content;
+          value.contentType = entry.source.contentType;
+        } else if (entry.rules.isAllowAll()) {
+          value.mode = RobotsTxt.ALLOW_ALL;
+        } else if (entry.rules.isAllowNone()) {
+          value.mode = RobotsTxt.ALLOW_NONE;
+        } else {
+          // parsed rules without robots.txt cannot be saved
+          continue;
+        }
+        value.expires = entry.expires;
+        key.set(e.getKey());
+        writer.append(key, value);
+        count++;
+      }
+    } catch (IOException e) {
+      fs.delete(tmp, false);
+      throw e;
+    }
+    if (fs.exists(file)) {
+      // written by a previous attempt of the task
+      fs.delete(file, false);
+    }
+    if (!fs.rename(tmp, file)) {
+      fs.delete(tmp, false);
+      throw new IOException("Failed to rename " + tmp + " to " + file);
+    }
+    LOG.info("Saved {} robots.txt rules to {}", count, file);
+  }
+
+  /**
+   * Delete snapshot files in a directory which have not been modified for
+   * the maximum lifetime (<code>robots.cache.ttl</code>), all rules in them
+   * are expired.
+   */
+  public void deleteExpired(Configuration conf, Path dir) throws IOException {
+    FileSystem fs = dir.getFileSystem(conf);
+    if (!fs.exists(dir)) {
+      return;
+    }
+    long expired = System.currentTimeMillis() - ttl;
+    for (FileStatus status : fs.listStatus(dir)) {
+      if (status.isFile() && status.getModificationTime() < expired) {
+        fs.delete(status.getPath(), false);
+      }
+    }
+  }
+
+  /**
+   * Load unexpired rules from a SequenceFile written by
+   * {@link #save(Configuration, Path)}, or from all such files in a
+   * directory, the most recently written first. Rules already cached are not
+   * replaced. The rules are parsed for the agent names of the configuration,
+   * see {@link RobotRulesParser#getAgentNames(Configuration)}.
+   */
+  public void load(Configuration conf, Path path) throws IOException {
+    FileSystem fs = path.getFileSystem(conf);
+    if (!fs.exists(path)) {
+      return;
+    }
+    List<FileStatus> files = new ArrayList<>();
+    if (fs.getFileStatus(path).isDirectory()) {
+      for (FileStatus status : fs.listStatus(path)) {
+        if (status.isFile() && !status.getPath().getName().startsWith(".")) {
+          files.add(status);
+        }
+      }
+      files.sort((a, b) -> Long.compare(b.getModificationTime(),
+          a.getModificationTime()));
+    } else {
+      files.add(fs.getFileStatus(path));
+    }
+    String agentNames = RobotRulesParser.getAgentNames(conf);
+    SimpleRobotRulesParser parser = new SimpleRobotRulesParser();
+    long now = System.currentTimeMillis();
+    int count = 0;
+    for (FileStatus status : files) {
+      Path file = status.getPath();
+      try (SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+          SequenceFile.Reader.file(fs.makeQualified(file)))) {
+        Text key = new Text();
+        RobotsTxt value = new RobotsTxt();
+        while (reader.next(key, value)) {
+          if (value.expires <= now || cache.containsKey(key.toString())) {
+            continue;
+          }
+          BaseRobotRules rules;
+          RobotsTxt source = null;
+          switch (value.mode) {
+            case RobotsTxt.ALLOW_ALL:
+              rules = RobotRulesParser.EMPTY_RULES;
+              break;
+            case RobotsTxt.ALLOW_NONE:
+              rules = RobotRulesParser.FORBID_ALL_RULES;
+              break;
+            default:
+              rules = parser.parseContent(value.url, value.content,
+                  value.contentType, agentNames);
+              source = keepRobotsTxt ? value : null;
+          }
+          put(key.toString(), new Entry(rules, value.expires, source));
+          if (source != null) {
+            // kept by the cache, must not be reused by the reader
+            value = new RobotsTxt();
+          }
+          count++;
+        }
+      } catch (IOException e) {
+        LOG.warn("Failed to load robots.txt rules from {}: {}", file, e);
+      }
+    }
+    LOG.info("Loaded {} robots.txt rules from {}", count, path);
+  }
+}
@@ -27,7 +27,6 @@ import java.lang.invoke.MethodHandles;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -64,7 +63,8 @@ public abstract class RobotRulesParser implements Tool {
   private static final Logger LOG = LoggerFactory
       .getLogger(MethodHandles.lookup().lookupClass());
 
-  protected static final Hashtable<String, BaseRobotRules> CACHE = new Hashtable<>();
+  /** Cache of robot rules shared by all parsers of this JVM */
+  protected static final RobotRulesCache CACHE = new RobotRulesCache();
   
   /**
    * A {@link BaseRobotRules} object appropriate for use when the
@@ -103,13 +103,42 @@ public abstract class RobotRulesParser implements Tool {
    */
   public void setConf(Configuration conf) {
     this.conf = conf;
+    CACHE.setConf(conf);
 
+    agentNames = getAgentNames(conf);
+
+    String[] confWhiteList = conf.getStrings("http.robot.rules.whitelist");
+    if (confWhiteList == null) {
+      LOG.info("robots.txt whitelist not configured.");
+    }
+    else {
+      for (int i = 0; i < confWhiteList.length; i++) {
+        if (confWhiteList[i].isEmpty()) {
+      	  LOG.info("Empty whitelisted URL skipped!");
+      	  continue;
+        }
+        whiteList.add(confWhiteList[i]);
+      }
+      
+      if (whiteList.size() > 0) {
+        matcher = new SuffixStringMatcher(whiteList);
+        LOG.info("Whitelisted hosts: " + whiteList);
+      }
+    }
+  }
+
+  /**
+   * @return the agent names we advertise to robots files: the agent name
+   *         followed by the other agents of <code>http.robots.agents</code>,
+   *         separated by commas
+   */
+  public static String getAgentNames(Configuration conf) {
     // Grab the agent names we advertise to robots files.
     String agentName = conf.get("http.agent.name");
     if (agentName == null || (agentName = agentName.trim()).isEmpty()) {
       throw new RuntimeException("Agent name not configured!");
     }
-    agentNames = agentName;
+    String agentNames = agentName;
 
     // If there are any other agents specified, append those to the list of
     // agents
@@ -131,24 +160,7 @@ public abstract class RobotRulesParser implements Tool {
       agentNames = sb.toString();
     }
 
-    String[] confWhiteList = conf.getStrings("http.robot.rules.whitelist");
-    if (confWhiteList == null) {
-      LOG.info("robots.txt whitelist not configured.");
-    }
-    else {
-      for (int i = 0; i < confWhiteList.length; i++) {
-        if (confWhiteList[i].isEmpty()) {
-      	  LOG.info("Empty whitelisted URL skipped!");
-      	  continue;
-        }
-        whiteList.add(confWhiteList[i]);
-      }
-      
-      if (whiteList.size() > 0) {
-        matcher = new SuffixStringMatcher(whiteList);
-        LOG.info("Whitelisted hosts: " + whiteList);
-      }
-    }
+    return agentNames;
   }
 
   /**
@@ -158,6 +170,13 @@ public abstract class RobotRulesParser implements Tool {
     return conf;
   }
 
+  /**
+   * @return the cache of robot rules shared by all parsers of this JVM
+   */
+  public static RobotRulesCache getCache() {
+    return CACHE;
+  }
+
   /**
    * Check whether a URL belongs to a whitelisted host.
    */
@@ -0,0 +1,547 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.scoring.webgraph;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.net.MalformedURLException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.util.FSUtils;
+import org.apache.nutch.util.URLUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * LinkRank computed in memory on a single node, used by {@link LinkRank} if
+ * <code>link.analyze.engine</code> is <code>memory</code>.
+ *
+ * <p>
+ * The WebGraph is loaded into primitive arrays: nodes get int ids, the inlinks
+ * of every node are stored in compressed sparse row layout (an offset per node
+ * into one array of source ids). Inlinks ignored by the link analysis because
+ * of duplicate source pages or domains (<code>link.ignore.limit.page</code>,
+ * <code>link.ignore.limit.domain</code>) are removed once while loading. The
+ * scores are then iterated in parallel by a fork/join pool until the average
+ * change of the scores falls below
+ * <code>link.analyze.convergence.threshold</code>, at most
+ * <code>link.analyze.max.iterations</code> times. The scores are written to the
+ * NodeDb with the same partitioning as before.
+ *
+ * <p>
+ * If the graph needs more than <code>link.analyze.memory.fraction</code> of
+ * the heap, loading is aborted and the MapReduce implementation is used.
+ */
+public class InMemoryLinkRank {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  /** Approximate memory per node: outlinks, hashes, offset and scores */
+  private static final int BYTES_PER_NODE = 40;
+  private static final int BYTES_PER_LINK = 4;
+  /** Memory per slot of the hash table, key and id */
+  private static final int BYTES_PER_SLOT = 12;
+
+  /** Number of nodes processed by one fork/join task */
+  private static final int TASK_SIZE = 4096;
+
+  private static final PathFilter PARTS = new PathFilter() {
+    @Override
+    public boolean accept(Path path) {
+      return path.getName().startsWith("part-");
+    }
+  };
+
+  private final Configuration conf;
+  private final long maxMemory;
+  private final float dampingFactor;
+  private final float initialScore;
+  private final boolean limitPages;
+  private final boolean limitDomains;
+  private final double threshold;
+  private final int maxIterations;
+  private final ForkJoinPool pool;
+
+  // nodes, by id
+  private int numNodes = 0;
+  private int[] numOutlinks = new int[1024];
+  private long[] domains = new long[1024];
+  private long[] pages = new long[1024];
+
+  // open addressing hash table, URL hash to node id
+  private long[] tableKeys = new long[2048];
+  private int[] tableIds = new int[2048];
+
+  // inlinks, source ids of node v in sources[offsets[v]..offsets[v+1]]
+  private int[] offsets;
+  private int[] sources;
+
+  private float[] scores;
+
+  public InMemoryLinkRank(Configuration conf) {
+    this.conf = conf;
+    maxMemory = (long) (Runtime.getRuntime().maxMemory()
+        * conf.getFloat("link.analyze.memory.fraction", 0.6f));
+    dampingFactor = conf.getFloat("link.analyze.damping.factor", 0.85f);
+    initialScore = conf.getFloat("link.analyze.initial.score", 1.0f);
+    limitPages = conf.getBoolean("link.ignore.limit.page", true);
+    limitDomains = conf.getBoolean("link.ignore.limit.domain", true);
+    threshold = conf.getFloat("link.analyze.convergence.threshold", 0.0001f);
+    maxIterations = conf.getInt("link.analyze.max.iterations", 100);
+    int threads = conf.getInt("link.analyze.memory.threads", 0);
+    pool = new ForkJoinPool(threads > 0 ? threads
+        : Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Run the link analysis and replace the NodeDb of the WebGraph.
+   *
+   * @return false if the WebGraph does not fit into memory, nothing has been
+   *         changed then
+   */
+  public boolean analyze(Path webGraphDb) throws IOException {
+    try {
+      return analyzeInternal(webGraphDb);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private boolean analyzeInternal(Path webGraphDb) throws IOException {
+    long start = System.currentTimeMillis();
+    FileSystem fs = webGraphDb.getFileSystem(conf);
+    Path wgNodeDb = new Path(webGraphDb, WebGraph.NODE_DIR);
+    Path wgOutlinkDb = new Path(webGraphDb, WebGraph.OUTLINK_DIR);
+    Path[] nodeParts = listParts(fs, wgNodeDb);
+    Path[] outlinkParts = listParts(fs, wgOutlinkDb);
+
+    if (!loadNodes(nodeParts) || !loadLinks(outlinkParts)) {
+      return false;
+    }
+    long loaded = System.currentTimeMillis();
+    LOG.info("Analysis: loaded {} nodes and {} links in {} ms", numNodes,
+        sources.length, loaded - start);
+
+    if (limitPages || limitDomains) {
+      removeDuplicateLinks();
+    }
+    // the hash table and page/domain ids are not needed anymore
+    tableKeys = null;
+    tableIds = null;
+    domains = null;
+    pages = null;
+
+    iterate();
+    LOG.info("Analysis: computed scores in {} ms",
+        System.currentTimeMillis() - loaded);
+
+    Path linkRank = new Path(webGraphDb, "linkrank");
+    Path nodeDb = new Path(linkRank, WebGraph.NODE_DIR);
+    writeNodes(fs, nodeParts, nodeDb);
+    LOG.info("Analysis: Installing web graph nodes");
+    FSUtils.replace(fs, wgNodeDb, nodeDb, true);
+    fs.delete(linkRank, true);
+    return true;
+  }
+
+  private static Path[] listParts(FileSystem fs, Path dir) throws IOException {
+    FileStatus[] stats = fs.listStatus(dir, PARTS);
+    Path[] parts = new Path[stats.length];
+    for (int i = 0; i < stats.length; i++) {
+      parts[i] = stats[i].getPath();
+    }
+    Arrays.sort(parts);
+    return parts;
+  }
+
+  private boolean fits(long nodes, long links, long slots) {
+    long required = nodes * BYTES_PER_NODE + links * BYTES_PER_LINK
+        + slots * BYTES_PER_SLOT;
+    if (required > maxMemory) {
+      LOG.info("Analysis: WebGraph with {} nodes and {} links does not fit"
+          + " into memory ({} MB available), falling back to MapReduce", nodes,
+          links, maxMemory >> 20);
+      return false;
+    }
+    return true;
+  }
+
+  /** 64-bit FNV-1a hash, with murmur3's finalizer */
+  static long hash(String s) {
+    if (s == null) {
+      return 1;
+    }
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < s.length(); i++) {
+      h ^= s.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    // 0 marks empty slots
+    return h == 0 ? 1 : h;
+  }
+
+  /** @return the id of the node with the given URL hash, -1 if unknown */
+  private int lookup(long hash) {
+    int mask = tableKeys.length - 1;
+    for (int i = (int) (hash ^ (hash >>> 32)) & mask;; i = (i + 1) & mask) {
+      if (tableKeys[i] == hash) {
+        return tableIds[i];
+      } else if (tableKeys[i] == 0) {
+        return -1;
+      }
+    }
+  }
+
+  /** @return false if the hash is already taken */
+  private boolean insert(long hash, int id) {
+    if (2 * (numNodes + 1) > tableKeys.length) {
+      long[] keys = tableKeys;
+      int[] ids = tableIds;
+      tableKeys = new long[keys.length * 2];
+      tableIds = new int[keys.length * 2];
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] != 0) {
+          insert(keys[i], ids[i]);
+        }
+      }
+    }
+    int mask = tableKeys.length - 1;
+    for (int i = (int) (hash ^ (hash >>> 32)) & mask;; i = (i + 1) & mask) {
+      if (tableKeys[i] == hash) {
+        return false;
+      } else if (tableKeys[i] == 0) {
+        tableKeys[i] = hash;
+        tableIds[i] = id;
+        return true;
+      }
+    }
+  }
+
+  private boolean loadNodes(Path[] parts) throws IOException {
+    Text key = new Text();
+    Node node = new Node();
+    for (Path part : parts) {
+      try (MapFile.Reader reader = new MapFile.Reader(part, conf)) {
+        while (reader.next(key, node)) {
+          if (numNodes == numOutlinks.length) {
+            // the hash table is kept at most half full
+            if (!fits(2L * numNodes, 0, 4L * numNodes)) {
+              return false;
+            }
+            numOutlinks = Arrays.copyOf(numOutlinks, 2 * numNodes);
+            domains = Arrays.copyOf(domains, 2 * numNodes);
+            pages = Arrays.copyOf(pages, 2 * numNodes);
+          }
+          String url = key.toString();
+          if (!insert(hash(url), numNodes)) {
+            LOG.warn("Analysis: hash collision of {}, falling back to"
+                + " MapReduce", url);
+            return false;
+          }
+          numOutlinks[numNodes] = node.getNumOutlinks();
+          try {
+            domains[numNodes] = hash(URLUtil.getDomainName(url));
+          } catch (MalformedURLException e) {
+            domains[numNodes] = hash(null);
+          }
+          pages[numNodes] = hash(URLUtil.getPage(url));
+          numNodes++;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Load the inverted outlinks in two passes: count the inlinks of every node,
+   * then fill in the sources.
+   */
+  private boolean loadLinks(Path[] parts) throws IOException {
+    offsets = new int[numNodes + 1];
+    long numLinks = 0;
+    long unknown = 0;
+    Text key = new Text();
+    Text lastKey = new Text();
+    LinkDatum link = new LinkDatum();
+    int source = -1;
+    for (Path part : parts) {
+      try (SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+          SequenceFile.Reader.file(new Path(part, MapFile.DATA_FILE_NAME)))) {
+        while (reader.next(key, link)) {
+          if (!key.equals(lastKey)) {
+            source = lookup(hash(key.toString()));
+            lastKey.set(key);
+          }
+          // as the Inverter, only invert links of nodes with outlinks
+          if (source < 0 || numOutlinks[source] == 0) {
+            continue;
+          }
+          int target = lookup(hash(link.getUrl()));
+          if (target < 0) {
+            unknown++;
+            continue;
+          }
+          offsets[target + 1]++;
+          numLinks++;
+        }
+      }
+    }
+    if (unknown > 0) {
+      LOG.warn("Analysis: ignored {} links to URLs not in the NodeDb",
+          unknown);
+    }
+    if (numLinks > Integer.MAX_VALUE - 8 || !fits(numNodes, numLinks,
+        tableKeys.length)) {
+      return false;
+    }
+
+    for (int v = 0; v < numNodes; v++) {
+      offsets[v + 1] += offsets[v];
+    }
+    // fill, offsets[v] is used as cursor and then holds the end of v
+    sources = new int[(int) numLinks];
+    lastKey.clear();
+    for (Path part : parts) {
+      try (SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+          SequenceFile.Reader.file(new Path(part, MapFile.DATA_FILE_NAME)))) {
+        while (reader.next(key, link)) {
+          if (!key.equals(lastKey)) {
+            source = lookup(hash(key.toString()));
+            lastKey.set(key);
+          }
+          if (source < 0 || numOutlinks[source] == 0) {
+            continue;
+          }
+          int target = lookup(hash(link.getUrl()));
+          if (target >= 0) {
+            sources[offsets[target]++] = source;
+          }
+        }
+      }
+    }
+    System.arraycopy(offsets, 0, offsets, 1, numNodes);
+    offsets[0] = 0;
+    return true;
+  }
+
+  /**
+   * Remove inlinks from a page or domain already linking to a node, as the
+   * Analyzer does, keeping the first one.
+   */
+  private void removeDuplicateLinks() {
+    final int[] kept = new int[numNodes];
+    forEach(new RangeOp() {
+      @Override
+      public double apply(int from, int to) {
+        LongSet seenPages = new LongSet();
+        LongSet seenDomains = new LongSet();
+        for (int v = from; v < to; v++) {
+          int begin = offsets[v];
+          int end = offsets[v + 1];
+          seenPages.clear(end - begin);
+          seenDomains.clear(end - begin);
+          int n = begin;
+          for (int i = begin; i < end; i++) {
+            int u = sources[i];
+            if ((limitPages && seenPages.contains(pages[u]))
+                || (limitDomains && seenDomains.contains(domains[u]))) {
+              continue;
+            }
+            seenPages.add(pages[u]);
+            seenDomains.add(domains[u]);
+            sources[n++] = u;
+          }
+          kept[v] = n - begin;
+        }
+        return 0;
+      }
+    });
+    // compact the kept links
+    int n = 0;
+    for (int v = 0; v < numNodes; v++) {
+      int begin = offsets[v];
+      System.arraycopy(sources, begin, sources, n, kept[v]);
+      offsets[v] = n;
+      n += kept[v];
+    }
+    LOG.info("Analysis: {} of {} links ignored, duplicate page or domain",
+        offsets[numNodes] - n, offsets[numNodes]);
+    offsets[numNodes] = n;
+    sources = Arrays.copyOf(sources, n);
+  }
+
+  private void iterate() {
+    final float rankOne = 1f / numNodes;
+    scores = new float[numNodes];
+    Arrays.fill(scores, initialScore);
+    final float[] contributions = new float[numNodes];
+    final float[] next = new float[numNodes];
+
+    for (int it = 1; it <= maxIterations; it++) {
+      final float[] current = scores;
+      forEach(new RangeOp() {
+        @Override
+        public double apply(int from, int to) {
+          for (int u = from; u < to; u++) {
+            contributions[u] = numOutlinks[u] > 0 ? current[u] / numOutlinks[u]
+                : 0;
+          }
+          return 0;
+        }
+      });
+      double residual = forEach(new RangeOp() {
+        @Override
+        public double apply(int from, int to) {
+          double delta = 0;
+          for (int v = from; v < to; v++) {
+            float total = rankOne;
+            for (int i = offsets[v]; i < offsets[v + 1]; i++) {
+              total += contributions[sources[i]];
+            }
+            next[v] = (1 - dampingFactor) + dampingFactor * total;
+            delta += Math.abs(next[v] - current[v]);
+          }
+          return delta;
+        }
+      });
+      System.arraycopy(next, 0, scores, 0, numNodes);
+      double avgDelta = residual / numNodes;
+      LOG.info("Analysis: iteration {}, average score change {}", it,
+          avgDelta);
+      if (avgDelta < threshold) {
+        LOG.info("Analysis: converged after {} iterations", it);
+        break;
+      }
+    }
+  }
+
+  /** Write the NodeDb with the new scores, in the order it was read. */
+  private void writeNodes(FileSystem fs, Path[] parts, Path nodeDb)
+      throws IOException {
+    fs.delete(nodeDb, true);
+    Text key = new Text();
+    Node node = new Node();
+    int id = 0;
+    for (Path part : parts) {
+      try (MapFile.Reader reader = new MapFile.Reader(part, conf);
+          MapFile.Writer writer = new MapFile.Writer(conf,
+              new Path(nodeDb, part.getName()),
+              MapFile.Writer.keyClass(Text.class),
+              MapFile.Writer.valueClass(Node.class))) {
+        while (reader.next(key, node)) {
+          node.setInlinkScore(scores[id++]);
+          writer.append(key, node);
+        }
+      }
+    }
+  }
+
+  /** An operation on a range of node ids, returning a partial sum. */
+  private interface RangeOp {
+    double apply(int from, int to);
+  }
+
+  private double forEach(final RangeOp op) {
+    return pool.invoke(new RangeTask(op, 0, numNodes));
+  }
+
+  private static class RangeTask extends RecursiveTask<Double> {
+    private final RangeOp op;
+    private final int from;
+    private final int to;
+
+    RangeTask(RangeOp op, int from, int to) {
+      this.op = op;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected Double compute() {
+      if (to - from <= TASK_SIZE) {
+        return op.apply(from, to);
+      }
+      int mid = (from + to) >>> 1;
+      RangeTask left = new RangeTask(op, from, mid);
+      left.fork();
+      double right = new RangeTask(op, mid, to).compute();
+      return left.join() + right;
+    }
+  }
+
+  /** Set of longs, open addressing, reused for the inlinks of every node. */
+  private static class LongSet {
+    private long[] keys = new long[16];
+    private boolean hasZero;
+
+    void clear(int expected) {
+      int size = Integer.highestOneBit(Math.max(8, expected) * 2 - 1) << 1;
+      if (size > keys.length) {
+        keys = new long[size];
+      } else {
+        Arrays.fill(keys, 0);
+      }
+      hasZero = false;
+    }
+
+    boolean contains(long key) {
+      if (key == 0) {
+        return hasZero;
+      }
+      int mask = keys.length - 1;
+      for (int i = (int) (key ^ (key >>> 32)) & mask;; i = (i + 1) & mask) {
+        if (keys[i] == key) {
+          return true;
+        } else if (keys[i] == 0) {
+          return false;
+        }
+      }
+    }
+
+    void add(long key) {
+      if (key == 0) {
+        hasZero = true;
+        return;
+      }
+      int mask = keys.length - 1;
+      for (int i = (int) (key ^ (key >>> 32)) & mask;; i = (i + 1) & mask) {
+        if (keys[i] == key) {
+          return;
+        } else if (keys[i] == 0) {
+          keys[i] = key;
+          return;
+        }
+      }
+    }
+  }
+}
@@ -22,11 +22,12 @@ import java.io.InputStreamReader;
 import java.lang.invoke.MethodHandles;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.Set;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -40,13 +41,16 @@ import org.slf4j.LoggerFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.FloatWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.ObjectWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.Counters.Group;
 import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.FileOutputFormat;
 import org.apache.hadoop.mapred.JobClient;
@@ -56,9 +60,11 @@ import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.RunningJob;
 import org.apache.hadoop.mapred.SequenceFileInputFormat;
 import org.apache.hadoop.mapred.SequenceFileOutputFormat;
 import org.apache.hadoop.mapred.TextOutputFormat;
+import org.apache.hadoop.mapred.lib.MultipleOutputs;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
@@ -74,6 +80,24 @@ public class LinkRank extends Configured implements Tool {
       .getLogger(MethodHandles.lookup().lookupClass());
   private static final String NUM_NODES = "_num_nodes_";
 
+  /** Outlinks left after removing duplicate pages and domains, delta mode */
+  private static final String PRUNED_OUTLINK_DIR = "outlinks";
+  /** Nodes with a changed score to propagate, delta mode */
+  private static final String FRONTIER_DIR = "frontier";
+  private static final String FRONTIER_OUTPUT = "frontier";
+  /** Score changes up to the epsilon not propagated yet, delta mode */
+  private static final String HELD_DIR = "held";
+  private static final String HELD_OUTPUT = "held";
+
+  private static final String COUNTER_GROUP = "LinkAnalysis";
+  private static final String COUNTER_RESIDUAL = "score_change_micros";
+  private static final String COUNTER_FRONTIER = "frontier_nodes";
+  /** Scale of the score changes summed up in {@link #COUNTER_RESIDUAL} */
+  private static final double RESIDUAL_SCALE = 1000000d;
+
+  /** Number of analysis iterations run by the last MapReduce analysis */
+  private int iterations = 0;
+
   /**
    * Runs the counter job. The counter job determines the number of links in the
    * webgraph. This is used during analysis.
@@ -180,6 +204,48 @@ public class LinkRank extends Configured implements Tool {
     LOG.info("Finished initialization job.");
   }
 
+  /**
+   * Runs the pruner job. The pruner job removes the outlinks which are ignored
+   * by the link analysis because another page of the same domain or the same
+   * page already links to the target, see <code>link.ignore.limit.page</code>
+   * and <code>link.ignore.limit.domain</code>. Delta iterations only see the
+   * links of changed nodes and can't decide this themselves.
+   * 
+   * @param outlinkDb
+   *          The outlink database to use.
+   * @param output
+   *          The output directory.
+   * 
+   * @throws IOException
+   *           If an error occurs while running the pruner job.
+   */
+  private void runPruner(Path outlinkDb, Path output) throws IOException {
+
+    JobConf pruner = new NutchJob(getConf());
+    pruner.setJobName("LinkAnalysis Pruner");
+    FileInputFormat.addInputPath(pruner, outlinkDb);
+    FileOutputFormat.setOutputPath(pruner, output);
+    pruner.setInputFormat(SequenceFileInputFormat.class);
+    pruner.setMapperClass(Pruner.class);
+    pruner.setReducerClass(Pruner.class);
+    pruner.setMapOutputKeyClass(Text.class);
+    pruner.setMapOutputValueClass(LinkDatum.class);
+    pruner.setOutputKeyClass(Text.class);
+    pruner.setOutputValueClass(LinkDatum.class);
+    pruner.setOutputFormat(SequenceFileOutputFormat.class);
+    pruner.setBoolean("mapreduce.fileoutputcommitter.marksuccessfuljobs",
+        false);
+
+    LOG.info("Starting pruner job");
+    try {
+      JobClient.runJob(pruner);
+    } catch (IOException e) {
+      LOG.error(StringUtils.stringifyException(e));
+      throw e;
+    }
+    LOG.info("Finished pruner job.");
+  }
+
   /**
    * Runs the inverter job. The inverter job flips outlinks to inlinks to be
    * passed into the analysis job.
@@ -243,15 +309,39 @@ public class LinkRank extends Configured implements Tool {
    *          The current iteration number.
    * @param numIterations
    *          The total number of link analysis iterations
+   * @param delta
+   *          Whether to write the frontier of changed nodes.
+   * @param deltaIteration
+   *          Whether the inverted inlinks carry score changes instead of
+   *          scores.
+   * @param held
+   *          The score changes held back by the previous iteration, null if
+   *          none.
    * 
+   * @return The analysis job.
    * @throws IOException
    *           If an error occurs during link analysis.
    */
-  private void runAnalysis(Path nodeDb, Path inverted, Path output,
-      int iteration, int numIterations, float rankOne) throws IOException {
+  private RunningJob runAnalysis(Path nodeDb, Path inverted, Path output,
+      int iteration, int numIterations, float rankOne, boolean delta,
+      boolean deltaIteration, Path held) throws IOException {
 
     JobConf analyzer = new NutchJob(getConf());
     analyzer.set("link.analyze.iteration", String.valueOf(iteration + 1));
+    if (delta) {
+      // duplicate pages and domains are already pruned from the outlinks
+      analyzer.setBoolean("link.ignore.limit.page", false);
+      analyzer.setBoolean("link.ignore.limit.domain", false);
+      analyzer.setBoolean("link.analyze.delta", true);
+      analyzer.setBoolean("link.analyze.delta.iteration", deltaIteration);
+      MultipleOutputs.addNamedOutput(analyzer, FRONTIER_OUTPUT,
+          SequenceFileOutputFormat.class, Text.class, Node.class);
+      MultipleOutputs.addNamedOutput(analyzer, HELD_OUTPUT,
+          SequenceFileOutputFormat.class, Text.class, FloatWritable.class);
+      if (held != null) {
+        FileInputFormat.addInputPath(analyzer, held);
+      }
+    }
     analyzer.setJobName("LinkAnalysis Analyzer, iteration " + (iteration + 1)
         + " of " + numIterations);
     FileInputFormat.addInputPath(analyzer, nodeDb);
@@ -270,13 +360,15 @@ public class LinkRank extends Configured implements Tool {
         false);
 
     LOG.info("Starting analysis job");
+    RunningJob job;
     try {
-      JobClient.runJob(analyzer);
+      job = JobClient.runJob(analyzer);
     } catch (IOException e) {
       LOG.error(StringUtils.stringifyException(e));
       throw e;
     }
     LOG.info("Finished analysis job.");
+    return job;
   }
 
   /**
@@ -345,6 +437,113 @@ public class LinkRank extends Configured implements Tool {
     }
   }
 
+  /**
+   * Keeps one inlink per source page or domain, see
+   * <code>link.ignore.limit.page</code> and
+   * <code>link.ignore.limit.domain</code>. Of several inlinks from the same
+   * page or domain the one with the smallest source URL is kept, so the result
+   * does not depend on the order the inlinks arrive in.
+   */
+  private static class InlinkLimiter {
+
+    private final boolean limitPages;
+    private final boolean limitDomains;
+    private final Map<String, LinkDatum> limited = new HashMap<>();
+    private final List<LinkDatum> unlimited = new ArrayList<>();
+    private int numInlinks = 0;
+
+    InlinkLimiter(boolean limitPages, boolean limitDomains) {
+      this.limitPages = limitPages;
+      this.limitDomains = limitDomains;
+    }
+
+    boolean isLimited() {
+      return limitPages || limitDomains;
+    }
+
+    /** Adds a copy of the inlink if it is kept. */
+    void add(LinkDatum inlink, Configuration conf) throws IOException {
+      numInlinks++;
+      if (!isLimited()) {
+        unlimited.add(WritableUtils.clone(inlink, conf));
+        return;
+      }
+      // a page belongs to a single domain
+      String url = inlink.getUrl();
+      String group = limitDomains ? URLUtil.getDomainName(url) : URLUtil
+          .getPage(url);
+      LinkDatum kept = limited.get(group);
+      if (kept == null || url.compareTo(kept.getUrl()) < 0) {
+        limited.put(group, WritableUtils.clone(inlink, conf));
+      }
+    }
+
+    Collection<LinkDatum> getInlinks() {
+      return isLimited() ? limited.values() : unlimited;
+    }
+
+    int getNumIgnored() {
+      return numInlinks - getInlinks().size();
+    }
+  }
+
+  /**
+   * Removes outlinks ignored by the link analysis because of a duplicate source
+   * page or domain, see {@link InlinkLimiter}.
+   */
+  private static class Pruner implements
+      Mapper<Text, LinkDatum, Text, LinkDatum>,
+      Reducer<Text, LinkDatum, Text, LinkDatum> {
+
+    private JobConf conf;
+    private boolean limitPages = true;
+    private boolean limitDomains = true;
+
+    public void configure(JobConf conf) {
+      this.conf = conf;
+      limitPages = conf.getBoolean("link.ignore.limit.page", true);
+      limitDomains = conf.getBoolean("link.ignore.limit.domain", true);
+    }
+
+    /**
+     * Inverts the outlink, keyed by target and holding the source URL.
+     */
+    public void map(Text key, LinkDatum value,
+        OutputCollector<Text, LinkDatum> output, Reporter reporter)
+        throws IOException {
+
+      Text toUrl = new Text(value.getUrl());
+      LinkDatum inlink = WritableUtils.clone(value, conf);
+      inlink.setUrl(key.toString());
+      output.collect(toUrl, inlink);
+    }
+
+    /**
+     * Outputs the kept inlinks of a target as outlinks of their sources.
+     */
+    public void reduce(Text key, Iterator<LinkDatum> values,
+        OutputCollector<Text, LinkDatum> output, Reporter reporter)
+        throws IOException {
+
+      String toUrl = key.toString();
+      InlinkLimiter limiter = new InlinkLimiter(limitPages, limitDomains);
+      while (values.hasNext()) {
+        limiter.add(values.next(), conf);
+      }
+      reporter.incrCounter(COUNTER_GROUP, "links_pruned",
+          limiter.getNumIgnored());
+
+      for (LinkDatum inlink : limiter.getInlinks()) {
+        String fromUrl = inlink.getUrl();
+        inlink.setUrl(toUrl);
+        output.collect(new Text(fromUrl), inlink);
+      }
+    }
+
+    public void close() {
+    }
+  }
+
   /**
    * Inverts outlinks and attaches current score from the NodeDb of the
    * WebGraph. The link analysis process consists of inverting, analyzing and
@@ -395,6 +594,11 @@ public class LinkRank extends Configured implements Tool {
         }
       }
 
+      // in delta iterations only nodes of the frontier are inverted
+      if (node == null) {
+        return;
+      }
+
       // get the number of outlinks and the current inlink and outlink scores
       // from the node of the url
       int numOutlinks = node.getNumOutlinks();
@@ -425,7 +629,12 @@ public class LinkRank extends Configured implements Tool {
   }
 
   /**
-   * Runs a single link analysis iteration.
+   * Runs a single link analysis iteration. In delta mode the nodes whose score
+   * changed by more than <code>link.analyze.delta.epsilon</code> are also
+   * written to the frontier, with the change as inlink score. Smaller changes
+   * are written to the held changes and added to the change of the node in
+   * the next iteration. A delta iteration receives the changes of the scores
+   * of the inlinks and adds them to the current score.
    */
   private static class Analyzer implements
       Mapper<Text, Writable, Text, ObjectWritable>,
@@ -437,6 +646,9 @@ public class LinkRank extends Configured implements Tool {
     private int itNum = 0;
     private boolean limitPages = true;
     private boolean limitDomains = true;
+    private boolean deltaIteration = false;
+    private float epsilon = 0.0f;
+    private MultipleOutputs frontierOutputs;
 
     /**
      * Configures the job, sets the damping factor, rank one score, and other
@@ -452,6 +664,12 @@ public class LinkRank extends Configured implements Tool {
         this.itNum = conf.getInt("link.analyze.iteration", 0);
         limitPages = conf.getBoolean("link.ignore.limit.page", true);
         limitDomains = conf.getBoolean("link.ignore.limit.domain", true);
+        if (conf.getBoolean("link.analyze.delta", false)) {
+          frontierOutputs = new MultipleOutputs(conf);
+          deltaIteration = conf.getBoolean("link.analyze.delta.iteration",
+              false);
+          epsilon = conf.getFloat("link.analyze.delta.epsilon", 0.00001f);
+        }
       } catch (Exception e) {
         LOG.error(StringUtils.stringifyException(e));
         throw new IllegalArgumentException(e);
@@ -479,13 +697,14 @@ public class LinkRank extends Configured implements Tool {
         throws IOException {
 
       String url = key.toString();
-      Set<String> domains = new HashSet<>();
-      Set<String> pages = new HashSet<>();
+      InlinkLimiter limiter = new InlinkLimiter(limitPages, limitDomains);
       Node node = null;
 
-      // a page with zero inlinks has a score of rankOne
+      // a page with zero inlinks has a score of rankOne, in a delta iteration
+      // the inlinks hold the change of their scores
       int numInlinks = 0;
-      float totalInlinkScore = rankOne;
+      float totalInlinkScore = deltaIteration ? 0.0f : rankOne;
+      float held = 0.0f;
 
       while (values.hasNext()) {
 
@@ -493,35 +712,52 @@ public class LinkRank extends Configured implements Tool {
         Object value = next.get();
         if (value instanceof Node) {
           node = (Node) value;
+        } else if (value instanceof FloatWritable) {
+          held += ((FloatWritable) value).get();
         } else if (value instanceof LinkDatum) {
 
-          LinkDatum linkDatum = (LinkDatum) value;
-          float scoreFromInlink = linkDatum.getScore();
-          String inlinkUrl = linkDatum.getUrl();
-          String inLinkDomain = URLUtil.getDomainName(inlinkUrl);
-          String inLinkPage = URLUtil.getPage(inlinkUrl);
-
           // limit counting duplicate inlinks by pages or domains
-          if ((limitPages && pages.contains(inLinkPage))
-              || (limitDomains && domains.contains(inLinkDomain))) {
-            LOG.debug(url + ": ignoring " + scoreFromInlink + " from "
-                + inlinkUrl + ", duplicate page or domain");
+          LinkDatum linkDatum = (LinkDatum) value;
+          if (limiter.isLimited()) {
+            limiter.add(linkDatum, conf);
             continue;
           }
 
           // aggregate total inlink score
           numInlinks++;
-          totalInlinkScore += scoreFromInlink;
-          domains.add(inLinkDomain);
-          pages.add(inLinkPage);
-          LOG.debug(url + ": adding " + scoreFromInlink + " from " + inlinkUrl
-              + ", total: " + totalInlinkScore);
+          totalInlinkScore += linkDatum.getScore();
+          LOG.debug(url + ": adding " + linkDatum.getScore() + " from "
+              + linkDatum.getUrl() + ", total: " + totalInlinkScore);
         }
       }
+      if (limiter.isLimited()) {
+        for (LinkDatum linkDatum : limiter.getInlinks()) {
+          numInlinks++;
+          totalInlinkScore += linkDatum.getScore();
+          LOG.debug(url + ": adding " + linkDatum.getScore() + " from "
+              + linkDatum.getUrl() + ", total: " + totalInlinkScore);
+        }
+        LOG.debug(url + ": ignored " + limiter.getNumIgnored()
+            + " inlinks, duplicate page or domain");
+      }
+
+      // links to URLs not in the NodeDb are ignored
+      if (node == null) {
+        return;
+      }
 
       // calculate linkRank score formula
-      float linkRankScore = (1 - this.dampingFactor)
-          + (this.dampingFactor * totalInlinkScore);
+      float previousScore = node.getInlinkScore();
+      float linkRankScore;
+      if (deltaIteration) {
+        linkRankScore = previousScore + this.dampingFactor * totalInlinkScore;
+      } else {
+        linkRankScore = (1 - this.dampingFactor)
+            + (this.dampingFactor * totalInlinkScore);
+      }
+      float change = linkRankScore - previousScore;
+      reporter.incrCounter(COUNTER_GROUP, COUNTER_RESIDUAL,
+          Math.round(Math.abs(change) * RESIDUAL_SCALE));
 
       LOG.debug(url + ": score: " + linkRankScore + " num inlinks: "
           + numInlinks + " iteration: " + itNum);
@@ -530,9 +766,42 @@ public class LinkRank extends Configured implements Tool {
       Node outNode = WritableUtils.clone(node, conf);
       outNode.setInlinkScore(linkRankScore);
       output.collect(key, outNode);
+
+      // only nodes with outlinks propagate their change, small changes are
+      // held back and added to the next change of the node
+      if (frontierOutputs == null || node.getNumOutlinks() == 0) {
+        return;
+      }
+      float pending = change + held;
+      if (Math.abs(pending) > epsilon) {
+        Node frontierNode = WritableUtils.clone(node, conf);
+        frontierNode.setInlinkScore(pending);
+        frontierOutputs.getCollector(FRONTIER_OUTPUT, reporter).collect(key,
+            frontierNode);
+        reporter.incrCounter(COUNTER_GROUP, COUNTER_FRONTIER, 1);
+      } else if (pending != 0.0f) {
+        frontierOutputs.getCollector(HELD_OUTPUT, reporter).collect(key,
+            new FloatWritable(pending));
+      }
     }
 
     public void close() throws IOException {
+      if (frontierOutputs != null) {
+        frontierOutputs.close();
+      }
+    }
+  }
+
+  /**
+   * Moves the files of a named output of a job to their own directory.
+   */
+  private static void moveOutput(FileSystem fs, Path output, String name,
+      Path dir) throws IOException {
+    fs.mkdirs(dir);
+    FileStatus[] files = fs.listStatus(output,
+        path -> path.getName().startsWith(name + "-"));
+    for (FileStatus file : files) {
+      fs.rename(file.getPath(), new Path(dir, file.getPath().getName()));
     }
   }
 
@@ -553,12 +822,28 @@ public class LinkRank extends Configured implements Tool {
   public void close() {
   }
 
+  /**
+   * @return the number of link analysis iterations run by the last call of
+   *         {@link #analyze(Path)}, 0 if the scores were computed in memory
+   */
+  int getIterations() {
+    return iterations;
+  }
+
   /**
    * Runs the complete link analysis job. The complete job determins rank one
    * score. Then runs through a given number of invert and analyze iterations,
    * by default 10. And finally replaces the NodeDb in the WebGraph with the
    * link rank output.
    * 
+   * In delta mode (<code>link.analyze.delta</code>) only the first iteration
+   * inverts the links of all nodes, later iterations propagate the score
+   * changes of the frontier of changed nodes. The iterations stop as soon as
+   * the average change of the scores is below
+   * <code>link.analyze.convergence.threshold</code>. Changes up to
+   * <code>link.analyze.delta.epsilon</code> are held back until their sum per
+   * node exceeds it, the changes still held back at the end are lost.
+   * 
    * @param webGraphDb
    *          The WebGraph to run link analysis on.
    * 
@@ -570,6 +855,16 @@ public class LinkRank extends Configured implements Tool {
     SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
     long start = System.currentTimeMillis();
     LOG.info("Analysis: starting at " + sdf.format(start));
+    iterations = 0;
+
+    // compute the scores in memory if configured and the graph fits
+    if ("memory".equals(getConf().get("link.analyze.engine", "mapreduce"))
+        && new InMemoryLinkRank(getConf()).analyze(webGraphDb)) {
+      long end = System.currentTimeMillis();
+      LOG.info("Analysis: finished at " + sdf.format(end) + ", elapsed: "
+          + TimingUtil.elapsedTime(start, end));
+      return;
+    }
 
     // store the link rank under the webgraphdb temporarily, final scores get
     // upddated into the nodedb
@@ -598,6 +893,18 @@ public class LinkRank extends Configured implements Tool {
       LOG.info("Analysis: Rank One: " + rankOneScore);
     }
 
+    // in delta mode remove the ignored links once, delta iterations can't
+    boolean delta = conf.getBoolean("link.analyze.delta", false);
+    float threshold = conf.getFloat("link.analyze.convergence.threshold",
+        0.0001f);
+    Path outlinkDb = wgOutlinkDb;
+    if (delta) {
+      outlinkDb = new Path(linkRank, PRUNED_OUTLINK_DIR);
+      runPruner(wgOutlinkDb, outlinkDb);
+    }
+    Path frontier = new Path(linkRank, FRONTIER_DIR);
+    Path held = new Path(linkRank, HELD_DIR);
+
     // run invert and analysis for a given number of iterations to allow the
     // link rank scores to converge
     int numIterations = conf.getInt("link.analyze.num.iterations", 10);
@@ -606,22 +913,47 @@ public class LinkRank extends Configured implements Tool {
       // the input to inverting is always the previous output from analysis
       LOG.info("Analysis: Starting iteration " + (i + 1) + " of "
           + numIterations);
+      iterations++;
       Path tempRank = new Path(linkRank + "-"
           + Integer.toString(new Random().nextInt(Integer.MAX_VALUE)));
       fs.mkdirs(tempRank);
       Path tempInverted = new Path(tempRank, "inverted");
       Path tempNodeDb = new Path(tempRank, WebGraph.NODE_DIR);
 
-      // run invert and analysis
-      runInverter(nodeDb, wgOutlinkDb, tempInverted);
-      runAnalysis(nodeDb, tempInverted, tempNodeDb, i, numIterations,
-          rankOneScore);
+      // run invert and analysis, delta iterations invert the frontier only
+      boolean deltaIteration = delta && i > 0;
+      runInverter(deltaIteration ? frontier : nodeDb, outlinkDb, tempInverted);
+      RunningJob analysis = runAnalysis(nodeDb, tempInverted, tempNodeDb, i,
+          numIterations, rankOneScore, delta, deltaIteration,
+          deltaIteration ? held : null);
+
+      if (delta) {
+        // move the frontier and the held changes out of the NodeDb, keep the
+        // pruned outlinks
+        moveOutput(fs, tempNodeDb, FRONTIER_OUTPUT,
+            new Path(tempRank, FRONTIER_DIR));
+        moveOutput(fs, tempNodeDb, HELD_OUTPUT, new Path(tempRank, HELD_DIR));
+        fs.rename(outlinkDb, new Path(tempRank, PRUNED_OUTLINK_DIR));
+      }
 
       // replace the temporary NodeDb with the output from analysis
       LOG.info("Analysis: Installing new link scores");
       FSUtils.replace(fs, linkRank, tempRank, true);
       LOG.info("Analysis: finished iteration " + (i + 1) + " of "
           + numIterations);
+
+      if (delta) {
+        Group counters = analysis.getCounters().getGroup(COUNTER_GROUP);
+        double residual = counters.getCounter(COUNTER_RESIDUAL)
+            / RESIDUAL_SCALE / numLinks;
+        long frontierNodes = counters.getCounter(COUNTER_FRONTIER);
+        LOG.info("Analysis: average score change " + residual + ", "
+            + frontierNodes + " nodes changed");
+        if (residual < threshold || frontierNodes == 0) {
+          LOG.info("Analysis: converged after " + (i + 1) + " iterations");
+          break;
+        }
+      }
     }
 
     // replace the NodeDb in the WebGraph with the final output of analysis
@@ -20,11 +20,13 @@ import java.io.IOException;
 import java.lang.invoke.MethodHandles;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Random;
 import java.util.Set;
 
@@ -42,6 +44,10 @@ import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.ObjectWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.BooleanWritable;
 import org.apache.hadoop.io.Writable;
@@ -56,6 +62,10 @@ import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+import org.apache.hadoop.mapred.lib.IdentityMapper;
+import org.apache.hadoop.mapred.lib.NullOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
@@ -93,6 +103,11 @@ import org.apache.nutch.util.URLUtil;
  * for urls it is recommended that a crawl-cycle (one or more full crawls) fully
  * complete before the WebGraph is updated and some type of analysis, such as
  * LinkRank, is run to update scores in the Node database in a stable fashion.
+ * 
+ * An incremental update only processes the given segments: the outlinks of
+ * the URLs in the segments are merged into the existing OutlinkDb, only the
+ * changed links are inverted and merged into the InlinkDb and the NodeDb.
+ * Scores of existing nodes are kept.
  */
 public class WebGraph extends Configured implements Tool {
 
@@ -104,6 +119,17 @@ public class WebGraph extends Configured implements Tool {
   public static final String OLD_OUTLINK_DIR = "outlinks/old";
   public static final String NODE_DIR = "nodes";
 
+  // existing databases merged by an incremental update
+  private static final String MERGE_OUTLINKDB = "webgraph.merge.outlinkdb";
+  private static final String MERGE_INLINKDB = "webgraph.merge.inlinkdb";
+  private static final String MERGE_NODEDB = "webgraph.merge.nodedb";
+
+  private static final PathFilter PARTS = new PathFilter() {
+    public boolean accept(Path path) {
+      return path.getName().startsWith("part-");
+    }
+  };
+
   /**
    * The OutlinkDb creates a database of all outlinks. Outlinks to internal urls
    * by domain and host can be ignored. The number of Outlinks out to a given
@@ -481,6 +507,382 @@ public class WebGraph extends Configured implements Tool {
     }
   }
 
+  /**
+   * Part of an existing database merged by a reducer of an incremental update.
+   * The reducers are partitioned as the existing database, records are copied
+   * in key order.
+   */
+  private static class MergedPart<V extends Writable> {
+
+    private final MapFile.Reader reader;
+    private final MapFile.Writer writer;
+    private final Text key = new Text();
+    private final V value;
+    private boolean hasNext;
+
+    MergedPart(JobConf conf, Path db, String output, Class<V> valueClass)
+        throws IOException {
+      String part = String.format("part-%05d",
+          conf.getInt("mapreduce.task.partition", 0));
+      reader = new MapFile.Reader(new Path(db, part), conf);
+      // written as side file of the task, committed with the output
+      writer = new MapFile.Writer(conf,
+          new Path(new Path(FileOutputFormat.getWorkOutputPath(conf), output),
+              part), MapFile.Writer.keyClass(Text.class),
+          MapFile.Writer.valueClass(valueClass));
+      value = ReflectionUtils.newInstance(valueClass, conf);
+      hasNext = reader.next(key, value);
+    }
+
+    /**
+     * Copies the existing records before the given key, all if null.
+     */
+    void copyUntil(Text until) throws IOException {
+      while (hasNext && (until == null || key.compareTo(until) < 0)) {
+        writer.append(key, value);
+        hasNext = reader.next(key, value);
+      }
+    }
+
+    /**
+     * Reads the existing values of the given key, the records before must have
+     * been copied.
+     */
+    List<V> read(Text current, JobConf conf) throws IOException {
+      List<V> values = new ArrayList<>();
+      while (hasNext && key.equals(current)) {
+        values.add(WritableUtils.clone(value, conf));
+        hasNext = reader.next(key, value);
+      }
+      return values;
+    }
+
+    void append(Text current, V datum) throws IOException {
+      writer.append(current, datum);
+    }
+
+    void close() throws IOException {
+      copyUntil(null);
+      reader.close();
+      writer.close();
+    }
+  }
+
+  /**
+   * Merges the outlinks of new segments into the existing OutlinkDb. Every
+   * reducer merges one part of the OutlinkDb: the records of URLs not in the
+   * segments are copied, the outlinks of the others are selected from the
+   * existing and the new outlinks as by {@link OutlinkDb}. Changed links are
+   * output inverted, keyed by the link target, along with the new number of
+   * outlinks of the source.
+   */
+  private static class OutlinkDbMerger extends Configured implements
+      Reducer<Text, NutchWritable, Text, ObjectWritable> {
+
+    private JobConf conf;
+    private OutlinkDb outlinkDb;
+    private MergedPart<LinkDatum> outlinks;
+    private long timestamp;
+
+    public void configure(JobConf conf) {
+      this.conf = conf;
+      outlinkDb = new OutlinkDb(conf);
+      outlinkDb.configure(conf);
+      timestamp = System.currentTimeMillis();
+    }
+
+    private void open() throws IOException {
+      if (outlinks == null) {
+        outlinks = new MergedPart<>(conf, new Path(conf.get(MERGE_OUTLINKDB)),
+            "outlinks", LinkDatum.class);
+      }
+    }
+
+    public void reduce(Text key, Iterator<NutchWritable> values,
+        OutputCollector<Text, ObjectWritable> output, Reporter reporter)
+        throws IOException {
+
+      open();
+      outlinks.copyUntil(key);
+
+      // select the outlinks from the existing and the new ones
+      List<LinkDatum> oldLinks = outlinks.read(key, conf);
+      List<NutchWritable> all = new ArrayList<>();
+      for (LinkDatum link : oldLinks) {
+        all.add(new NutchWritable(link));
+      }
+      while (values.hasNext()) {
+        all.add(WritableUtils.clone(values.next(), conf));
+      }
+      final List<LinkDatum> newLinks = new ArrayList<>();
+      outlinkDb.reduce(key, all.iterator(),
+          new OutputCollector<Text, LinkDatum>() {
+            public void collect(Text url, LinkDatum link) {
+              newLinks.add(link);
+            }
+          }, reporter);
+      for (LinkDatum link : newLinks) {
+        outlinks.append(key, link);
+      }
+
+      // output added and changed links inverted, then the removed ones
+      String fromUrl = key.toString();
+      Map<String, LinkDatum> previous = new HashMap<>();
+      for (LinkDatum link : oldLinks) {
+        previous.put(link.getUrl(), link);
+      }
+      for (LinkDatum link : newLinks) {
+        LinkDatum old = previous.remove(link.getUrl());
+        if (old == null || !Objects.equals(old.getAnchor(), link.getAnchor())) {
+          LinkDatum inlink = new LinkDatum(fromUrl, link.getAnchor(),
+              timestamp);
+          inlink.setLinkType(LinkDatum.INLINK);
+          output.collect(new Text(link.getUrl()), new ObjectWritable(inlink));
+          reporter.incrCounter("WebGraph.update", "inlinks added", 1);
+        }
+      }
+      for (String toUrl : previous.keySet()) {
+        output.collect(new Text(toUrl), new ObjectWritable(new Text(fromUrl)));
+        reporter.incrCounter("WebGraph.update", "inlinks removed", 1);
+      }
+      if (newLinks.size() != oldLinks.size()) {
+        output.collect(key,
+            new ObjectWritable(new IntWritable(newLinks.size())));
+      }
+    }
+
+    public void close() throws IOException {
+      open();
+      outlinks.close();
+    }
+  }
+
+  /**
+   * Merges the changed links output by {@link OutlinkDbMerger} into the
+   * existing InlinkDb and NodeDb. The numbers of in and outlinks of changed
+   * nodes are updated, nodes left without links are removed.
+   */
+  private static class NodeDbMerger extends Configured implements
+      Reducer<Text, ObjectWritable, Text, Node> {
+
+    private JobConf conf;
+    private MergedPart<LinkDatum> inlinks;
+    private MergedPart<Node> nodes;
+
+    public void configure(JobConf conf) {
+      this.conf = conf;
+    }
+
+    private void open() throws IOException {
+      if (inlinks == null) {
+        inlinks = new MergedPart<>(conf, new Path(conf.get(MERGE_INLINKDB)),
+            INLINK_DIR, LinkDatum.class);
+        nodes = new MergedPart<>(conf, new Path(conf.get(MERGE_NODEDB)),
+            NODE_DIR, Node.class);
+      }
+    }
+
+    public void reduce(Text key, Iterator<ObjectWritable> values,
+        OutputCollector<Text, Node> output, Reporter reporter)
+        throws IOException {
+
+      open();
+      inlinks.copyUntil(key);
+      nodes.copyUntil(key);
+
+      Set<String> removed = new HashSet<>();
+      Map<String, LinkDatum> added = new LinkedHashMap<>();
+      int numOutlinks = -1;
+      while (values.hasNext()) {
+        Object value = values.next().get();
+        if (value instanceof LinkDatum) {
+          LinkDatum inlink = WritableUtils.clone((LinkDatum) value, conf);
+          added.put(inlink.getUrl(), inlink);
+        } else if (value instanceof Text) {
+          removed.add(value.toString());
+        } else if (value instanceof IntWritable) {
+          numOutlinks = ((IntWritable) value).get();
+        }
+      }
+
+      // existing inlinks not removed or replaced, then the added ones
+      int numInlinks = 0;
+      for (LinkDatum inlink : inlinks.read(key, conf)) {
+        String fromUrl = inlink.getUrl();
+        if (!removed.contains(fromUrl) && !added.containsKey(fromUrl)) {
+          inlinks.append(key, inlink);
+          numInlinks++;
+        }
+      }
+      for (LinkDatum inlink : added.values()) {
+        inlinks.append(key, inlink);
+        numInlinks++;
+      }
+
+      // patch the counts of the node, keeping its score
+      List<Node> existing = nodes.read(key, conf);
+      Node node;
+      if (existing.isEmpty()) {
+        node = new Node();
+        node.setInlinkScore(0.0f);
+      } else {
+        node = existing.get(0);
+      }
+      node.setNumInlinks(numInlinks);
+      if (numOutlinks >= 0) {
+        node.setNumOutlinks(numOutlinks);
+      }
+      if (node.getNumInlinks() == 0 && node.getNumOutlinks() == 0) {
+        reporter.incrCounter("WebGraph.update", "nodes removed", 1);
+        return;
+      }
+      if (existing.isEmpty()) {
+        reporter.incrCounter("WebGraph.update", "nodes added", 1);
+      }
+      nodes.append(key, node);
+    }
+
+    public void close() throws IOException {
+      open();
+      inlinks.close();
+      nodes.close();
+    }
+  }
+
+  /**
+   * Adds the parse data and, if gone pages are deleted, the crawl fetch data
+   * of the segments as input of an OutlinkDb job.
+   */
+  private void addSegments(JobConf outlinkJob, Path[] segments,
+      boolean deleteGone) throws IOException {
+    if (segments == null) {
+      return;
+    }
+    for (int i = 0; i < segments.length; i++) {
+      FileSystem sfs = segments[i].getFileSystem(getConf());
+      Path parseData = new Path(segments[i], ParseData.DIR_NAME);
+      if (sfs.exists(parseData)) {
+        LOG.info("OutlinkDb: adding input: " + parseData);
+        FileInputFormat.addInputPath(outlinkJob, parseData);
+      }
+
+      if (deleteGone) {
+        Path crawlFetch = new Path(segments[i], CrawlDatum.FETCH_DIR_NAME);
+        if (sfs.exists(crawlFetch)) {
+          LOG.info("OutlinkDb: adding input: " + crawlFetch);
+          FileInputFormat.addInputPath(outlinkJob, crawlFetch);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the number of parts of a database, 0 if it does not exist.
+   */
+  private static int numParts(FileSystem fs, Path db) throws IOException {
+    if (!fs.exists(db)) {
+      return 0;
+    }
+    return fs.listStatus(db, PARTS).length;
+  }
+
+  /**
+   * Updates an existing WebGraph with the given segments only. The outlinks
+   * of the URLs in the segments are merged into the OutlinkDb, the changed
+   * links are inverted and merged into the InlinkDb and the NodeDb. Only the
+   * segments are shuffled, the existing databases are read and written
+   * sequentially, part by part.
+   * 
+   * @return false if the databases of the WebGraph are missing or not
+   *         partitioned equally, nothing is changed then
+   */
+  private boolean updateWebGraph(Path webGraphDb, Path[] segments,
+      boolean normalize, boolean filter) throws IOException {
+
+    Configuration conf = getConf();
+    FileSystem fs = webGraphDb.getFileSystem(conf);
+    Path outlinkDb = new Path(webGraphDb, OUTLINK_DIR);
+    Path oldOutlinkDb = new Path(webGraphDb, OLD_OUTLINK_DIR);
+    Path inlinkDb = new Path(webGraphDb, INLINK_DIR);
+    Path nodeDb = new Path(webGraphDb, NODE_DIR);
+
+    int numOutlinkParts = numParts(fs, outlinkDb);
+    int numNodeParts = numParts(fs, nodeDb);
+    if (numOutlinkParts == 0 || numNodeParts == 0
+        || numParts(fs, inlinkDb) != numNodeParts) {
+      LOG.info("WebGraphDb: no existing WebGraph to update incrementally");
+      return false;
+    }
+
+    int random = new Random().nextInt(Integer.MAX_VALUE);
+    Path tempDelta = new Path(webGraphDb, "delta-" + random);
+    Path tempMerged = new Path(webGraphDb, "merged-" + random);
+    boolean deleteGone = conf.getBoolean("link.delete.gone", false);
+    boolean preserveBackup = conf.getBoolean("db.preserve.backup", true);
+
+    // merge the outlinks of the segments, output the changed links
+    JobConf outlinkJob = new NutchJob(conf);
+    outlinkJob.setJobName("Outlinkdb update: " + outlinkDb);
+    addSegments(outlinkJob, segments, deleteGone);
+    outlinkJob.set(MERGE_OUTLINKDB, outlinkDb.toString());
+    outlinkJob.setBoolean(OutlinkDb.URL_NORMALIZING, normalize);
+    outlinkJob.setBoolean(OutlinkDb.URL_FILTERING, filter);
+    outlinkJob.setInputFormat(SequenceFileInputFormat.class);
+    outlinkJob.setMapperClass(OutlinkDb.class);
+    outlinkJob.setReducerClass(OutlinkDbMerger.class);
+    outlinkJob.setNumReduceTasks(numOutlinkParts);
+    outlinkJob.setMapOutputKeyClass(Text.class);
+    outlinkJob.setMapOutputValueClass(NutchWritable.class);
+    outlinkJob.setOutputKeyClass(Text.class);
+    outlinkJob.setOutputValueClass(ObjectWritable.class);
+    FileOutputFormat.setOutputPath(outlinkJob, tempDelta);
+    outlinkJob.setOutputFormat(SequenceFileOutputFormat.class);
+    outlinkJob.setBoolean("mapreduce.fileoutputcommitter.marksuccessfuljobs",
+        false);
+
+    // merge the changed links into the inlinks and nodes
+    JobConf nodeJob = new NutchJob(conf);
+    nodeJob.setJobName("NodeDb update " + nodeDb);
+    FileInputFormat.addInputPath(nodeJob, new Path(tempDelta, "part-*"));
+    nodeJob.set(MERGE_INLINKDB, inlinkDb.toString());
+    nodeJob.set(MERGE_NODEDB, nodeDb.toString());
+    nodeJob.setInputFormat(SequenceFileInputFormat.class);
+    nodeJob.setMapperClass(IdentityMapper.class);
+    nodeJob.setReducerClass(NodeDbMerger.class);
+    nodeJob.setNumReduceTasks(numNodeParts);
+    nodeJob.setMapOutputKeyClass(Text.class);
+    nodeJob.setMapOutputValueClass(ObjectWritable.class);
+    nodeJob.setOutputKeyClass(Text.class);
+    nodeJob.setOutputValueClass(Node.class);
+    FileOutputFormat.setOutputPath(nodeJob, tempMerged);
+    nodeJob.setOutputFormat(NullOutputFormat.class);
+    nodeJob.setBoolean("mapreduce.fileoutputcommitter.marksuccessfuljobs",
+        false);
+
+    try {
+      LOG.info("OutlinkDb: merging segments");
+      JobClient.runJob(outlinkJob);
+      LOG.info("NodeDb: merging changed links");
+      JobClient.runJob(nodeJob);
+
+      // install all databases once both jobs succeeded
+      LOG.info("WebGraphDb: installing " + webGraphDb);
+      FSUtils.replace(fs, oldOutlinkDb, outlinkDb, true);
+      FSUtils.replace(fs, outlinkDb, new Path(tempDelta, "outlinks"), true);
+      if (!preserveBackup && fs.exists(oldOutlinkDb))
+        fs.delete(oldOutlinkDb, true);
+      FSUtils.replace(fs, inlinkDb, new Path(tempMerged, INLINK_DIR), true);
+      FSUtils.replace(fs, nodeDb, new Path(tempMerged, NODE_DIR), true);
+    } catch (IOException e) {
+      LOG.error(StringUtils.stringifyException(e));
+      throw e;
+    } finally {
+      fs.delete(tempDelta, true);
+      fs.delete(tempMerged, true);
+    }
+    return true;
+  }
+
   /**
    * Creates the three different WebGraph databases, Outlinks, Inlinks, and
    * Node. If a current WebGraph exists then it is updated, if it doesn't exist
@@ -501,6 +903,33 @@ public class WebGraph extends Configured implements Tool {
    */
   public void createWebGraph(Path webGraphDb, Path[] segments,
       boolean normalize, boolean filter) throws IOException {
+    createWebGraph(webGraphDb, segments, normalize, filter, false);
+  }
+
+  /**
+   * Creates the three different WebGraph databases, Outlinks, Inlinks, and
+   * Node, or updates an existing WebGraph incrementally.
+   * 
+   * @param webGraphDb
+   *          The WebGraph to create or update.
+   * @param segments
+   *          The array of segments used to update the WebGraph. Newer segments
+   *          and fetch times will overwrite older segments.
+   * @param normalize
+   *          whether to use URLNormalizers on URL's in the segment
+   * @param filter
+   *          whether to use URLFilters on URL's in the segment
+   * @param incremental
+   *          whether to merge the changes of the segments into an existing
+   *          WebGraph instead of rebuilding all databases, existing outlinks
+   *          are not normalized and filtered again then
+   * 
+   * @throws IOException
+   *           If an error occurs while processing the WebGraph.
+   */
+  public void createWebGraph(Path webGraphDb, Path[] segments,
+      boolean normalize, boolean filter, boolean incremental)
+      throws IOException {
 
     SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
     long start = System.currentTimeMillis();
@@ -509,6 +938,7 @@ public class WebGraph extends Configured implements Tool {
       LOG.info("WebGraphDb: webgraphdb: " + webGraphDb);
       LOG.info("WebGraphDb: URL normalize: " + normalize);
       LOG.info("WebGraphDb: URL filter: " + filter);
+      LOG.info("WebGraphDb: incremental: " + incremental);
     }
 
     Configuration conf = getConf();
@@ -522,6 +952,23 @@ public class WebGraph extends Configured implements Tool {
 
     LockUtil.createLockFile(fs, lock, false);
 
+    if (incremental) {
+      boolean updated;
+      try {
+        updated = updateWebGraph(webGraphDb, segments, normalize, filter);
+      } catch (IOException e) {
+        LockUtil.removeLockFile(fs, lock);
+        throw e;
+      }
+      if (updated) {
+        LockUtil.removeLockFile(fs, lock);
+        long end = System.currentTimeMillis();
+        LOG.info("WebGraphDb: finished at " + sdf.format(end) + ", elapsed: "
+            + TimingUtil.elapsedTime(start, end));
+        return;
+      }
+    }
+
     // outlink and temp outlink database paths
     Path outlinkDb = new Path(webGraphDb, OUTLINK_DIR);
     Path oldOutlinkDb = new Path(webGraphDb, OLD_OUTLINK_DIR);
@@ -543,24 +990,7 @@ public class WebGraph extends Configured implements Tool {
     }
 
     // get the parse data and crawl fetch data for all segments
-    if (segments != null) {
-      for (int i = 0; i < segments.length; i++) {
-        FileSystem sfs = segments[i].getFileSystem(conf);
-        Path parseData = new Path(segments[i], ParseData.DIR_NAME);
-        if (sfs.exists(parseData)) {
-          LOG.info("OutlinkDb: adding input: " + parseData);
-          FileInputFormat.addInputPath(outlinkJob, parseData);
-        }
-
-        if (deleteGone) {
-          Path crawlFetch = new Path(segments[i], CrawlDatum.FETCH_DIR_NAME);
-          if (sfs.exists(crawlFetch)) {
-            LOG.info("OutlinkDb: adding input: " + crawlFetch);
-            FileInputFormat.addInputPath(outlinkJob, crawlFetch);
-          }
-        }
-      }
-    }
+    addSegments(outlinkJob, segments, deleteGone);
 
     // add the existing webgraph
     LOG.info("OutlinkDb: adding input: " + outlinkDb);
@@ -706,6 +1136,9 @@ public class WebGraph extends Configured implements Tool {
         "whether to use URLNormalizers on the URL's in the segment");
     Option filtOpt = new Option("f", "filter", false,
         "whether to use URLFilters on the URL's in the segment");
+    Option incOpt = new Option("i", "incremental", false,
+        "merge the segments into the existing web graph database,"
+            + " only the changed links are inverted");
 
     // argument options
     @SuppressWarnings("static-access")
@@ -727,6 +1160,7 @@ public class WebGraph extends Configured implements Tool {
     options.addOption(helpOpt);
     options.addOption(normOpt);
     options.addOption(filtOpt);
+    options.addOption(incOpt);
     options.addOption(graphOpt);
     options.addOption(segOpt);
     options.addOption(segDirOpt);
@@ -775,7 +1209,10 @@ public class WebGraph extends Configured implements Tool {
         filter = true;
       }
 
-      createWebGraph(new Path(webGraphDb), segPaths, normalize, filter);
+      boolean incremental = line.hasOption("incremental");
+
+      createWebGraph(new Path(webGraphDb), segPaths, normalize, filter,
+          incremental);
       return 0;
     } catch (Exception e) {
       LOG.error("WebGraph: " + StringUtils.stringifyException(e));
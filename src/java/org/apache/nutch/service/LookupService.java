@@ -0,0 +1,59 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.service;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.Partitioner;
+
+/**
+ * Point lookups of records by key in MapFile output directories, e.g. the
+ * CrawlDb, LinkDb or the MapFile parts of a segment. The implementation is
+ * chosen by <code>service.lookup.class</code>.
+ */
+public interface LookupService extends Configurable {
+
+  /**
+   * Look up a batch of keys.
+   *
+   * @param dir
+   *          directory holding the MapFile parts (<code>part-*</code>)
+   * @param partitioner
+   *          partitioner the parts were written with, or null if unknown, then
+   *          all parts are searched
+   * @param keys
+   *          keys to look up
+   * @return the value of every key in the order requested, null if the key was
+   *         not found. Values may be cached and shared with other lookups,
+   *         they must not be modified.
+   */
+  public Map<String, Writable> get(Path dir,
+      Partitioner<Text, Writable> partitioner, Collection<String> keys)
+      throws IOException;
+
+  /** Close the readers of a directory and drop its cached records. */
+  public void invalidate(Path dir) throws IOException;
+
+  /** Close all readers and drop all cached records. */
+  public void close();
+}
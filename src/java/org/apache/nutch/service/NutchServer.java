@@ -38,10 +38,13 @@ import org.apache.cxf.jaxrs.JAXRSBindingFactory;
 import org.apache.cxf.jaxrs.JAXRSServerFactoryBean;
 import org.apache.cxf.jaxrs.lifecycle.ResourceProvider;
 import org.apache.cxf.jaxrs.lifecycle.SingletonResourceProvider;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.nutch.fetcher.FetchNodeDb;
 import org.apache.nutch.service.impl.ConfManagerImpl;
 import org.apache.nutch.service.impl.JobFactory;
 import org.apache.nutch.service.impl.JobManagerImpl;
+import org.apache.nutch.service.impl.LookupServiceImpl;
 import org.apache.nutch.service.impl.SeedManagerImpl;
 import org.apache.nutch.service.impl.NutchServerPoolExecutor;
 import org.apache.nutch.service.model.response.JobInfo;
@@ -50,6 +53,7 @@ import org.apache.nutch.service.resources.AdminResource;
 import org.apache.nutch.service.resources.ConfigResource;
 import org.apache.nutch.service.resources.DbResource;
 import org.apache.nutch.service.resources.JobResource;
+import org.apache.nutch.service.resources.LookupResource;
 import org.apache.nutch.service.resources.ReaderResouce;
 import org.apache.nutch.service.resources.SeedResource;
 import org.slf4j.Logger;
@@ -78,6 +82,7 @@ public class NutchServer {
   private ConfManager configManager;
   private JobManager jobManager;
   private SeedManager seedManager;
+  private LookupService lookupService;
   private JAXRSServerFactoryBean sf; 
 
   private static FetchNodeDb fetchNodeDb;
@@ -95,6 +100,10 @@ public class NutchServer {
     NutchServerPoolExecutor executor = new NutchServerPoolExecutor(10, JOB_CAPACITY, 1, TimeUnit.HOURS, runnables);
     jobManager = new JobManagerImpl(new JobFactory(), configManager, executor);
     fetchNodeDb = FetchNodeDb.getInstance();
+    Configuration conf = configManager.get(ConfigResource.DEFAULT);
+    lookupService = ReflectionUtils.newInstance(conf.getClass(
+        "service.lookup.class", LookupServiceImpl.class, LookupService.class),
+        conf);
 
     sf = new JAXRSServerFactoryBean();
     BindingFactoryManager manager = sf.getBus().getExtension(BindingFactoryManager.class);
@@ -138,6 +147,7 @@ public class NutchServer {
     resources.add(AdminResource.class);
     resources.add(SeedResource.class);
     resources.add(ReaderResouce.class);
+    resources.add(LookupResource.class);
     return resources;
   }
 
@@ -159,6 +169,10 @@ public class NutchServer {
     return seedManager;
   }
 
+  public LookupService getLookupService() {
+    return lookupService;
+  }
+
   public FetchNodeDb getFetchNodeDb(){
     return fetchNodeDb;
   }
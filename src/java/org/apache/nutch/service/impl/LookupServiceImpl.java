@@ -0,0 +1,353 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.service.impl;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.MapFileOutputFormat;
+import org.apache.hadoop.mapred.Partitioner;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.nutch.service.LookupService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lookup service keeping the readers of recently used MapFile directories
+ * open, so that the index of every part is read only once, and caching
+ * recently looked up records.
+ *
+ * <p>
+ * At most <code>service.lookup.readers.max</code> directories are kept open
+ * and <code>service.lookup.cache.size</code> records (including keys not
+ * found) are cached, the least recently used ones are evicted first. A
+ * directory is checked for modifications at most every
+ * <code>service.lookup.check.interval</code> seconds: if it has been
+ * replaced, e.g. by an update of the CrawlDb, the readers are reopened and
+ * the cached records are not used anymore. Keys of a batch are looked up in
+ * sorted order so that every reader only seeks forward.
+ */
+public class LookupServiceImpl implements LookupService {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  /** Cached value of a key not found */
+  private static final Writable NOT_FOUND = NullWritable.get();
+
+  /** The readers of a directory, shared by concurrent lookups. */
+  private class Readers {
+    final Path dir;
+    MapFile.Reader[] parts;
+    long modificationTime;
+    long checked;
+    /** Lookups using the readers, guarded by {@link #dirs} */
+    int users = 0;
+    /** Removed from the cache, close when not used anymore */
+    boolean evicted = false;
+
+    Readers(Path dir) {
+      this.dir = dir;
+    }
+
+    /**
+     * Open the readers or check whether the directory has been modified since
+     * they have been opened.
+     *
+     * @return false if the readers are outdated
+     */
+    synchronized boolean open() throws IOException {
+      long now = System.currentTimeMillis();
+      if (parts != null && now - checked < checkInterval) {
+        return true;
+      }
+      FileSystem fs = dir.getFileSystem(conf);
+      FileStatus status;
+      try {
+        status = fs.getFileStatus(dir);
+      } catch (FileNotFoundException e) {
+        if (parts != null) {
+          return false;
+        }
+        throw e;
+      }
+      checked = now;
+      if (parts != null) {
+        return status.getModificationTime() == modificationTime;
+      }
+      long start = System.currentTimeMillis();
+      parts = MapFileOutputFormat.getReaders(fs, dir, conf);
+      modificationTime = status.getModificationTime();
+      LOG.info("Opened {} readers of {} in {} ms", parts.length, dir,
+          System.currentTimeMillis() - start);
+      return true;
+    }
+
+    synchronized void close() {
+      if (parts == null) {
+        return;
+      }
+      for (MapFile.Reader part : parts) {
+        try {
+          part.close();
+        } catch (IOException e) {
+          LOG.warn("Failed to close reader of {}: {}", dir, e.getMessage());
+        }
+      }
+      parts = null;
+    }
+  }
+
+  /** Key of a cached record, bound to the readers it was read from. */
+  private static class RecordKey {
+    final Readers readers;
+    final String key;
+
+    RecordKey(Readers readers, String key) {
+      this.readers = readers;
+      this.key = key;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof RecordKey)) {
+        return false;
+      }
+      RecordKey other = (RecordKey) o;
+      return readers == other.readers && key.equals(other.key);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(readers) + key.hashCode();
+    }
+  }
+
+  private Configuration conf;
+  private Map<Path, Readers> dirs;
+  private Map<RecordKey, Writable> records;
+  private long checkInterval;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  @Override
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+    final int maxReaders = Math.max(1,
+        conf.getInt("service.lookup.readers.max", 20));
+    final int cacheSize = conf.getInt("service.lookup.cache.size", 10000);
+    checkInterval = conf.getLong("service.lookup.check.interval", 10) * 1000;
+    dirs = new LinkedHashMap<Path, Readers>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Path, Readers> eldest) {
+        if (size() > maxReaders) {
+          evict(eldest.getValue());
+          return true;
+        }
+        return false;
+      }
+    };
+    records = new LinkedHashMap<RecordKey, Writable>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<RecordKey, Writable> eldest) {
+        return size() > cacheSize;
+      }
+    };
+    LOG.info("Lookup service: max. open directories = {}, cache size = {},"
+        + " check interval = {} ms", maxReaders, cacheSize, checkInterval);
+  }
+
+  @Override
+  public Configuration getConf() {
+    return conf;
+  }
+
+  @Override
+  public Map<String, Writable> get(Path dir,
+      Partitioner<Text, Writable> partitioner, Collection<String> keys)
+      throws IOException {
+    Map<String, Writable> results = new LinkedHashMap<>();
+    Readers readers = acquire(dir);
+    try {
+      List<Text> missing = new ArrayList<>();
+      synchronized (records) {
+        for (String key : keys) {
+          if (results.containsKey(key)) {
+            continue;
+          }
+          Writable value = records.get(new RecordKey(readers, key));
+          if (value == null) {
+            missing.add(new Text(key));
+          }
+          results.put(key, value == NOT_FOUND ? null : value);
+        }
+      }
+      hits.addAndGet(results.size() - missing.size());
+      misses.addAndGet(missing.size());
+      if (missing.isEmpty()) {
+        return results;
+      }
+
+      Collections.sort(missing);
+      MapFile.Reader[] parts = readers.parts;
+      for (Text key : missing) {
+        Writable value = null;
+        if (partitioner != null) {
+          value = get(parts[partitioner.getPartition(key, null, parts.length)],
+              key);
+        } else {
+          for (int i = 0; i < parts.length && value == null; i++) {
+            value = get(parts[i], key);
+          }
+        }
+        String k = key.toString();
+        results.put(k, value);
+        synchronized (records) {
+          records.put(new RecordKey(readers, k),
+              value == null ? NOT_FOUND : value);
+        }
+      }
+      LOG.debug("Looked up {} keys in {}, cache hits = {}, misses = {}",
+          keys.size(), dir, hits, misses);
+    } finally {
+      release(readers);
+    }
+    return results;
+  }
+
+  private Writable get(MapFile.Reader part, Text key) throws IOException {
+    Writable value = (Writable) ReflectionUtils.newInstance(
+        part.getValueClass(), conf);
+    return part.get(key, value);
+  }
+
+  /** Get the open readers of a directory, reopen them if outdated. */
+  private Readers acquire(Path dir) throws IOException {
+    dir = dir.getFileSystem(conf).makeQualified(dir);
+    while (true) {
+      Readers readers;
+      synchronized (dirs) {
+        readers = dirs.get(dir);
+        if (readers == null) {
+          readers = new Readers(dir);
+          dirs.put(dir, readers);
+        }
+        readers.users++;
+      }
+      boolean current;
+      try {
+        current = readers.open();
+      } catch (IOException e) {
+        synchronized (dirs) {
+          if (dirs.get(dir) == readers) {
+            dirs.remove(dir);
+          }
+          evict(readers);
+        }
+        release(readers);
+        throw e;
+      }
+      if (current) {
+        return readers;
+      }
+      LOG.info("{} has been modified, reopening readers", dir);
+      synchronized (dirs) {
+        if (dirs.get(dir) == readers) {
+          dirs.remove(dir);
+        }
+        evict(readers);
+      }
+      release(readers);
+      dropRecords(readers);
+    }
+  }
+
+  private void release(Readers readers) {
+    synchronized (dirs) {
+      readers.users--;
+      if (readers.users == 0 && readers.evicted) {
+        readers.close();
+      }
+    }
+  }
+
+  /** Must be called holding the lock of {@link #dirs}. */
+  private void evict(Readers readers) {
+    readers.evicted = true;
+    if (readers.users == 0) {
+      readers.close();
+    }
+  }
+
+  /** Drop the cached records read by the given readers, all if null. */
+  private void dropRecords(Readers readers) {
+    synchronized (records) {
+      if (readers == null) {
+        records.clear();
+        return;
+      }
+      Iterator<RecordKey> it = records.keySet().iterator();
+      while (it.hasNext()) {
+        if (it.next().readers == readers) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  @Override
+  public void invalidate(Path dir) throws IOException {
+    dir = dir.getFileSystem(conf).makeQualified(dir);
+    Readers readers;
+    synchronized (dirs) {
+      readers = dirs.remove(dir);
+      if (readers == null) {
+        return;
+      }
+      evict(readers);
+    }
+    dropRecords(readers);
+  }
+
+  @Override
+  public void close() {
+    synchronized (dirs) {
+      for (Readers readers : dirs.values()) {
+        evict(readers);
+      }
+      dirs.clear();
+    }
+    dropRecords(null);
+  }
+}
@@ -18,6 +18,7 @@ package org.apache.nutch.service.resources;
 
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -33,6 +34,12 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.Partitioner;
+import org.apache.hadoop.mapred.lib.HashPartitioner;
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.crawl.CrawlDb;
 import org.apache.nutch.crawl.CrawlDbReader;
 import org.apache.nutch.fetcher.FetchNode;
 import org.apache.nutch.fetcher.FetchNodeDb;
@@ -42,6 +49,8 @@ import org.apache.nutch.service.model.response.FetchNodeDbInfo;
 @Path(value = "/db")
 public class DbResource extends AbstractResource {
 
+  private static final Partitioner<Text, Writable> PARTITIONER = new HashPartitioner<>();
+
   @POST
   @Path(value = "/crawldb")
   @Consumes(MediaType.APPLICATION_JSON)
@@ -132,9 +141,20 @@ public class DbResource extends AbstractResource {
   }
 
   private Response crawlDbUrl(Configuration conf, Map<String, String> args, String crawlId){
-    CrawlDbReader dbr = new CrawlDbReader();
+    String url = args.get("url");
+    if(url == null){
+      return Response.status(Status.BAD_REQUEST).build();
+    }
+    // served by the lookup service which keeps the CrawlDb readers open
+    org.apache.hadoop.fs.Path current = new org.apache.hadoop.fs.Path(
+        crawlId + "/crawldb", CrawlDb.CURRENT_NAME);
     try{
-      return Response.ok(dbr.query(args, conf, "url", crawlId)).build();
+      CrawlDatum datum = (CrawlDatum) server.getLookupService().get(current,
+          PARTITIONER, Collections.singletonList(url)).get(url);
+      if(datum == null){
+        return Response.status(Status.NOT_FOUND).build();
+      }
+      return Response.ok(CrawlDbReader.toMap(datum)).build();
     }catch(Exception e){
       e.printStackTrace();
       return Response.serverError().entity(e.getMessage()).type(MediaType.TEXT_PLAIN).build();
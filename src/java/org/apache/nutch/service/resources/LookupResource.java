@@ -0,0 +1,199 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.service.resources;
+
+import java.io.FileNotFoundException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.Partitioner;
+import org.apache.hadoop.mapred.lib.HashPartitioner;
+import org.apache.hadoop.util.StringUtils;
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.crawl.CrawlDb;
+import org.apache.nutch.crawl.CrawlDbReader;
+import org.apache.nutch.crawl.Inlink;
+import org.apache.nutch.crawl.Inlinks;
+import org.apache.nutch.crawl.LinkDb;
+import org.apache.nutch.parse.ParseData;
+import org.apache.nutch.parse.ParseText;
+import org.apache.nutch.protocol.Content;
+import org.apache.nutch.service.LookupService;
+import org.apache.nutch.service.model.request.LookupQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Lookup endpoint returns the records of a batch of URLs from the CrawlDb,
+ * LinkDb or a segment, using the readers kept open by the
+ * {@link LookupService}.
+ */
+@Path("/lookup")
+public class LookupResource extends AbstractResource {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  /** Partitioner of the CrawlDb and LinkDb */
+  private static final Partitioner<Text, Writable> PARTITIONER = new HashPartitioner<>();
+
+  /** Segment parts stored as MapFile */
+  private static final List<String> SEGMENT_PARTS = Arrays.asList(
+      Content.DIR_NAME, CrawlDatum.FETCH_DIR_NAME, ParseData.DIR_NAME,
+      ParseText.DIR_NAME);
+
+  private LookupService lookupService = server.getLookupService();
+
+  /**
+   * Look up URLs in a CrawlDb
+   * @param query path of the CrawlDb and URLs to look up
+   * @return CrawlDatum of every URL, null if not found
+   */
+  @POST
+  @Path("/crawldb")
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response crawlDb(LookupQuery query) {
+    if (query == null || query.getPath() == null) {
+      return Response.status(Status.BAD_REQUEST).build();
+    }
+    try {
+      Map<String, Object> results = new LinkedHashMap<>();
+      for (Map.Entry<String, Writable> e : lookupService.get(
+          new org.apache.hadoop.fs.Path(query.getPath(), CrawlDb.CURRENT_NAME),
+          PARTITIONER, query.getKeys()).entrySet()) {
+        results.put(e.getKey(), e.getValue() == null ? null
+            : CrawlDbReader.toMap((CrawlDatum) e.getValue()));
+      }
+      return Response.ok(results).build();
+    } catch (Exception e) {
+      return error(query, e);
+    }
+  }
+
+  /**
+   * Look up the inlinks of URLs in a LinkDb
+   * @param query path of the LinkDb and URLs to look up
+   * @return inlinks (source URL and anchor) of every URL, null if not found
+   */
+  @POST
+  @Path("/linkdb")
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response linkDb(LookupQuery query) {
+    if (query == null || query.getPath() == null) {
+      return Response.status(Status.BAD_REQUEST).build();
+    }
+    try {
+      Map<String, Object> results = new LinkedHashMap<>();
+      for (Map.Entry<String, Writable> e : lookupService.get(
+          new org.apache.hadoop.fs.Path(query.getPath(), LinkDb.CURRENT_NAME),
+          PARTITIONER, query.getKeys()).entrySet()) {
+        if (e.getValue() == null) {
+          results.put(e.getKey(), null);
+          continue;
+        }
+        List<Map<String, String>> inlinks = new ArrayList<>();
+        for (Inlink inlink : (Inlinks) e.getValue()) {
+          Map<String, String> row = new HashMap<>();
+          row.put("fromUrl", inlink.getFromUrl());
+          row.put("anchor", inlink.getAnchor());
+          inlinks.add(row);
+        }
+        results.put(e.getKey(), inlinks);
+      }
+      return Response.ok(results).build();
+    } catch (Exception e) {
+      return error(query, e);
+    }
+  }
+
+  /**
+   * Look up URLs in a segment
+   * @param query path of the segment, URLs to look up and optionally the parts
+   * to read (content, crawl_fetch, parse_data, parse_text), all by default
+   * @return for every URL, the records found by part
+   */
+  @POST
+  @Path("/segment")
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response segment(LookupQuery query) {
+    if (query == null || query.getPath() == null) {
+      return Response.status(Status.BAD_REQUEST).build();
+    }
+    List<String> parts = query.getParts();
+    if (parts == null || parts.isEmpty()) {
+      parts = SEGMENT_PARTS;
+    } else if (!SEGMENT_PARTS.containsAll(parts)) {
+      return Response.status(Status.BAD_REQUEST)
+          .entity("Segment parts must be one of " + SEGMENT_PARTS).build();
+    }
+    try {
+      Map<String, Map<String, String>> results = new LinkedHashMap<>();
+      for (String key : query.getKeys()) {
+        results.put(key, new LinkedHashMap<String, String>());
+      }
+      for (String part : parts) {
+        Map<String, Writable> records;
+        try {
+          // segment parts are not partitioned by hash
+          records = lookupService.get(
+              new org.apache.hadoop.fs.Path(query.getPath(), part), null,
+              query.getKeys());
+        } catch (FileNotFoundException e) {
+          // part does not exist, e.g. segment not parsed
+          continue;
+        }
+        for (Map.Entry<String, Writable> e : records.entrySet()) {
+          if (e.getValue() != null) {
+            results.get(e.getKey()).put(part, e.getValue().toString());
+          }
+        }
+      }
+      return Response.ok(results).build();
+    } catch (Exception e) {
+      return error(query, e);
+    }
+  }
+
+  private Response error(LookupQuery query, Exception e) {
+    if (e instanceof FileNotFoundException) {
+      return Response.status(Status.NOT_FOUND).entity(e.getMessage())
+          .type(MediaType.TEXT_PLAIN).build();
+    }
+    LOG.error("Failed to look up keys in {}: {}", query.getPath(),
+        StringUtils.stringifyException(e));
+    return Response.serverError().entity(e.getMessage())
+        .type(MediaType.TEXT_PLAIN).build();
+  }
+}
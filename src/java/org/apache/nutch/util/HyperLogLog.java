@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * HyperLogLog sketch estimating the number of distinct values, see <a
+ * href="http://algo.inria.fr/flajolet/Publications/FlFuGaMe07.pdf">Flajolet et
+ * al.</a>. Sketches of the same precision are merged by {@link #merge}, adding
+ * a value twice does not change the estimate. Sketches with few values are
+ * written as a sparse list of registers.
+ */
+public class HyperLogLog implements Writable {
+
+  /** Default precision, 1024 registers with a standard error of 3.25% */
+  public static final int DEFAULT_PRECISION = 10;
+
+  private int precision;
+  private byte[] registers;
+
+  public HyperLogLog() {
+    this(DEFAULT_PRECISION);
+  }
+
+  /**
+   * @param precision
+   *          number of hash bits selecting the register (4 - 16)
+   */
+  public HyperLogLog(int precision) {
+    if (precision < 4 || precision > 16) {
+      throw new IllegalArgumentException("Precision out of range: "
+          + precision);
+    }
+    this.precision = precision;
+    this.registers = new byte[1 << precision];
+  }
+
+  /** 64-bit FNV-1a hash of a string, with murmur3's finalizer */
+  public static long hash(CharSequence s) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < s.length(); i++) {
+      h ^= s.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /** Add a value given by its 64-bit hash, see {@link #hash(CharSequence)}. */
+  public void add(long hash) {
+    int index = (int) (hash >>> (64 - precision));
+    // position of the first 1 bit of the remaining bits
+    long rest = (hash << precision) | (1L << (precision - 1));
+    byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+    if (rank > registers[index]) {
+      registers[index] = rank;
+    }
+  }
+
+  /**
+   * Add all values of another sketch.
+   *
+   * @throws IllegalArgumentException
+   *           if the precision of the sketches differs
+   */
+  public void merge(HyperLogLog other) {
+    if (other.precision != precision) {
+      throw new IllegalArgumentException("Cannot merge precision "
+          + other.precision + " into " + precision);
+    }
+    for (int i = 0; i < registers.length; i++) {
+      if (other.registers[i] > registers[i]) {
+        registers[i] = other.registers[i];
+      }
+    }
+  }
+
+  /** @return the estimated number of distinct values */
+  public long cardinality() {
+    int m = registers.length;
+    double sum = 0;
+    int zeros = 0;
+    for (byte register : registers) {
+      sum += 1.0 / (1L << register);
+      if (register == 0) {
+        zeros++;
+      }
+    }
+    double alpha = 0.7213 / (1 + 1.079 / m);
+    double estimate = alpha * m * m / sum;
+    if (estimate <= 2.5 * m && zeros > 0) {
+      // linear counting is more accurate for small cardinalities
+      estimate = m * Math.log((double) m / zeros);
+    }
+    return Math.round(estimate);
+  }
+
+  public boolean isEmpty() {
+    for (byte register : registers) {
+      if (register != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public int getPrecision() {
+    return precision;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    int used = 0;
+    for (byte register : registers) {
+      if (register != 0) {
+        used++;
+      }
+    }
+    out.writeByte(precision);
+    // sparse: index (2 bytes) and value of the registers set
+    if (used * 3 < registers.length) {
+      out.writeBoolean(true);
+      out.writeShort(used);
+      for (int i = 0; i < registers.length; i++) {
+        if (registers[i] != 0) {
+          out.writeShort(i);
+          out.writeByte(registers[i]);
+        }
+      }
+    } else {
+      out.writeBoolean(false);
+      out.write(registers);
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    int p = in.readByte();
+    if (p < 4 || p > 16) {
+      throw new IOException("Invalid HyperLogLog precision: " + p);
+    }
+    precision = p;
+    registers = new byte[1 << precision];
+    if (in.readBoolean()) {
+      int used = in.readUnsignedShort();
+      for (int i = 0; i < used; i++) {
+        int index = in.readUnsignedShort();
+        registers[index] = in.readByte();
+      }
+    } else {
+      in.readFully(registers);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return Long.toString(cardinality());
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+/**
+ * JVM-wide counters for components which have no access to the Hadoop
+ * {@link Reporter} of the running task, e.g. plugins or shared caches.
+ * Components increment counters here, and the task (e.g. the Fetcher)
+ * periodically transfers the accumulated increments to its reporter by
+ * calling {@link #report(Reporter)}.
+ *
+ * <p>
+ * The counters are not bound to a task. If multiple tasks run concurrently in
+ * the same JVM (local mode), the increments of all tasks are mixed and
+ * reported by whichever task calls {@link #report(Reporter)} first. Only the
+ * job totals are correct then, not the counters of a single task.
+ */
+public class TaskCounters {
+
+  private static final Map<String, Map<String, AtomicLong>> COUNTERS = new ConcurrentHashMap<>();
+
+  private TaskCounters() {
+  } // no public ctor
+
+  /** Increment a counter by the given amount. */
+  public static void increment(String group, String name, long amount) {
+    // plain lookups first, computeIfAbsent may lock even if the key exists
+    Map<String, AtomicLong> counters = COUNTERS.get(group);
+    if (counters == null) {
+      counters = COUNTERS.computeIfAbsent(group,
+          g -> new ConcurrentHashMap<>());
+    }
+    AtomicLong counter = counters.get(name);
+    if (counter == null) {
+      counter = counters.computeIfAbsent(name, n -> new AtomicLong());
+    }
+    counter.addAndGet(amount);
+  }
+
+  /** Increment a counter by one. */
+  public static void increment(String group, String name) {
+    increment(group, name, 1);
+  }
+
+  /**
+   * Add all increments accumulated since the last call to the counters of the
+   * given reporter.
+   */
+  public static void report(Reporter reporter) {
+    for (Map.Entry<String, Map<String, AtomicLong>> group : COUNTERS
+        .entrySet()) {
+      for (Map.Entry<String, AtomicLong> counter : group.getValue()
+          .entrySet()) {
+        long delta = counter.getValue().getAndSet(0);
+        if (delta != 0) {
+          reporter.incrCounter(group.getKey(), counter.getKey(), delta);
+        }
+      }
+    }
+  }
+
+  /**
+   * Add all increments accumulated since the last call to the counters of the
+   * given task context (MapReduce API).
+   */
+  public static void report(TaskInputOutputContext<?, ?, ?, ?> context) {
+    for (Map.Entry<String, Map<String, AtomicLong>> group : COUNTERS
+        .entrySet()) {
+      for (Map.Entry<String, AtomicLong> counter : group.getValue()
+          .entrySet()) {
+        long delta = counter.getValue().getAndSet(0);
+        if (delta != 0) {
+          context.getCounter(group.getKey(), counter.getKey()).increment(delta);
+        }
+      }
+    }
+  }
+}
@@ -92,8 +92,14 @@ public class URLUtil {
    * <code> apache.org</code>
    * */
   public static String getDomainName(URL url) {
+    return getDomainNameOfHost(url.getHost());
+  }
+
+  /**
+   * Returns the domain name of a host name, see {@link #getDomainName(URL)}.
+   */
+  public static String getDomainNameOfHost(String host) {
     DomainSuffixes tlds = DomainSuffixes.getInstance();
-    String host = url.getHost();
     // it seems that java returns hostnames ending with .
     if (host.endsWith("."))
       host = host.substring(0, host.length() - 1);
@@ -413,6 +419,57 @@ public class URLUtil {
     }
   }
 
+  /**
+   * Locates the host name of an http or https URL given as UTF-8 bytes (e.g.
+   * the content of a {@link org.apache.hadoop.io.Text}) without building a
+   * {@link URL}. The located host is identical to {@link URL#getHost()}.
+   * 
+   * @param url
+   *          the bytes of the URL
+   * @param start
+   *          offset of the URL in the bytes
+   * @param length
+   *          length of the URL
+   * @param hostStart
+   *          receives the offset of the first byte of the host name
+   * @return the offset after the last byte of the host name, or -1 if the URL
+   *         is not an http(s) URL or the host cannot be located safely, e.g.
+   *         because of non-ASCII characters, user info or an IPv6 address. In
+   *         this case, the URL needs to be parsed by {@link URL}.
+   */
+  public static int findHost(byte[] url, int start, int length,
+      int[] hostStart) {
+    int end = start + length;
+    int i = start + 4;
+    if (i > end || (url[start] | 0x20) != 'h' || (url[start + 1] | 0x20) != 't'
+        || (url[start + 2] | 0x20) != 't' || (url[start + 3] | 0x20) != 'p') {
+      return -1;
+    }
+    if (i < end && (url[i] | 0x20) == 's') {
+      i++;
+    }
+    if (i + 3 > end || url[i] != ':' || url[i + 1] != '/' || url[i + 2] != '/') {
+      return -1;
+    }
+    int host = i + 3;
+    int port = -1;
+    for (i = host; i < end; i++) {
+      byte b = url[i];
+      if (b == '/' || b == '?' || b == '#') {
+        break;
+      } else if (b < 0 || b == '@' || b == '[') {
+        return -1;
+      } else if (port == -1 && b == ':') {
+        port = i;
+      } else if (port != -1 && (b < '0' || b > '9' || i - port > 9)) {
+        // invalid or overflowing port
+        return -1;
+      }
+    }
+    hostStart[0] = host;
+    return port == -1 ? i : port;
+  }
+
   /**
    * Returns the page for the url. The page consists of the protocol, host, and
    * path, but does not include the query string. The host is lowercased but the
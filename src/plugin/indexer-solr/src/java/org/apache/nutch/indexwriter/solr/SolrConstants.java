@@ -23,6 +23,12 @@ public interface SolrConstants {
 
   public static final String COMMIT_SIZE = SOLR_PREFIX + "commit.size";
 
+  public static final String MAX_INFLIGHT = SOLR_PREFIX + "commit.inflight";
+
+  public static final String RETRY_COUNT = SOLR_PREFIX + "retry.count";
+
+  public static final String RETRY_BACKOFF = SOLR_PREFIX + "retry.backoff";
+
   public static final String MAPPING_FILE = SOLR_PREFIX + "mapping.file";
 
   public static final String USE_AUTH = SOLR_PREFIX + "auth";
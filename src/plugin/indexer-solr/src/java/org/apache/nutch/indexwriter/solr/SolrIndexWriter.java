@@ -18,11 +18,15 @@ package org.apache.nutch.indexwriter.solr;
 
 import java.lang.invoke.MethodHandles;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.mapred.JobConf;
@@ -62,13 +66,20 @@ public class SolrIndexWriter implements IndexWriter {
 
   private Configuration config;
 
-  private final List<SolrInputDocument> inputDocs = new ArrayList<SolrInputDocument>();
+  private List<SolrInputDocument> inputDocs = new ArrayList<SolrInputDocument>();
 
   private final List<SolrInputDocument> updateDocs = new ArrayList<SolrInputDocument>();
     
-  private final List<String> deleteIds = new ArrayList<String>();
+  private List<String> deleteIds = new ArrayList<String>();
 
   private int batchSize;
+  /** Batches sent in the background, none if batches are sent by the caller */
+  private int maxInFlight;
+  private ExecutorService sender;
+  private Semaphore inFlight;
+  private volatile IOException sendError;
+  private int retryCount;
+  private long retryBackoff;
   private int numDeletes = 0;
   private int totalAdds = 0;
   private int totalDeletes = 0;
@@ -83,8 +94,26 @@ public class SolrIndexWriter implements IndexWriter {
   // package protected for tests
   void init(List<SolrClient> solrClients, JobConf job) throws IOException {
     batchSize = job.getInt(SolrConstants.COMMIT_SIZE, 1000);
-    solrMapping = SolrMappingReader.getInstance(job);
+    maxInFlight = job.getInt(SolrConstants.MAX_INFLIGHT, 0);
+    retryCount = job.getInt(SolrConstants.RETRY_COUNT, 3);
+    retryBackoff = job.getLong(SolrConstants.RETRY_BACKOFF, 1000);
     delete = job.getBoolean(IndexerMapReduce.INDEXER_DELETE, false);
+    if (delete && maxInFlight > 1) {
+      // batches sent in parallel may reach Solr out of order, a deletion
+      // could overtake an earlier addition of the same document
+      LOG.info("Deleting documents, sending only one batch at a time");
+      maxInFlight = 1;
+    }
+    if (maxInFlight > 0) {
+      // next batch is filled while up to maxInFlight batches are sent
+      sender = Executors.newFixedThreadPool(maxInFlight, r -> {
+        Thread thread = new Thread(r, "SolrIndexWriter-sender");
+        thread.setDaemon(true);
+        return thread;
+      });
+      inFlight = new Semaphore(maxInFlight);
+    }
+    solrMapping = SolrMappingReader.getInstance(job);
     // parse optional params
     params = new ModifiableSolrParams();
     String paramString = job.get(IndexerMapReduce.INDEXER_PARAMS);
@@ -125,6 +154,7 @@ public class SolrIndexWriter implements IndexWriter {
   }
 
   public void deleteByQuery(String query) throws IOException {
+    flush();
     try {
       LOG.info("SolrWriter: deleting " + query);
       for (SolrClient solrClient : solrClients) {
@@ -176,16 +206,22 @@ public class SolrIndexWriter implements IndexWriter {
   }
 
   public void close() throws IOException {
-    commit();
-
-    for (SolrClient solrClient : solrClients) {
-      solrClient.close();
+    try {
+      commit();
+    } finally {
+      if (sender != null) {
+        sender.shutdownNow();
+      }
+      for (SolrClient solrClient : solrClients) {
+        solrClient.close();
+      }
     }
   }
 
   @Override
   public void commit() throws IOException {
     push();
+    flush();
     try {
       for (SolrClient solrClient : solrClients) {
         solrClient.commit();
@@ -195,38 +231,127 @@ public class SolrIndexWriter implements IndexWriter {
     }
   }
     
+  /**
+   * Send the buffered documents and deletions. If batches are sent in the
+   * background, they are handed over to a sender thread and a new batch is
+   * started, blocking only while <code>solr.commit.inflight</code> batches
+   * are being sent. Only one batch is sent at a time if deletions are
+   * enabled, so that batches reach Solr in order.
+   */
   public void push() throws IOException {
-    if (inputDocs.size() > 0) {
+    checkSendError();
+    if (inputDocs.isEmpty() && deleteIds.isEmpty()) {
+      return;
+    }
+    final List<SolrInputDocument> docs = inputDocs;
+    final List<String> ids = deleteIds;
+    LOG.info("Indexing " + Integer.toString(docs.size())
+        + "/" + Integer.toString(totalAdds) + " documents");
+    LOG.info("Deleting " + Integer.toString(numDeletes) + " documents");
+    numDeletes = 0;
+    if (sender == null) {
+      send(docs, ids);
+      docs.clear();
+      ids.clear();
+      return;
+    }
+    inputDocs = new ArrayList<SolrInputDocument>(batchSize);
+    deleteIds = new ArrayList<String>();
+    try {
+      inFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while sending to Solr");
+    }
+    sender.execute(() -> {
+      try {
+        if (sendError == null) {
+          send(docs, ids);
+        }
+      } catch (IOException e) {
+        sendError = e;
+      } finally {
+        inFlight.release();
+      }
+    });
+  }
+
+  /** Wait until all batches sent in the background are done. */
+  private void flush() throws IOException {
+    if (sender != null) {
       try {
-        LOG.info("Indexing " + Integer.toString(inputDocs.size())
-            + "/" + Integer.toString(totalAdds) + " documents");
-        LOG.info("Deleting " + Integer.toString(numDeletes) + " documents");
-        numDeletes = 0;
-        UpdateRequest req = new UpdateRequest();
-        req.add(inputDocs);
-        req.setAction(AbstractUpdateRequest.ACTION.OPTIMIZE, false, false);
-        req.setParams(params);
-        for (SolrClient solrClient : solrClients) {
-          NamedList res = solrClient.request(req);
+        inFlight.acquire(maxInFlight);
+        inFlight.release(maxInFlight);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while sending to Solr");
+      }
+    }
+    checkSendError();
+  }
+
+  private void checkSendError() throws IOException {
+    if (sendError != null) {
+      throw sendError;
+    }
+  }
+
+  private void send(List<SolrInputDocument> docs, List<String> ids)
+      throws IOException {
+    if (docs.size() > 0) {
+      UpdateRequest req = new UpdateRequest();
+      req.add(docs);
+      req.setAction(AbstractUpdateRequest.ACTION.OPTIMIZE, false, false);
+      req.setParams(params);
+      for (SolrClient solrClient : solrClients) {
+        retry(() -> solrClient.request(req));
+      }
+    }
+
+    if (ids.size() > 0) {
+      LOG.info("SolrIndexer: deleting " + Integer.toString(ids.size())
+          + "/" + Integer.toString(totalDeletes) + " documents");
+      for (SolrClient solrClient : solrClients) {
+        try {
+          retry(() -> solrClient.deleteById(ids));
+        } catch (IOException e) {
+          LOG.error("Error deleting: " + ids);
+          throw e;
         }
-      } catch (final SolrServerException e) {
-        throw makeIOException(e);
       }
-      inputDocs.clear();
     }
+  }
+
+  /** A request to Solr */
+  private interface SolrRequest {
+    void send() throws SolrServerException, IOException;
+  }
 
-    if (deleteIds.size() > 0) {
+  /**
+   * Send a request, retried up to <code>solr.retry.count</code> times with
+   * exponential backoff starting at <code>solr.retry.backoff</code>
+   * milliseconds.
+   */
+  private void retry(SolrRequest request) throws IOException {
+    for (int attempt = 0;; attempt++) {
       try {
-        LOG.info("SolrIndexer: deleting " + Integer.toString(deleteIds.size()) 
-            + "/" + Integer.toString(totalDeletes) + " documents");
-        for (SolrClient solrClient : solrClients) {
-          solrClient.deleteById(deleteIds);
+        request.send();
+        return;
+      } catch (SolrServerException | IOException e) {
+        if (attempt >= retryCount) {
+          throw e instanceof SolrServerException
+              ? makeIOException((SolrServerException) e) : (IOException) e;
+        }
+        long backoff = retryBackoff << Math.min(attempt, 16);
+        LOG.warn("Failed to send to Solr (attempt {}), retrying in {} ms: {}",
+            attempt + 1, backoff, e.toString());
+        try {
+          Thread.sleep(backoff);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while sending to Solr");
         }
-      } catch (final SolrServerException e) {
-        LOG.error("Error deleting: " + deleteIds);
-        throw makeIOException(e);
       }
-      deleteIds.clear();
     }
   }
 
@@ -263,6 +388,12 @@ public class SolrIndexWriter implements IndexWriter {
         .append(" : URL of the Zookeeper quorum\n");
     sb.append("\t").append(SolrConstants.COMMIT_SIZE)
         .append(" : buffer size when sending to SOLR (default 1000)\n");
+    sb.append("\t").append(SolrConstants.MAX_INFLIGHT)
+        .append(" : batches sent in the background, 0 to send synchronously (default 0)\n");
+    sb.append("\t").append(SolrConstants.RETRY_COUNT)
+        .append(" : retries of failed requests (default 3)\n");
+    sb.append("\t").append(SolrConstants.RETRY_BACKOFF)
+        .append(" : milliseconds to wait before the first retry, doubled for every further retry (default 1000)\n");
     sb.append("\t")
         .append(SolrConstants.MAPPING_FILE)
         .append(
@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.indexwriter.solr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.nutch.indexer.IndexerMapReduce;
+import org.apache.nutch.indexer.NutchDocument;
+import org.apache.nutch.util.NutchConfiguration;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks sending batches in the background, the limit of batches in flight
+ * and the retries of failed requests, using a client which records the
+ * requests instead of sending them to Solr.
+ */
+public class TestSolrIndexWriter {
+
+  /** Records the update requests, optionally blocking or failing them. */
+  private static class RecordingClient extends SolrClient {
+    final List<String> requests = Collections
+        .synchronizedList(new ArrayList<String>());
+    final List<Long> attempts = Collections
+        .synchronizedList(new ArrayList<Long>());
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    volatile CountDownLatch blocked = new CountDownLatch(0);
+    volatile int failures = 0;
+    volatile long sleep = 0;
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public NamedList<Object> request(SolrRequest request, String collection)
+        throws SolrServerException, IOException {
+      attempts.add(System.currentTimeMillis());
+      UpdateRequest update = (UpdateRequest) request;
+      if (update.getDocuments() == null && update.getDeleteById() == null) {
+        // commit
+        return new NamedList<Object>();
+      }
+      maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+      try {
+        if (failures > 0) {
+          failures--;
+          throw new SolrServerException("unavailable");
+        }
+        blocked.await();
+        Thread.sleep(sleep);
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      } finally {
+        running.decrementAndGet();
+      }
+      StringBuilder sb = new StringBuilder();
+      if (update.getDocuments() != null) {
+        for (SolrInputDocument doc : update.getDocuments()) {
+          sb.append('+').append(doc.getFieldValue("id"));
+        }
+      }
+      if (update.getDeleteById() != null) {
+        for (String id : update.getDeleteById()) {
+          sb.append('-').append(id);
+        }
+      }
+      requests.add(sb.toString());
+      return new NamedList<Object>();
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private Configuration conf;
+  private RecordingClient client;
+
+  @Before
+  public void setUp() {
+    conf = NutchConfiguration.create();
+    conf.setInt(SolrConstants.COMMIT_SIZE, 2);
+    conf.setLong(SolrConstants.RETRY_BACKOFF, 10);
+    client = new RecordingClient();
+  }
+
+  private SolrIndexWriter createWriter() throws IOException {
+    SolrIndexWriter writer = new SolrIndexWriter();
+    List<SolrClient> clients = new ArrayList<>();
+    clients.add(client);
+    writer.init(clients, new JobConf(conf));
+    return writer;
+  }
+
+  private static NutchDocument doc(String id) {
+    NutchDocument doc = new NutchDocument();
+    doc.add("id", id);
+    return doc;
+  }
+
+  @Test
+  public void testSynchronous() throws Exception {
+    SolrIndexWriter writer = createWriter();
+    writer.write(doc("a"));
+    writer.write(doc("b"));
+    // sent by the caller by default
+    Assert.assertEquals(1, client.requests.size());
+    writer.write(doc("c"));
+    writer.close();
+    Assert.assertEquals("[+a+b, +c]", client.requests.toString());
+  }
+
+  @Test
+  public void testBackground() throws Exception {
+    conf.setInt(SolrConstants.MAX_INFLIGHT, 1);
+    final SolrIndexWriter writer = createWriter();
+    client.blocked = new CountDownLatch(1);
+
+    // the first batch is sent in the background
+    writer.write(doc("a"));
+    writer.write(doc("b"));
+    Assert.assertTrue(client.requests.isEmpty());
+
+    // the next full batch waits for the one in flight
+    final CountDownLatch written = new CountDownLatch(1);
+    Thread thread = new Thread(() -> {
+      try {
+        writer.write(doc("c"));
+        writer.write(doc("d"));
+        written.countDown();
+      } catch (IOException e) {
+        // not counted down
+      }
+    });
+    thread.start();
+    Assert.assertFalse(written.await(200, TimeUnit.MILLISECONDS));
+
+    client.blocked.countDown();
+    Assert.assertTrue(written.await(10, TimeUnit.SECONDS));
+    thread.join();
+    writer.close();
+    Assert.assertEquals("[+a+b, +c+d]", client.requests.toString());
+    Assert.assertEquals(1, client.maxRunning.get());
+  }
+
+  @Test
+  public void testDeletesInOrder() throws Exception {
+    conf.setInt(SolrConstants.MAX_INFLIGHT, 4);
+    conf.setBoolean(IndexerMapReduce.INDEXER_DELETE, true);
+    SolrIndexWriter writer = createWriter();
+    client.sleep = 20;
+    for (int i = 0; i < 5; i++) {
+      writer.write(doc("a" + i));
+      writer.delete("d" + i);
+    }
+    writer.close();
+    // one batch at a time if deletions are enabled
+    Assert.assertEquals(1, client.maxRunning.get());
+    Assert.assertEquals("[+a0+a1-d0, +a2-d1-d2, +a3+a4-d3, -d4]",
+        client.requests.toString());
+  }
+
+  @Test
+  public void testRetry() throws Exception {
+    conf.setInt(SolrConstants.RETRY_COUNT, 2);
+    SolrIndexWriter writer = createWriter();
+    client.failures = 2;
+    writer.write(doc("a"));
+    writer.write(doc("b"));
+    Assert.assertEquals("[+a+b]", client.requests.toString());
+    // backoff of 10 ms, doubled for the second retry
+    Assert.assertEquals(3, client.attempts.size());
+    Assert.assertTrue(client.attempts.get(1) - client.attempts.get(0) >= 10);
+    Assert.assertTrue(client.attempts.get(2) - client.attempts.get(1) >= 20);
+
+    // fails after the last retry
+    client.failures = 3;
+    writer.write(doc("c"));
+    try {
+      writer.write(doc("d"));
+      Assert.fail("failed request not reported");
+    } catch (IOException e) {
+      Assert.assertTrue(e.getCause() instanceof SolrServerException);
+    }
+  }
+}
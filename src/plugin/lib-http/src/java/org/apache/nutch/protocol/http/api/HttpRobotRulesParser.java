@@ -20,6 +20,7 @@ package org.apache.nutch.protocol.http.api;
 import java.lang.invoke.MethodHandles;
 import java.net.URL;
 import java.util.List;
+import java.util.Locale;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,6 +30,7 @@ import org.apache.nutch.crawl.CrawlDatum;
 import org.apache.nutch.net.protocols.Response;
 import org.apache.nutch.protocol.Content;
 import org.apache.nutch.protocol.Protocol;
+import org.apache.nutch.protocol.RobotRulesCache;
 import org.apache.nutch.protocol.RobotRulesParser;
 
 import crawlercommons.robots.BaseRobotRules;
@@ -102,16 +104,29 @@ public class HttpRobotRulesParser extends RobotRulesParser {
     }
 
     String cacheKey = getCacheKey(url);
-    BaseRobotRules robotRules = CACHE.get(cacheKey);
+    // only one thread fetches the robots.txt of a host, others wait for it
+    return CACHE.get(cacheKey, robotsTxtContent,
+        content -> loadRobotRules(http, url, cacheKey, content));
+  }
+
+  /**
+   * Fetch and parse robots.txt for the given {@code url} and store the rules
+   * in the cache, unless fetching failed temporarily. The robots.txt is
+   * cached with the rules, so that they can be saved, see
+   * {@link RobotRulesCache}.
+   */
+  protected BaseRobotRules loadRobotRules(Protocol http, URL url,
+      String cacheKey, List<Content> robotsTxtContent) {
 
-    if (robotRules != null) {
-      return robotRules; // cached rule
-    } else if (LOG.isTraceEnabled()) {
+    if (LOG.isTraceEnabled()) {
       LOG.trace("cache miss " + url);
     }
 
+    BaseRobotRules robotRules;
     boolean cacheRule = true;
+    long lifetime = -1;
     URL redir = null;
+    RobotRulesCache.RobotsTxt source = null;
 
     if (isWhiteListed(url)) {
       // check in advance whether a host is whitelisted
@@ -152,9 +167,12 @@ public class HttpRobotRulesParser extends RobotRulesParser {
           }
         }
 
-        if (response.getCode() == 200) // found rules: parse them
+        if (response.getCode() == 200) { // found rules: parse them
           robotRules = parseRules(url.toString(), response.getContent(),
               response.getHeader("Content-Type"), agentNames);
+          source = new RobotRulesCache.RobotsTxt(url.toString(),
+              response.getContent(), response.getHeader("Content-Type"));
+        }
 
         else if ((response.getCode() == 403) && (!allowForbidden))
           robotRules = FORBID_ALL_RULES; // use forbid all
@@ -163,6 +181,7 @@ public class HttpRobotRulesParser extends RobotRulesParser {
           robotRules = EMPTY_RULES;
         } else
           robotRules = EMPTY_RULES; // use default rules
+        lifetime = getLifetime(response);
       } catch (Throwable t) {
         if (LOG.isInfoEnabled()) {
           LOG.info("Couldn't get robots.txt for " + url + ": " + t.toString());
@@ -173,16 +192,43 @@ public class HttpRobotRulesParser extends RobotRulesParser {
     }
 
     if (cacheRule) {
-      CACHE.put(cacheKey, robotRules); // cache rules for host
+      // cache rules for host
+      CACHE.put(cacheKey, robotRules, lifetime, source);
       if (redir != null && !redir.getHost().equalsIgnoreCase(url.getHost())) {
         // cache also for the redirected host
-        CACHE.put(getCacheKey(redir), robotRules);
+        CACHE.put(getCacheKey(redir), robotRules, lifetime, source);
       }
     }
 
     return robotRules;
   }
 
+  /**
+   * @return the lifetime in ms of the response given by the max-age directive
+   *         of the Cache-Control header, 0 if caching is not allowed, -1 if
+   *         no lifetime is announced
+   */
+  protected static long getLifetime(Response response) {
+    String cacheControl = response.getHeader("Cache-Control");
+    if (cacheControl == null) {
+      return -1;
+    }
+    for (String directive : cacheControl.split(",")) {
+      directive = directive.trim().toLowerCase(Locale.ROOT);
+      if (directive.startsWith("max-age=")) {
+        try {
+          return Math.max(0, Long.parseLong(directive.substring(8).trim()))
+              * 1000;
+        } catch (NumberFormatException e) {
+          // ignore
+        }
+      } else if (directive.equals("no-cache") || directive.equals("no-store")) {
+        return 0;
+      }
+    }
+    return -1;
+  }
+
   /**
    * Append {@link Content} of robots.txt to {@literal robotsTxtContent}
    * 
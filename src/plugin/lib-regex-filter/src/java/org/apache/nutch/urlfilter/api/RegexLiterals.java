@@ -0,0 +1,351 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.urlfilter.api;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Extracts the literal strings required by a {@link java.util.regex.Pattern
+ * Java regular expression}: every string matched by the expression contains
+ * at least one of them. E.g., <code>\.(gif|jpg)$</code> requires one of
+ * <code>.gif</code> or <code>.jpg</code>.
+ *
+ * <p>
+ * The extraction is conservative: constructs which are not understood
+ * (embedded flags, lookarounds, quoting, etc.) result in no literals, i.e.
+ * the expression must always be evaluated.
+ */
+public final class RegexLiterals {
+
+  /** Maximum number of alternative literals for a single expression */
+  private static final int MAX_LITERALS = 32;
+
+  private static final RuntimeException UNSUPPORTED = new RuntimeException(
+      "unsupported", null, false, false) {
+    private static final long serialVersionUID = 1L;
+  };
+
+  private final String regex;
+  private int pos;
+
+  private RegexLiterals(String regex) {
+    this.regex = regex;
+  }
+
+  /**
+   * @return the literals of which at least one is contained in every match of
+   *         the regular expression, or null if no such literals are known
+   */
+  public static Set<String> required(String regex) {
+    RegexLiterals parser = new RegexLiterals(regex);
+    try {
+      Set<String> literals = parser.alternation();
+      if (parser.pos != regex.length() || literals == null) {
+        return null;
+      }
+      return Collections.unmodifiableSet(literals);
+    } catch (RuntimeException e) {
+      // unsupported or invalid expression
+      return null;
+    }
+  }
+
+  /** alternation := concatenation ('|' concatenation)* */
+  private Set<String> alternation() {
+    Set<String> literals = new HashSet<String>();
+    boolean unknown = false;
+    while (true) {
+      Set<String> branch = concatenation();
+      if (branch == null) {
+        unknown = true;
+      } else if (!unknown) {
+        literals.addAll(branch);
+      }
+      if (pos < regex.length() && regex.charAt(pos) == '|') {
+        pos++;
+      } else {
+        break;
+      }
+    }
+    if (unknown || literals.isEmpty() || literals.size() > MAX_LITERALS) {
+      return null;
+    }
+    return literals;
+  }
+
+  /**
+   * concatenation := (atom quantifier?)*, the required literals are the most
+   * selective ones among runs of mandatory literal characters and mandatory
+   * groups.
+   */
+  private Set<String> concatenation() {
+    StringBuilder run = new StringBuilder();
+    Set<String> best = null;
+    while (pos < regex.length()) {
+      char c = regex.charAt(pos);
+      if (c == '|' || c == ')') {
+        break;
+      }
+      switch (c) {
+      case '(':
+        pos++;
+        if (regex.startsWith("?:", pos)) {
+          pos += 2;
+        } else if (pos < regex.length() && regex.charAt(pos) == '?') {
+          // flags, lookaround, named or atomic groups
+          throw UNSUPPORTED;
+        }
+        Set<String> group = alternation();
+        if (pos >= regex.length() || regex.charAt(pos) != ')') {
+          throw UNSUPPORTED;
+        }
+        pos++;
+        best = better(best, flush(run));
+        if (quantifier() != 0) {
+          best = better(best, group);
+        }
+        break;
+      case '[':
+        skipClass();
+        quantifier();
+        best = better(best, flush(run));
+        break;
+      case '.':
+      case '^':
+      case '$':
+        pos++;
+        quantifier();
+        best = better(best, flush(run));
+        break;
+      case '*':
+      case '+':
+      case '?':
+      case '{':
+        // dangling quantifier
+        throw UNSUPPORTED;
+      case '\\':
+        int literal = escape();
+        if (literal < 0) {
+          quantifier();
+          best = better(best, flush(run));
+        } else {
+          best = literal(run, (char) literal, best);
+        }
+        break;
+      default:
+        pos++;
+        best = literal(run, c, best);
+      }
+    }
+    return better(best, flush(run));
+  }
+
+  private Set<String> literal(StringBuilder run, char c, Set<String> best) {
+    int min = quantifier();
+    if (min == 0) {
+      return better(best, flush(run));
+    }
+    run.append(c);
+    if (min > 0) {
+      // repeated: the run cannot be continued
+      return better(best, flush(run));
+    }
+    return best;
+  }
+
+  /**
+   * Skip a quantifier, if any.
+   *
+   * @return -1 if there is no quantifier, otherwise the minimum number of
+   *         repetitions
+   */
+  private int quantifier() {
+    if (pos >= regex.length()) {
+      return -1;
+    }
+    int min;
+    switch (regex.charAt(pos)) {
+    case '*':
+    case '?':
+      min = 0;
+      pos++;
+      break;
+    case '+':
+      min = 1;
+      pos++;
+      break;
+    case '{':
+      int end = regex.indexOf('}', pos);
+      if (end < 0) {
+        throw UNSUPPORTED;
+      }
+      String bounds = regex.substring(pos + 1, end);
+      int comma = bounds.indexOf(',');
+      min = Integer.parseInt(comma < 0 ? bounds : bounds.substring(0, comma));
+      pos = end + 1;
+      break;
+    default:
+      return -1;
+    }
+    // reluctant or possessive quantifier
+    if (pos < regex.length()
+        && (regex.charAt(pos) == '?' || regex.charAt(pos) == '+')) {
+      pos++;
+    }
+    return min;
+  }
+
+  /**
+   * Parse an escape sequence.
+   *
+   * @return the literal character, or -1 if the escape sequence is a
+   *         character class, a boundary or a back reference
+   */
+  private int escape() {
+    if (pos + 1 >= regex.length()) {
+      throw UNSUPPORTED;
+    }
+    char c = regex.charAt(pos + 1);
+    pos += 2;
+    switch (c) {
+    case 't':
+      return '\t';
+    case 'n':
+      return '\n';
+    case 'r':
+      return '\r';
+    case 'f':
+      return '\f';
+    case 'a':
+      return '\u0007';
+    case 'e':
+      return '\u001B';
+    case 'd':
+    case 'D':
+    case 's':
+    case 'S':
+    case 'w':
+    case 'W':
+    case 'h':
+    case 'H':
+    case 'v':
+    case 'V':
+    case 'b':
+    case 'B':
+    case 'A':
+    case 'G':
+    case 'Z':
+    case 'z':
+    case 'R':
+      return -1;
+    case 'p':
+    case 'P':
+      if (pos < regex.length() && regex.charAt(pos) == '{') {
+        int end = regex.indexOf('}', pos);
+        if (end < 0) {
+          throw UNSUPPORTED;
+        }
+        pos = end + 1;
+      } else {
+        pos++;
+      }
+      return -1;
+    default:
+      if (c >= '1' && c <= '9') {
+        // back reference
+        while (pos < regex.length() && Character.isDigit(regex.charAt(pos))) {
+          pos++;
+        }
+        return -1;
+      }
+      if (Character.isLetterOrDigit(c)) {
+        // octal, hexadecimal, control characters, quoting, etc.
+        throw UNSUPPORTED;
+      }
+      return c;
+    }
+  }
+
+  /** Skip a character class, including nested classes. */
+  private void skipClass() {
+    pos++;
+    if (pos < regex.length() && regex.charAt(pos) == '^') {
+      pos++;
+    }
+    if (pos < regex.length() && regex.charAt(pos) == ']') {
+      pos++;
+    }
+    while (pos < regex.length()) {
+      char c = regex.charAt(pos);
+      if (c == ']') {
+        pos++;
+        return;
+      } else if (c == '[') {
+        skipClass();
+      } else if (c == '\\') {
+        if (regex.startsWith("\\Q", pos)) {
+          throw UNSUPPORTED;
+        } else if ((regex.startsWith("\\p{", pos) || regex.startsWith("\\P{",
+            pos))) {
+          pos = regex.indexOf('}', pos) + 1;
+          if (pos == 0) {
+            throw UNSUPPORTED;
+          }
+        } else {
+          pos += 2;
+        }
+      } else {
+        pos++;
+      }
+    }
+    throw UNSUPPORTED;
+  }
+
+  private static Set<String> flush(StringBuilder run) {
+    if (run.length() == 0) {
+      return null;
+    }
+    Set<String> literal = new HashSet<String>();
+    literal.add(run.toString());
+    run.setLength(0);
+    return literal;
+  }
+
+  /** @return the more selective set of literals */
+  private static Set<String> better(Set<String> a, Set<String> b) {
+    if (a == null) {
+      return b;
+    } else if (b == null) {
+      return a;
+    }
+    int scoreA = minLength(a), scoreB = minLength(b);
+    if (scoreA != scoreB) {
+      return scoreA > scoreB ? a : b;
+    }
+    return a.size() <= b.size() ? a : b;
+  }
+
+  private static int minLength(Set<String> literals) {
+    int min = Integer.MAX_VALUE;
+    for (String literal : literals) {
+      min = Math.min(min, literal.length());
+    }
+    return min;
+  }
+}
@@ -16,6 +16,8 @@
  */
 package org.apache.nutch.urlfilter.api;
 
+import java.util.Set;
+
 /**
  * A generic regular expression rule.
  * 
@@ -99,4 +101,16 @@ public abstract class RegexRule {
    */
   protected abstract boolean match(String url);
 
+  /**
+   * Return literals of which at least one is contained in every url matching
+   * this rule. They are used to skip rules which cannot match a url without
+   * evaluating them, see {@link RegexLiterals} for Java regular expressions.
+   *
+   * @return the required literals, or <code>null</code> if unknown (the
+   *         default), in which case this rule is always evaluated.
+   */
+  protected Set<String> requiredLiterals() {
+    return null;
+  }
+
 }
@@ -0,0 +1,185 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.urlfilter.api;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Pre-screening of a list of {@link RegexRule rules}: the literals required
+ * by the rules (see {@link RegexRule#requiredLiterals()}) are compiled into a
+ * single Aho-Corasick automaton, so that one pass over a URL determines all
+ * rules which may match it. Rules without required literals are always
+ * candidates. Only candidate rules need to be evaluated, in their original
+ * order, which keeps the first-match semantics of the rule list.
+ */
+class RegexRulePrefilter {
+
+  /** Transitions are stored for ASCII characters only */
+  private static final int ALPHABET = 128;
+
+  /** DFA transitions: state * ALPHABET + char &rarr; next state */
+  private final int[] next;
+
+  /** Rules (by index) of which a literal ends in the state */
+  private final int[][] output;
+
+  /** Rules without required literals, as bit set */
+  private final long[] always;
+
+  private RegexRulePrefilter(int[] next, int[][] output, long[] always) {
+    this.next = next;
+    this.output = output;
+    this.always = always;
+  }
+
+  /**
+   * Compile the prefilter for a list of rules.
+   *
+   * @return the prefilter, or null if no rule has required literals
+   */
+  static RegexRulePrefilter compile(List<RegexRule> rules) {
+    long[] always = new long[(rules.size() + 63) >>> 6];
+    List<int[]> trie = new ArrayList<int[]>();
+    List<BitSet> ends = new ArrayList<BitSet>();
+    trie.add(newState());
+    ends.add(new BitSet());
+    boolean prefiltered = false;
+
+    for (int i = 0; i < rules.size(); i++) {
+      Set<String> literals = rules.get(i).requiredLiterals();
+      if (literals == null || literals.isEmpty() || !isAscii(literals)) {
+        always[i >>> 6] |= 1L << i;
+        continue;
+      }
+      prefiltered = true;
+      for (String literal : literals) {
+        int state = 0;
+        for (int j = 0; j < literal.length(); j++) {
+          int c = literal.charAt(j);
+          if (trie.get(state)[c] < 0) {
+            trie.get(state)[c] = trie.size();
+            trie.add(newState());
+            ends.add(new BitSet());
+          }
+          state = trie.get(state)[c];
+        }
+        ends.get(state).set(i);
+      }
+    }
+    if (!prefiltered) {
+      return null;
+    }
+
+    // breadth-first construction of failure links, missing transitions are
+    // replaced by the transitions of the failure state
+    int states = trie.size();
+    int[] next = new int[states * ALPHABET];
+    int[] fail = new int[states];
+    Queue<Integer> queue = new ArrayDeque<Integer>();
+    for (int c = 0; c < ALPHABET; c++) {
+      int child = trie.get(0)[c];
+      if (child < 0) {
+        next[c] = 0;
+      } else {
+        next[c] = child;
+        fail[child] = 0;
+        queue.add(child);
+      }
+    }
+    while (!queue.isEmpty()) {
+      int state = queue.poll();
+      ends.get(state).or(ends.get(fail[state]));
+      for (int c = 0; c < ALPHABET; c++) {
+        int child = trie.get(state)[c];
+        if (child < 0) {
+          next[state * ALPHABET + c] = next[fail[state] * ALPHABET + c];
+        } else {
+          next[state * ALPHABET + c] = child;
+          fail[child] = next[fail[state] * ALPHABET + c];
+          queue.add(child);
+        }
+      }
+    }
+
+    // share identical output arrays
+    int[][] output = new int[states][];
+    Map<String, int[]> shared = new TreeMap<String, int[]>();
+    for (int state = 0; state < states; state++) {
+      BitSet end = ends.get(state);
+      if (end.isEmpty()) {
+        continue;
+      }
+      int[] indexes = end.stream().toArray();
+      String key = Arrays.toString(indexes);
+      int[] existing = shared.get(key);
+      if (existing == null) {
+        shared.put(key, indexes);
+        existing = indexes;
+      }
+      output[state] = existing;
+    }
+    return new RegexRulePrefilter(next, output, always);
+  }
+
+  private static int[] newState() {
+    int[] transitions = new int[ALPHABET];
+    Arrays.fill(transitions, -1);
+    return transitions;
+  }
+
+  private static boolean isAscii(Set<String> literals) {
+    for (String literal : literals) {
+      for (int i = 0; i < literal.length(); i++) {
+        if (literal.charAt(i) >= ALPHABET) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return bit set of the rules which may match the URL
+   */
+  long[] candidates(String url) {
+    long[] candidates = always.clone();
+    int state = 0;
+    for (int i = 0; i < url.length(); i++) {
+      char c = url.charAt(i);
+      state = c < ALPHABET ? next[state * ALPHABET + c] : 0;
+      int[] rules = output[state];
+      if (rules != null) {
+        for (int rule : rules) {
+          candidates[rule >>> 6] |= 1L << rule;
+        }
+      }
+    }
+    return candidates;
+  }
+
+  static boolean isCandidate(long[] candidates, int rule) {
+    return (candidates[rule >>> 6] & (1L << rule)) != 0;
+  }
+}
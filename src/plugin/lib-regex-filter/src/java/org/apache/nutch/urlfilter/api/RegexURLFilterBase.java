@@ -59,6 +59,14 @@ import org.apache.nutch.util.URLUtil;
  * <code>-</code>)means no.
  * </p>
  * 
+ * <p>
+ * The first matching rule decides. Rules which provide the literals they
+ * require ({@link RegexRule#requiredLiterals()}) are pre-screened in a single
+ * pass over the URL, and only evaluated if one of their literals is found.
+ * The prefilter is enabled by the property
+ * <code>urlfilter.regex.prefilter</code>.
+ * </p>
+ * 
  * @author J&eacute;r&ocirc;me Charron
  */
 public abstract class RegexURLFilterBase implements URLFilter {
@@ -67,9 +75,15 @@ public abstract class RegexURLFilterBase implements URLFilter {
   private static final Logger LOG = LoggerFactory
       .getLogger(MethodHandles.lookup().lookupClass());
 
+  /** Property to enable the literal prefilter of rules */
+  public static final String URLFILTER_REGEX_PREFILTER = "urlfilter.regex.prefilter";
+
   /** An array of applicable rules */
   private List<RegexRule> rules;
 
+  /** Prefilter of the rules, null if disabled or not applicable */
+  private RegexRulePrefilter prefilter;
+
   /** The current configuration */
   private Configuration conf;
 
@@ -112,6 +126,7 @@ public abstract class RegexURLFilterBase implements URLFilter {
   protected RegexURLFilterBase(Reader reader) throws IOException,
       IllegalArgumentException {
     rules = readRules(reader);
+    prefilter = RegexRulePrefilter.compile(rules);
   }
 
   /**
@@ -159,31 +174,42 @@ public abstract class RegexURLFilterBase implements URLFilter {
 
   // Inherited Javadoc
   public String filter(String url) {
-    String host = URLUtil.getHost(url);
+    long[] candidates = prefilter != null ? prefilter.candidates(url) : null;
+    String host = null;
     String domain = null;
-    
-    try {
-      domain = URLUtil.getDomainName(url);
-    } catch (MalformedURLException e) {
-      // shouldnt happen here right?
-    }
-    
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("URL belongs to host " + host + " and domain " + domain);
-    }
+    boolean hostResolved = false;
 
-    for (RegexRule rule : rules) {
-      // Skip the skip for rules that don't share the same host and domain
-      if (rule.hostOrDomain() != null &&
-            !rule.hostOrDomain().equals(host) &&
+    for (int i = 0; i < rules.size(); i++) {
+      if (candidates != null && !RegexRulePrefilter.isCandidate(candidates, i)) {
+        // the rule's required literals are not contained in the URL
+        continue;
+      }
+      RegexRule rule = rules.get(i);
+
+      if (rule.hostOrDomain() != null) {
+        // host and domain are only required for host-specific rules
+        if (!hostResolved) {
+          host = URLUtil.getHost(url);
+          try {
+            domain = URLUtil.getDomainName(url);
+          } catch (MalformedURLException e) {
+            // shouldnt happen here right?
+          }
+          hostResolved = true;
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("URL belongs to host " + host + " and domain " + domain);
+          }
+        }
+        // Skip the skip for rules that don't share the same host and domain
+        if (!rule.hostOrDomain().equals(host) &&
             !rule.hostOrDomain().equals(domain)) {
-        if (LOG.isDebugEnabled()) {
-          LOG.debug("Skipping rule [" + rule.regex() + "] for host: " + rule.hostOrDomain());
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Skipping rule [" + rule.regex() + "] for host: " + rule.hostOrDomain());
+          }
+          continue;
         }
-
-        continue;
       }
-    
+
       if (LOG.isDebugEnabled()) {
         LOG.debug("Applying rule [" + rule.regex() + "] for host: " + host + " and domain " + domain);
       }
@@ -192,7 +218,6 @@ public abstract class RegexURLFilterBase implements URLFilter {
         return rule.accept() ? url : null;
       }
     }
-    ;
     return null;
   }
 
@@ -225,6 +250,11 @@ public abstract class RegexURLFilterBase implements URLFilter {
       }
       throw new RuntimeException(e.getMessage(), e);
     }
+    if (conf.getBoolean(URLFILTER_REGEX_PREFILTER, true)) {
+      prefilter = RegexRulePrefilter.compile(rules);
+    } else {
+      prefilter = null;
+    }
   }
 
   public Configuration getConf() {
@@ -0,0 +1,105 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.urlfilter.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * JUnit based test of the literal extraction and the prefilter of rules.
+ */
+public class TestRegexLiterals {
+
+  private static Set<String> set(String... literals) {
+    return new HashSet<String>(Arrays.asList(literals));
+  }
+
+  @Test
+  public void testRequired() {
+    Assert.assertEquals(set("://www.example.com/"),
+        RegexLiterals.required("^https?://www\\.example\\.com/"));
+    Assert.assertEquals(set("file", "ftp", "mailto"),
+        RegexLiterals.required("^(file|ftp|mailto):"));
+    Assert.assertEquals(set("gif", "jpg", "JPG"),
+        RegexLiterals.required("\\.(gif|jpg|JPG)$"));
+    Assert.assertEquals(set(".de"),
+        RegexLiterals.required("\\.de(/.+?/).*?\\1"));
+    Assert.assertEquals(set("calendar"),
+        RegexLiterals.required("(?:cal)?calendar[0-9]*"));
+    // optional and repeated characters end a literal
+    Assert.assertEquals(set("abc"), RegexLiterals.required("x?abcd*e"));
+    Assert.assertEquals(set("abc"), RegexLiterals.required("abc+d"));
+
+    // no literals or unsupported constructs
+    Assert.assertNull(RegexLiterals.required("."));
+    Assert.assertNull(RegexLiterals.required("[?*!@=]"));
+    Assert.assertNull(RegexLiterals.required("(abc)?"));
+    Assert.assertNull(RegexLiterals.required("abc|[0-9]"));
+    Assert.assertNull(RegexLiterals.required("(?i)abc"));
+    Assert.assertNull(RegexLiterals.required("\\Qabc\\E"));
+    Assert.assertNull(RegexLiterals.required("abc(?=def)"));
+    Assert.assertNull(RegexLiterals.required("abc("));
+  }
+
+  @Test
+  public void testPrefilter() {
+    String[] regexes = { "^(file|ftp|mailto):", "\\.(gif|jpg)$", "[?*!@=]",
+        "//www\\.example\\.com/", "example" };
+    List<RegexRule> rules = new ArrayList<RegexRule>();
+    for (String regex : regexes) {
+      final Pattern pattern = Pattern.compile(regex);
+      rules.add(new RegexRule(false, regex) {
+        protected boolean match(String url) {
+          return pattern.matcher(url).find();
+        }
+
+        protected Set<String> requiredLiterals() {
+          return RegexLiterals.required(regex());
+        }
+      });
+    }
+    RegexRulePrefilter prefilter = RegexRulePrefilter.compile(rules);
+    Assert.assertNotNull(prefilter);
+
+    String[] urls = { "ftp://example.org/a.gif", "http://www.example.com/",
+        "http://www.example.org/index.html?q=1", "http://\u00e9xample.com/",
+        "mailto:someone@example.com" };
+    for (String url : urls) {
+      long[] candidates = prefilter.candidates(url);
+      for (int i = 0; i < rules.size(); i++) {
+        // every matching rule must be a candidate
+        if (rules.get(i).match(url)) {
+          Assert.assertTrue(regexes[i] + " " + url,
+              RegexRulePrefilter.isCandidate(candidates, i));
+        }
+      }
+    }
+    long[] candidates = prefilter.candidates("http://www.example.org/a.png");
+    Assert.assertFalse(RegexRulePrefilter.isCandidate(candidates, 0));
+    Assert.assertFalse(RegexRulePrefilter.isCandidate(candidates, 1));
+    Assert.assertTrue(RegexRulePrefilter.isCandidate(candidates, 2));
+    Assert.assertFalse(RegexRulePrefilter.isCandidate(candidates, 3));
+    Assert.assertTrue(RegexRulePrefilter.isCandidate(candidates, 4));
+  }
+}
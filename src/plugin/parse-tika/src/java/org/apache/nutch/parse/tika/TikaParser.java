@@ -34,6 +34,7 @@ import org.apache.nutch.parse.Outlink;
 import org.apache.nutch.parse.OutlinkExtractor;
 import org.apache.nutch.parse.Parse;
 import org.apache.nutch.parse.ParseData;
+import org.apache.nutch.parse.ParseExecutor;
 import org.apache.nutch.parse.ParseImpl;
 import org.apache.nutch.parse.ParseResult;
 import org.apache.nutch.parse.ParseStatus;
@@ -45,6 +46,7 @@ import org.apache.tika.parser.html.BoilerpipeContentHandler;
 import org.apache.tika.parser.ParseContext;
 import org.apache.tika.parser.Parser;
 import org.apache.tika.parser.html.HtmlMapper;
+import org.apache.tika.sax.ContentHandlerDecorator;
 import org.apache.tika.sax.XHTMLContentHandler;
 import org.apache.tika.sax.Link;
 import org.apache.tika.sax.LinkContentHandler;
@@ -52,7 +54,9 @@ import org.apache.tika.sax.TeeContentHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.DocumentFragment;
+import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
 
 /**
  * Wrapper for Tika parsers. Mimics the HTMLParser but using the XHTML
@@ -72,6 +76,37 @@ public class TikaParser implements org.apache.nutch.parse.Parser {
   private HtmlMapper HTMLMapper;
   private boolean upperCaseElementNames = true;
 
+  /**
+   * Stops the parse by an exception once its deadline has passed, see
+   * {@link ParseExecutor#isTimedOut()}.
+   */
+  private static class TimeoutContentHandler extends ContentHandlerDecorator {
+
+    TimeoutContentHandler(ContentHandler handler) {
+      super(handler);
+    }
+
+    private void checkTimeout() throws SAXException {
+      if (ParseExecutor.isTimedOut()) {
+        throw new SAXException("Parse timed out");
+      }
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String name,
+        Attributes atts) throws SAXException {
+      checkTimeout();
+      super.startElement(uri, localName, name, atts);
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length)
+        throws SAXException {
+      checkTimeout();
+      super.characters(ch, start, length);
+    }
+  }
+
   @SuppressWarnings("deprecation")
   public ParseResult getParse(Content content) {
     String mimeType = content.getContentType();
@@ -131,7 +166,8 @@ public class TikaParser implements org.apache.nutch.parse.Parser {
       context.set(HtmlMapper.class, HTMLMapper);
     tikamd.set(Metadata.CONTENT_TYPE, mimeType);
     try {
-      parser.parse(new ByteArrayInputStream(raw), (ContentHandler)teeContentHandler, tikamd, context);
+      parser.parse(new ByteArrayInputStream(raw),
+          new TimeoutContentHandler(teeContentHandler), tikamd, context);
     } catch (Exception e) {
       LOG.error("Error parsing " + content.getUrl(), e);
       return new ParseStatus(ParseStatus.FAILED, e.getMessage())
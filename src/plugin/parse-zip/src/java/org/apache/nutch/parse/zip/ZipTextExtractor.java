@@ -38,6 +38,7 @@ import org.apache.nutch.metadata.Metadata;
 import org.apache.nutch.net.protocols.Response;
 import org.apache.nutch.parse.Parse;
 import org.apache.nutch.parse.ParseData;
+import org.apache.nutch.parse.ParseExecutor;
 import org.apache.nutch.parse.ParseUtil;
 import org.apache.nutch.parse.ParseException;
 import org.apache.nutch.parse.Outlink;
@@ -68,6 +69,11 @@ public class ZipTextExtractor {
 
     while ((entry = zin.getNextEntry()) != null) {
 
+      if (ParseExecutor.isTimedOut()) {
+        LOG.info("Parse of " + url + " timed out, skipping remaining entries");
+        break;
+      }
+
       if (!entry.isDirectory()) {
         int size = (int) entry.getSize();
         byte[] b = new byte[size];
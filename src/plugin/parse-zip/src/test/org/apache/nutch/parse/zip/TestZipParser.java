@@ -22,6 +22,7 @@ import org.apache.nutch.protocol.Protocol;
 import org.apache.nutch.protocol.Content;
 import org.apache.nutch.protocol.ProtocolException;
 import org.apache.nutch.parse.Parse;
+import org.apache.nutch.parse.ParseExecutor;
 import org.apache.nutch.parse.ParseUtil;
 import org.apache.nutch.parse.ParseException;
 import org.apache.hadoop.conf.Configuration;
@@ -29,6 +30,7 @@ import org.apache.nutch.util.NutchConfiguration;
 import org.apache.hadoop.io.Text;
 import org.apache.nutch.crawl.CrawlDatum;
 import org.junit.Assert;
+import org.junit.BeforeClass;
 import org.junit.Test;
 
 /**
@@ -48,6 +50,20 @@ public class TestZipParser {
 
   private String expectedText = "textfile.txt This is text file number 1 ";
 
+  private static Configuration conf;
+
+  /**
+   * Parse with a single parser thread, the entries of the archive must not
+   * wait for the thread parsing the archive.
+   */
+  @BeforeClass
+  public static void setUp() {
+    conf = NutchConfiguration.create();
+    conf.setInt("parser.threads", 1);
+    conf.setInt("parser.timeout", 10);
+    ParseExecutor.get(conf);
+  }
+
   @Test
   public void testIt() throws ProtocolException, ParseException {
     String urlString;
@@ -55,7 +71,6 @@ public class TestZipParser {
     Content content;
     Parse parse;
 
-    Configuration conf = NutchConfiguration.create();
     for (int i = 0; i < sampleFiles.length; i++) {
       urlString = "file:" + sampleDir + fileSeparator + sampleFiles[i];
 
@@ -68,4 +83,20 @@ public class TestZipParser {
     }
   }
 
+  @Test
+  public void testSingleParserThread() throws ProtocolException,
+      ParseException {
+    String urlString = "file:" + sampleDir + fileSeparator + sampleFiles[0];
+    Protocol protocol = new ProtocolFactory(conf).getProtocol(urlString);
+    Content content = protocol.getProtocolOutput(new Text(urlString),
+        new CrawlDatum()).getContent();
+
+    long start = System.currentTimeMillis();
+    Parse parse = new ParseUtil(conf).parseByExtensionId("parse-zip", content)
+        .get(content.getUrl());
+    Assert.assertEquals(expectedText, parse.getText());
+    // nested parses did not wait for the timeout
+    Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+  }
+
 }
@@ -40,6 +40,9 @@ public class Http extends HttpBase {
   protected static final Logger LOG = LoggerFactory
       .getLogger(MethodHandles.lookup().lookupClass());
 
+  /** Pool of persistent connections, null if keep-alive is disabled */
+  private HttpConnectionPool connectionPool;
+
   /**
    * Public default constructor.
    */
@@ -54,6 +57,14 @@ public class Http extends HttpBase {
    */
   public void setConf(Configuration conf) {
     super.setConf(conf);
+    if (conf.getBoolean("http.keepalive", false)) {
+      if (connectionPool != null) {
+        connectionPool.close();
+      }
+      connectionPool = new HttpConnectionPool(conf);
+    } else {
+      connectionPool = null;
+    }
     // Level logLevel = Level.WARNING;
     // if (conf.getBoolean("http.verbose", false)) {
     // logLevel = Level.FINE;
@@ -67,6 +78,14 @@ public class Http extends HttpBase {
     main(http, args);
   }
 
+  /**
+   * @return the pool of persistent connections or null if
+   *         <code>http.keepalive</code> is disabled
+   */
+  public HttpConnectionPool getConnectionPool() {
+    return connectionPool;
+  }
+
   protected Response getResponse(URL url, CrawlDatum datum, boolean redirect)
       throws ProtocolException, IOException {
     return new HttpResponse(this, url, datum);
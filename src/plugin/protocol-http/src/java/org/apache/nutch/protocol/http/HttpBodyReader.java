@@ -0,0 +1,342 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.protocol.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.nutch.protocol.http.api.HttpException;
+
+/**
+ * Reads the message body of an HTTP response in a single pass: the transfer
+ * coding (Content-Length, chunked or read until the connection is closed) is
+ * removed and the content coding (gzip, deflate) is decoded while the bytes
+ * arrive, so that the raw body is never collected on its own.
+ *
+ * <p>
+ * If the length of an uncompressed body is known in advance, it is read
+ * straight into an array of exactly this size, which is then owned by the
+ * returned content. Otherwise the body is collected in a per-thread buffer
+ * which is reused for subsequent responses, and copied once into an array of
+ * the exact size.
+ *
+ * <p>
+ * Both the raw and the decoded body are limited to the given maximum content
+ * length. Decoding is best effort: a truncated or corrupt compressed body
+ * yields the content decoded so far.
+ */
+public class HttpBodyReader {
+
+  /** largest body read directly into an array of the announced length */
+  private static final int MAX_PREALLOCATE = 8 * 1024 * 1024;
+
+  /** largest buffer kept for reuse by a thread */
+  private static final int MAX_POOLED = 1024 * 1024;
+
+  private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>();
+
+  private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+    @Override
+    protected Inflater initialValue() {
+      // "true" because HTTP does not provide zlib headers
+      return new Inflater(true);
+    }
+  };
+
+  private final BodyInputStream body;
+  private final int maxContent;
+
+  /**
+   * @param in
+   *          stream positioned at the start of the message body
+   * @param chunked
+   *          whether the chunked transfer coding is applied
+   * @param contentLength
+   *          announced length of the body, -1 if unknown
+   * @param maxContent
+   *          maximum number of bytes to read, -1 if unlimited
+   */
+  public HttpBodyReader(PushbackInputStream in, boolean chunked,
+      long contentLength, int maxContent) {
+    this.maxContent = maxContent < 0 ? Integer.MAX_VALUE : maxContent;
+    this.body = new BodyInputStream(in, chunked,
+        chunked ? 0 : contentLength);
+  }
+
+  /**
+   * Read and decode the body.
+   *
+   * @param contentEncoding
+   *          value of the Content-Encoding header, may be null
+   * @return the decoded body, at most <code>maxContent</code> bytes
+   */
+  public byte[] read(String contentEncoding) throws HttpException,
+      IOException {
+    InputStream decoded = body;
+    if ("gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding)) {
+      try {
+        decoded = new GZIPInputStream(body, Http.BUFFER_SIZE);
+      } catch (IOException e) {
+        body.checkError();
+        if (body.count == 0) {
+          // content can be empty (i.e. redirection) in which case
+          // there is nothing to unzip
+          body.drain();
+          return new byte[0];
+        }
+        throw new IOException("not in gzip format", e);
+      }
+    } else if ("deflate".equals(contentEncoding)) {
+      Inflater inflater = INFLATER.get();
+      inflater.reset();
+      decoded = new InflaterInputStream(body, inflater, Http.BUFFER_SIZE);
+    }
+
+    byte[] buf;
+    int length = 0;
+    long expected = body.remaining;
+    if (decoded == body && !body.chunked && expected >= 0
+        && expected <= MAX_PREALLOCATE) {
+      // read into an array of the final size
+      buf = new byte[(int) Math.min(expected, maxContent)];
+      int n;
+      while (length < buf.length
+          && (n = body.read(buf, length, buf.length - length)) != -1) {
+        length += n;
+      }
+      body.drain();
+      return length == buf.length ? buf : Arrays.copyOf(buf, length);
+    }
+
+    buf = BUFFER.get();
+    if (buf == null) {
+      buf = new byte[Math.min(Http.BUFFER_SIZE, maxContent)];
+    }
+    try {
+      while (length < maxContent) {
+        if (length == buf.length) {
+          buf = Arrays.copyOf(buf, (int) Math.min(maxContent,
+              Math.max(2L * buf.length, Http.BUFFER_SIZE)));
+        }
+        int n = decoded.read(buf, length,
+            Math.min(buf.length, maxContent) - length);
+        if (n == -1)
+          break;
+        length += n;
+      }
+    } catch (IOException e) {
+      body.checkError();
+      if (decoded == body)
+        throw e;
+      // the body has been read as sent, but could not be decoded completely
+      Http.LOG.info("Caught Exception while decoding " + contentEncoding
+          + " content", e);
+    } finally {
+      if (buf.length <= MAX_POOLED) {
+        BUFFER.set(buf);
+      }
+      if (decoded instanceof GZIPInputStream) {
+        // releases the native inflater, but does not close the connection
+        decoded.close();
+      }
+    }
+    body.drain();
+    return Arrays.copyOf(buf, length);
+  }
+
+  /**
+   * @return true if the body has been read completely (for chunked bodies up
+   *         to the trailer), i.e. the connection can be reused for the next
+   *         request after a possible trailer has been read
+   */
+  public boolean isComplete() {
+    return body.complete;
+  }
+
+  /** @return the number of raw bytes read as message body */
+  public long getBytesRead() {
+    return body.count;
+  }
+
+  /** The message body with the transfer coding removed. */
+  private class BodyInputStream extends InputStream {
+
+    private final PushbackInputStream in;
+    private final boolean chunked;
+    private final StringBuffer line = new StringBuffer();
+    private final byte[] single = new byte[1];
+
+    /** bytes left in the body or current chunk, -1 if read until EOF */
+    private long remaining;
+    /** number of bytes read */
+    private long count = 0;
+    /** whether the data of a chunk has been read, but not its CRLF */
+    private boolean inChunk = false;
+    private boolean end = false;
+    private boolean complete = false;
+    private IOException error;
+    private HttpException protocolError;
+
+    BodyInputStream(PushbackInputStream in, boolean chunked, long remaining) {
+      this.in = in;
+      this.chunked = chunked;
+      this.remaining = remaining;
+    }
+
+    /**
+     * @return the number of bytes which may be read next (at most
+     *         <code>len</code>), or -1 at the end of the body or if the
+     *         content limit is reached
+     */
+    private int next(int len) throws IOException, HttpException {
+      if (remaining == 0 && !end) {
+        if (chunked) {
+          nextChunk();
+        } else {
+          end = true;
+          complete = true;
+        }
+      }
+      if (end || count >= maxContent) {
+        // the remaining content is left unread
+        return -1;
+      }
+      long n = Math.min(len, maxContent - count);
+      if (remaining > 0) {
+        n = Math.min(n, remaining);
+      }
+      return (int) n;
+    }
+
+    private int consumed(long n) throws HttpException {
+      if (n <= 0) {
+        if (chunked)
+          throw new HttpException("chunk eof after " + count
+              + " bytes in successful chunks");
+        end = true;
+        return -1;
+      }
+      count += n;
+      if (remaining > 0) {
+        remaining -= n;
+      }
+      return (int) n;
+    }
+
+    private void nextChunk() throws IOException, HttpException {
+      if (inChunk) {
+        // CRLF after the chunk data
+        HttpResponse.readLine(in, line, false);
+      }
+
+      if (Http.LOG.isTraceEnabled()) {
+        Http.LOG.trace("Http: starting chunk");
+      }
+
+      HttpResponse.readLine(in, line, false);
+
+      String chunkLenStr;
+      int pos = line.indexOf(";");
+      if (pos < 0) {
+        chunkLenStr = line.toString();
+      } else {
+        chunkLenStr = line.substring(0, pos);
+      }
+      chunkLenStr = chunkLenStr.trim();
+      int chunkLen;
+      try {
+        chunkLen = Integer.parseInt(chunkLenStr, 16);
+      } catch (NumberFormatException e) {
+        throw new HttpException("bad chunk length: " + line.toString());
+      }
+      if (chunkLen < 0) {
+        throw new HttpException("bad chunk length: " + line.toString());
+      }
+
+      if (chunkLen == 0) {
+        // last chunk, followed by the trailer
+        end = true;
+        complete = true;
+        inChunk = false;
+      } else {
+        remaining = chunkLen;
+        inChunk = true;
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      return read(single, 0, 1) == -1 ? -1 : (single[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0)
+        return 0;
+      try {
+        int n = next(len);
+        if (n == -1)
+          return -1;
+        return consumed(in.read(b, off, n));
+      } catch (HttpException e) {
+        protocolError = e;
+        throw new IOException(e.getMessage(), e);
+      } catch (IOException e) {
+        if (error == null && protocolError == null) {
+          error = e;
+        }
+        throw e;
+      }
+    }
+
+    /**
+     * Skip over the remainder of the body the decoder did not consume, e.g.
+     * the last chunk, so that the end of the body is detected.
+     */
+    void drain() throws HttpException, IOException {
+      try {
+        int n;
+        while ((n = next(Http.BUFFER_SIZE)) != -1) {
+          consumed(in.skip(n));
+        }
+      } catch (HttpException e) {
+        protocolError = e;
+      } catch (IOException e) {
+        error = e;
+      }
+      checkError();
+    }
+
+    /** Rethrow an error which occurred while reading from the connection. */
+    void checkError() throws HttpException, IOException {
+      if (protocolError != null)
+        throw protocolError;
+      if (error != null)
+        throw error;
+    }
+
+    @Override
+    public void close() {
+      // the connection is closed or released by the caller
+    }
+  }
+}
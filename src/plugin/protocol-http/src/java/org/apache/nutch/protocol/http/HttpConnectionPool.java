@@ -0,0 +1,183 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.protocol.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.Socket;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.util.TaskCounters;
+
+/**
+ * Pool of idle persistent (keep-alive) HTTP connections, keyed by scheme,
+ * host and port (or proxy). Connections are handed out most recently used
+ * first. The number of idle connections per host, the idle time and the
+ * number of requests sent over one connection are limited; the idle time is
+ * further limited by the server's <code>Keep-Alive: timeout=...</code>.
+ *
+ * <p>
+ * Pool hits, misses and failed reuses of stale connections are counted in the
+ * group <code>HttpConnectionPool</code> of {@link TaskCounters}, which the
+ * Fetcher reports as Hadoop counters.
+ */
+public class HttpConnectionPool {
+
+  public static final String COUNTER_GROUP = "HttpConnectionPool";
+
+  /** An open connection together with its buffered streams. */
+  public static class Connection {
+    final String key;
+    final Socket socket;
+    final PushbackInputStream in;
+    final OutputStream out;
+    /** number of requests sent over this connection */
+    int requests = 0;
+    /** time after which an idle connection must not be reused anymore */
+    long expires;
+
+    Connection(String key, Socket socket, PushbackInputStream in,
+        OutputStream out) {
+      this.key = key;
+      this.socket = socket;
+      this.in = in;
+      this.out = out;
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  private final Map<String, Deque<Connection>> idle = new ConcurrentHashMap<>();
+  private final int maxPerHost;
+  private final long idleTimeout;
+  private final int maxRequests;
+  private volatile long nextSweep = 0;
+
+  public HttpConnectionPool(Configuration conf) {
+    maxPerHost = conf.getInt("http.keepalive.max.per.host", 2);
+    idleTimeout = conf.getLong("http.keepalive.idle.timeout", 10000);
+    maxRequests = conf.getInt("http.keepalive.max.requests", 100);
+  }
+
+  /**
+   * Get an idle connection for the given key.
+   *
+   * @return an open connection or null if none is available
+   */
+  public Connection acquire(String key) {
+    Deque<Connection> connections = idle.get(key);
+    if (connections != null) {
+      long now = System.currentTimeMillis();
+      Connection conn;
+      while ((conn = connections.pollFirst()) != null) {
+        if (conn.expires > now && !conn.socket.isClosed()) {
+          TaskCounters.increment(COUNTER_GROUP, "hit");
+          return conn;
+        }
+        conn.close();
+        TaskCounters.increment(COUNTER_GROUP, "expired");
+      }
+    }
+    TaskCounters.increment(COUNTER_GROUP, "miss");
+    return null;
+  }
+
+  /**
+   * Return a connection after a complete response has been read from it.
+   *
+   * @param conn
+   *          the connection
+   * @param keepAliveTimeout
+   *          idle timeout announced by the server, -1 if none
+   */
+  public void release(Connection conn, long keepAliveTimeout) {
+    long now = System.currentTimeMillis();
+    if (now > nextSweep) {
+      nextSweep = now + idleTimeout;
+      sweep(now);
+    }
+    if (conn.requests >= maxRequests) {
+      conn.close();
+      return;
+    }
+    long timeout = idleTimeout;
+    if (keepAliveTimeout >= 0 && keepAliveTimeout < timeout) {
+      timeout = keepAliveTimeout;
+    }
+    if (timeout <= 0) {
+      conn.close();
+      return;
+    }
+    conn.expires = now + timeout;
+    // add atomically with respect to removing empty deques in sweep()
+    Deque<Connection> connections = idle.compute(conn.key, (k, d) -> {
+      if (d == null) {
+        d = new ConcurrentLinkedDeque<>();
+      }
+      d.offerFirst(conn);
+      return d;
+    });
+    // close the least recently used connections above the limit
+    while (connections.size() > maxPerHost) {
+      Connection lru = connections.pollLast();
+      if (lru == null)
+        break;
+      lru.close();
+    }
+  }
+
+  /** Record that reusing a pooled connection failed. */
+  public void stale(Connection conn) {
+    conn.close();
+    TaskCounters.increment(COUNTER_GROUP, "stale");
+  }
+
+  /** Close expired idle connections. */
+  private void sweep(long now) {
+    for (Map.Entry<String, Deque<Connection>> e : idle.entrySet()) {
+      Deque<Connection> connections = e.getValue();
+      for (Connection conn : connections) {
+        if (conn.expires <= now && connections.remove(conn)) {
+          conn.close();
+        }
+      }
+      idle.computeIfPresent(e.getKey(), (k, d) -> d.isEmpty() ? null : d);
+    }
+  }
+
+  /** Close all idle connections. */
+  public void close() {
+    for (Deque<Connection> connections : idle.values()) {
+      Connection conn;
+      while ((conn = connections.pollFirst()) != null) {
+        conn.close();
+      }
+    }
+    idle.clear();
+  }
+}
@@ -17,17 +17,16 @@
 package org.apache.nutch.protocol.http;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.PushbackInputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Locale;
 import java.util.Set;
 
 import javax.net.ssl.SSLSocket;
@@ -57,6 +56,11 @@ public class HttpResponse implements Response {
   private Metadata headers = new SpellCheckedMetadata();
   // used for storing the http headers verbatim
   private StringBuffer httpHeaders;
+  // true if the status line announces HTTP/1.1
+  private boolean http11 = false;
+  // true if the message body has been read completely, i.e. the connection
+  // is positioned at the start of the next response
+  private boolean bodyComplete = false;
   
   protected enum Scheme {
     HTTP, HTTPS,
@@ -111,134 +115,134 @@ public class HttpResponse implements Response {
       port = url.getPort();
       portString = ":" + port;
     }
-    Socket socket = null;
+    this.conf = http.getConf();
 
-    try {
-      socket = new Socket(); // create the socket
-      socket.setSoTimeout(http.getTimeout());
+    HttpConnectionPool pool = null;
+    if (http instanceof Http) {
+      pool = ((Http) http).getConnectionPool();
+    }
 
-      // connect
-      String sockHost = http.useProxy(url) ? http.getProxyHost() : host;
-      int sockPort = http.useProxy(url) ? http.getProxyPort() : port;
-      InetSocketAddress sockAddr = new InetSocketAddress(sockHost, sockPort);
-      socket.connect(sockAddr, http.getTimeout());
+    String sockHost = http.useProxy(url) ? http.getProxyHost() : host;
+    int sockPort = http.useProxy(url) ? http.getProxyPort() : port;
+    String poolKey = url.getProtocol() + "://" + sockHost + ":" + sockPort;
 
-      if (scheme == Scheme.HTTPS) {
-        SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory
-            .getDefault();
-        SSLSocket sslsocket = (SSLSocket) factory
-            .createSocket(socket, sockHost, sockPort, true);
-        sslsocket.setUseClientMode(true);
+    // make request
+    StringBuffer reqStr = new StringBuffer("GET ");
+    if (http.useProxy(url)) {
+      reqStr.append(url.getProtocol() + "://" + host + portString + path);
+    } else {
+      reqStr.append(path);
+    }
 
-        // Get the protocols and ciphers supported by this JVM
-        Set<String> protocols = new HashSet<String>(
-            Arrays.asList(sslsocket.getSupportedProtocols()));
-        Set<String> ciphers = new HashSet<String>(
-            Arrays.asList(sslsocket.getSupportedCipherSuites()));
+    if (pool != null) {
+      // persistent connections are the default in HTTP/1.1
+      reqStr.append(" HTTP/1.1\r\n");
+    } else {
+      reqStr.append(" HTTP/1.0\r\n");
+    }
 
-        // Intersect with preferred protocols and ciphers
-        protocols.retainAll(http.getTlsPreferredProtocols());
-        ciphers.retainAll(http.getTlsPreferredCipherSuites());
+    reqStr.append("Host: ");
+    reqStr.append(host);
+    reqStr.append(portString);
+    reqStr.append("\r\n");
 
-        sslsocket.setEnabledProtocols(
-            protocols.toArray(new String[protocols.size()]));
-        sslsocket.setEnabledCipherSuites(
-            ciphers.toArray(new String[ciphers.size()]));
+    if (pool != null) {
+      reqStr.append("Connection: keep-alive\r\n");
+    }
 
-        sslsocket.startHandshake();
-        socket = sslsocket;
-      }
+    reqStr.append("Accept-Encoding: x-gzip, gzip, deflate\r\n");
 
-      this.conf = http.getConf();
-      if (sockAddr != null
-          && conf.getBoolean("store.ip.address", false) == true) {
-        headers.add("_ip_", sockAddr.getAddress().getHostAddress());
+    String userAgent = http.getUserAgent();
+    if ((userAgent == null) || (userAgent.length() == 0)) {
+      if (Http.LOG.isErrorEnabled()) {
+        Http.LOG.error("User-agent is not set!");
       }
+    } else {
+      reqStr.append("User-Agent: ");
+      reqStr.append(userAgent);
+      reqStr.append("\r\n");
+    }
 
-      // make request
-      OutputStream req = socket.getOutputStream();
-
-      StringBuffer reqStr = new StringBuffer("GET ");
-      if (http.useProxy(url)) {
-        reqStr.append(url.getProtocol() + "://" + host + portString + path);
-      } else {
-        reqStr.append(path);
-      }
+    String acceptLanguage = http.getAcceptLanguage();
+    if (!acceptLanguage.isEmpty()) {
+      reqStr.append("Accept-Language: ");
+      reqStr.append(acceptLanguage);
+      reqStr.append("\r\n");
+    }
 
-      reqStr.append(" HTTP/1.0\r\n");
+    String acceptCharset = http.getAcceptCharset();
+    if (!acceptCharset.isEmpty()) {
+      reqStr.append("Accept-Charset: ");
+      reqStr.append(acceptCharset);
+      reqStr.append("\r\n");
+    }
 
-      reqStr.append("Host: ");
-      reqStr.append(host);
-      reqStr.append(portString);
+    String accept = http.getAccept();
+    if (!accept.isEmpty()) {
+      reqStr.append("Accept: ");
+      reqStr.append(accept);
       reqStr.append("\r\n");
+    }
 
-      reqStr.append("Accept-Encoding: x-gzip, gzip, deflate\r\n");
+    if (http.isCookieEnabled()
+        && datum.getMetaData().containsKey(HttpBase.COOKIE)) {
+      String cookie = ((Text) datum.getMetaData().get(HttpBase.COOKIE))
+          .toString();
+      reqStr.append("Cookie: ");
+      reqStr.append(cookie);
+      reqStr.append("\r\n");
+    }
 
-      String userAgent = http.getUserAgent();
-      if ((userAgent == null) || (userAgent.length() == 0)) {
-        if (Http.LOG.isErrorEnabled()) {
-          Http.LOG.error("User-agent is not set!");
-        }
-      } else {
-        reqStr.append("User-Agent: ");
-        reqStr.append(userAgent);
-        reqStr.append("\r\n");
-      }
+    if (http.isIfModifiedSinceEnabled() && datum.getModifiedTime() > 0) {
+      reqStr.append("If-Modified-Since: " + HttpDateFormat
+          .toString(datum.getModifiedTime()));
+      reqStr.append("\r\n");
+    }
+    reqStr.append("\r\n");
 
-      String acceptLanguage = http.getAcceptLanguage();
-      if (!acceptLanguage.isEmpty()) {
-        reqStr.append("Accept-Language: ");
-        reqStr.append(acceptLanguage);
-        reqStr.append("\r\n");
-      }
+    // store the request in the metadata?
+    if (conf.getBoolean("store.http.request", false) == true) {
+      headers.add("_request_", reqStr.toString());
+    }
 
-      String acceptCharset = http.getAcceptCharset();
-      if (!acceptCharset.isEmpty()) {
-        reqStr.append("Accept-Charset: ");
-        reqStr.append(acceptCharset);
-        reqStr.append("\r\n");
-      }
+    byte[] reqBytes = reqStr.toString().getBytes();
 
-      String accept = http.getAccept();
-      if (!accept.isEmpty()) {
-        reqStr.append("Accept: ");
-        reqStr.append(accept);
-        reqStr.append("\r\n");
-      }
+    HttpConnectionPool.Connection conn = null;
+    if (pool != null) {
+      conn = pool.acquire(poolKey);
+    }
+    boolean reused = (conn != null);
 
-      if (http.isCookieEnabled()
-          && datum.getMetaData().containsKey(HttpBase.COOKIE)) {
-        String cookie = ((Text) datum.getMetaData().get(HttpBase.COOKIE))
-            .toString();
-        reqStr.append("Cookie: ");
-        reqStr.append(cookie);
-        reqStr.append("\r\n");
-      }
+    try {
+      StringBuffer line = new StringBuffer();
 
-      if (http.isIfModifiedSinceEnabled() && datum.getModifiedTime() > 0) {
-        reqStr.append("If-Modified-Since: " + HttpDateFormat
-            .toString(datum.getModifiedTime()));
-        reqStr.append("\r\n");
+      while (true) {
+        if (conn == null) {
+          conn = connect(scheme, poolKey, sockHost, sockPort);
+          reused = false;
+        }
+        try {
+          conn.out.write(reqBytes);
+          conn.out.flush();
+          conn.requests++;
+          // parse status code line
+          this.code = parseStatusLine(conn.in, line);
+          break;
+        } catch (IOException e) {
+          if (!reused || e instanceof SocketTimeoutException) {
+            throw e;
+          }
+          // the server closed the pooled connection while it was idle,
+          // retry once over a new connection
+          pool.stale(conn);
+          conn = null;
+        }
       }
-      reqStr.append("\r\n");
 
-      // store the request in the metadata?
-      if (conf.getBoolean("store.http.request", false) == true) {
-        headers.add("_request_", reqStr.toString());
+      if (conf.getBoolean("store.ip.address", false) == true) {
+        headers.add("_ip_", conn.socket.getInetAddress().getHostAddress());
       }
 
-      byte[] reqBytes = reqStr.toString().getBytes();
-
-      req.write(reqBytes);
-      req.flush();
-
-      PushbackInputStream in = // process response
-          new PushbackInputStream(
-              new BufferedInputStream(socket.getInputStream(),
-                  Http.BUFFER_SIZE), Http.BUFFER_SIZE);
-
-      StringBuffer line = new StringBuffer();
-
       // store the http headers verbatim
       if (conf.getBoolean("store.http.headers", false) == true) {
         httpHeaders = new StringBuffer();
@@ -246,31 +250,46 @@ public class HttpResponse implements Response {
 
       headers.add("nutch.fetch.time", Long.toString(System.currentTimeMillis()));
 
-      boolean haveSeenNonContinueStatus = false;
-      while (!haveSeenNonContinueStatus) {
-        // parse status code line
-        this.code = parseStatusLine(in, line);
+      while (true) {
         if (httpHeaders != null)
           httpHeaders.append(line).append("\n");
         // parse headers
-        parseHeaders(in, line, httpHeaders);
-        haveSeenNonContinueStatus = code != 100; // 100 is "Continue"
+        parseHeaders(conn.in, line, httpHeaders);
+        if (code != 100) { // 100 is "Continue"
+          break;
+        }
+        this.code = parseStatusLine(conn.in, line);
       }
 
       String transferEncoding = getHeader(Response.TRANSFER_ENCODING);
-      if (transferEncoding != null && "chunked"
-          .equalsIgnoreCase(transferEncoding.trim())) {
-        readChunkedContent(in, line);
+      String contentEncoding = getHeader(Response.CONTENT_ENCODING);
+      boolean compressed = "gzip".equals(contentEncoding)
+          || "x-gzip".equals(contentEncoding)
+          || "deflate".equals(contentEncoding);
+      if (code == 204 || code == 304) {
+        // no message body
+        content = new byte[0];
+        bodyComplete = true;
       } else {
-        readPlainContent(in);
+        boolean chunked = transferEncoding != null
+            && "chunked".equalsIgnoreCase(transferEncoding.trim());
+        // dechunk and decompress in a single pass
+        HttpBodyReader body = new HttpBodyReader(conn.in, chunked,
+            chunked ? -1 : getContentLength(), http.getMaxContent());
+        content = body.read(contentEncoding);
+        if (chunked && body.isComplete()) {
+          // trailer
+          parseHeaders(conn.in, line, null);
+        }
+        bodyComplete = body.isComplete();
+        if (compressed && Http.LOG.isTraceEnabled()) {
+          Http.LOG.trace("fetched " + body.getBytesRead()
+              + " bytes of compressed content (expanded to " + content.length
+              + " bytes) from " + url);
+        }
       }
 
-      String contentEncoding = getHeader(Response.CONTENT_ENCODING);
-      if ("gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding)) {
-        content = http.processGzipEncoded(content, url);
-      } else if ("deflate".equals(contentEncoding)) {
-        content = http.processDeflateEncoded(content, url);
-      } else {
+      if (!compressed) {
         // store the headers verbatim only if the response was not compressed
         // as the content length reported with not match otherwise
         if (httpHeaders != null) {
@@ -281,11 +300,119 @@ public class HttpResponse implements Response {
         }
       }
 
+      if (pool != null && bodyComplete && isKeepAlive()) {
+        pool.release(conn, getKeepAliveTimeout());
+        conn = null;
+      }
+
     } finally {
-      if (socket != null)
-        socket.close();
+      if (conn != null)
+        conn.close();
+    }
+
+  }
+
+  /**
+   * Open a new connection, including the TLS handshake for https.
+   */
+  private HttpConnectionPool.Connection connect(Scheme scheme, String poolKey,
+      String sockHost, int sockPort) throws IOException {
+    Socket socket = new Socket(); // create the socket
+    try {
+      socket.setSoTimeout(http.getTimeout());
+
+      // connect
+      InetSocketAddress sockAddr = new InetSocketAddress(sockHost, sockPort);
+      socket.connect(sockAddr, http.getTimeout());
+
+      if (scheme == Scheme.HTTPS) {
+        // the default SSL context caches sessions, so that handshakes with
+        // a host already connected to are abbreviated (session resumption)
+        SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory
+            .getDefault();
+        SSLSocket sslsocket = (SSLSocket) factory
+            .createSocket(socket, sockHost, sockPort, true);
+        sslsocket.setUseClientMode(true);
+
+        // Get the protocols and ciphers supported by this JVM
+        Set<String> protocols = new HashSet<String>(
+            Arrays.asList(sslsocket.getSupportedProtocols()));
+        Set<String> ciphers = new HashSet<String>(
+            Arrays.asList(sslsocket.getSupportedCipherSuites()));
+
+        // Intersect with preferred protocols and ciphers
+        protocols.retainAll(http.getTlsPreferredProtocols());
+        ciphers.retainAll(http.getTlsPreferredCipherSuites());
+
+        sslsocket.setEnabledProtocols(
+            protocols.toArray(new String[protocols.size()]));
+        sslsocket.setEnabledCipherSuites(
+            ciphers.toArray(new String[ciphers.size()]));
+
+        sslsocket.startHandshake();
+        socket = sslsocket;
+      }
+
+      PushbackInputStream in = // process response
+          new PushbackInputStream(
+              new BufferedInputStream(socket.getInputStream(),
+                  Http.BUFFER_SIZE), Http.BUFFER_SIZE);
+
+      return new HttpConnectionPool.Connection(poolKey, socket, in,
+          socket.getOutputStream());
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Whether the server keeps the connection open after this response: the
+   * default for HTTP/1.1 unless "Connection: close" is sent, for HTTP/1.0
+   * only if "Connection: keep-alive" is sent.
+   */
+  private boolean isKeepAlive() {
+    String connection = getHeaderIgnoreCase("Connection");
+    if (connection != null) {
+      connection = connection.toLowerCase(Locale.ROOT);
+      if (connection.contains("close")) {
+        return false;
+      }
+      if (connection.contains("keep-alive")) {
+        return true;
+      }
     }
+    return http11;
+  }
 
+  /**
+   * @return the idle timeout in ms announced by the server in the
+   *         "Keep-Alive: timeout=..." header, -1 if none
+   */
+  private long getKeepAliveTimeout() {
+    String keepAlive = getHeaderIgnoreCase("Keep-Alive");
+    if (keepAlive != null) {
+      for (String param : keepAlive.split(",")) {
+        param = param.trim();
+        if (param.startsWith("timeout=")) {
+          try {
+            return Long.parseLong(param.substring(8).trim()) * 1000;
+          } catch (NumberFormatException e) {
+            // ignore
+          }
+        }
+      }
+    }
+    return -1;
+  }
+
+  private String getHeaderIgnoreCase(String name) {
+    for (String n : headers.names()) {
+      if (n.equalsIgnoreCase(name)) {
+        return headers.get(n);
+      }
+    }
+    return null;
   }
 
   /*
@@ -318,145 +445,35 @@ public class HttpResponse implements Response {
    * -------------------------
    */
 
-  private void readPlainContent(InputStream in)
-      throws HttpException, IOException {
-
-    int contentLength = Integer.MAX_VALUE; // get content length
+  /**
+   * @return the length announced in the Content-Length header, -1 if none
+   */
+  private long getContentLength() throws HttpException {
     String contentLengthString = headers.get(Response.CONTENT_LENGTH);
     if (contentLengthString != null) {
       contentLengthString = contentLengthString.trim();
-      try {
-        if (!contentLengthString.isEmpty())
-          contentLength = Integer.parseInt(contentLengthString);
-      } catch (NumberFormatException e) {
-        throw new HttpException("bad content length: " + contentLengthString);
-      }
-    }
-    if (http.getMaxContent() >= 0 && contentLength > http.getMaxContent()) {
-      // limit the download size
-      contentLength = http.getMaxContent();
-    }
-
-    ByteArrayOutputStream out = new ByteArrayOutputStream(Http.BUFFER_SIZE);
-    byte[] bytes = new byte[Http.BUFFER_SIZE];
-    int length = 0;
-
-    // do not try to read if the contentLength is 0
-    if (contentLength == 0) {
-      content = new byte[0];
-      return;
-    }
-
-    // read content
-    int i = in.read(bytes);
-    while (i != -1) {
-      out.write(bytes, 0, i);
-      length += i;
-      if (length >= contentLength) {
-        break;
-      }
-      if ((length + Http.BUFFER_SIZE) > contentLength) {
-        // reading next chunk may hit contentLength,
-        // must limit number of bytes read
-        i = in.read(bytes, 0, (contentLength - length));
-      } else {
-        i = in.read(bytes);
-      }
-    }
-    content = out.toByteArray();
-  }
-
-  /**
-   * @param in
-   * @param line
-   * @throws HttpException
-   * @throws IOException
-   */
-  private void readChunkedContent(PushbackInputStream in, StringBuffer line)
-      throws HttpException, IOException {
-    boolean doneChunks = false;
-    int contentBytesRead = 0;
-    byte[] bytes = new byte[Http.BUFFER_SIZE];
-    ByteArrayOutputStream out = new ByteArrayOutputStream(Http.BUFFER_SIZE);
-
-    while (!doneChunks) {
-      if (Http.LOG.isTraceEnabled()) {
-        Http.LOG.trace("Http: starting chunk");
-      }
-
-      readLine(in, line, false);
-
-      String chunkLenStr;
-      // if (LOG.isTraceEnabled()) { LOG.trace("chunk-header: '" + line + "'");
-      // }
-
-      int pos = line.indexOf(";");
-      if (pos < 0) {
-        chunkLenStr = line.toString();
-      } else {
-        chunkLenStr = line.substring(0, pos);
-        // if (LOG.isTraceEnabled()) { LOG.trace("got chunk-ext: " +
-        // line.substring(pos+1)); }
-      }
-      chunkLenStr = chunkLenStr.trim();
-      int chunkLen;
-      try {
-        chunkLen = Integer.parseInt(chunkLenStr, 16);
-      } catch (NumberFormatException e) {
-        throw new HttpException("bad chunk length: " + line.toString());
-      }
-
-      if (chunkLen == 0) {
-        doneChunks = true;
-        break;
-      }
-
-      if (http.getMaxContent() >= 0 && (contentBytesRead + chunkLen) > http
-          .getMaxContent())
-        chunkLen = http.getMaxContent() - contentBytesRead;
-
-      // read one chunk
-      int chunkBytesRead = 0;
-      while (chunkBytesRead < chunkLen) {
-
-        int toRead = (chunkLen - chunkBytesRead) < Http.BUFFER_SIZE ?
-            (chunkLen - chunkBytesRead) :
-            Http.BUFFER_SIZE;
-        int len = in.read(bytes, 0, toRead);
-
-        if (len == -1)
-          throw new HttpException("chunk eof after " + contentBytesRead
-              + " bytes in successful chunks" + " and " + chunkBytesRead
-              + " in current chunk");
-
-        // DANGER!!! Will printed GZIPed stuff right to your
-        // terminal!
-        // if (LOG.isTraceEnabled()) { LOG.trace("read: " + new String(bytes, 0,
-        // len)); }
-
-        out.write(bytes, 0, len);
-        chunkBytesRead += len;
+      if (!contentLengthString.isEmpty()) {
+        long contentLength;
+        try {
+          contentLength = Long.parseLong(contentLengthString);
+        } catch (NumberFormatException e) {
+          contentLength = -1;
+        }
+        if (contentLength < 0) {
+          throw new HttpException("bad content length: " + contentLengthString);
+        }
+        return contentLength;
       }
-
-      readLine(in, line, false);
-
     }
-
-    if (!doneChunks) {
-      if (contentBytesRead != http.getMaxContent())
-        throw new HttpException("chunk eof: !doneChunk && didn't max out");
-      return;
-    }
-
-    content = out.toByteArray();
-    parseHeaders(in, line, null);
-
+    return -1;
   }
 
   private int parseStatusLine(PushbackInputStream in, StringBuffer line)
       throws IOException, HttpException {
     readLine(in, line, false);
 
+    http11 = line.indexOf("HTTP/1.1") == 0;
+
     int codeStart = line.indexOf(" ");
     int codeEnd = line.indexOf(" ", codeStart + 1);
 
@@ -538,7 +555,7 @@ public class HttpResponse implements Response {
     }
   }
 
-  private static int readLine(PushbackInputStream in, StringBuffer line,
+  static int readLine(PushbackInputStream in, StringBuffer line,
       boolean allowContinuedLine) throws IOException {
     line.setLength(0);
     for (int c = in.read(); c != -1; c = in.read()) {
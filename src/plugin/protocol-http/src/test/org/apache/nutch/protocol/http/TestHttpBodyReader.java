@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutch.protocol.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.nutch.protocol.http.api.HttpException;
+import org.junit.Test;
+
+/**
+ * Test cases for the single-pass body reader of protocol-http
+ */
+public class TestHttpBodyReader {
+
+  private static final byte[] NEXT = "HTTP/1.1 200 OK\r\n"
+      .getBytes(StandardCharsets.US_ASCII);
+
+  private static byte[] page(int size) {
+    byte[] page = new byte[size];
+    for (int i = 0; i < size; i++) {
+      page[i] = (byte) ('a' + (i % 26));
+    }
+    return page;
+  }
+
+  private static byte[] gzip(byte[] data) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    GZIPOutputStream gz = new GZIPOutputStream(out);
+    gz.write(data);
+    gz.close();
+    return out.toByteArray();
+  }
+
+  private static byte[] deflate(byte[] data) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DeflaterOutputStream def = new DeflaterOutputStream(out,
+        new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    def.write(data);
+    def.close();
+    return out.toByteArray();
+  }
+
+  private static byte[] chunk(byte[] data, int chunkSize) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int i = 0; i < data.length; i += chunkSize) {
+      int len = Math.min(chunkSize, data.length - i);
+      out.write((Integer.toHexString(len) + ";ext=1\r\n")
+          .getBytes(StandardCharsets.US_ASCII));
+      out.write(data, i, len);
+      out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+    }
+    out.write("0\r\n".getBytes(StandardCharsets.US_ASCII));
+    return out.toByteArray();
+  }
+
+  /** The message body followed by the blank trailer and the next response. */
+  private static PushbackInputStream stream(byte[] body, boolean chunked)
+      throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(body);
+    if (chunked) {
+      out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+    }
+    out.write(NEXT);
+    return new PushbackInputStream(
+        new ByteArrayInputStream(out.toByteArray()), Http.BUFFER_SIZE);
+  }
+
+  private static void assertAtNextResponse(PushbackInputStream in)
+      throws Exception {
+    StringBuffer line = new StringBuffer();
+    if (HttpResponse.readLine(in, line, false) == 0) {
+      // blank line after the last chunk
+      HttpResponse.readLine(in, line, false);
+    }
+    assertEquals("HTTP/1.1 200 OK", line.toString());
+  }
+
+  @Test
+  public void testContentLength() throws Exception {
+    byte[] page = page(20000);
+    PushbackInputStream in = stream(page, false);
+    HttpBodyReader reader = new HttpBodyReader(in, false, page.length, -1);
+    assertArrayEquals(page, reader.read(null));
+    assertTrue(reader.isComplete());
+    assertAtNextResponse(in);
+  }
+
+  @Test
+  public void testContentLimit() throws Exception {
+    byte[] page = page(20000);
+    HttpBodyReader reader = new HttpBodyReader(stream(page, false), false,
+        page.length, 1000);
+    assertArrayEquals(Arrays.copyOf(page, 1000), reader.read(null));
+    assertFalse(reader.isComplete());
+
+    // read until EOF
+    reader = new HttpBodyReader(
+        new PushbackInputStream(new ByteArrayInputStream(page)), false, -1,
+        15000);
+    assertArrayEquals(Arrays.copyOf(page, 15000), reader.read(null));
+    assertFalse(reader.isComplete());
+  }
+
+  @Test
+  public void testChunked() throws Exception {
+    byte[] page = page(50000);
+    PushbackInputStream in = stream(chunk(page, 3000), true);
+    HttpBodyReader reader = new HttpBodyReader(in, true, -1, -1);
+    assertArrayEquals(page, reader.read(null));
+    assertTrue(reader.isComplete());
+    assertAtNextResponse(in);
+
+    // truncated chunked content
+    reader = new HttpBodyReader(stream(chunk(page, 3000), true), true, -1,
+        10000);
+    assertArrayEquals(Arrays.copyOf(page, 10000), reader.read(null));
+    assertFalse(reader.isComplete());
+  }
+
+  @Test(expected = HttpException.class)
+  public void testBadChunk() throws Exception {
+    byte[] body = "zz\r\nabc\r\n0\r\n".getBytes(StandardCharsets.US_ASCII);
+    new HttpBodyReader(stream(body, true), true, -1, -1).read(null);
+  }
+
+  @Test
+  public void testGzip() throws Exception {
+    byte[] page = page(100000);
+    byte[] compressed = gzip(page);
+
+    PushbackInputStream in = stream(compressed, false);
+    HttpBodyReader reader = new HttpBodyReader(in, false, compressed.length,
+        -1);
+    assertArrayEquals(page, reader.read("gzip"));
+    assertTrue(reader.isComplete());
+    assertEquals(compressed.length, reader.getBytesRead());
+    assertAtNextResponse(in);
+
+    in = stream(chunk(compressed, 100), true);
+    reader = new HttpBodyReader(in, true, -1, -1);
+    assertArrayEquals(page, reader.read("x-gzip"));
+    assertTrue(reader.isComplete());
+    assertAtNextResponse(in);
+
+    // the decompressed content is limited as well
+    reader = new HttpBodyReader(stream(compressed, false), false,
+        compressed.length, 30000);
+    assertArrayEquals(Arrays.copyOf(page, 30000), reader.read("gzip"));
+
+    // empty content, e.g. of a redirect
+    reader = new HttpBodyReader(stream(new byte[0], false), false, 0, -1);
+    assertEquals(0, reader.read("gzip").length);
+    assertTrue(reader.isComplete());
+  }
+
+  @Test
+  public void testTruncatedGzip() throws Exception {
+    byte[] page = page(100000);
+    byte[] compressed = gzip(page);
+    byte[] truncated = Arrays.copyOf(compressed, compressed.length / 2);
+    HttpBodyReader reader = new HttpBodyReader(
+        new PushbackInputStream(new ByteArrayInputStream(truncated)), false,
+        -1, -1);
+    // best effort: the content decoded so far
+    byte[] content = reader.read("gzip");
+    assertTrue(content.length > 0);
+    assertArrayEquals(Arrays.copyOf(page, content.length), content);
+  }
+
+  @Test
+  public void testDeflate() throws Exception {
+    byte[] page = page(100000);
+    byte[] compressed = deflate(page);
+    for (int i = 0; i < 2; i++) {
+      // the inflater is reused for the second response
+      PushbackInputStream in = stream(chunk(compressed, 1000), true);
+      HttpBodyReader reader = new HttpBodyReader(in, true, -1, -1);
+      assertArrayEquals(page, reader.read("deflate"));
+      assertTrue(reader.isComplete());
+      assertAtNextResponse(in);
+    }
+  }
+}
@@ -47,9 +47,14 @@ public class TestProtocolHttp {
   private int port;
 
   public void setUp(boolean redirection) throws Exception {
+    setUp(redirection, false);
+  }
+
+  public void setUp(boolean redirection, boolean keepAlive) throws Exception {
     conf = new Configuration();
     conf.addResource("nutch-default.xml");
     conf.addResource("nutch-site-test.xml");
+    conf.setBoolean("http.keepalive", keepAlive);
 
     http = new Http();
     http.setConf(conf);
@@ -84,6 +89,17 @@ public class TestProtocolHttp {
     fetchPage("/brokenpage.jsp", 500);
   }
 
+  @Test
+  public void testKeepAlive() throws Exception {
+    startServer(47505, false, true);
+    // the same pages must be fetched correctly over reused connections
+    for (int i = 0; i < 3; i++) {
+      fetchPage("/basic-http.jsp", 200);
+      fetchPage("/nonexists.html", 404);
+      fetchPage("/redirect301.jsp", 301);
+    }
+  }
+
   @Test
   public void testRedirectionJetty() throws Exception {
     // Redirection via Jetty
@@ -100,8 +116,13 @@ public class TestProtocolHttp {
    *          whether redirection
    */
   private void startServer(int portno, boolean redirection) throws Exception {
+    startServer(portno, redirection, false);
+  }
+
+  private void startServer(int portno, boolean redirection, boolean keepAlive)
+      throws Exception {
     port = portno;
-    setUp(redirection);
+    setUp(redirection, keepAlive);
     SelectChannelConnector connector = new SelectChannelConnector();
     connector.setHost("127.0.0.1");
     connector.setPort(port);
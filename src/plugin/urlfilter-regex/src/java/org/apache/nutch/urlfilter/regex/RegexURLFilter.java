@@ -20,10 +20,12 @@ package org.apache.nutch.urlfilter.regex;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.util.Set;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.urlfilter.api.RegexLiterals;
 import org.apache.nutch.urlfilter.api.RegexRule;
 import org.apache.nutch.urlfilter.api.RegexURLFilterBase;
 import org.apache.nutch.util.NutchConfiguration;
@@ -106,6 +108,10 @@ public class RegexURLFilter extends RegexURLFilterBase {
     protected boolean match(String url) {
       return pattern.matcher(url).find();
     }
+
+    protected Set<String> requiredLiterals() {
+      return RegexLiterals.required(regex());
+    }
   }
 
 }
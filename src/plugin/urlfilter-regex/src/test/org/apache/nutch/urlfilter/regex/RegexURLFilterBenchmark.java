@@ -0,0 +1,123 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.urlfilter.regex;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.urlfilter.api.RegexURLFilterBase;
+import org.apache.nutch.util.NutchConfiguration;
+
+/**
+ * Throughput benchmark of {@link RegexURLFilter} with and without the literal
+ * prefilter of rules. Both variants must accept the same URLs.
+ *
+ * <p>
+ * The rules and URL files default to the <code>Benchmarks</code> sample. A
+ * leading <code>+</code> or <code>-</code> of a URL (the format of the sample
+ * URL files) is ignored, so that a plain list of URLs, e.g. dumped from a
+ * CrawlDb, can be used as well.
+ *
+ * <p>
+ * Usage:
+ * <code>RegexURLFilterBenchmark [-rules file] [-urls file] [-loops n]</code>
+ */
+public class RegexURLFilterBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    String samples = System.getProperty("test.data", "sample");
+    String rulesFile = samples + "/Benchmarks.rules";
+    String urlsFile = samples + "/Benchmarks.urls";
+    int loops = 2000;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-rules")) {
+        rulesFile = args[++i];
+      } else if (args[i].equals("-urls")) {
+        urlsFile = args[++i];
+      } else if (args[i].equals("-loops")) {
+        loops = Integer.parseInt(args[++i]);
+      }
+    }
+
+    String rules = new String(Files.readAllBytes(Paths.get(rulesFile)),
+        StandardCharsets.UTF_8);
+    List<String> urls = new ArrayList<String>();
+    for (String line : Files.readAllLines(Paths.get(urlsFile),
+        StandardCharsets.UTF_8)) {
+      if (line.startsWith("+") || line.startsWith("-")) {
+        line = line.substring(1);
+      }
+      if (!line.isEmpty()) {
+        urls.add(line);
+      }
+    }
+    String[] urlArray = urls.toArray(new String[urls.size()]);
+
+    RegexURLFilter loop = createFilter(rules, false);
+    RegexURLFilter prefiltered = createFilter(rules, true);
+    for (String url : urlArray) {
+      String expected = loop.filter(url);
+      String result = prefiltered.filter(url);
+      if (expected == null ? result != null : !expected.equals(result)) {
+        throw new IllegalStateException("Results differ for " + url);
+      }
+    }
+
+    for (boolean prefilter : new boolean[] { false, true }) {
+      RegexURLFilter filter = prefilter ? prefiltered : loop;
+      // warm-up run, then the measured run
+      run(filter, urlArray, loops / 10);
+      long elapsed = run(filter, urlArray, loops);
+      long filtered = (long) loops * urlArray.length;
+      System.out.println(String.format(
+          "prefilter=%-5s rules=%s urls=%d loops=%d: %d ms, %.0f urls/s",
+          prefilter, rulesFile, urlArray.length, loops, elapsed,
+          filtered * 1000.0 / Math.max(1, elapsed)));
+    }
+  }
+
+  private static RegexURLFilter createFilter(String rules, boolean prefilter) {
+    Configuration conf = NutchConfiguration.create();
+    conf.set(RegexURLFilter.URLFILTER_REGEX_RULES, rules);
+    conf.setBoolean(RegexURLFilterBase.URLFILTER_REGEX_PREFILTER, prefilter);
+    RegexURLFilter filter = new RegexURLFilter();
+    filter.setConf(conf);
+    return filter;
+  }
+
+  private static long run(RegexURLFilter filter, String[] urls, int loops) {
+    long start = System.currentTimeMillis();
+    int accepted = 0;
+    for (int i = 0; i < loops; i++) {
+      for (String url : urls) {
+        if (filter.filter(url) != null) {
+          accepted++;
+        }
+      }
+    }
+    long elapsed = System.currentTimeMillis() - start;
+    if (accepted < 0) {
+      // keep the results alive
+      System.out.println(accepted);
+    }
+    return elapsed;
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.crawl;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.MapWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.metadata.Nutch;
+import org.apache.nutch.protocol.ProtocolStatus;
+
+/**
+ * Size and throughput benchmark of the {@link CrawlDatum} serialization,
+ * comparing the current format with version 7 (metadata as
+ * {@link MapWritable}). Records carry the metadata typically found in a
+ * CrawlDb after a few cycles: protocol status, response time, generate time
+ * and content type.
+ *
+ * <p>
+ * Usage: <code>CrawlDatumBenchmark [-records n]</code>
+ */
+public class CrawlDatumBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int records = 1000000;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-records")) {
+        records = Integer.parseInt(args[++i]);
+      }
+    }
+
+    CrawlDatum[] datums = new CrawlDatum[1000];
+    for (int i = 0; i < datums.length; i++) {
+      datums[i] = createDatum(i);
+    }
+
+    DataOutputBuffer legacy = new DataOutputBuffer();
+    DataOutputBuffer current = new DataOutputBuffer();
+    for (int run = 0; run < 2; run++) {
+      // first run is the warm-up
+      legacy.reset();
+      current.reset();
+      long start = System.nanoTime();
+      for (int i = 0; i < records; i++) {
+        writeVersion7(datums[i % datums.length], legacy);
+      }
+      long legacyWrite = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int i = 0; i < records; i++) {
+        datums[i % datums.length].write(current);
+      }
+      long currentWrite = System.nanoTime() - start;
+
+      long legacyRead = read(legacy, records, false);
+      long currentRead = read(current, records, false);
+      long currentPassThrough = passThrough(current, records);
+      long legacyPassThrough = passThrough(legacy, records);
+      long currentReadMeta = read(current, records, true);
+
+      if (run == 0) {
+        continue;
+      }
+      System.out.println(String.format("records=%d", records));
+      System.out.println(String.format(
+          "bytes/record:        version 7 = %.1f, current = %.1f",
+          legacy.getLength() / (double) records,
+          current.getLength() / (double) records));
+      print("write", records, legacyWrite, currentWrite);
+      print("read", records, legacyRead, currentRead);
+      print("read+write", records, legacyPassThrough, currentPassThrough);
+      System.out.println(String.format(
+          "read+metadata:       current = %.0f records/s",
+          records * 1e9 / currentReadMeta));
+    }
+  }
+
+  private static void print(String name, int records, long legacy,
+      long current) {
+    System.out.println(String.format(
+        "%-20s version 7 = %.0f records/s, current = %.0f records/s",
+        name + ":", records * 1e9 / legacy, records * 1e9 / current));
+  }
+
+  private static CrawlDatum createDatum(int i) {
+    CrawlDatum datum = new CrawlDatum(CrawlDatum.STATUS_DB_FETCHED, 2592000,
+        1.0f / (i + 1));
+    datum.setFetchTime(1500000000000L + i);
+    datum.setModifiedTime(1400000000000L + i);
+    datum.setSignature(new byte[16]);
+    MapWritable meta = datum.getMetaData();
+    meta.put(Nutch.WRITABLE_PROTO_STATUS_KEY, new ProtocolStatus(
+        ProtocolStatus.SUCCESS, 1400000000000L + i));
+    meta.put(new Text("_rs_"), new IntWritable(100 + i));
+    meta.put(Nutch.WRITABLE_GENERATE_TIME_KEY, new LongWritable(
+        1499999999999L + i));
+    meta.put(new Text("Content-Type"), new Text("text/html"));
+    return datum;
+  }
+
+  /** Serialization of version 7, with metadata as MapWritable */
+  private static void writeVersion7(CrawlDatum datum, DataOutputBuffer out)
+      throws IOException {
+    out.writeByte(7);
+    out.writeByte(datum.getStatus());
+    out.writeLong(datum.getFetchTime());
+    out.writeByte(datum.getRetriesSinceFetch());
+    out.writeInt(datum.getFetchInterval());
+    out.writeFloat(datum.getScore());
+    out.writeLong(datum.getModifiedTime());
+    out.writeByte(datum.getSignature().length);
+    out.write(datum.getSignature());
+    out.writeBoolean(true);
+    datum.getMetaData().write(out);
+  }
+
+  private static long read(DataOutputBuffer data, int records,
+      boolean accessMetadata) throws IOException {
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(data.getData(), data.getLength());
+    CrawlDatum datum = new CrawlDatum();
+    long start = System.nanoTime();
+    int found = 0;
+    for (int i = 0; i < records; i++) {
+      datum.readFields(in);
+      if (accessMetadata
+          && datum.getMetaData().get(Nutch.WRITABLE_PROTO_STATUS_KEY) != null) {
+        found++;
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+    if (accessMetadata && found != records) {
+      throw new IllegalStateException("Metadata missing");
+    }
+    return elapsed;
+  }
+
+  /** Read and write again, as a CrawlDb update does for most records */
+  private static long passThrough(DataOutputBuffer data, int records)
+      throws IOException {
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(data.getData(), data.getLength());
+    DataOutputBuffer out = new DataOutputBuffer();
+    CrawlDatum datum = new CrawlDatum();
+    CrawlDatum result = new CrawlDatum();
+    long start = System.nanoTime();
+    for (int i = 0; i < records; i++) {
+      datum.readFields(in);
+      result.set(datum);
+      if (i % 1000 == 0) {
+        out.reset();
+      }
+      result.write(out);
+    }
+    return System.nanoTime() - start;
+  }
+}
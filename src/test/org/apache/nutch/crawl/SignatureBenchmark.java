@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.crawl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.metadata.Metadata;
+import org.apache.nutch.parse.Parse;
+import org.apache.nutch.parse.ParseImpl;
+import org.apache.nutch.protocol.Content;
+import org.apache.nutch.util.NutchConfiguration;
+
+/**
+ * Throughput and allocation benchmark of the {@link TextProfileSignature},
+ * comparing the current implementation with the former one which built the
+ * profile as a string, and of the {@link MD5Signature}. Documents are
+ * generated for a number of size classes, from 1 kB to 1 MB of text.
+ *
+ * <p>
+ * Usage: <code>SignatureBenchmark [-bytes n]</code>, with <code>n</code> the
+ * amount of text processed per size class (default 200 MB)
+ */
+public class SignatureBenchmark {
+
+  private static final int[] SIZES = { 1 << 10, 10 << 10, 100 << 10,
+      1 << 20 };
+
+  public static void main(String[] args) throws Exception {
+    long bytes = 200L << 20;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-bytes")) {
+        bytes = Long.parseLong(args[++i]);
+      }
+    }
+
+    Configuration conf = NutchConfiguration.create();
+    TextProfileSignature textProfile = new TextProfileSignature();
+    textProfile.setConf(conf);
+    MD5Signature md5 = new MD5Signature();
+    md5.setConf(conf);
+    int minTokenLen = conf.getInt("db.signature.text_profile.min_token_len",
+        2);
+    float quantRate = conf.getFloat("db.signature.text_profile.quant_rate",
+        0.01f);
+
+    Random random = new Random(42);
+    for (int run = 0; run < 2; run++) {
+      // first run is the warm-up
+      for (int size : SIZES) {
+        String[] texts = new String[8];
+        Parse[] parses = new Parse[texts.length];
+        Content[] contents = new Content[texts.length];
+        for (int i = 0; i < texts.length; i++) {
+          texts[i] = createText(random, size);
+          parses[i] = new ParseImpl(texts[i], null);
+          contents[i] = new Content("http://example.com/" + i,
+              "http://example.com/" + i,
+              texts[i].getBytes(StandardCharsets.UTF_8), "text/plain",
+              new Metadata(), conf);
+        }
+        for (int i = 0; i < texts.length; i++) {
+          if (!Arrays.equals(TextProfileSignature.calculateLegacy(texts[i],
+              minTokenLen, quantRate), textProfile.calculate(null,
+              parses[i]))) {
+            throw new IllegalStateException("Signatures differ");
+          }
+        }
+        int docs = (int) Math.max(10, bytes / size);
+
+        long[] legacy = measure(() -> {
+          for (int i = 0; i < docs; i++) {
+            TextProfileSignature.calculateLegacy(texts[i % texts.length],
+                minTokenLen, quantRate);
+          }
+        });
+        long[] current = measure(() -> {
+          for (int i = 0; i < docs; i++) {
+            textProfile.calculate(null, parses[i % parses.length]);
+          }
+        });
+        long[] content = measure(() -> {
+          for (int i = 0; i < docs; i++) {
+            md5.calculate(contents[i % contents.length], null);
+          }
+        });
+
+        if (run == 0) {
+          continue;
+        }
+        System.out.println(String.format("size=%d kB, documents=%d",
+            size >> 10, docs));
+        print("text profile legacy:", size, docs, legacy);
+        print("text profile:", size, docs, current);
+        print("md5:", size, docs, content);
+      }
+    }
+  }
+
+  private static void print(String name, int size, int docs, long[] result) {
+    System.out.println(String.format(
+        "  %-22s %8.0f docs/s, %7.1f MB/s, %10s bytes allocated/doc", name,
+        docs * 1e9 / result[0], (double) size * docs * 1e9 / result[0]
+            / (1 << 20),
+        result[1] < 0 ? "n/a" : Long.toString(result[1] / docs)));
+  }
+
+  /** @return elapsed nanoseconds and bytes allocated, -1 if unknown */
+  private static long[] measure(Runnable task) {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    com.sun.management.ThreadMXBean allocation = null;
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      allocation = (com.sun.management.ThreadMXBean) threads;
+    }
+    long id = Thread.currentThread().getId();
+    long allocated = allocation == null ? 0 : allocation
+        .getThreadAllocatedBytes(id);
+    long start = System.nanoTime();
+    task.run();
+    long elapsed = System.nanoTime() - start;
+    if (allocation == null) {
+      return new long[] { elapsed, -1 };
+    }
+    return new long[] { elapsed,
+        allocation.getThreadAllocatedBytes(id) - allocated };
+  }
+
+  /**
+   * Text of about the given size, with a vocabulary growing with the size
+   * and word frequencies following Zipf's law.
+   */
+  private static String createText(Random random, int size) {
+    int vocabulary = Math.max(100, size / 20);
+    StringBuilder text = new StringBuilder(size + 20);
+    while (text.length() < size) {
+      int rank = (int) Math.pow(vocabulary, random.nextDouble());
+      text.append("w").append(Integer.toString(rank, 36));
+      text.append(random.nextInt(12) == 0 ? ". " : " ");
+    }
+    return text.toString();
+  }
+}
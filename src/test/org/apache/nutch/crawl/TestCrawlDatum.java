@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.crawl;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.FloatWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.MapWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.nutch.metadata.Nutch;
+import org.apache.nutch.protocol.ProtocolStatus;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Serialization of {@link CrawlDatum}, current and legacy formats. */
+public class TestCrawlDatum {
+
+  static CrawlDatum createDatum() {
+    CrawlDatum datum = new CrawlDatum(CrawlDatum.STATUS_DB_FETCHED, 2592000,
+        0.5f);
+    datum.setFetchTime(1500000000000L);
+    datum.setModifiedTime(1400000000000L);
+    datum.setSignature(new byte[] { 1, 2, 3, 4 });
+    MapWritable meta = datum.getMetaData();
+    meta.put(Nutch.WRITABLE_PROTO_STATUS_KEY, new ProtocolStatus(
+        ProtocolStatus.SUCCESS));
+    meta.put(new Text("_rs_"), new IntWritable(312));
+    meta.put(Nutch.WRITABLE_GENERATE_TIME_KEY, new LongWritable(
+        1499999999999L));
+    meta.put(new Text("Content-Type"), new Text("text/html"));
+    meta.put(new Text("custom"), new FloatWritable(1.5f));
+    meta.put(new Text("bytes"), new BytesWritable(new byte[] { 7, 8 }));
+    meta.put(new IntWritable(42), new DummyWritable(3));
+    return datum;
+  }
+
+  static CrawlDatum copy(Writable datum) throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    datum.write(out);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    return CrawlDatum.read(in);
+  }
+
+  /** Serialization of version 7, with metadata as MapWritable */
+  static byte[] writeVersion7(CrawlDatum datum) throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    out.writeByte(7);
+    out.writeByte(datum.getStatus());
+    out.writeLong(datum.getFetchTime());
+    out.writeByte(datum.getRetriesSinceFetch());
+    out.writeInt(datum.getFetchInterval());
+    out.writeFloat(datum.getScore());
+    out.writeLong(datum.getModifiedTime());
+    out.writeByte(datum.getSignature().length);
+    out.write(datum.getSignature());
+    out.writeBoolean(true);
+    datum.getMetaData().write(out);
+    byte[] bytes = new byte[out.getLength()];
+    System.arraycopy(out.getData(), 0, bytes, 0, bytes.length);
+    return bytes;
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    CrawlDatum datum = createDatum();
+    CrawlDatum read = copy(datum);
+    Assert.assertEquals(datum, read);
+    Assert.assertEquals(datum.hashCode(), read.hashCode());
+    Assert.assertEquals(new Text("text/html"),
+        read.getMetaData().get(new Text("Content-Type")));
+    Assert.assertEquals(new DummyWritable(3),
+        read.getMetaData().get(new IntWritable(42)));
+
+    // without metadata
+    datum = new CrawlDatum(CrawlDatum.STATUS_DB_UNFETCHED, 100);
+    read = copy(datum);
+    Assert.assertEquals(datum, read);
+    Assert.assertEquals(0, read.getMetaData().size());
+  }
+
+  @Test
+  public void testLazyMetadata() throws Exception {
+    CrawlDatum read = copy(createDatum());
+    // passed through without decoding
+    CrawlDatum again = copy(read);
+    Assert.assertEquals(read, again);
+
+    // modifications after decoding are written
+    again.getMetaData().put(new Text("added"), new Text("value"));
+    CrawlDatum modified = copy(again);
+    Assert.assertEquals(new Text("value"),
+        modified.getMetaData().get(new Text("added")));
+    Assert.assertNotEquals(read, modified);
+  }
+
+  @Test
+  public void testCopies() throws Exception {
+    CrawlDatum datum = createDatum();
+    CrawlDatum copy = new CrawlDatum();
+    copy.set(datum);
+    Assert.assertEquals(datum, copy);
+    copy.getMetaData().put(new Text("custom"), new FloatWritable(2.5f));
+    Assert.assertEquals(new FloatWritable(1.5f),
+        datum.getMetaData().get(new Text("custom")));
+
+    CrawlDatum other = new CrawlDatum();
+    other.setMetaData(datum.getMetaData());
+    datum.getMetaData().remove(new Text("custom"));
+    Assert.assertEquals(new FloatWritable(1.5f),
+        other.getMetaData().get(new Text("custom")));
+  }
+
+  @Test
+  public void testReadVersion7() throws Exception {
+    CrawlDatum datum = createDatum();
+    byte[] legacy = writeVersion7(datum);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(legacy, legacy.length);
+    CrawlDatum read = CrawlDatum.read(in);
+    Assert.assertEquals(datum, read);
+
+    // rewritten in the current format, which is smaller
+    DataOutputBuffer out = new DataOutputBuffer();
+    read.write(out);
+    Assert.assertTrue(out.getLength() < legacy.length);
+    Assert.assertEquals(datum, copy(read));
+  }
+
+  @Test
+  public void testComparator() throws Exception {
+    CrawlDatum.Comparator comparator = new CrawlDatum.Comparator();
+    CrawlDatum[] datums = new CrawlDatum[4];
+    datums[0] = createDatum();
+    datums[1] = createDatum();
+    datums[1].setSignature(new byte[] { 1, 2, 3, 5 });
+    datums[2] = createDatum();
+    datums[2].setScore(0.7f);
+    datums[3] = createDatum();
+    datums[3].setSignature(new byte[] { 1, 2, 3 });
+    for (CrawlDatum datum1 : datums) {
+      for (CrawlDatum datum2 : datums) {
+        DataOutputBuffer out = new DataOutputBuffer();
+        datum1.write(out);
+        int length1 = out.getLength();
+        datum2.write(out);
+        int raw = comparator.compare(out.getData(), 0, length1, out.getData(),
+            length1, out.getLength() - length1);
+        Assert.assertEquals(Integer.signum(datum1.compareTo(datum2)),
+            Integer.signum(raw));
+        Assert.assertEquals(datum1 == datum2, raw == 0);
+      }
+    }
+  }
+}
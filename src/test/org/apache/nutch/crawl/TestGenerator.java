@@ -24,10 +24,15 @@ import java.util.Comparator;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.SequenceFile.Reader.Option;
 import org.apache.nutch.crawl.CrawlDBTestUtil.URLCrawlDatum;
+import org.apache.nutch.hostdb.HostDatum;
+import org.apache.nutch.metadata.Nutch;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -244,6 +249,77 @@ public class TestGenerator {
     Assert.assertEquals(3, fetchList.size());
   }
 
+  /**
+   * Test that generator obeys the property "generate.max.fetch.time", with
+   * and without fetch time estimates from the HostDb.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testGenerateFetchTimeLimit() throws Exception {
+    ArrayList<URLCrawlDatum> list = new ArrayList<URLCrawlDatum>();
+
+    for (int i = 0; i < 5; i++) {
+      list.add(createURLCrawlDatum("http://www.example.com/index" + i
+          + ".html", 1, 1));
+    }
+    list.add(createURLCrawlDatum("http://www.example.org/index.html", 1, 1));
+
+    createCrawlDB(list);
+
+    // 30 seconds per URL: 2 URLs per host can be fetched in one minute
+    Configuration myConfiguration = new Configuration(conf);
+    myConfiguration.setFloat("fetcher.server.delay", 30.0f);
+    myConfiguration.setLong(Generator.GENERATOR_MAX_FETCH_TIME, 1);
+    Path generatedSegment = generateFetchlist(Integer.MAX_VALUE,
+        myConfiguration, false);
+
+    Path fetchlistPath = new Path(new Path(generatedSegment,
+        CrawlDatum.GENERATE_DIR_NAME), "part-00000");
+
+    ArrayList<URLCrawlDatum> fetchList = readContents(fetchlistPath);
+    Assert.assertEquals(3, fetchList.size());
+
+    // www.example.com is known to allow one request per second
+    Path hostDb = new Path(testdir, "hostdb");
+    HostDatum hostDatum = new HostDatum();
+    hostDatum.getMetaData().put(Nutch.WRITABLE_FETCH_DELAY_KEY,
+        new IntWritable(1000));
+    hostDatum.getMetaData().put(Nutch.WRITABLE_FETCH_THREADS_KEY,
+        new IntWritable(1));
+    SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+        SequenceFile.Writer.file(new Path(hostDb, "current/part-00000")),
+        SequenceFile.Writer.keyClass(Text.class),
+        SequenceFile.Writer.valueClass(HostDatum.class));
+    writer.append(new Text("www.example.com"), hostDatum);
+    writer.close();
+
+    myConfiguration.set(Generator.GENERATOR_HOSTDB, hostDb.toString());
+    generatedSegment = generateFetchlist(Integer.MAX_VALUE, myConfiguration,
+        false);
+
+    fetchlistPath = new Path(new Path(generatedSegment,
+        CrawlDatum.GENERATE_DIR_NAME), "part-00000");
+
+    fetchList = readContents(fetchlistPath);
+    Assert.assertEquals(6, fetchList.size());
+
+    // the rate of www.example.com is passed on to the fetcher
+    for (URLCrawlDatum entry : fetchList) {
+      Writable delay = entry.datum.getMetaData().get(
+          Nutch.WRITABLE_FETCH_DELAY_KEY);
+      Writable threads = entry.datum.getMetaData().get(
+          Nutch.WRITABLE_FETCH_THREADS_KEY);
+      if (entry.url.toString().startsWith("http://www.example.com/")) {
+        Assert.assertEquals(new IntWritable(1000), delay);
+        Assert.assertEquals(new IntWritable(1), threads);
+      } else {
+        Assert.assertNull(delay);
+        Assert.assertNull(threads);
+      }
+    }
+  }
+
   /**
    * Test generator obeys the filter setting.
    * 
@@ -367,4 +443,29 @@ public class TestGenerator {
     return new CrawlDBTestUtil.URLCrawlDatum(new Text(url), new CrawlDatum(
         CrawlDatum.STATUS_DB_UNFETCHED, fetchInterval, score));
   }
+  /**
+   * Test that the raw comparison of the HashComparator is consistent with the
+   * comparison of the deserialized URLs.
+   */
+  @Test
+  public void testHashComparator() throws Exception {
+    Generator.HashComparator comparator = new Generator.HashComparator();
+    String[] urls = { "http://www.example.com/", "http://www.example.com/a",
+        "http://example.org/", "http://example.org/index.html?q=1",
+        "https://www.example.net/" };
+    for (String url1 : urls) {
+      for (String url2 : urls) {
+        DataOutputBuffer out1 = new DataOutputBuffer();
+        new Text(url1).write(out1);
+        DataOutputBuffer out2 = new DataOutputBuffer();
+        new Text(url2).write(out2);
+        int raw = comparator.compare(out1.getData(), 0, out1.getLength(),
+            out2.getData(), 0, out2.getLength());
+        int deserialized = comparator.compare(new Text(url1), new Text(url2));
+        Assert.assertEquals(Integer.signum(deserialized), Integer.signum(raw));
+        Assert.assertEquals(url1.equals(url2), raw == 0);
+      }
+    }
+  }
+
 }
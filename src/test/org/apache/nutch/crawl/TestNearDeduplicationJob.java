@@ -0,0 +1,119 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.crawl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestNearDeduplicationJob {
+
+  private static CrawlDatum createDatum(long simHash, float score) {
+    CrawlDatum datum = new CrawlDatum(CrawlDatum.STATUS_DB_FETCHED, 2592000,
+        score);
+    datum.setFetchTime(1500000000000L);
+    datum.setSignature(SimHashSignature.toBytes(simHash));
+    return datum;
+  }
+
+  /** Run map and reduce, return the URLs marked as duplicate */
+  private static Set<String> dedup(Map<String, CrawlDatum> crawlDb)
+      throws Exception {
+    JobConf job = new JobConf(NutchConfiguration.create());
+    NearDeduplicationJob.NearDBFilter mapper = new NearDeduplicationJob.NearDBFilter();
+    mapper.configure(job);
+    final Map<BytesWritable, List<CrawlDatum>> buckets = new HashMap<>();
+    for (Map.Entry<String, CrawlDatum> entry : crawlDb.entrySet()) {
+      mapper.map(new Text(entry.getKey()), entry.getValue(),
+          (key, value) -> {
+            List<CrawlDatum> bucket = buckets.get(key);
+            if (bucket == null) {
+              bucket = new ArrayList<>();
+              buckets.put(new BytesWritable(key.copyBytes()), bucket);
+            }
+            CrawlDatum copy = new CrawlDatum();
+            copy.set(value);
+            bucket.add(copy);
+          }, Reporter.NULL);
+    }
+
+    NearDeduplicationJob.NearDedupReducer reducer = new NearDeduplicationJob.NearDedupReducer();
+    reducer.configure(job);
+    final Set<String> duplicates = new HashSet<>();
+    for (Map.Entry<BytesWritable, List<CrawlDatum>> bucket : buckets
+        .entrySet()) {
+      reducer.reduce(bucket.getKey(), bucket.getValue().iterator(),
+          (key, value) -> {
+            Assert.assertEquals(CrawlDatum.STATUS_DB_DUPLICATE,
+                value.getStatus());
+            duplicates.add(key.toString());
+          }, Reporter.NULL);
+    }
+    return duplicates;
+  }
+
+  @Test
+  public void testNearDuplicates() throws Exception {
+    Map<String, CrawlDatum> crawlDb = new HashMap<>();
+    long simHash = 0x0123456789abcdefL;
+    crawlDb.put("http://example.com/", createDatum(simHash, 2.0f));
+    // 3 bits differ, in different bands
+    crawlDb.put("http://example.com/?sid=1", createDatum(
+        simHash ^ 1L ^ (1L << 20) ^ (1L << 40), 1.0f));
+    // same score, the shorter URL is kept
+    crawlDb.put("http://example.com/index.html", createDatum(simHash
+        ^ (1L << 63), 2.0f));
+    // 4 bits differ, not a near-duplicate
+    crawlDb.put("http://example.com/other", createDatum(
+        simHash ^ 0xf000000000000000L, 2.0f));
+    // not a SimHash signature
+    CrawlDatum md5 = createDatum(0, 3.0f);
+    md5.setSignature(new byte[16]);
+    crawlDb.put("http://example.com/md5", md5);
+
+    Set<String> duplicates = dedup(crawlDb);
+    Assert.assertEquals(2, duplicates.size());
+    Assert.assertTrue(duplicates.contains("http://example.com/?sid=1"));
+    Assert.assertTrue(duplicates.contains("http://example.com/index.html"));
+  }
+
+  @Test
+  public void testNotTransitive() throws Exception {
+    Map<String, CrawlDatum> crawlDb = new HashMap<>();
+    long simHash = 0x0123456789abcdefL;
+    crawlDb.put("http://example.com/a", createDatum(simHash, 3.0f));
+    // 1 bit from a
+    crawlDb.put("http://example.com/b", createDatum(simHash ^ 1L, 2.0f));
+    // 3 bits from b but 4 bits from a: b is a duplicate, c is kept
+    crawlDb.put("http://example.com/c", createDatum(simHash ^ 0xfL, 1.0f));
+
+    Set<String> duplicates = dedup(crawlDb);
+    Assert.assertEquals(1, duplicates.size());
+    Assert.assertTrue(duplicates.contains("http://example.com/b"));
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.crawl;
+
+import java.io.File;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.lib.HashPartitioner;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestSeenUrlIndex {
+
+  private static final int NUM_PARTS = 3;
+  private static final int NUM_URLS = 100000;
+  private static final double FPP = 0.01;
+
+  private Configuration conf;
+  private FileSystem fs;
+  private Path crawlDb;
+
+  @Before
+  public void setUp() throws Exception {
+    conf = NutchConfiguration.create();
+    fs = FileSystem.getLocal(conf);
+    crawlDb = new Path(new File(System.getProperty("test.build.data", "/tmp"),
+        "seen-" + System.currentTimeMillis()).getAbsolutePath());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    fs.delete(crawlDb, true);
+  }
+
+  /** Build the filters as done by the reducers of the update job. */
+  private void build(Path tempCrawlDb, long seed) throws Exception {
+    HashPartitioner<Text, CrawlDatum> partitioner = new HashPartitioner<>();
+    SeenUrlIndex.Builder[] builders = new SeenUrlIndex.Builder[NUM_PARTS];
+    for (int i = 0; i < NUM_PARTS; i++) {
+      builders[i] = new SeenUrlIndex.Builder(seed);
+    }
+    Text url = new Text();
+    for (int i = 0; i < NUM_URLS; i++) {
+      url.set("http://example.com/page" + i);
+      builders[partitioner.getPartition(url, null, NUM_PARTS)].add(url);
+    }
+    for (int i = 0; i < NUM_PARTS; i++) {
+      builders[i].write(fs, new Path(tempCrawlDb, String.format("%s%05d",
+          SeenUrlIndex.TEMP_PREFIX, i)), FPP);
+    }
+  }
+
+  @Test
+  public void testIndex() throws Exception {
+    Path tempCrawlDb = new Path(crawlDb, "12345");
+    build(tempCrawlDb, 42);
+    Assert.assertTrue(SeenUrlIndex.prepare(conf, tempCrawlDb, crawlDb,
+        NUM_PARTS));
+    SeenUrlIndex.install(conf, crawlDb);
+    Path seen = new Path(crawlDb, SeenUrlIndex.SEEN_NAME);
+    Assert.assertTrue(fs.exists(new Path(seen, "part-00002")));
+
+    SeenUrlIndex index = SeenUrlIndex.open(conf, seen);
+    Assert.assertEquals(NUM_URLS, index.getCount());
+    Assert.assertEquals(FPP, index.getExpectedFpp(), FPP / 10);
+
+    // no false negatives
+    Text url = new Text();
+    for (int i = 0; i < NUM_URLS; i++) {
+      url.set("http://example.com/page" + i);
+      Assert.assertTrue(index.mightContain(url));
+    }
+    // false positives close to the configured rate
+    int positives = 0;
+    for (int i = 0; i < NUM_URLS; i++) {
+      url.set("http://example.org/page" + i);
+      if (index.mightContain(url)) {
+        positives++;
+      }
+    }
+    Assert.assertTrue("false positive rate " + positives / (double) NUM_URLS,
+        positives < 2 * FPP * NUM_URLS);
+  }
+
+  @Test
+  public void testIncomplete() throws Exception {
+    Path tempCrawlDb = new Path(crawlDb, "12345");
+    build(tempCrawlDb, 42);
+    // a partition is missing
+    Assert.assertFalse(SeenUrlIndex.prepare(conf, tempCrawlDb, crawlDb,
+        NUM_PARTS + 1));
+    Assert.assertFalse(fs.exists(new Path(crawlDb, SeenUrlIndex.SEEN_NAME
+        + ".tmp")));
+    Assert.assertNull(SeenUrlIndex.get(conf, new Path(crawlDb,
+        SeenUrlIndex.SEEN_NAME)));
+  }
+}
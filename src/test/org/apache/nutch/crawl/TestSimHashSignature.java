@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.crawl;
+
+import java.util.Random;
+
+import org.apache.nutch.metadata.Metadata;
+import org.apache.nutch.parse.ParseImpl;
+import org.apache.nutch.protocol.Content;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSimHashSignature {
+
+  private static byte[] calculate(SimHashSignature signature, String text) {
+    return signature.calculate(null, new ParseImpl(text, null));
+  }
+
+  @Test
+  public void testNearDuplicates() {
+    SimHashSignature signature = new SimHashSignature();
+    signature.setConf(NutchConfiguration.create());
+    Random random = new Random(42);
+    String text = TestTextProfileSignature.createText(random, 2000);
+    byte[] sig = calculate(signature, text);
+    Assert.assertTrue(SimHashSignature.isSimHash(sig));
+
+    // punctuation and white space are ignored
+    Assert.assertArrayEquals(sig, calculate(signature,
+        text.replace(" ", " ;\n")));
+
+    // a time stamp and a session ID added
+    byte[] near = calculate(signature, "Last modified 2017-06-19 11:42:10 "
+        + text + " jsessionid=a8f5f167f44f4964e6c998dee827110c");
+    Assert.assertTrue(SimHashSignature.distance(sig, near) <= 3);
+
+    // a different text
+    byte[] other = calculate(signature,
+        TestTextProfileSignature.createText(new Random(7), 2000));
+    Assert.assertTrue(SimHashSignature.distance(sig, other) > 3);
+  }
+
+  @Test
+  public void testFallback() {
+    SimHashSignature signature = new SimHashSignature();
+    signature.setConf(NutchConfiguration.create());
+    Content content = new Content("http://example.com/",
+        "http://example.com/", new byte[] { 1, 2, 3 }, "text/html",
+        new Metadata(), NutchConfiguration.create());
+    byte[] sig = signature.calculate(content, new ParseImpl(" a, b. ", null));
+    Assert.assertArrayEquals(new MD5Signature().calculate(content, null), sig);
+    Assert.assertFalse(SimHashSignature.isSimHash(sig));
+  }
+}
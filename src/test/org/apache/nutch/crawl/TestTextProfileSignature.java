@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.crawl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.metadata.Metadata;
+import org.apache.nutch.parse.ParseImpl;
+import org.apache.nutch.protocol.Content;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that {@link TextProfileSignature} calculates the same signatures as
+ * the former implementation, which built the profile as a string.
+ */
+public class TestTextProfileSignature {
+
+  private static final String[] WORDS = { "the", "of", "and", "nutch",
+      "crawler", "fetch", "parse", "index", "segment", "Apache", "hadoop",
+      "Übersicht", "straße", "café", "東京", "данные", "2017", "x86", "ok" };
+
+  /** Text with word frequencies roughly following Zipf's law */
+  static String createText(Random random, int words) {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < words; i++) {
+      if (random.nextInt(4) == 0) {
+        // rare words
+        text.append(Integer.toString(random.nextInt(words + 1), 36));
+        text.append("w");
+      } else {
+        text.append(WORDS[(int) (WORDS.length * Math.pow(random.nextDouble(),
+            3))]);
+      }
+      text.append(random.nextInt(10) == 0 ? ", " : " ");
+    }
+    return text.toString();
+  }
+
+  private static void assertLegacy(TextProfileSignature signature,
+      String text, int minTokenLen, float quantRate) {
+    Assert.assertArrayEquals(
+        TextProfileSignature.calculateLegacy(text, minTokenLen, quantRate),
+        signature.calculate(null, new ParseImpl(text, null)));
+  }
+
+  @Test
+  public void testLegacySignature() {
+    Random random = new Random(42);
+    Configuration conf = NutchConfiguration.create();
+    int[] minTokenLens = { 2, 0, 4 };
+    float[] quantRates = { 0.01f, 0.1f, 0.001f };
+    for (int c = 0; c < minTokenLens.length; c++) {
+      conf.setInt("db.signature.text_profile.min_token_len", minTokenLens[c]);
+      conf.setFloat("db.signature.text_profile.quant_rate", quantRates[c]);
+      TextProfileSignature signature = new TextProfileSignature();
+      signature.setConf(conf);
+      for (int words : new int[] { 1, 2, 10, 100, 1000, 20000 }) {
+        for (int i = 0; i < 5; i++) {
+          assertLegacy(signature, createText(random, words), minTokenLens[c],
+              quantRates[c]);
+        }
+      }
+      assertLegacy(signature, " ,;. ", minTokenLens[c], quantRates[c]);
+    }
+  }
+
+  @Test
+  public void testHashCollisions() {
+    TextProfileSignature signature = new TextProfileSignature();
+    signature.setConf(NutchConfiguration.create());
+
+    // "aÿ" and "bà" have the same hash code, so have all their combinations
+    List<String> colliding = new ArrayList<>();
+    colliding.add("");
+    for (int i = 0; i < 4; i++) {
+      List<String> longer = new ArrayList<>();
+      for (String s : colliding) {
+        longer.add(s + "aÿ");
+        longer.add(s + "bà");
+      }
+      colliding = longer;
+    }
+
+    // 8 tokens in one bin of the HashMap
+    StringBuilder text = new StringBuilder();
+    for (String s : colliding.subList(0, 8)) {
+      text.append(s).append(' ').append(s).append(' ');
+    }
+    assertLegacy(signature, text.toString(), 2, 0.01f);
+
+    // a 9th token in the bin enlarges the table instead of converting the bin
+    Random random = new Random(42);
+    String token;
+    int hash = colliding.get(0).hashCode();
+    do {
+      token = "t" + Integer.toString(random.nextInt(Integer.MAX_VALUE), 36);
+    } while (((token.hashCode() ^ (token.hashCode() >>> 16))
+        & 63) != (((hash ^ (hash >>> 16)) & 63) ^ 32));
+    text.append(token).append(' ').append(token);
+    assertLegacy(signature, text.toString(), 2, 0.01f);
+
+    // tree bins, the signature is calculated as before
+    text.setLength(0);
+    for (int i = 0; i < 100; i++) {
+      text.append(colliding.get(i % colliding.size())).append(' ');
+      text.append(createText(random, 5));
+    }
+    assertLegacy(signature, text.toString(), 2, 0.01f);
+  }
+
+  @Test
+  public void testFallback() {
+    TextProfileSignature signature = new TextProfileSignature();
+    signature.setConf(NutchConfiguration.create());
+    MD5Signature md5 = new MD5Signature();
+    Content content = new Content("http://example.com/",
+        "http://example.com/", new byte[] { 1, 2, 3 }, "text/html",
+        new Metadata(), NutchConfiguration.create());
+    Assert.assertArrayEquals(md5.calculate(content, null),
+        signature.calculate(content, new ParseImpl("", null)));
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.fetcher;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.util.NutchConfiguration;
+
+/**
+ * Contention benchmark for the fetch queue implementations. Many threads
+ * repeatedly take an item, "fetch" it (no-op) and finish it, while a feeder
+ * keeps the queues filled, mimicking a Fetcher with a large number of threads
+ * and hosts. Crawl delay is zero so that the queue structure itself is the
+ * bottleneck.
+ *
+ * <p>
+ * Usage:
+ * <code>FetchItemQueuesBenchmark [-threads n] [-hosts n] [-items n]</code>
+ */
+public class FetchItemQueuesBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int threads = 500;
+    int hosts = 10000;
+    int items = 1000000;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-threads")) {
+        threads = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-hosts")) {
+        hosts = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-items")) {
+        items = Integer.parseInt(args[++i]);
+      }
+    }
+
+    for (Class<?> clazz : new Class<?>[] { FetchItemQueues.class,
+        ConcurrentFetchItemQueues.class }) {
+      // warm-up run, then the measured run
+      run(clazz, threads, hosts, items / 10);
+      long elapsed = run(clazz, threads, hosts, items);
+      System.out.println(String.format(
+          "%-20s threads=%d hosts=%d items=%d: %d ms, %.0f items/s",
+          clazz.getSimpleName(), threads, hosts, items, elapsed,
+          items * 1000.0 / Math.max(1, elapsed)));
+    }
+  }
+
+  private static long run(Class<?> clazz, int threads, int hosts,
+      final int items) throws Exception {
+    Configuration conf = NutchConfiguration.create();
+    conf.set("fetcher.queues.class", clazz.getName());
+    conf.setFloat("fetcher.server.delay", 0.0f);
+    conf.setFloat("fetcher.server.min.delay", 0.0f);
+    conf.setInt("fetcher.threads.per.queue", 1);
+    final FetchItemQueues queues = FetchItemQueues.create(conf);
+
+    // pre-create the items so that URL parsing is not measured
+    final FetchItem[] fetchItems = new FetchItem[items];
+    for (int i = 0; i < items; i++) {
+      fetchItems[i] = FetchItem.create(new Text("http://host" + (i % hosts)
+          + ".example.com/" + i), new CrawlDatum(),
+          FetchItemQueues.QUEUE_MODE_HOST);
+    }
+
+    final int maxQueued = threads * 50;
+    final AtomicLong done = new AtomicLong();
+    final CountDownLatch startSignal = new CountDownLatch(1);
+
+    Thread feeder = new Thread() {
+      public void run() {
+        int next = 0;
+        while (next < items) {
+          if (queues.getTotalSize() >= maxQueued) {
+            Thread.yield();
+            continue;
+          }
+          queues.addFetchItem(fetchItems[next++]);
+        }
+      }
+    };
+
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      workers[t] = new Thread() {
+        public void run() {
+          try {
+            startSignal.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          while (done.get() < items) {
+            FetchItem it = queues.getFetchItem();
+            if (it == null) {
+              Thread.yield();
+              continue;
+            }
+            queues.finishFetchItem(it);
+            done.incrementAndGet();
+          }
+        }
+      };
+      workers[t].setDaemon(true);
+      workers[t].start();
+    }
+
+    long start = System.currentTimeMillis();
+    feeder.start();
+    startSignal.countDown();
+    feeder.join();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    return System.currentTimeMillis() - start;
+  }
+}
@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.fetcher;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.protocol.ProtocolOutput;
+import org.apache.nutch.protocol.ProtocolStatus;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that both fetch queue implementations honor crawl delay,
+ * threads per queue and keep track of the number of queued items.
+ */
+public class TestFetchItemQueues {
+
+  private static FetchItemQueues createQueues(Class<?> clazz,
+      float delay, int threadsPerQueue) {
+    Configuration conf = NutchConfiguration.create();
+    conf.set("fetcher.queues.class", clazz.getName());
+    conf.setFloat("fetcher.server.delay", delay);
+    conf.setFloat("fetcher.server.min.delay", 0.0f);
+    conf.setInt("fetcher.threads.per.queue", threadsPerQueue);
+    FetchItemQueues queues = FetchItemQueues.create(conf);
+    Assert.assertEquals(clazz, queues.getClass());
+    return queues;
+  }
+
+  private static void addItems(FetchItemQueues queues, int hosts, int perHost) {
+    for (int i = 0; i < perHost; i++) {
+      for (int h = 0; h < hosts; h++) {
+        queues.addFetchItem(new Text("http://host" + h + ".example.com/page"
+            + i + ".html"), new CrawlDatum());
+      }
+    }
+  }
+
+  @Test
+  public void testCrawlDelay() throws Exception {
+    testCrawlDelay(FetchItemQueues.class);
+    testCrawlDelay(ConcurrentFetchItemQueues.class);
+  }
+
+  private void testCrawlDelay(Class<?> clazz) throws Exception {
+    FetchItemQueues queues = createQueues(clazz, 0.5f, 1);
+    addItems(queues, 1, 2);
+    Assert.assertEquals(2, queues.getTotalSize());
+
+    FetchItem first = queues.getFetchItem();
+    Assert.assertNotNull(first);
+    // one thread per queue: blocked while the first item is in progress
+    Assert.assertNull(queues.getFetchItem());
+    queues.finishFetchItem(first);
+    // blocked by the crawl delay
+    Assert.assertNull(queues.getFetchItem());
+    Thread.sleep(700);
+    FetchItem second = queues.getFetchItem();
+    Assert.assertNotNull(second);
+    Assert.assertEquals(0, queues.getTotalSize());
+    queues.finishFetchItem(second, true);
+    Assert.assertNull(queues.getFetchItem());
+  }
+
+  @Test
+  public void testThreadsPerQueue() throws Exception {
+    testThreadsPerQueue(FetchItemQueues.class);
+    testThreadsPerQueue(ConcurrentFetchItemQueues.class);
+  }
+
+  private void testThreadsPerQueue(Class<?> clazz) throws Exception {
+    FetchItemQueues queues = createQueues(clazz, 0.0f, 2);
+    addItems(queues, 1, 3);
+
+    FetchItem first = queues.getFetchItem();
+    FetchItem second = queues.getFetchItem();
+    Assert.assertNotNull(first);
+    Assert.assertNotNull(second);
+    Assert.assertNull(queues.getFetchItem());
+    queues.finishFetchItem(first);
+    FetchItem third = queues.getFetchItem();
+    Assert.assertNotNull(third);
+    queues.finishFetchItem(second);
+    queues.finishFetchItem(third);
+    Assert.assertEquals(0, queues.getTotalSize());
+  }
+
+  @Test
+  public void testEmptyQueues() throws Exception {
+    testEmptyQueues(FetchItemQueues.class);
+    testEmptyQueues(ConcurrentFetchItemQueues.class);
+  }
+
+  private void testEmptyQueues(Class<?> clazz) throws Exception {
+    FetchItemQueues queues = createQueues(clazz, 10.0f, 1);
+    addItems(queues, 5, 4);
+    Assert.assertEquals(5, queues.getQueueCount());
+    Assert.assertEquals(20, queues.getTotalSize());
+    Assert.assertEquals(20, queues.emptyQueues());
+    Assert.assertEquals(0, queues.getTotalSize());
+    Assert.assertNull(queues.getFetchItem());
+  }
+
+  @Test
+  public void testRemainingTime() throws Exception {
+    testRemainingTime(FetchItemQueues.class);
+    testRemainingTime(ConcurrentFetchItemQueues.class);
+  }
+
+  private void testRemainingTime(Class<?> clazz) throws Exception {
+    FetchItemQueues queues = createQueues(clazz, 1.0f, 1);
+    addItems(queues, 1, 3);
+    // no response time known yet: the crawl delay only
+    Assert.assertEquals(3000, queues.getRemainingTime(10));
+
+    FetchItem it = queues.getFetchItem();
+    queues.reportFetch(it, new ProtocolOutput(null,
+        ProtocolStatus.STATUS_SUCCESS), 250);
+    queues.finishFetchItem(it);
+    // the queue is fetched sequentially, whatever the number of threads
+    Assert.assertEquals(2500, queues.getRemainingTime(10));
+
+    queues.emptyQueues();
+    Assert.assertEquals(0, queues.getRemainingTime(10));
+  }
+
+  @Test
+  public void testWakeUp() throws Exception {
+    testWakeUp(FetchItemQueues.class);
+    testWakeUp(ConcurrentFetchItemQueues.class);
+  }
+
+  private void testWakeUp(Class<?> clazz) throws Exception {
+    final FetchItemQueues queues = createQueues(clazz, 0.0f, 1);
+    Thread adder = new Thread() {
+      public void run() {
+        try {
+          Thread.sleep(200);
+        } catch (InterruptedException e) {
+        }
+        addItems(queues, 1, 1);
+      }
+    };
+    long start = System.currentTimeMillis();
+    adder.start();
+    // woken up by the added item long before the maximum wait time
+    FetchItem it = queues.getFetchItem(10000);
+    Assert.assertNotNull(it);
+    Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+    adder.join();
+
+    // nothing left: wait returns null after the maximum wait time
+    Assert.assertNull(queues.getFetchItem(100));
+  }
+
+  @Test
+  public void testConcurrentDrain() throws Exception {
+    testConcurrentDrain(FetchItemQueues.class);
+    testConcurrentDrain(ConcurrentFetchItemQueues.class);
+  }
+
+  private void testConcurrentDrain(Class<?> clazz) throws Exception {
+    final int hosts = 50, perHost = 40;
+    final FetchItemQueues queues = createQueues(clazz, 0.0f, 1);
+    addItems(queues, hosts, perHost);
+
+    final Set<String> fetched = ConcurrentHashMap.newKeySet();
+    final Set<String> inProgress = ConcurrentHashMap.newKeySet();
+    final AtomicInteger violations = new AtomicInteger();
+    Thread[] threads = new Thread[16];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        public void run() {
+          while (queues.getTotalSize() > 0) {
+            FetchItem it = queues.getFetchItem();
+            if (it == null) {
+              Thread.yield();
+              continue;
+            }
+            if (!inProgress.add(it.getQueueID())) {
+              // more than one thread working on the same host
+              violations.incrementAndGet();
+            }
+            fetched.add(it.getUrl().toString());
+            inProgress.remove(it.getQueueID());
+            queues.finishFetchItem(it);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread t : threads) {
+      t.join(60000);
+    }
+
+    Assert.assertEquals(0, violations.get());
+    Assert.assertEquals(hosts * perHost, fetched.size());
+    Assert.assertEquals(0, queues.getTotalSize());
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.fetcher;
+
+import java.net.SocketTimeoutException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.metadata.HttpHeaders;
+import org.apache.nutch.metadata.Metadata;
+import org.apache.nutch.metadata.Nutch;
+import org.apache.nutch.protocol.Content;
+import org.apache.nutch.protocol.ProtocolOutput;
+import org.apache.nutch.protocol.ProtocolStatus;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that the crawl delay and threads of fetch queues are adapted to the
+ * responses of a server, for both fetch queue implementations.
+ */
+public class TestFetchRateController {
+
+  private static final String URL = "http://example.com/";
+  private static final String QUEUE_ID = "http://example.com";
+
+  private static Configuration createConf(Class<?> clazz) {
+    Configuration conf = NutchConfiguration.create();
+    conf.set("fetcher.queues.class", clazz.getName());
+    conf.setBoolean("fetcher.adaptive", true);
+    conf.setFloat("fetcher.server.delay", 1.0f);
+    conf.setInt("fetcher.threads.per.queue", 1);
+    conf.setFloat("fetcher.adaptive.min.delay", 0.5f);
+    conf.setFloat("fetcher.adaptive.max.delay", 10.0f);
+    conf.setInt("fetcher.adaptive.max.threads", 2);
+    conf.setFloat("fetcher.adaptive.delay.step", 0.1f);
+    return conf;
+  }
+
+  /** Fetch an item without waiting for the crawl delay. */
+  private static FetchItem fetch(FetchItemQueues queues, int code,
+      String retryAfter, long responseTime) {
+    FetchItem it = FetchItem.create(new Text(URL), new CrawlDatum(),
+        FetchItemQueues.QUEUE_MODE_HOST);
+    queues.addInProgressFetchItem(it);
+
+    ProtocolOutput output;
+    if (code < 0) {
+      // connection failed
+      output = new ProtocolOutput(null, new ProtocolStatus(
+          new SocketTimeoutException()));
+    } else {
+      Metadata headers = new Metadata();
+      if (retryAfter != null) {
+        headers.add(HttpHeaders.RETRY_AFTER, retryAfter);
+      }
+      it.datum.getMetaData().put(Nutch.PROTOCOL_STATUS_CODE_KEY,
+          new Text(Integer.toString(code)));
+      Content content = new Content(URL, URL, new byte[0], "text/html",
+          headers, NutchConfiguration.create());
+      output = new ProtocolOutput(content, code == 200
+          ? ProtocolStatus.STATUS_SUCCESS
+          : new ProtocolStatus(ProtocolStatus.EXCEPTION, "Http code=" + code));
+    }
+    queues.reportFetch(it, output, responseTime);
+    queues.finishFetchItem(it);
+    return it;
+  }
+
+  private static void assertRate(FetchItemQueues queues, FetchItem it,
+      long delay, int threads) {
+    FetchItemQueue fiq = queues.getFetchItemQueue(QUEUE_ID);
+    Assert.assertEquals(delay, fiq.crawlDelay);
+    Assert.assertEquals(threads, fiq.maxThreads);
+    Assert.assertEquals(new IntWritable((int) delay),
+        it.datum.getMetaData().get(Nutch.WRITABLE_FETCH_DELAY_KEY));
+    Assert.assertEquals(new IntWritable(threads),
+        it.datum.getMetaData().get(Nutch.WRITABLE_FETCH_THREADS_KEY));
+  }
+
+  @Test
+  public void testBackoff() throws Exception {
+    testBackoff(FetchItemQueues.class);
+    testBackoff(ConcurrentFetchItemQueues.class);
+  }
+
+  private void testBackoff(Class<?> clazz) throws Exception {
+    FetchItemQueues queues = FetchItemQueues.create(createConf(clazz));
+
+    FetchItem it = fetch(queues, 200, null, 100);
+    assertRate(queues, it, 900, 1);
+
+    // Retry-After takes precedence over the backoff factor
+    it = fetch(queues, 429, "5", 100);
+    assertRate(queues, it, 5000, 1);
+    it = fetch(queues, 503, null, 100);
+    assertRate(queues, it, 10000, 1);
+
+    // additive decrease down to the minimum delay
+    for (int i = 0; i < 95; i++) {
+      it = fetch(queues, 200, null, 100);
+    }
+    assertRate(queues, it, 500, 1);
+
+    // more threads for a healthy server
+    for (int i = 0; i < FetchRateController.THREAD_INCREASE_RESPONSES; i++) {
+      it = fetch(queues, 200, null, 100);
+    }
+    assertRate(queues, it, 500, 2);
+    for (int i = 0; i < FetchRateController.THREAD_INCREASE_RESPONSES; i++) {
+      it = fetch(queues, 200, null, 100);
+    }
+    assertRate(queues, it, 500, 2);
+
+    // a failed connection halves the threads
+    it = fetch(queues, -1, null, 5000);
+    assertRate(queues, it, 1000, 1);
+  }
+
+  @Test
+  public void testSlowResponses() throws Exception {
+    FetchItemQueues queues = FetchItemQueues.create(createConf(
+        FetchItemQueues.class));
+    FetchItem it = fetch(queues, 200, null, 100);
+    assertRate(queues, it, 900, 1);
+    it = fetch(queues, 200, null, 1000);
+    assertRate(queues, it, 1000, 1);
+    it = fetch(queues, 200, null, 1000);
+    assertRate(queues, it, 1100, 1);
+  }
+
+  @Test
+  public void testRobotsCrawlDelay() throws Exception {
+    testRobotsCrawlDelay(FetchItemQueues.class);
+    testRobotsCrawlDelay(ConcurrentFetchItemQueues.class);
+  }
+
+  private void testRobotsCrawlDelay(Class<?> clazz) throws Exception {
+    FetchItemQueues queues = FetchItemQueues.create(createConf(clazz));
+    queues.setRobotsCrawlDelay(QUEUE_ID, 2000);
+    FetchItem it = null;
+    for (int i = 0; i < 100; i++) {
+      it = fetch(queues, 200, null, 100);
+    }
+    // never faster than requested by robots.txt
+    assertRate(queues, it, 2000, 1);
+  }
+
+  @Test
+  public void testFetchListRate() throws Exception {
+    testFetchListRate(FetchItemQueues.class);
+    testFetchListRate(ConcurrentFetchItemQueues.class);
+  }
+
+  private void testFetchListRate(Class<?> clazz) throws Exception {
+    FetchItemQueues queues = FetchItemQueues.create(createConf(clazz));
+    CrawlDatum datum = new CrawlDatum(CrawlDatum.STATUS_DB_UNFETCHED, 0);
+    // passed by the Generator from the HostDb
+    datum.getMetaData().put(Nutch.WRITABLE_FETCH_DELAY_KEY,
+        new IntWritable(3000));
+    datum.getMetaData().put(Nutch.WRITABLE_FETCH_THREADS_KEY,
+        new IntWritable(2));
+    queues.addFetchItem(new Text(URL), datum);
+    FetchItemQueue fiq = queues.getFetchItemQueue(QUEUE_ID);
+    Assert.assertEquals(3000, fiq.crawlDelay);
+    Assert.assertEquals(2, fiq.maxThreads);
+    // hosts without a rate in the fetch list start with the configured values
+    queues.addFetchItem(new Text("http://example.org/"),
+        new CrawlDatum(CrawlDatum.STATUS_DB_UNFETCHED, 0));
+    fiq = queues.getFetchItemQueue("http://example.org");
+    Assert.assertEquals(1000, fiq.crawlDelay);
+    Assert.assertEquals(1, fiq.maxThreads);
+  }
+}
@@ -184,6 +184,15 @@ public class TestFetcher {
         + page);
   }
 
+  @Test
+  public void testFetchPipeline() throws IOException, ClassNotFoundException,
+      InterruptedException {
+    conf.setBoolean("fetcher.pipeline", true);
+    conf.setInt("fetcher.pipeline.parse.threads", 2);
+    conf.setInt("fetcher.pipeline.output.queue.size", 2);
+    testFetch();
+  }
+
   @Test
   public void testAgentNameCheck() {
 
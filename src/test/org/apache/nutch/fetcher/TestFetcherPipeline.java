@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.fetcher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.crawl.NutchWritable;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Checks the handling of errors by the output stage of the pipeline. */
+public class TestFetcherPipeline {
+
+  private static final NutchWritable VALUE = new NutchWritable(
+      new CrawlDatum());
+
+  @Test
+  public void testRecordFailure() throws Exception {
+    final List<String> written = Collections
+        .synchronizedList(new ArrayList<String>());
+    OutputCollector<Text, NutchWritable> output = (key, value) -> {
+      if (key.toString().equals("bad")) {
+        throw new IOException("cannot write " + key);
+      }
+      written.add(key.toString());
+    };
+    FetcherPipeline pipeline = new FetcherPipeline(createConf(), false,
+        output, Reporter.NULL);
+    pipeline.collect(new Text("a"), VALUE);
+    pipeline.collect(new Text("bad"), VALUE);
+    pipeline.collect(new Text("b"), VALUE);
+    pipeline.close(10000);
+    // the records of the batch after the failed one are written
+    Assert.assertEquals(2, written.size());
+    Assert.assertTrue(written.contains("b"));
+  }
+
+  @Test
+  public void testStageFailure() throws Exception {
+    OutputCollector<Text, NutchWritable> output = (key, value) -> {
+      throw new IllegalStateException("broken");
+    };
+    FetcherPipeline pipeline = new FetcherPipeline(createConf(), false,
+        output, Reporter.NULL);
+    pipeline.collect(new Text("a"), VALUE);
+    try {
+      pipeline.close(10000);
+      Assert.fail("error of the output stage not rethrown");
+    } catch (IOException e) {
+      Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+    try {
+      pipeline.collect(new Text("b"), VALUE);
+      Assert.fail("record accepted by a failed stage");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  private static Configuration createConf() {
+    Configuration conf = NutchConfiguration.create();
+    conf.setInt("fetcher.pipeline.output.batch.size", 100);
+    return conf;
+  }
+}
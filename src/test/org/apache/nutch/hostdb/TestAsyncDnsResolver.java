@@ -0,0 +1,237 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.hostdb;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the {@link AsyncDnsResolver} against a local DNS server answering
+ * <code>*.known.test</code> with 10.0.0.1, <code>*.v6.test</code> with ::1
+ * only, <code>*.slow.test</code> never and anything else with NXDOMAIN.
+ */
+public class TestAsyncDnsResolver {
+
+  private DatagramSocket server;
+  private Thread serverThread;
+  private AtomicInteger slowQueries = new AtomicInteger();
+  private Configuration conf;
+  private AsyncDnsResolver resolver;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+    serverThread = new Thread(this::serve, "test-dns-server");
+    serverThread.setDaemon(true);
+    serverThread.start();
+
+    conf = NutchConfiguration.create();
+    conf.set(AsyncDnsResolver.NAMESERVERS, "127.0.0.1:" + server.getLocalPort());
+    conf.setLong(AsyncDnsResolver.TIMEOUT, 200);
+    conf.setInt(AsyncDnsResolver.RETRIES, 2);
+    conf.setFloat(AsyncDnsResolver.RATE, 0);
+    resolver = new AsyncDnsResolver();
+    resolver.setConf(conf);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    resolver.close();
+    server.close();
+    serverThread.join();
+  }
+
+  private void serve() {
+    byte[] data = new byte[512];
+    while (true) {
+      DatagramPacket packet = new DatagramPacket(data, data.length);
+      try {
+        server.receive(packet);
+      } catch (SocketException e) {
+        return; // closed
+      } catch (Exception e) {
+        continue;
+      }
+      ByteBuffer query = ByteBuffer.wrap(data, 0, packet.getLength());
+      int id = query.getShort() & 0xffff;
+      query.position(12);
+      String host = AsyncDnsResolver.readName(query);
+      int type = query.getShort() & 0xffff;
+      byte[] address = null;
+      int rcode = 0;
+      if (host.endsWith(".slow.test")) {
+        slowQueries.incrementAndGet();
+        continue;
+      } else if (host.endsWith(".known.test")) {
+        address = type == AsyncDnsResolver.TYPE_A ? new byte[] { 10, 0, 0, 1 } : null;
+      } else if (host.endsWith(".v6.test")) {
+        address = type == AsyncDnsResolver.TYPE_AAAA ? new byte[16] : null;
+        if (address != null) {
+          address[15] = 1;
+        }
+      } else {
+        rcode = AsyncDnsResolver.RCODE_NXDOMAIN;
+      }
+
+      // answer with the question and a compressed name pointing to it
+      ByteBuffer response = ByteBuffer.allocate(512);
+      AsyncDnsResolver.encodeQuery(response, id, host, type);
+      response.putShort(2, (short) (0x8180 | rcode));
+      if (address != null) {
+        response.putShort(6, (short) 1);
+        response.putShort((short) 0xc00c);
+        response.putShort((short) type);
+        response.putShort((short) AsyncDnsResolver.CLASS_IN);
+        response.putInt(60);
+        response.putShort((short) address.length);
+        response.put(address);
+      }
+      try {
+        server.send(new DatagramPacket(response.array(), response.position(),
+            packet.getSocketAddress()));
+      } catch (Exception e) {
+        return;
+      }
+    }
+  }
+
+  private static Throwable getError(CompletableFuture<InetAddress> future)
+      throws Exception {
+    try {
+      future.get(10, TimeUnit.SECONDS);
+      Assert.fail("Exception expected");
+      return null;
+    } catch (ExecutionException e) {
+      return e.getCause();
+    }
+  }
+
+  @Test
+  public void testResolve() throws Exception {
+    InetAddress address = resolver.resolve("www.known.test").get(10, TimeUnit.SECONDS);
+    Assert.assertEquals("10.0.0.1", address.getHostAddress());
+    Assert.assertEquals("www.known.test", address.getHostName());
+  }
+
+  @Test
+  public void testIPv6Fallback() throws Exception {
+    InetAddress address = resolver.resolve("www.v6.test").get(10, TimeUnit.SECONDS);
+    Assert.assertEquals(16, address.getAddress().length);
+    Assert.assertTrue(address.isLoopbackAddress());
+  }
+
+  @Test
+  public void testUnknownHost() throws Exception {
+    Throwable error = getError(resolver.resolve("www.unknown.test"));
+    Assert.assertTrue(error instanceof UnknownHostException);
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    Throwable error = getError(resolver.resolve("www.slow.test"));
+    Assert.assertTrue(error instanceof TimeoutException);
+    // first query and two retries
+    Assert.assertEquals(3, slowQueries.get());
+  }
+
+  @Test
+  public void testAddress() throws Exception {
+    InetAddress address = resolver.resolve("192.168.1.1").get(10, TimeUnit.SECONDS);
+    Assert.assertEquals("192.168.1.1", address.getHostAddress());
+    Assert.assertEquals(0, slowQueries.get());
+  }
+
+  @Test
+  public void testManyQueries() throws Exception {
+    List<CompletableFuture<InetAddress>> known = new ArrayList<>();
+    List<CompletableFuture<InetAddress>> unknown = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      known.add(resolver.resolve("host" + i + ".known.test"));
+      unknown.add(resolver.resolve("host" + i + ".unknown.test"));
+    }
+    for (int i = 0; i < 200; i++) {
+      Assert.assertEquals("host" + i + ".known.test",
+          known.get(i).get(10, TimeUnit.SECONDS).getHostName());
+      Assert.assertTrue(getError(unknown.get(i)) instanceof UnknownHostException);
+    }
+  }
+
+  /** Replace the resolver by one sending at most the given rate. */
+  private void setRate(float rate) throws Exception {
+    resolver.close();
+    conf.setFloat(AsyncDnsResolver.RATE, rate);
+    resolver = new AsyncDnsResolver();
+    resolver.setConf(conf);
+  }
+
+  @Test
+  public void testRetriesRateLimited() throws Exception {
+    conf.setLong(AsyncDnsResolver.TIMEOUT, 50);
+    setRate(2);
+    long start = System.nanoTime();
+    Throwable error = getError(resolver.resolve("www.slow.test"));
+    Assert.assertTrue(error instanceof TimeoutException);
+    Assert.assertEquals(3, slowQueries.get());
+    // two tokens for the query and the first retry, the second retry waits
+    // half a second for the next token
+    Assert.assertTrue(
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 400);
+  }
+
+  @Test
+  public void testStartTime() throws Exception {
+    setRate(10);
+    long start = System.nanoTime();
+    List<HostResolver.Lookup> lookups = new ArrayList<>();
+    for (int i = 0; i < 15; i++) {
+      lookups.add(resolver.resolve("host" + i + ".known.test"));
+    }
+    for (HostResolver.Lookup lookup : lookups) {
+      lookup.get(10, TimeUnit.SECONDS);
+    }
+    // the first ten are sent at once, the last waits for the rate limit
+    Assert.assertTrue(lookups.get(0).getStartTime() - start
+        < TimeUnit.MILLISECONDS.toNanos(200));
+    Assert.assertTrue(lookups.get(14).getStartTime() - start
+        >= TimeUnit.MILLISECONDS.toNanos(400));
+  }
+
+  @Test
+  public void testClosed() throws Exception {
+    resolver.close();
+    Assert.assertNotNull(getError(resolver.resolve("www.known.test")));
+  }
+}
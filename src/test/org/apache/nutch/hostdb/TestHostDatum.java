@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.hostdb;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.MapWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.metadata.Nutch;
+import org.apache.nutch.util.HyperLogLog;
+import org.apache.nutch.util.WritableTestUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.tdunning.math.stats.TDigest;
+
+public class TestHostDatum {
+
+  @Test
+  public void testStatistics() throws Exception {
+    HostDatum datum = new HostDatum();
+    Assert.assertEquals(-1, datum.getFetchDelay());
+    Assert.assertTrue(Double.isNaN(datum.getQuantile("_rs_", 0.5)));
+
+    TDigest digest = TDigest.createAVLTreeDigest(HostDatum.DIGEST_COMPRESSION);
+    for (int i = 1; i <= 1000; i++) {
+      digest.add(i);
+    }
+    HyperLogLog paths = new HyperLogLog();
+    for (int i = 0; i < 50; i++) {
+      paths.add(HyperLogLog.hash("/" + i));
+    }
+    datum.setDigest("_rs_", digest);
+    datum.setPaths(paths);
+    datum.setStatsTime(1000L);
+    datum.setFetchRate(2000, 2);
+
+    HostDatum read = (HostDatum) WritableTestUtils.writeRead(datum, null);
+    Assert.assertEquals(1000L, read.getStatsTime());
+    Assert.assertEquals(2000, read.getFetchDelay());
+    Assert.assertEquals(2, read.getFetchThreads());
+    Assert.assertEquals(1000, read.getDigest("_rs_").size());
+    Assert.assertEquals(500.5, read.getMean("_rs_"), 1);
+    Assert.assertEquals(950, read.getQuantile("_rs_", 0.95), 10);
+    Assert.assertEquals(paths.cardinality(), read.getDistinctPaths());
+  }
+
+  /** HostDbs written before the typed statistics keep the fetch rate. */
+  @Test
+  public void testOldFormat() throws Exception {
+    MapWritable metaData = new MapWritable();
+    metaData.put(Nutch.WRITABLE_FETCH_DELAY_KEY, new IntWritable(3000));
+    metaData.put(Nutch.WRITABLE_FETCH_THREADS_KEY, new IntWritable(1));
+
+    // two records in the format without statistics, back to back
+    DataOutputBuffer out = new DataOutputBuffer();
+    for (int i = 0; i < 2; i++) {
+      out.writeFloat(1.0f + i);
+      out.writeLong(0);
+      Text.writeString(out, "");
+      for (int j = 0; j < 8; j++) {
+        out.writeInt(0);
+      }
+      metaData.write(out);
+    }
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+
+    for (int i = 0; i < 2; i++) {
+      HostDatum read = new HostDatum();
+      read.readFields(in);
+      Assert.assertEquals(1.0f + i, read.getScore(), 0);
+      Assert.assertEquals(0, read.getStatsTime());
+      Assert.assertEquals(3000, read.getFetchDelay());
+      Assert.assertEquals(1, read.getFetchThreads());
+      Assert.assertTrue(read.getDigests().isEmpty());
+      Assert.assertNull(read.getPaths());
+      Assert.assertTrue(read.getMetaData().isEmpty());
+    }
+  }
+
+  /** The statistics are not visible as metadata and copied by clone(). */
+  @Test
+  public void testMetaDataAndClone() throws Exception {
+    HostDatum datum = new HostDatum();
+    datum.getMetaData().put(new Text("key"), new Text("value"));
+    TDigest digest = TDigest.createAVLTreeDigest(HostDatum.DIGEST_COMPRESSION);
+    digest.add(1);
+    datum.setDigest("_rs_", digest);
+    datum.setPaths(new HyperLogLog());
+    datum.getPaths().add(HyperLogLog.hash("/"));
+    datum.setStatsTime(1000L);
+
+    HostDatum read = (HostDatum) WritableTestUtils.writeRead(datum, null);
+    Assert.assertEquals(1, read.getMetaData().size());
+    Assert.assertEquals(new Text("value"), read.getMetaData().get(
+        new Text("key")));
+
+    HostDatum clone = (HostDatum) read.clone();
+    clone.getDigest("_rs_").add(2);
+    clone.setDigest("_ft_", digest);
+    clone.getPaths().add(HyperLogLog.hash("/other"));
+    Assert.assertEquals(1, read.getDigest("_rs_").size());
+    Assert.assertNull(read.getDigest("_ft_"));
+    Assert.assertEquals(1, read.getDistinctPaths());
+  }
+}
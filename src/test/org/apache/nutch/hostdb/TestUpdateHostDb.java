@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.hostdb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Checks the secondary sort of the map output of {@link UpdateHostDb}. */
+public class TestUpdateHostDb {
+
+  private static Text key(String host, boolean fromHostDb) {
+    Text key = new Text();
+    UpdateHostDb.setKey(key, host, fromHostDb);
+    return key;
+  }
+
+  @Test
+  public void testKeys() {
+    List<Text> keys = new ArrayList<>();
+    keys.add(key("example.com", false));
+    keys.add(key("example.com.au", true));
+    keys.add(key("example.com", true));
+    keys.add(key("example.com.au", false));
+    keys.add(key("example.com", false));
+    Collections.sort(keys);
+
+    // the record from the HostDb comes first, the hosts are not interleaved
+    Assert.assertEquals(key("example.com", true), keys.get(0));
+    Assert.assertEquals(key("example.com", false), keys.get(1));
+    Assert.assertEquals(key("example.com", false), keys.get(2));
+    Assert.assertEquals(key("example.com.au", true), keys.get(3));
+    Assert.assertEquals(key("example.com.au", false), keys.get(4));
+
+    WritableComparator grouping = new UpdateHostDb.HostGroupingComparator();
+    Assert.assertEquals(0, grouping.compare(keys.get(0), keys.get(2)));
+    Assert.assertTrue(grouping.compare(keys.get(2), keys.get(3)) < 0);
+
+    UpdateHostDb.HostPartitioner partitioner = new UpdateHostDb.HostPartitioner();
+    Assert.assertEquals(partitioner.getPartition(keys.get(0), null, 100),
+        partitioner.getPartition(keys.get(2), null, 100));
+
+    Assert.assertEquals("example.com", UpdateHostDb.getHost(keys.get(0)));
+    Assert.assertEquals("example.com.au", UpdateHostDb.getHost(keys.get(4)));
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.indexer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestIndexWriters {
+
+  /** Records the operations, waiting until released. */
+  private static class RecordingWriter implements IndexWriter {
+    final List<String> operations = Collections
+        .synchronizedList(new ArrayList<String>());
+    final CountDownLatch release = new CountDownLatch(1);
+    String failOn;
+    Error error;
+
+    private void record(String operation) throws IOException {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      if (operation.equals(failOn)) {
+        if (error != null) {
+          throw error;
+        }
+        throw new IOException("Failed: " + operation);
+      }
+      operations.add(operation);
+    }
+
+    public void open(JobConf job, String name) {
+    }
+
+    public void write(NutchDocument doc) throws IOException {
+      record("write " + doc.getFieldValue("id"));
+    }
+
+    public void delete(String key) throws IOException {
+      record("delete " + key);
+    }
+
+    public void update(NutchDocument doc) throws IOException {
+      record("update " + doc.getFieldValue("id"));
+    }
+
+    public void commit() throws IOException {
+      record("commit");
+    }
+
+    public void close() throws IOException {
+      record("close");
+    }
+
+    public String describe() {
+      return "RecordingWriter";
+    }
+
+    public void setConf(Configuration conf) {
+    }
+
+    public Configuration getConf() {
+      return null;
+    }
+  }
+
+  private static NutchDocument createDoc(String id) {
+    NutchDocument doc = new NutchDocument();
+    doc.add("id", id);
+    return doc;
+  }
+
+  private static JobConf createJob() {
+    JobConf job = new JobConf(NutchConfiguration.create());
+    job.setBoolean("indexer.writers.async", true);
+    job.setInt("indexer.writers.queue.size", 10);
+    return job;
+  }
+
+  @Test
+  public void testAsyncWriters() throws Exception {
+    RecordingWriter writer1 = new RecordingWriter();
+    RecordingWriter writer2 = new RecordingWriter();
+    IndexWriters writers = new IndexWriters(new IndexWriter[] { writer1,
+        writer2 });
+    writers.open(createJob(), "test");
+
+    // queued, the writers are still blocked
+    writers.write(createDoc("1"));
+    writers.delete("2");
+    writers.update(createDoc("3"));
+    Assert.assertTrue(writer1.operations.isEmpty());
+
+    writer1.release.countDown();
+    writer2.release.countDown();
+    writers.commit();
+    writers.close();
+    List<String> expected = new ArrayList<>();
+    expected.add("write 1");
+    expected.add("delete 2");
+    expected.add("update 3");
+    expected.add("commit");
+    expected.add("close");
+    Assert.assertEquals(expected, writer1.operations);
+    Assert.assertEquals(expected, writer2.operations);
+  }
+
+  @Test
+  public void testAsyncWriterError() throws Exception {
+    RecordingWriter writer = new RecordingWriter();
+    writer.failOn = "write 1";
+    IndexWriters writers = new IndexWriters(new IndexWriter[] { writer });
+    writers.open(createJob(), "test");
+    writers.write(createDoc("1"));
+    writers.write(createDoc("2"));
+    writer.release.countDown();
+    try {
+      writers.commit();
+      Assert.fail("Error of writer not reported");
+    } catch (IOException e) {
+      // expected
+    }
+    // operations after the failure are skipped
+    Assert.assertTrue(writer.operations.isEmpty());
+    try {
+      writers.close();
+      Assert.fail("Error of writer not reported");
+    } catch (IOException e) {
+      // expected
+    }
+    // the writer is closed nevertheless
+    Assert.assertEquals(Collections.singletonList("close"), writer.operations);
+  }
+
+  /** Errors, not only exceptions, of writers neither hang nor get lost. */
+  @Test(timeout = 30000)
+  public void testAsyncWriterThrowable() throws Exception {
+    RecordingWriter writer = new RecordingWriter();
+    writer.failOn = "write 1";
+    writer.error = new NoClassDefFoundError("Missing");
+    IndexWriters writers = new IndexWriters(new IndexWriter[] { writer });
+    writers.open(createJob(), "test");
+    writer.release.countDown();
+    IOException error = null;
+    try {
+      // more documents than fit into the queue
+      for (int i = 1; i <= 100; i++) {
+        writers.write(createDoc(Integer.toString(i)));
+      }
+      writers.commit();
+    } catch (IOException e) {
+      error = e;
+    }
+    Assert.assertNotNull("Error of writer not reported", error);
+    Assert.assertTrue(error.getCause().getCause() instanceof NoClassDefFoundError);
+    try {
+      writers.close();
+      Assert.fail("Error of writer not reported");
+    } catch (IOException e) {
+      // expected
+    }
+    Assert.assertEquals(Collections.singletonList("close"), writer.operations);
+  }
+}
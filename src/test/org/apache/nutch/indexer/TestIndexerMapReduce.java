@@ -38,7 +38,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
 
 import static org.junit.Assert.*;
 
@@ -143,6 +145,51 @@ public class TestIndexerMapReduce {
     }
   }
 
+  /**
+   * Test that documents indexed before with the same signature are skipped.
+   */
+  @Test
+  public void testIncremental() {
+    configuration = NutchConfiguration.create();
+    configuration.set(IndexerMapReduce.INDEXER_STATE_DB, "indexstate");
+    final List<IndexState> states = new ArrayList<>();
+    reducer = new IndexerMapReduce() {
+      @Override
+      protected OutputCollector<Text, IndexState> getIndexStateCollector(
+          Reporter reporter) {
+        return (key, state) -> states.add(state);
+      }
+    };
+    CrawlDatum dbDatum = new CrawlDatum(CrawlDatum.STATUS_DB_FETCHED,
+        60 * 60 * 24);
+    dbDatum.setSignature(new byte[] { 1, 2, 3 });
+    dbDatum.setModifiedTime(1500000000000L);
+
+    // not indexed before
+    NutchDocument doc = runIndexer(dbDatum, crawlDatumFetchSuccess,
+        parseText, parseData, null);
+    assertNotNull("Document not indexed", doc);
+    assertEquals(1, states.size());
+    IndexState state = states.get(0);
+    assertTrue(state.isIndexed(dbDatum));
+
+    // unchanged
+    states.clear();
+    doc = runIndexer(dbDatum, crawlDatumFetchSuccess, parseText, parseData,
+        null, state);
+    assertNull("Unchanged document indexed", doc);
+    assertEquals(1, states.size());
+    assertEquals(state.getIndexTime(), states.get(0).getIndexTime());
+
+    // changed signature
+    states.clear();
+    dbDatum.setSignature(new byte[] { 4, 5, 6 });
+    doc = runIndexer(dbDatum, crawlDatumFetchSuccess, parseText, parseData,
+        null, state);
+    assertNotNull("Changed document not indexed", doc);
+    assertTrue(states.get(0).isIndexed(dbDatum));
+  }
+
   /**
    * Run {@link IndexerMapReduce.reduce(...)} to get a &quot;indexed&quot;
    * {@link NutchDocument} by passing objects from segment and CrawlDb to the
@@ -162,12 +209,28 @@ public class TestIndexerMapReduce {
    */
   public NutchDocument runIndexer(CrawlDatum dbDatum, CrawlDatum fetchDatum,
       ParseText parseText, ParseData parseData, Content content) {
+    return runIndexer(dbDatum, fetchDatum, parseText, parseData, content,
+        null);
+  }
+
+  /**
+   * @param indexState
+   *          (optional, if indexing incrementally) previous index state
+   */
+  public NutchDocument runIndexer(CrawlDatum dbDatum, CrawlDatum fetchDatum,
+      ParseText parseText, ParseData parseData, Content content,
+      IndexState indexState) {
     List<NutchWritable> values = new ArrayList<NutchWritable>();
     values.add(new NutchWritable(dbDatum));
     values.add(new NutchWritable(fetchDatum));
     values.add(new NutchWritable(parseText));
     values.add(new NutchWritable(parseData));
-    values.add(new NutchWritable(content));
+    if (content != null) {
+      values.add(new NutchWritable(content));
+    }
+    if (indexState != null) {
+      values.add(new NutchWritable(indexState));
+    }
     reduceDriver = ReduceDriver.newReduceDriver(reducer);
     reduceDriver.setConfiguration(configuration);
     reduceDriver.withInput(testUrlText, values);
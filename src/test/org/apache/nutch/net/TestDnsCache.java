@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Checks the bounded DNS cache with numeric hosts only. */
+public class TestDnsCache {
+
+  private static DnsCache createCache(int size, int prefetchThreads) {
+    Configuration conf = NutchConfiguration.create();
+    conf.setInt("dns.cache.size", size);
+    conf.setInt("dns.cache.prefetch.threads", prefetchThreads);
+    return new DnsCache(conf);
+  }
+
+  @Test
+  public void testResolve() throws Exception {
+    DnsCache cache = createCache(10, 0);
+    InetAddress address = cache.resolve("127.0.0.1");
+    Assert.assertEquals("127.0.0.1", address.getHostAddress());
+    Assert.assertSame(address, cache.resolve("127.0.0.1"));
+    Assert.assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testNegative() throws Exception {
+    DnsCache cache = createCache(10, 0);
+    for (int i = 0; i < 2; i++) {
+      try {
+        // malformed IPv6 literal, rejected without a query
+        cache.resolve("[::1");
+        Assert.fail("UnknownHostException expected");
+      } catch (UnknownHostException e) {
+        // expected
+      }
+    }
+    Assert.assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testEviction() throws Exception {
+    DnsCache cache = createCache(2, 0);
+    InetAddress first = cache.resolve("127.0.0.1");
+    cache.resolve("127.0.0.2");
+    // access the first host, so that the second one is evicted
+    cache.resolve("127.0.0.1");
+    cache.resolve("127.0.0.3");
+    Assert.assertEquals(2, cache.size());
+    Assert.assertSame(first, cache.resolve("127.0.0.1"));
+  }
+
+  @Test
+  public void testPrefetch() throws Exception {
+    DnsCache cache = createCache(10, 2);
+    cache.prefetch("127.0.0.1");
+    cache.prefetch("127.0.0.2");
+    long deadline = System.currentTimeMillis() + 10000;
+    while (cache.size() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(2, cache.size());
+    Assert.assertEquals("127.0.0.2", cache.resolve("127.0.0.2")
+        .getHostAddress());
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.net;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestURLCache {
+
+  @Test
+  public void testGet() {
+    Configuration conf = NutchConfiguration.create();
+    Assert.assertNull(URLCache.get(conf));
+    conf.setInt(URLCache.URL_CACHE_SIZE, 1000);
+    URLCache cache = URLCache.get(conf);
+    Assert.assertNotNull(cache);
+    Assert.assertSame(cache, URLCache.get(conf));
+  }
+
+  @Test
+  public void testNamespaces() {
+    URLCache cache = new URLCache(1000);
+    URLCache.Namespace normalized = cache.namespace("normalize_default");
+    URLCache.Namespace filtered = cache.namespace("filter");
+
+    String url = "http://example.com/a/../b.html";
+    Assert.assertNull(normalized.get(url));
+    normalized.put(url, "http://example.com/b.html");
+    Assert.assertEquals("http://example.com/b.html", normalized.get(url));
+    Assert.assertNull(filtered.get(url));
+
+    filtered.put(url, null);
+    Assert.assertSame(URLCache.REJECTED, filtered.get(url));
+
+    String unchanged = "http://example.com/";
+    filtered.put(unchanged, new String(unchanged));
+    Assert.assertSame(unchanged, filtered.get(unchanged));
+    Assert.assertEquals(3, cache.size());
+  }
+
+  @Test
+  public void testBounded() {
+    URLCache cache = new URLCache(100);
+    URLCache.Namespace filtered = cache.namespace("filter");
+    for (int i = 0; i < 1000; i++) {
+      String url = "http://example.com/" + i;
+      filtered.put(url, url);
+    }
+    Assert.assertTrue(cache.size() <= 256);
+    // the most recently added URL is cached
+    Assert.assertEquals("http://example.com/999",
+        filtered.get("http://example.com/999"));
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.parse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.metadata.Metadata;
+import org.apache.nutch.protocol.Content;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestParseExecutor {
+
+  /** Parser sleeping for a given time, optionally ignoring interrupts. */
+  private static class SleepingParser implements Parser {
+    private final long sleep;
+    private final boolean ignoreInterrupts;
+    private final AtomicInteger running = new AtomicInteger();
+    private volatile int maxRunning = 0;
+    private Configuration conf;
+
+    SleepingParser(long sleep, boolean ignoreInterrupts) {
+      this.sleep = sleep;
+      this.ignoreInterrupts = ignoreInterrupts;
+    }
+
+    @Override
+    public ParseResult getParse(Content c) {
+      int n = running.incrementAndGet();
+      synchronized (this) {
+        maxRunning = Math.max(maxRunning, n);
+      }
+      try {
+        long end = System.currentTimeMillis() + sleep;
+        long remaining;
+        while ((remaining = end - System.currentTimeMillis()) > 0) {
+          try {
+            Thread.sleep(remaining);
+          } catch (InterruptedException e) {
+            if (!ignoreInterrupts) {
+              return null;
+            }
+          }
+        }
+        return new ParseStatus().getEmptyParseResult(c.getUrl(), conf);
+      } finally {
+        running.decrementAndGet();
+      }
+    }
+
+    @Override
+    public Configuration getConf() {
+      return conf;
+    }
+
+    @Override
+    public void setConf(Configuration conf) {
+      this.conf = conf;
+    }
+  }
+
+  private static Content content(String url) {
+    return new Content(url, url, new byte[0], "text/html", new Metadata(),
+        NutchConfiguration.create());
+  }
+
+  private static ParseExecutor createExecutor(int threads, int queueSize) {
+    Configuration conf = NutchConfiguration.create();
+    conf.setInt("parser.threads", threads);
+    conf.setInt("parser.queue.size", queueSize);
+    return new ParseExecutor(conf);
+  }
+
+  @Test
+  public void testParse() throws Exception {
+    ParseExecutor executor = createExecutor(2, 2);
+    SleepingParser parser = new SleepingParser(50, false);
+    List<Thread> callers = new ArrayList<>();
+    AtomicInteger parsed = new AtomicInteger();
+    for (int i = 0; i < 8; i++) {
+      final String url = "http://example.com/" + i;
+      Thread caller = new Thread(() -> {
+        // the timeout must not include the time spent in the queue
+        if (executor.parse(parser, content(url), 1) != null) {
+          parsed.incrementAndGet();
+        }
+      });
+      callers.add(caller);
+      caller.start();
+    }
+    for (Thread caller : callers) {
+      caller.join();
+    }
+    Assert.assertEquals(8, parsed.get());
+    Assert.assertTrue(parser.maxRunning <= 2);
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    ParseExecutor executor = createExecutor(1, 0);
+
+    // interrupted parser
+    Assert.assertNull(executor.parse(new SleepingParser(5000, false),
+        content("http://example.com/1"), 1));
+
+    // a parser ignoring the interrupt does not block following parses
+    SleepingParser stuck = new SleepingParser(3000, true);
+    Assert.assertNull(executor.parse(stuck, content("http://example.com/2"),
+        1));
+    Assert.assertEquals(1, stuck.running.get());
+    long start = System.currentTimeMillis();
+    Assert.assertNotNull(executor.parse(new SleepingParser(10, false),
+        content("http://example.com/3"), 1));
+    Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+  }
+
+  @Test
+  public void testCooperativeTimeout() throws Exception {
+    ParseExecutor executor = createExecutor(1, 0);
+    final AtomicInteger running = new AtomicInteger();
+    // ignores interrupts but checks the deadline
+    Parser parser = new SleepingParser(0, true) {
+      @Override
+      public ParseResult getParse(Content c) {
+        running.incrementAndGet();
+        try {
+          while (!ParseExecutor.isTimedOut()) {
+            Thread.yield();
+          }
+          return null;
+        } finally {
+          running.decrementAndGet();
+        }
+      }
+    };
+    long start = System.currentTimeMillis();
+    Assert.assertNull(executor.parse(parser, content("http://example.com/1"),
+        1));
+    long elapsed = System.currentTimeMillis() - start;
+    Assert.assertTrue(elapsed >= 1000);
+    // the parser gave up by itself, before the thread would be abandoned
+    Assert.assertTrue(elapsed < 1000 + ParseExecutor.STOP_TIMEOUT);
+    Assert.assertEquals(0, running.get());
+    Assert.assertFalse(ParseExecutor.isTimedOut());
+  }
+
+  @Test
+  public void testBackPressure() throws Exception {
+    ParseExecutor executor = createExecutor(1, 1);
+    SleepingParser parser = new SleepingParser(500, false);
+    CountDownLatch done = new CountDownLatch(2);
+    for (int i = 0; i < 2; i++) {
+      final String url = "http://example.com/" + i;
+      new Thread(() -> {
+        executor.parse(parser, content(url), 10);
+        done.countDown();
+      }).start();
+    }
+    Thread.sleep(100);
+    // one document is parsed, one queued: the third caller has to wait
+    long start = System.currentTimeMillis();
+    Assert.assertNotNull(executor.parse(new SleepingParser(0, false),
+        content("http://example.com/2"), 10));
+    Assert.assertTrue(System.currentTimeMillis() - start >= 300);
+    done.await();
+  }
+}
@@ -0,0 +1,170 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.protocol;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.nutch.metadata.Metadata;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import crawlercommons.robots.BaseRobotRules;
+import crawlercommons.robots.SimpleRobotRulesParser;
+
+public class TestRobotRulesCache {
+
+  private static final String ROBOTS_TXT = "User-agent: *\n"
+      + "Disallow: /private/\n";
+
+  Configuration conf;
+  RobotRulesCache cache;
+
+  @Before
+  public void setUp() {
+    conf = NutchConfiguration.create();
+    conf.setInt("robots.cache.size", 100);
+    conf.set("http.agent.name", "test-bot");
+    conf.setBoolean("fetcher.robots.cache.snapshot", true);
+    cache = new RobotRulesCache();
+    cache.setConf(conf);
+  }
+
+  private static BaseRobotRules parse(String robotsTxt) {
+    return new SimpleRobotRulesParser().parseContent("http://example.com/",
+        robotsTxt.getBytes(), "text/plain", "test-bot");
+  }
+
+  @Test
+  public void testGetPut() {
+    BaseRobotRules rules = parse(ROBOTS_TXT);
+    Assert.assertNull(cache.get("http:example.com:80"));
+    cache.put("http:example.com:80", rules);
+    Assert.assertSame(rules, cache.get("http:example.com:80"));
+
+    // a lifetime of 0 is raised to the minimum lifetime
+    cache.put("http:example.org:80", rules, 0);
+    Assert.assertSame(rules, cache.get("http:example.org:80"));
+
+    // expired rules are removed
+    conf.setLong("robots.cache.ttl", 0);
+    cache.setConf(conf);
+    cache.put("http:example.net:80", rules);
+    Assert.assertNull(cache.get("http:example.net:80"));
+  }
+
+  @Test
+  public void testSingleLoad() throws Exception {
+    final BaseRobotRules rules = parse(ROBOTS_TXT);
+    final AtomicInteger loads = new AtomicInteger();
+    Thread[] threads = new Thread[8];
+    final BaseRobotRules[] results = new BaseRobotRules[threads.length];
+    final List<List<Content>> contents = new ArrayList<>();
+    for (int i = 0; i < threads.length; i++) {
+      final int n = i;
+      final List<Content> content = new ArrayList<>();
+      contents.add(content);
+      threads[i] = new Thread() {
+        public void run() {
+          results[n] = cache.get("http:example.com:80", content, c -> {
+            loads.incrementAndGet();
+            try {
+              Thread.sleep(500);
+            } catch (InterruptedException e) {
+            }
+            c.add(new Content("http://example.com/robots.txt",
+                "http://example.com/robots.txt", ROBOTS_TXT.getBytes(),
+                "text/plain", new Metadata(), conf));
+            cache.put("http:example.com:80", rules);
+            return rules;
+          });
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    Assert.assertEquals(1, loads.get());
+    for (BaseRobotRules result : results) {
+      Assert.assertSame(rules, result);
+    }
+    // also the waiting threads receive the fetched robots.txt
+    for (List<Content> content : contents) {
+      Assert.assertEquals(1, content.size());
+    }
+  }
+
+  @Test
+  public void testEviction() {
+    BaseRobotRules rules = parse(ROBOTS_TXT);
+    for (int i = 0; i < 250; i++) {
+      cache.put("http:host" + i + ".example.com:80", rules);
+    }
+    Assert.assertTrue(cache.size() <= 100);
+    // the most recently added rules are kept
+    Assert.assertSame(rules, cache.get("http:host249.example.com:80"));
+  }
+
+  @Test
+  public void testSaveLoad() throws Exception {
+    BaseRobotRules rules = parse(ROBOTS_TXT);
+    cache.put("http:example.com:80", rules, -1, new RobotRulesCache.RobotsTxt(
+        "http://example.com/", ROBOTS_TXT.getBytes(), "text/plain"));
+    cache.put("https:example.com:443", RobotRulesParser.FORBID_ALL_RULES);
+    // parsed rules without robots.txt are not saved
+    cache.put("http:example.org:80", rules);
+
+    File dir = new File(System.getProperty("test.build.data", "/tmp"),
+        "robots-cache-" + System.currentTimeMillis());
+    Path snapshot = new Path(dir.getAbsolutePath());
+    FileSystem fs = snapshot.getFileSystem(conf);
+    try {
+      cache.save(conf, new Path(snapshot, "part-00000"));
+      // saving again replaces the file
+      cache.save(conf, new Path(snapshot, "part-00000"));
+      Assert.assertEquals(1, fs.listStatus(snapshot).length);
+
+      RobotRulesCache loaded = new RobotRulesCache();
+      loaded.setConf(conf);
+      loaded.load(conf, snapshot);
+      Assert.assertEquals(2, loaded.size());
+      BaseRobotRules copy = loaded.get("http:example.com:80");
+      Assert.assertNotNull(copy);
+      Assert.assertTrue(copy.isAllowed("http://example.com/index.html"));
+      Assert.assertFalse(copy.isAllowed("http://example.com/private/a.html"));
+      Assert.assertFalse(loaded.get("https:example.com:443").isAllowed(
+          "https://example.com/index.html"));
+
+      // files older than the maximum lifetime are deleted
+      Path file = new Path(snapshot, "part-00000");
+      fs.setTimes(file, System.currentTimeMillis() - 86400 * 1000L - 1000,
+          -1);
+      cache.deleteExpired(conf, snapshot);
+      Assert.assertFalse(fs.exists(file));
+    } finally {
+      fs.delete(snapshot, true);
+    }
+  }
+}
@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.scoring.webgraph;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link InMemoryLinkRank} against the MapReduce {@link LinkRank}.
+ */
+public class TestInMemoryLinkRank {
+
+  private static final int NUM_ITERATIONS = 5;
+
+  private Configuration conf;
+  private FileSystem fs;
+  private Path testDir;
+  private Map<String, String[]> outlinks = new TreeMap<>();
+  private Set<String> withoutNode = Collections.singleton("http://n.com/");
+
+  @Before
+  public void setUp() throws Exception {
+    conf = NutchConfiguration.create();
+    conf.setInt("link.analyze.num.iterations", NUM_ITERATIONS);
+    conf.setInt("link.analyze.max.iterations", NUM_ITERATIONS);
+    // run all iterations
+    conf.setFloat("link.analyze.convergence.threshold", 0f);
+    fs = FileSystem.get(conf);
+    testDir = new Path("build/test/test-inmemory-linkrank-"
+        + new java.util.Random().nextInt());
+    fs.mkdirs(testDir);
+
+    // the pages of a.com get the same scores, only one of their links to a
+    // target counts, no matter which one
+    outlinks.put("http://a.com/1", new String[] { "http://b.com/",
+        "http://x.com/" });
+    outlinks.put("http://a.com/2", new String[] { "http://b.com/",
+        "http://x.com/" });
+    outlinks.put("http://b.com/", new String[] { "http://a.com/1",
+        "http://a.com/2" });
+    // y.com is dangling, n.com has no node
+    outlinks.put("http://x.com/", new String[] { "http://y.com/",
+        "http://n.com/" });
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    fs.delete(testDir, true);
+  }
+
+  private Map<String, Float> analyzeMapReduce() throws Exception {
+    Path webGraphDb = new Path(testDir, "mapreduce");
+    WebGraphTestUtil.createWebGraph(conf, webGraphDb, outlinks, withoutNode);
+    LinkRank linkRank = new LinkRank(conf);
+    linkRank.analyze(webGraphDb);
+    Assert.assertEquals(NUM_ITERATIONS, linkRank.getIterations());
+    return WebGraphTestUtil.readScores(conf, webGraphDb);
+  }
+
+  private void assertScores(Map<String, Float> expected,
+      Map<String, Float> scores) {
+    Assert.assertEquals(expected.keySet(), scores.keySet());
+    for (Map.Entry<String, Float> entry : expected.entrySet()) {
+      Assert.assertEquals(entry.getKey(), entry.getValue(),
+          scores.get(entry.getKey()), 0.00001f);
+    }
+  }
+
+  @Test
+  public void testScores() throws Exception {
+    Map<String, Float> expected = analyzeMapReduce();
+    Assert.assertEquals(5, expected.size());
+
+    Path webGraphDb = new Path(testDir, "memory");
+    WebGraphTestUtil.createWebGraph(conf, webGraphDb, outlinks, withoutNode);
+    Assert.assertTrue(new InMemoryLinkRank(conf).analyze(webGraphDb));
+    Assert.assertFalse(fs.exists(new Path(webGraphDb, "linkrank")));
+    assertScores(expected, WebGraphTestUtil.readScores(conf, webGraphDb));
+  }
+
+  @Test
+  public void testFallback() throws Exception {
+    Map<String, Float> expected = analyzeMapReduce();
+
+    Configuration memoryConf = new Configuration(conf);
+    memoryConf.set("link.analyze.engine", "memory");
+    memoryConf.setFloat("link.analyze.memory.fraction", 0.000000001f);
+    Path webGraphDb = new Path(testDir, "memory");
+    WebGraphTestUtil.createWebGraph(memoryConf, webGraphDb, outlinks,
+        withoutNode);
+
+    // nothing changes if the graph does not fit
+    Assert.assertFalse(new InMemoryLinkRank(memoryConf).analyze(webGraphDb));
+    for (float score : WebGraphTestUtil.readScores(memoryConf, webGraphDb)
+        .values()) {
+      Assert.assertEquals(1.0f, score, 0f);
+    }
+
+    LinkRank linkRank = new LinkRank(memoryConf);
+    linkRank.analyze(webGraphDb);
+    Assert.assertEquals(NUM_ITERATIONS, linkRank.getIterations());
+    assertScores(expected, WebGraphTestUtil.readScores(memoryConf, webGraphDb));
+  }
+}
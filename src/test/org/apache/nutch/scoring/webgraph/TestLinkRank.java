@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.scoring.webgraph;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the delta mode of the MapReduce {@link LinkRank} against the full
+ * iterations.
+ */
+public class TestLinkRank {
+
+  private static final int NUM_ITERATIONS = 10;
+
+  private Configuration conf;
+  private FileSystem fs;
+  private Path testDir;
+  private Map<String, String[]> outlinks = new TreeMap<>();
+
+  @Before
+  public void setUp() throws Exception {
+    conf = NutchConfiguration.create();
+    conf.setInt("link.analyze.num.iterations", NUM_ITERATIONS);
+    fs = FileSystem.get(conf);
+    testDir = new Path("build/test/test-linkrank-"
+        + new java.util.Random().nextInt());
+    fs.mkdirs(testDir);
+
+    // the pages of s.com link to a.com, only the link of s.com/1 counts
+    outlinks.put("http://e.com/", new String[] { "http://a.com/" });
+    outlinks.put("http://s.com/1", new String[] { "http://a.com/",
+        "http://b.com/" });
+    outlinks.put("http://s.com/2", new String[] { "http://a.com/",
+        "http://c.com/" });
+    outlinks.put("http://a.com/", new String[] { "http://b.com/",
+        "http://c.com/" });
+    outlinks.put("http://b.com/", new String[] { "http://c.com/",
+        "http://d.com/" });
+    outlinks.put("http://c.com/", new String[] { "http://d.com/" });
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    fs.delete(testDir, true);
+  }
+
+  private Map<String, Float> analyzeFull() throws Exception {
+    Path full = new Path(testDir, "full");
+    WebGraphTestUtil.createWebGraph(conf, full, outlinks);
+    LinkRank linkRank = new LinkRank(conf);
+    linkRank.analyze(full);
+    Assert.assertEquals(NUM_ITERATIONS, linkRank.getIterations());
+    return WebGraphTestUtil.readScores(conf, full);
+  }
+
+  /** @return the number of iterations */
+  private int analyzeDelta(float epsilon, Map<String, Float> expected,
+      float tolerance) throws Exception {
+    Configuration deltaConf = new Configuration(conf);
+    deltaConf.setBoolean("link.analyze.delta", true);
+    deltaConf.setFloat("link.analyze.delta.epsilon", epsilon);
+    // stop when no score changes anymore
+    deltaConf.setFloat("link.analyze.convergence.threshold", 0f);
+    Path delta = new Path(testDir, "delta");
+    WebGraphTestUtil.createWebGraph(deltaConf, delta, outlinks);
+    LinkRank linkRank = new LinkRank(deltaConf);
+    linkRank.analyze(delta);
+
+    // only the scores are installed, no frontier, held changes or pruned
+    // outlinks
+    Path nodeDb = new Path(delta, WebGraph.NODE_DIR);
+    for (FileStatus stat : fs.listStatus(nodeDb)) {
+      Assert.assertTrue(stat.getPath().toString(), stat.getPath().getName()
+          .startsWith("part-"));
+    }
+    Assert.assertFalse(fs.exists(new Path(delta, "linkrank")));
+
+    Map<String, Float> scores = WebGraphTestUtil.readScores(deltaConf, delta);
+    Assert.assertEquals(expected.keySet(), scores.keySet());
+    for (Map.Entry<String, Float> entry : expected.entrySet()) {
+      Assert.assertEquals(entry.getKey(), entry.getValue(),
+          scores.get(entry.getKey()), tolerance);
+    }
+    return linkRank.getIterations();
+  }
+
+  @Test
+  public void testDelta() throws Exception {
+    // no cycles, the scores are final after a few iterations
+    Map<String, Float> expected = analyzeFull();
+    Assert.assertTrue(analyzeDelta(0f, expected, 0.0001f) < NUM_ITERATIONS);
+  }
+
+  @Test
+  public void testDeltaEpsilon() throws Exception {
+    // with a cycle small changes go on, some are held back and propagated
+    // later, dropping them would be off by more than the tolerance
+    outlinks.put("http://d.com/", new String[] { "http://a.com/" });
+    Map<String, Float> expected = analyzeFull();
+    analyzeDelta(0.015f, expected, 0.005f);
+  }
+}
@@ -0,0 +1,228 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.scoring.webgraph;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.metadata.Metadata;
+import org.apache.nutch.metadata.Nutch;
+import org.apache.nutch.parse.Outlink;
+import org.apache.nutch.parse.ParseData;
+import org.apache.nutch.parse.ParseStatus;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the incremental update of the WebGraph against a full rebuild from
+ * the same segments.
+ */
+public class TestWebGraph {
+
+  private static final int NUM_PARTS = 8;
+
+  private Configuration conf;
+  private FileSystem fs;
+  private Path testDir;
+
+  @Before
+  public void setUp() throws Exception {
+    conf = NutchConfiguration.create();
+    conf.setBoolean("link.delete.gone", true);
+    // more partitions than pages with outlinks, some stay empty
+    conf.setInt("mapreduce.job.reduces", NUM_PARTS);
+    fs = FileSystem.get(conf);
+    testDir = new Path("build/test/test-webgraph-"
+        + new java.util.Random().nextInt());
+    fs.mkdirs(testDir);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    fs.delete(testDir, true);
+  }
+
+  @Test
+  public void testIncrementalUpdate() throws Exception {
+    // segment A, fetched first
+    Map<String, String[]> linksA = new TreeMap<>();
+    linksA.put("http://a.com/", new String[] { "http://b.com/", "b",
+        "http://c.com/", "c", "http://d.com/", "d" });
+    linksA.put("http://b.com/", new String[] { "http://a.com/", "a",
+        "http://e.com/", "e" });
+    linksA.put("http://e.com/", new String[] { "http://a.com/", "home" });
+    linksA.put("http://f.com/", new String[] { "http://a.com/", "a" });
+    Path segmentA = createSegment("20170101000000", 1000L, linksA,
+        new TreeSet<String>());
+
+    // segment B: a.com re-anchors b.com, keeps c.com, drops d.com and adds
+    // g.com, b.com drops e.com, f.com is gone
+    Map<String, String[]> linksB = new TreeMap<>();
+    linksB.put("http://a.com/", new String[] { "http://b.com/", "bee",
+        "http://c.com/", "c", "http://g.com/", "g" });
+    linksB.put("http://b.com/", new String[] { "http://a.com/", "a" });
+    Set<String> goneB = new TreeSet<>();
+    goneB.add("http://f.com/");
+    Path segmentB = createSegment("20170102000000", 2000L, linksB, goneB);
+
+    Path incremental = new Path(testDir, "incremental");
+    WebGraph webGraph = new WebGraph();
+    webGraph.setConf(conf);
+    webGraph.createWebGraph(incremental, new Path[] { segmentA }, false,
+        false, false);
+    webGraph.createWebGraph(incremental, new Path[] { segmentB }, false,
+        false, true);
+
+    Path full = new Path(testDir, "full");
+    webGraph.createWebGraph(full, new Path[] { segmentA, segmentB }, false,
+        false, false);
+
+    Set<String> outlinks = readLinks(new Path(full, WebGraph.OUTLINK_DIR));
+    Set<String> inlinks = readLinks(new Path(full, WebGraph.INLINK_DIR));
+    Set<String> nodes = readNodes(new Path(full, WebGraph.NODE_DIR));
+
+    // make sure the test covers what it should
+    Assert.assertTrue(outlinks.contains("http://a.com/ http://b.com/ bee"));
+    Assert.assertTrue(outlinks.contains("http://a.com/ http://g.com/ g"));
+    Assert.assertTrue(outlinks.contains("http://e.com/ http://a.com/ home"));
+    Assert.assertFalse(outlinks.contains("http://a.com/ http://d.com/ d"));
+    Assert.assertFalse(outlinks.contains("http://b.com/ http://e.com/ e"));
+    Assert.assertFalse(outlinks.contains("http://f.com/ http://a.com/ a"));
+    Assert.assertEquals(5, outlinks.size());
+    Assert.assertTrue(nodes.contains("http://a.com/ 2 3"));
+    Assert.assertTrue(nodes.contains("http://e.com/ 0 1"));
+    Assert.assertEquals(5, nodes.size());
+    Assert.assertTrue(hasEmptyPart(new Path(incremental, WebGraph.OUTLINK_DIR)));
+
+    Assert.assertEquals(outlinks,
+        readLinks(new Path(incremental, WebGraph.OUTLINK_DIR)));
+    Assert.assertEquals(inlinks,
+        readLinks(new Path(incremental, WebGraph.INLINK_DIR)));
+    Assert.assertEquals(nodes,
+        readNodes(new Path(incremental, WebGraph.NODE_DIR)));
+  }
+
+  /**
+   * Creates a segment with the parse data of the given pages, the outlinks are
+   * pairs of URL and anchor. The crawl_fetch marks the gone pages.
+   */
+  private Path createSegment(String name, long fetchTime,
+      Map<String, String[]> links, Set<String> gone) throws Exception {
+    Path segment = new Path(testDir, name);
+    Metadata contentMeta = new Metadata();
+    contentMeta.set(Nutch.FETCH_TIME_KEY, Long.toString(fetchTime));
+    try (MapFile.Writer writer = new MapFile.Writer(conf, new Path(segment,
+        ParseData.DIR_NAME + "/part-00000"),
+        MapFile.Writer.keyClass(Text.class),
+        MapFile.Writer.valueClass(ParseData.class))) {
+      for (Map.Entry<String, String[]> page : links.entrySet()) {
+        String[] pairs = page.getValue();
+        Outlink[] outlinks = new Outlink[pairs.length / 2];
+        for (int i = 0; i < outlinks.length; i++) {
+          outlinks[i] = new Outlink(pairs[2 * i], pairs[2 * i + 1]);
+        }
+        writer.append(new Text(page.getKey()), new ParseData(
+            ParseStatus.STATUS_SUCCESS, "", outlinks, contentMeta));
+      }
+    }
+
+    Map<String, CrawlDatum> fetched = new TreeMap<>();
+    for (String url : links.keySet()) {
+      fetched.put(url, new CrawlDatum(CrawlDatum.STATUS_FETCH_SUCCESS, 0));
+    }
+    for (String url : gone) {
+      fetched.put(url, new CrawlDatum(CrawlDatum.STATUS_FETCH_GONE, 0));
+    }
+    try (MapFile.Writer writer = new MapFile.Writer(conf, new Path(segment,
+        CrawlDatum.FETCH_DIR_NAME + "/part-00000"),
+        MapFile.Writer.keyClass(Text.class),
+        MapFile.Writer.valueClass(CrawlDatum.class))) {
+      for (Map.Entry<String, CrawlDatum> datum : fetched.entrySet()) {
+        writer.append(new Text(datum.getKey()), datum.getValue());
+      }
+    }
+    return segment;
+  }
+
+  private List<Path> listParts(Path db) throws Exception {
+    List<Path> parts = new ArrayList<>();
+    for (FileStatus stat : fs.listStatus(db)) {
+      if (stat.getPath().getName().startsWith("part-")) {
+        parts.add(stat.getPath());
+      }
+    }
+    Assert.assertEquals(NUM_PARTS, parts.size());
+    return parts;
+  }
+
+  private boolean hasEmptyPart(Path db) throws Exception {
+    for (Path part : listParts(db)) {
+      try (MapFile.Reader reader = new MapFile.Reader(part, conf)) {
+        if (!reader.next(new Text(), new LinkDatum())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /** @return the links as "key url anchor" */
+  private Set<String> readLinks(Path db) throws Exception {
+    Set<String> links = new TreeSet<>();
+    Text key = new Text();
+    LinkDatum link = new LinkDatum();
+    for (Path part : listParts(db)) {
+      try (MapFile.Reader reader = new MapFile.Reader(part, conf)) {
+        while (reader.next(key, link)) {
+          Assert.assertTrue(links.add(key + " " + link.getUrl() + " "
+              + link.getAnchor()));
+        }
+      }
+    }
+    return links;
+  }
+
+  /** @return the nodes as "url inlinks outlinks" */
+  private Set<String> readNodes(Path db) throws Exception {
+    Set<String> nodes = new TreeSet<>();
+    Text key = new Text();
+    Node node = new Node();
+    for (Path part : listParts(db)) {
+      try (MapFile.Reader reader = new MapFile.Reader(part, conf)) {
+        while (reader.next(key, node)) {
+          nodes.add(key + " " + node.getNumInlinks() + " "
+              + node.getNumOutlinks());
+        }
+      }
+    }
+    return nodes;
+  }
+}
@@ -0,0 +1,109 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.scoring.webgraph;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Utilities to write a WebGraph for the link analysis tests and read the
+ * scores.
+ */
+public class WebGraphTestUtil {
+
+  /**
+   * Writes the OutlinkDb and the NodeDb of a WebGraph, a single part each.
+   *
+   * @param outlinks
+   *          the target URLs by source URL
+   * @param withoutNode
+   *          URLs linked to without a node in the NodeDb
+   */
+  public static void createWebGraph(Configuration conf, Path webGraphDb,
+      Map<String, String[]> outlinks, Set<String> withoutNode)
+      throws Exception {
+    Map<String, Node> nodes = new TreeMap<>();
+    try (MapFile.Writer writer = new MapFile.Writer(conf, new Path(webGraphDb,
+        WebGraph.OUTLINK_DIR + "/part-00000"),
+        MapFile.Writer.keyClass(Text.class),
+        MapFile.Writer.valueClass(LinkDatum.class))) {
+      for (Map.Entry<String, String[]> entry : new TreeMap<>(outlinks)
+          .entrySet()) {
+        Node source = getNode(nodes, entry.getKey());
+        for (String toUrl : entry.getValue()) {
+          LinkDatum link = new LinkDatum(toUrl, "", 1000L);
+          link.setLinkType(LinkDatum.OUTLINK);
+          writer.append(new Text(entry.getKey()), link);
+          source.setNumOutlinks(source.getNumOutlinks() + 1);
+          Node target = getNode(nodes, toUrl);
+          target.setNumInlinks(target.getNumInlinks() + 1);
+        }
+      }
+    }
+    try (MapFile.Writer writer = new MapFile.Writer(conf, new Path(webGraphDb,
+        WebGraph.NODE_DIR + "/part-00000"),
+        MapFile.Writer.keyClass(Text.class),
+        MapFile.Writer.valueClass(Node.class))) {
+      for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+        if (!withoutNode.contains(entry.getKey())) {
+          writer.append(new Text(entry.getKey()), entry.getValue());
+        }
+      }
+    }
+  }
+
+  public static void createWebGraph(Configuration conf, Path webGraphDb,
+      Map<String, String[]> outlinks) throws Exception {
+    createWebGraph(conf, webGraphDb, outlinks, Collections.<String> emptySet());
+  }
+
+  private static Node getNode(Map<String, Node> nodes, String url) {
+    Node node = nodes.get(url);
+    if (node == null) {
+      node = new Node();
+      nodes.put(url, node);
+    }
+    return node;
+  }
+
+  /** @return the scores of the NodeDb by URL */
+  public static Map<String, Float> readScores(Configuration conf,
+      Path webGraphDb) throws Exception {
+    Path nodeDb = new Path(webGraphDb, WebGraph.NODE_DIR);
+    FileSystem fs = nodeDb.getFileSystem(conf);
+    Map<String, Float> scores = new TreeMap<>();
+    Text key = new Text();
+    Node node = new Node();
+    for (FileStatus part : fs.listStatus(nodeDb)) {
+      try (MapFile.Reader reader = new MapFile.Reader(part.getPath(), conf)) {
+        while (reader.next(key, node)) {
+          scores.put(key.toString(), node.getInlinkScore());
+        }
+      }
+    }
+    return scores;
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.service.impl;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.Partitioner;
+import org.apache.hadoop.mapred.lib.HashPartitioner;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestLookupServiceImpl {
+
+  private static final Partitioner<Text, Writable> PARTITIONER = new HashPartitioner<>();
+  private static final int NUM_PARTS = 2;
+
+  private Configuration conf;
+  private FileSystem fs;
+  private Path testDir;
+  private LookupServiceImpl service;
+
+  @Before
+  public void setUp() throws Exception {
+    conf = NutchConfiguration.create();
+    conf.setLong("service.lookup.check.interval", 0);
+    fs = FileSystem.getLocal(conf);
+    testDir = new Path(new File(System.getProperty("test.build.data", "/tmp"),
+        "lookup-" + System.currentTimeMillis()).getAbsolutePath());
+    service = ReflectionUtils.newInstance(LookupServiceImpl.class, conf);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    service.close();
+    fs.delete(testDir, true);
+  }
+
+  /** Write a CrawlDb holding the URLs with the given score. */
+  private void createCrawlDb(Path dir, float score, String... urls)
+      throws Exception {
+    MapFile.Writer[] writers = new MapFile.Writer[NUM_PARTS];
+    for (int i = 0; i < NUM_PARTS; i++) {
+      writers[i] = new MapFile.Writer(conf,
+          new Path(dir, "part-0000" + i),
+          MapFile.Writer.keyClass(Text.class),
+          MapFile.Writer.valueClass(CrawlDatum.class));
+    }
+    Arrays.sort(urls);
+    for (String url : urls) {
+      Text key = new Text(url);
+      CrawlDatum datum = new CrawlDatum(CrawlDatum.STATUS_DB_FETCHED, 0,
+          score);
+      writers[PARTITIONER.getPartition(key, datum, NUM_PARTS)].append(key,
+          datum);
+    }
+    for (MapFile.Writer writer : writers) {
+      writer.close();
+    }
+  }
+
+  @Test
+  public void testBatchLookup() throws Exception {
+    Path current = new Path(testDir, "crawldb/current");
+    createCrawlDb(current, 1.0f, "http://a.example.com/",
+        "http://b.example.com/", "http://c.example.com/");
+
+    Map<String, Writable> res = service.get(current, PARTITIONER,
+        Arrays.asList("http://c.example.com/", "http://x.example.com/",
+            "http://a.example.com/"));
+    // results in the order requested
+    Assert.assertEquals(Arrays.asList("http://c.example.com/",
+        "http://x.example.com/", "http://a.example.com/"),
+        Arrays.asList(res.keySet().toArray()));
+    Assert.assertEquals(1.0f, ((CrawlDatum) res.get("http://c.example.com/"))
+        .getScore(), 0.0001f);
+    Assert.assertNull(res.get("http://x.example.com/"));
+
+    // same results without partitioner (all parts searched) and from cache
+    service.invalidate(current);
+    Map<String, Writable> all = service.get(current, null, res.keySet());
+    Assert.assertEquals(res, all);
+    res = service.get(current, PARTITIONER, res.keySet());
+    Assert.assertEquals(all, res);
+  }
+
+  @Test
+  public void testReplacedDirectory() throws Exception {
+    Path current = new Path(testDir, "crawldb/current");
+    createCrawlDb(current, 1.0f, "http://a.example.com/");
+    Writable value = service.get(current, PARTITIONER,
+        Arrays.asList("http://a.example.com/")).get("http://a.example.com/");
+    Assert.assertEquals(1.0f, ((CrawlDatum) value).getScore(), 0.0001f);
+
+    // replace the CrawlDb as done by an update
+    Path updated = new Path(testDir, "crawldb/updated");
+    createCrawlDb(updated, 2.0f, "http://a.example.com/",
+        "http://b.example.com/");
+    fs.delete(current, true);
+    // make sure the modification time differs
+    Thread.sleep(1000);
+    fs.rename(updated, current);
+    fs.setTimes(current, System.currentTimeMillis(), -1);
+
+    Map<String, Writable> res = service.get(current, PARTITIONER,
+        Arrays.asList("http://a.example.com/", "http://b.example.com/"));
+    Assert.assertEquals(2.0f, ((CrawlDatum) res.get("http://a.example.com/"))
+        .getScore(), 0.0001f);
+    Assert.assertNotNull(res.get("http://b.example.com/"));
+
+    service.invalidate(current);
+    fs.delete(current, true);
+    try {
+      service.get(current, PARTITIONER, Arrays.asList("http://a.example.com/"));
+      Assert.fail("Lookup in deleted directory must fail");
+    } catch (FileNotFoundException e) {
+      // expected
+    }
+  }
+}
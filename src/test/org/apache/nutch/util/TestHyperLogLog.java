@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestHyperLogLog {
+
+  private static HyperLogLog create(int from, int to) {
+    HyperLogLog hll = new HyperLogLog();
+    for (int i = from; i < to; i++) {
+      hll.add(HyperLogLog.hash("/path/" + i));
+    }
+    return hll;
+  }
+
+  private static void assertEstimate(long expected, long actual) {
+    Assert.assertEquals(expected, actual, Math.max(2, expected * 0.1));
+  }
+
+  @Test
+  public void testCardinality() {
+    Assert.assertTrue(new HyperLogLog().isEmpty());
+    Assert.assertEquals(0, new HyperLogLog().cardinality());
+    assertEstimate(10, create(0, 10).cardinality());
+    assertEstimate(1000, create(0, 1000).cardinality());
+    assertEstimate(10000, create(0, 10000).cardinality());
+  }
+
+  @Test
+  public void testDuplicates() {
+    HyperLogLog hll = create(0, 1000);
+    long estimate = hll.cardinality();
+    for (int i = 0; i < 1000; i++) {
+      hll.add(HyperLogLog.hash("/path/" + i));
+    }
+    Assert.assertEquals(estimate, hll.cardinality());
+  }
+
+  @Test
+  public void testMerge() {
+    HyperLogLog hll = create(0, 6000);
+    hll.merge(create(4000, 10000));
+    Assert.assertEquals(create(0, 10000).cardinality(), hll.cardinality());
+    assertEstimate(10000, hll.cardinality());
+  }
+
+  @Test
+  public void testWritable() throws Exception {
+    // sparse and dense
+    for (int n : new int[] { 0, 10, 100000 }) {
+      HyperLogLog hll = create(0, n);
+      HyperLogLog read = (HyperLogLog) WritableTestUtils.writeRead(hll, null);
+      Assert.assertEquals(hll.cardinality(), read.cardinality());
+      read.merge(hll);
+      Assert.assertEquals(hll.cardinality(), read.cardinality());
+    }
+  }
+}